@@ -0,0 +1,1512 @@
+// AI agent tests - included from scribbletest.cpp
+// - stand-in provider servers run on loopback, so these tests need no network access or API keys
+
+#include "aiagent.h"
+#include "rag_shard.h"
+#include "rag_vector.h"
+#include "rag_indexer.h"
+#include "ulib/fileutil.h"
+
+#ifndef _WIN32
+#include <sys/socket.h>
+#include <netinet/in.h>
+#include <arpa/inet.h>
+#include <poll.h>
+#include <unistd.h>
+
+// minimal HTTP server answering like an Ollama /api/generate endpoint after an injected delay
+class StandInProvider
+{
+public:
+  StandInProvider(int _latencyMs, const std::string& _reply) : latencyMs(_latencyMs), reply(_reply)
+  {
+    listenFd = socket(AF_INET, SOCK_STREAM, 0);
+    sockaddr_in addr = {};
+    addr.sin_family = AF_INET;
+    addr.sin_addr.s_addr = htonl(INADDR_LOOPBACK);
+    addr.sin_port = 0;  // any free port
+    socklen_t len = sizeof(addr);
+    bind(listenFd, (sockaddr*)&addr, len);
+    listen(listenFd, 4);
+    getsockname(listenFd, (sockaddr*)&addr, &len);
+    port = ntohs(addr.sin_port);
+    thread = std::thread([this](){ run(); });
+  }
+
+  ~StandInProvider()
+  {
+    stop = true;
+    thread.join();
+    close(listenFd);
+  }
+
+  std::string url() const { return fstring("http://127.0.0.1:%d", port); }
+
+  int latencyMs;
+  std::string reply;
+  std::string extraHeaders;  // e.g. rate limit headers, each ending with \r\n
+  int pieceDelayMs = 0;  // if set, the reply is sent in 1 KB pieces with this pause between them
+  std::atomic<int> rateLimited{0};  // number of requests to reject with 429 (Retry-After: 1)
+  std::atomic<int> served{0};
+  std::atomic<int> aborted{0};
+  std::atomic<int> lastIdleMs{-1};  // from accepting the last connection to receiving its request
+
+  std::string lastRequest()
+  {
+    std::lock_guard<std::mutex> lock(mutex);
+    return request;
+  }
+
+private:
+  int listenFd;
+  int port;
+  std::thread thread;
+  std::atomic<bool> stop{false};
+  std::mutex mutex;
+  std::string request;
+  Timestamp acceptedAt = 0;
+
+  void run()
+  {
+    while(!stop) {
+      pollfd pfd = {listenFd, POLLIN, 0};
+      if(poll(&pfd, 1, 20) <= 0)
+        continue;
+      int fd = accept(listenFd, NULL, NULL);
+      if(fd >= 0) {
+        acceptedAt = mSecSinceEpoch();
+        handle(fd);
+        close(fd);
+      }
+    }
+  }
+
+  void handle(int fd)
+  {
+    // read request headers and body
+    std::string req;
+    char buff[4096];
+    size_t bodyLen = std::string::npos;
+    while(true) {
+      size_t hdrEnd = req.find("\r\n\r\n");
+      if(hdrEnd != std::string::npos) {
+        if(bodyLen == std::string::npos) {
+          size_t cl = req.find("Content-Length: ");
+          bodyLen = cl < hdrEnd ? atoi(req.c_str() + cl + 16) : 0;
+        }
+        if(req.size() >= hdrEnd + 4 + bodyLen)
+          break;
+      }
+      ssize_t n = recv(fd, buff, sizeof(buff), 0);
+      if(n <= 0)
+        return;
+      req.append(buff, n);
+    }
+    {
+      std::lock_guard<std::mutex> lock(mutex);
+      request = req;
+    }
+    lastIdleMs = int(mSecSinceEpoch() - acceptedAt);
+    // injected latency - watch for the client giving up on us
+    for(int t = 0; t < latencyMs; t += 5) {
+      pollfd pfd = {fd, POLLIN, 0};
+      if(poll(&pfd, 1, 5) > 0 && recv(fd, buff, sizeof(buff), MSG_PEEK) <= 0) {
+        ++aborted;
+        return;
+      }
+    }
+    if(rateLimited > 0) {
+      --rateLimited;
+      std::string resp = "HTTP/1.1 429 Too Many Requests\r\nRetry-After: 1\r\nContent-Length: 0\r\n"
+          "Connection: close\r\n\r\n";
+      send(fd, resp.data(), resp.size(), MSG_NOSIGNAL);
+      return;
+    }
+    std::string body = "{\"model\": \"standin\", \"response\": \"" + reply + "\", \"done\": true}";
+    std::string resp = fstring("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nContent-Length: %d\r\n"
+        "%sConnection: close\r\n\r\n", int(body.size()), extraHeaders.c_str()) + body;
+    size_t piece = pieceDelayMs > 0 ? 1024 : resp.size();
+    for(size_t sent = 0; sent < resp.size(); sent += piece) {
+      if(sent > 0)
+        std::this_thread::sleep_for(std::chrono::milliseconds(pieceDelayMs));
+      if(send(fd, resp.data() + sent, std::min(piece, resp.size() - sent), MSG_NOSIGNAL) <= 0) {
+        ++aborted;
+        return;
+      }
+    }
+    ++served;
+  }
+};
+
+static int elapsedMsSince(Timestamp t0) { return int(mSecSinceEpoch() - t0); }
+
+// RAG service that records calls, wrapping a real one
+class CountingRAGService : public RAGService
+{
+public:
+  CountingRAGService(std::unique_ptr<RAGService> svc) : service(std::move(svc)) {}
+  ~CountingRAGService() override { if(destroyed) *destroyed = true; }
+  std::vector<RAGDocument> searchDocuments(const std::string& query, int maxResults) override
+  {
+    std::this_thread::sleep_for(std::chrono::milliseconds(searchDelayMs));
+    return service->searchDocuments(query, maxResults);
+  }
+  bool indexDocument(const RAGDocument& document) override
+    { ++indexed; return service->indexDocument(document); }
+  bool removeDocument(const std::string& documentId) override
+    { ++removed; return service->removeDocument(documentId); }
+  void clearIndex() override { service->clearIndex(); }
+
+  std::unique_ptr<RAGService> service;
+  std::atomic<int> indexed{0};
+  std::atomic<int> removed{0};
+  int searchDelayMs = 0;
+  std::atomic<bool>* destroyed = nullptr;
+};
+
+// hedging and failover across providers; primary is the Ollama provider, secondary is a custom provider
+void ScribbleTest::aiTest()
+{
+  nFailed = 0;
+  std::vector<std::string> slFailed;
+  auto check = [&](bool ok, const char* name) {
+    if(!ok) {
+      ++nFailed;
+      slFailed.push_back(name);
+    }
+  };
+  Timestamp runAllTime = mSecSinceEpoch();
+
+  HedgingPolicy policy;
+  policy.enabled = true;
+  policy.defaultDelayMs = 150;
+  policy.minSamples = 1000;  // always use defaultDelayMs
+  policy.secondaries = {AIProvider::CUSTOM};
+
+  // slow primary: hedge should fire and the secondary should win; primary request is then cancelled
+  {
+    StandInProvider slow(1500, "slow");
+    StandInProvider fast(20, "fast");
+    AIAgent agent(scribbleConfig);
+    agent.configure(AIProvider::OLLAMA, "", slow.url());
+    agent.addCustomProvider(createOllamaProvider(fast.url()));
+    agent.setHedgingPolicy(policy);
+    Timestamp t0 = mSecSinceEpoch();
+    AIResponse res = agent.generateText("hello");
+    int dt = elapsedMsSince(t0);
+    check(res.success && res.content == "fast", "hedge winner");
+    check(res.metadata["hedged"] == "true", "hedge flagged");
+    check(dt < 1000, "hedge latency");
+    for(int ii = 0; ii < 100 && slow.aborted == 0; ++ii)
+      std::this_thread::sleep_for(std::chrono::milliseconds(10));
+    check(slow.aborted == 1 && slow.served == 0, "hedge loser cancelled");
+  }
+
+  // cancelling the request stops the hedged attempts instead of waiting for a provider to answer
+  {
+    StandInProvider slow(1500, "slow");
+    StandInProvider slower(1500, "slower");
+    AIAgent agent(scribbleConfig);
+    agent.configure(AIProvider::OLLAMA, "", slow.url());
+    agent.addCustomProvider(createOllamaProvider(slower.url()));
+    agent.setHedgingPolicy(policy);
+    AIRequest req;
+    req.prompt = "hello";
+    req.cancelToken = std::make_shared<AICancelToken>();
+    std::thread canceller([&](){
+      std::this_thread::sleep_for(std::chrono::milliseconds(300));
+      req.cancelToken->cancel();
+    });
+    Timestamp t0 = mSecSinceEpoch();
+    AIResponse res = agent.processRequest(req);
+    int dt = elapsedMsSince(t0);
+    canceller.join();
+    check(!res.success && res.error == "Request cancelled" && dt < 700, "hedge request cancelled");
+    for(int ii = 0; ii < 100 && (slow.aborted == 0 || slower.aborted == 0); ++ii)
+      std::this_thread::sleep_for(std::chrono::milliseconds(10));
+    check(slow.aborted == 1 && slower.aborted == 1 && slow.served == 0 && slower.served == 0, "hedge attempts cancelled");
+  }
+
+  // fast primary: no duplicate request should be sent
+  {
+    StandInProvider primary(10, "primary");
+    StandInProvider secondary(10, "secondary");
+    AIAgent agent(scribbleConfig);
+    agent.configure(AIProvider::OLLAMA, "", primary.url());
+    agent.addCustomProvider(createOllamaProvider(secondary.url()));
+    agent.setHedgingPolicy(policy);
+    AIResponse res = agent.generateText("hello");
+    check(res.success && res.content == "primary" && res.metadata["hedged"].empty(), "no hedge");
+    check(secondary.served == 0 && secondary.aborted == 0, "no hedge secondary idle");
+  }
+
+  // unreachable primary: fail over to secondary without waiting for hedge delay
+  {
+    StandInProvider secondary(10, "secondary");
+    AIAgent agent(scribbleConfig);
+    agent.configure(AIProvider::OLLAMA, "", "http://127.0.0.1:1");
+    agent.addCustomProvider(createOllamaProvider(secondary.url()));
+    HedgingPolicy failover = policy;
+    failover.defaultDelayMs = 5000;
+    agent.setHedgingPolicy(failover);
+    Timestamp t0 = mSecSinceEpoch();
+    AIResponse res = agent.generateText("hello");
+    check(res.success && res.content == "secondary", "failover");
+    check(elapsedMsSince(t0) < 2000, "failover latency");
+  }
+
+  // hedging disabled: slow primary is waited for
+  {
+    StandInProvider slow(300, "slow");
+    StandInProvider fast(10, "fast");
+    AIAgent agent(scribbleConfig);
+    agent.configure(AIProvider::OLLAMA, "", slow.url());
+    agent.addCustomProvider(createOllamaProvider(fast.url()));
+    agent.setHedgingPolicy(HedgingPolicy());
+    AIResponse res = agent.generateText("hello");
+    check(res.success && res.content == "slow" && fast.served == 0, "hedging disabled");
+  }
+
+  // first byte timeout adapts to observed latency once enough samples are collected
+  {
+    StandInProvider primary(10, "primary");
+    AIAgent agent(scribbleConfig);
+    agent.configure(AIProvider::OLLAMA, "", primary.url());
+    for(int ii = 0; ii < 5; ++ii)
+      agent.generateText("hello");
+    ProviderHealthStats stats;
+    for(const ProviderHealthStats& s : agent.getProviderHealth()) {
+      if(s.provider == "Ollama")
+        stats = s;
+    }
+    check(stats.samples == 5 && stats.p99Ms >= 0 && stats.firstByteTimeoutSecs == 5, "adaptive timeout");
+    check(stats.ewmaConnectMs >= 0 && stats.connectTimeoutSecs == 2, "adaptive connect timeout");
+  }
+
+  // unreachable provider: breaker opens after repeated failures, then requests fail fast
+  {
+    AIAgent agent(scribbleConfig);
+    agent.configure(AIProvider::OLLAMA, "", "http://127.0.0.1:1");
+    for(int ii = 0; ii < 3; ++ii)
+      agent.generateText("hello");
+    ProviderHealthStats stats;
+    for(const ProviderHealthStats& s : agent.getProviderHealth()) {
+      if(s.provider == "Ollama")
+        stats = s;
+    }
+    check(stats.state == BreakerState::OPEN && stats.consecutiveFailures == 3, "breaker open");
+    AIResponse res = agent.generateText("hello");
+    check(!res.success && res.transportError, "breaker fail fast");
+  }
+
+  // HTTP 429 with Retry-After: request is queued and retried instead of failing
+  {
+    StandInProvider primary(10, "primary");
+    primary.rateLimited = 1;
+    AIAgent agent(scribbleConfig);
+    agent.configure(AIProvider::OLLAMA, "", primary.url());
+    Timestamp t0 = mSecSinceEpoch();
+    AIResponse res = agent.generateText("hello");
+    int dt = elapsedMsSince(t0);
+    check(res.success && res.content == "primary" && dt >= 900 && dt < 3000, "rate limit retry");
+    check(atoi(res.metadata["queued_ms"].c_str()) >= 900, "rate limit queued");
+  }
+
+  // rate limited beyond request deadline: fail without waiting out Retry-After
+  {
+    StandInProvider primary(10, "primary");
+    primary.rateLimited = 10;
+    AIAgent agent(scribbleConfig);
+    agent.configure(AIProvider::OLLAMA, "", primary.url());
+    AIRequest req;
+    req.prompt = "hello";
+    req.queueTimeoutMs = 500;
+    Timestamp t0 = mSecSinceEpoch();
+    AIResponse res = agent.processRequest(req);
+    check(!res.success && res.metadata["rate_limited"] == "true" && elapsedMsSince(t0) < 900, "rate limit deadline");
+  }
+
+  // exhausted remaining count from headers pauses the provider until reset
+  {
+    StandInProvider primary(10, "primary");
+    primary.extraHeaders = "x-ratelimit-limit-requests: 100\r\nx-ratelimit-remaining-requests: 0\r\n"
+        "x-ratelimit-reset-requests: 300ms\r\n";
+    AIAgent agent(scribbleConfig);
+    agent.configure(AIProvider::OLLAMA, "", primary.url());
+    agent.generateText("hello");
+    Timestamp t0 = mSecSinceEpoch();
+    AIResponse res = agent.generateText("hello");
+    check(res.success && elapsedMsSince(t0) >= 250, "rate limit headers");
+  }
+
+  // response filtered as it arrives: a blocked response (here only recognizable once the JSON is unescaped)
+  //  is stopped after the first piece instead of being received in full
+  {
+    std::string filler;
+    while(filler.size() < 40000)
+      filler += "lorem ipsum dolor sit amet ";
+    StandInProvider primary(10, "A \\u0076iolent storm. " + filler);
+    primary.pieceDelayMs = 20;
+    AIAgent agent(scribbleConfig);
+    agent.configure(AIProvider::OLLAMA, "", primary.url());
+    Timestamp t0 = mSecSinceEpoch();
+    AIResponse res = agent.generateText("hello");
+    int dt = elapsedMsSince(t0);
+    check(!res.success && res.filteredReason == "Content blocked by safety filter" && res.content.empty()
+        && dt < 400, "filter stops response");
+    ResponseFilterStats stats = agent.getResponseFilterStats();
+    check(stats.responsesStopped == 1 && stats.bytesReceived < 8192 && stats.bytesSaved > 30000
+        && atoi(res.metadata["bytes_saved"].c_str()) == int(stats.bytesSaved), "filter bytes saved");
+    for(int ii = 0; ii < 100 && primary.aborted == 0; ++ii)
+      std::this_thread::sleep_for(std::chrono::milliseconds(10));
+    check(primary.aborted == 1 && primary.served == 0, "filter stopped server");
+    primary.reply = "A calm storm. " + filler;
+    res = agent.generateText("hello");
+    check(res.success && res.content.size() == primary.reply.size() && agent.getResponseFilterStats().responsesStopped == 1,
+        "filter passes response");
+    // the caller's onContent is passed the response as it arrives, except for text the filter blocked
+    std::string streamed;
+    AIRequest req;
+    req.prompt = "hello";
+    req.metadata["useCase"] = "text_generation";
+    req.onContent = [&](const char* text, size_t len) { streamed.append(text, len); return true; };
+    res = agent.processRequest(req);
+    check(res.success && streamed == primary.reply && res.metadata.count("response_filter_ms"), "filter streams to caller");
+    primary.reply = "A \\u0076iolent storm. " + filler;
+    streamed.clear();
+    res = agent.processRequest(req);
+    check(!res.success && res.filteredReason == "Content blocked by safety filter" && streamed.empty(),
+        "filter withholds from caller");
+  }
+
+  // token bucket: a request waits for tokens to refill; requests are granted in arrival order
+  {
+    RequestScheduler scheduler;
+    RateLimits limits;
+    limits.tokensPerMinute = 60000;  // 1000 tokens/sec
+    scheduler.setLimits(AIProvider::OPENAI, limits);
+    auto deadline = std::chrono::steady_clock::now() + std::chrono::seconds(5);
+    Timestamp t0 = mSecSinceEpoch();
+    bool ok = scheduler.acquire(AIProvider::OPENAI, 60000, deadline, nullptr);
+    check(ok && elapsedMsSince(t0) < 50, "token bucket burst");
+    std::vector<int> order;
+    std::mutex orderMutex;
+    std::thread big([&](){
+      scheduler.acquire(AIProvider::OPENAI, 300, deadline, nullptr);
+      std::lock_guard<std::mutex> lock(orderMutex);
+      order.push_back(300);
+    });
+    while(scheduler.queueLength(AIProvider::OPENAI) == 0)
+      std::this_thread::sleep_for(std::chrono::milliseconds(1));
+    scheduler.acquire(AIProvider::OPENAI, 10, deadline, nullptr);
+    {
+      std::lock_guard<std::mutex> lock(orderMutex);
+      order.push_back(10);
+    }
+    big.join();
+    int dt = elapsedMsSince(t0);
+    check(order.size() == 2 && order[0] == 300 && dt >= 280 && dt < 800, "token bucket refill");
+    auto shortDeadline = std::chrono::steady_clock::now() + std::chrono::milliseconds(100);
+    check(!scheduler.acquire(AIProvider::OPENAI, 50000, shortDeadline, nullptr), "token bucket deadline");
+  }
+
+  // BM25 inverted index: ranking, replacement and deletion
+  {
+    InvertedIndex index;
+    auto doc = [](const char* id, const char* content) {
+      RAGDocument d;
+      d.id = id;
+      d.content = content;
+      return d;
+    };
+    index.add(doc("a", "Notes on the mitochondria: the mitochondria is the powerhouse of the cell."));
+    index.add(doc("b", "Cell division happens in mitosis. Meiosis produces gametes."));
+    index.add(doc("c", "Shopping list: apples, bread, milk, and more apples."));
+    std::vector<RAGDocument> hits = index.search("mitochondria cell", 5);
+    check(hits.size() == 2 && hits[0].id == "a" && hits[1].id == "b" && hits[0].relevanceScore > hits[1].relevanceScore, "bm25 ranking");
+    check(index.search("APPLES!", 5).size() == 1 && index.search("unknownterm", 5).empty(), "bm25 terms");
+    check(index.search("cell", 1).size() == 1, "bm25 top k");
+    index.add(doc("a", "Grocery run: apples and pears."));
+    hits = index.search("apples", 5);
+    check(index.size() == 3 && hits.size() == 2 && index.search("mitochondria", 5).empty(), "bm25 replace");
+    check(index.remove("c") && !index.remove("c") && index.search("bread", 5).empty(), "bm25 remove");
+    // enough churn to trigger compaction
+    for(int ii = 0; ii < 200; ++ii)
+      index.add(doc(ii % 2 ? "x" : "y", fstring("revision %d of a scratch page", ii).c_str()));
+    hits = index.search("revision scratch", 5);
+    check(index.size() == 4 && hits.size() == 2 && index.find("b") && index.search("mitosis", 5).size() == 1, "bm25 compaction");
+  }
+
+  // segmented index: persistence across reopen, torn log tail, segment writes and merges
+  {
+    std::string indexDir = outPath + "/ai_rag_index";
+    removeDir(indexDir, true);
+    auto doc = [](const std::string& id, const std::string& content) {
+      RAGDocument d;
+      d.id = id;
+      d.title = "title " + id;
+      d.content = content;
+      return d;
+    };
+    SegmentedIndex::Options options;
+    options.memtableMaxDocs = 50;
+    options.maxSegments = 3;
+    options.mergeFactor = 3;
+    {
+      SegmentedIndex index(indexDir, options);
+      for(int ii = 0; ii < 30; ++ii)
+        index.add(doc(fstring("n%d", ii), fstring("page %d about topic%d and common words", ii, ii % 5)));
+      index.remove("n3");
+    }
+    {
+      SegmentedIndex index(indexDir, options);
+      std::vector<RAGDocument> hits = index.search("topic3", 10);
+      check(index.size() == 29 && index.segmentCount() == 0 && hits.size() == 5 && hits[0].title.substr(0, 6) == "title ", "segments log replay");
+      check(!index.contains("n3") && index.contains("n8"), "segments log remove");
+    }
+    // append a partial record, as if killed mid-write
+    for(const std::string& name : lsDirectory(FSPath(indexDir))) {
+      if(FSPath(name).extension() == "log") {
+        FILE* fp = fopen(FSPath(indexDir, name).c_str(), "ab");
+        fwrite("\x40\0\0\0\1\2", 1, 6, fp);
+        fclose(fp);
+      }
+    }
+    {
+      SegmentedIndex index(indexDir, options);
+      check(index.size() == 29 && index.search("common", 50).size() == 29, "segments torn log");
+      // enough docs to write several segments and trigger a merge; replace and delete across segments
+      for(int ii = 30; ii < 400; ++ii)
+        index.add(doc(fstring("n%d", ii), fstring("page %d about topic%d and common words", ii, ii % 5)));
+      index.flush();
+      check(index.segmentCount() > 0 && index.segmentCount() <= 3, "segments merged");
+      index.add(doc("n8", "rewritten with a unique word zymurgy"));
+      index.remove("n9");
+      check(index.size() == 398 && index.search("zymurgy", 5).size() == 1 && !index.contains("n9"), "segments update");
+    }
+    {
+      SegmentedIndex index(indexDir, options);
+      std::vector<RAGDocument> hits = index.search("page 8", 400);
+      bool stale = false;
+      for(const RAGDocument& hit : hits)
+        stale = stale || hit.id == "n9" || (hit.id == "n8" && hit.content.find("zymurgy") == std::string::npos);
+      check(index.size() == 398 && !stale && index.search("topic4", 400).size() == 79, "segments reopen");
+      // delete most docs so segments get rewritten
+      for(int ii = 0; ii < 300; ++ii)
+        index.remove(fstring("n%d", ii));
+      index.flush();
+      check(index.size() == 100 && index.search("common", 400).size() == 100, "segments deletions");
+      index.clear();
+      check(index.size() == 0 && index.search("common", 5).empty(), "segments clear");
+    }
+    {
+      SegmentedIndex index(indexDir, options);
+      check(index.size() == 0 && lsDirectory(FSPath(indexDir)).size() == 2, "segments cleared files");
+    }
+    {
+      // deletions alone must wake the worker to rewrite segments, else flush() never returns; the first 50
+      //  docs are sealed and the rest stay in the memtable, too few to freeze it, so nothing else wakes it
+      SegmentedIndex index(indexDir, options);
+      for(int ii = 0; ii < 90; ++ii)
+        index.add(doc(fstring("d%d", ii), fstring("page %d about common words", ii)));
+      index.flush();
+      int sealed = index.segmentCount();
+      for(int ii = 0; ii < 50; ii += 2)
+        index.remove(fstring("d%d", ii));
+      index.flush();
+      check(sealed == 1 && index.size() == 65 && index.search("common", 100).size() == 65, "segments remove then flush");
+    }
+    removeDir(indexDir, true);
+
+    // version 1 segments hold whole documents; they are split into passages on open, and the segment is
+    //  removed once they are written to a new one
+    {
+      std::string words;
+      for(int ii = 0; ii < 100; ++ii)
+        words += fstring("legacy word%d ", ii);  // two passages
+      std::vector<RAGDocument> docs = {doc("v0", words), doc("v1", "deleted legacy note"), doc("v2", "short legacy note")};
+      struct { uint64_t offsets[4]; uint32_t lengths[4]; uint32_t length, reserved; } records[3];
+      std::string data(sizeof(SegmentHeader), '\0');
+      for(size_t ii = 0; ii < docs.size(); ++ii) {
+        const std::string* strs[] = {&docs[ii].id, &docs[ii].title, &docs[ii].source, &docs[ii].content};
+        for(int jj = 0; jj < 4; ++jj) {
+          records[ii].offsets[jj] = data.size();
+          records[ii].lengths[jj] = uint32_t(strs[jj]->size());
+          data += *strs[jj];
+        }
+        records[ii].length = 3;
+        records[ii].reserved = 0;
+      }
+      data.resize((data.size() + 7) & ~size_t(7), '\0');
+      SegmentHeader header = {};
+      memcpy(header.magic, "WRAG", sizeof(header.magic));
+      header.version = 1;
+      header.docCount = 3;
+      header.docTableOffset = data.size();
+      data.append(reinterpret_cast<const char*>(records), sizeof(records));
+      header.termTableOffset = header.idTableOffset = data.size();
+      memcpy(&data[0], &header, sizeof(header));
+      createPath(indexDir);
+      auto writeFile = [&](const char* name, const void* bytes, size_t len) {
+        FILE* fp = fopen(FSPath(indexDir, name).c_str(), "wb");
+        fwrite(bytes, 1, len, fp);
+        fclose(fp);
+      };
+      uint32_t deletedDoc = 1;
+      std::string manifest = "write-rag-index 1\nnext 2\nsegment 000001.seg\n";
+      writeFile("000001.seg", data.data(), data.size());
+      writeFile("000001.seg.del", &deletedDoc, sizeof(deletedDoc));
+      writeFile("MANIFEST", manifest.data(), manifest.size());
+      {
+        SegmentedIndex index(indexDir, options);
+        index.flush();
+        std::vector<RAGDocument> hits = index.search("legacy", 10);
+        check(index.size() == 3 && hits.size() == 3 && index.contains("v0#1") && index.contains("v2#0")
+            && !index.contains("v1#0") && !index.contains("v0"), "segments migrate v1");
+        check(index.segmentCount() == 1 && !FSPath(indexDir, "000001.seg").exists()
+            && !FSPath(indexDir, "000001.seg.del").exists(), "segments migrate v1 files");
+      }
+      {
+        SegmentedIndex index(indexDir, options);
+        check(index.size() == 3 && index.search("word75", 10).size() == 1, "segments migrate v1 reopen");
+      }
+    }
+    removeDir(indexDir, true);
+
+    // snapshots: searches run while a document is replaced over and over (with memtables being frozen,
+    //  written and merged) and must always see exactly one version of all its passages
+    {
+      SegmentedIndex index(indexDir, options);
+      for(int ii = 0; ii < 100; ++ii)
+        index.add(doc(fstring("other%d", ii), fstring("filler text %d about topic%d", ii, ii % 5)));
+      auto version = [&](int v) {
+        std::vector<RAGDocument> passages;
+        for(int jj = 0; jj < 3; ++jj)
+          passages.push_back(doc(passageId("multi", jj), fstring("v%d marker passage %d", v, jj)));
+        return passages;
+      };
+      index.replaceDocuments({"multi"}, version(0));
+      std::atomic<bool> done(false);
+      std::atomic<int> searches(0), torn(0);
+      std::thread reader([&]() {
+        while(!done || searches == 0) {
+          std::vector<RAGDocument> hits = index.search("marker", 10);
+          std::string firstWord = hits.empty() ? "" : hits[0].content.substr(0, hits[0].content.find(' '));
+          bool ok = hits.size() == 3;
+          for(const RAGDocument& hit : hits)
+            ok = ok && hit.content.compare(0, firstWord.size(), firstWord) == 0;
+          if(!ok) ++torn;
+          ++searches;
+        }
+      });
+      size_t removed = 0;
+      size_t totalRemoved = 0;
+      for(int ii = 1; ii < 200; ++ii) {
+        index.replaceDocuments({"multi"}, version(ii), &removed);
+        totalRemoved += removed;
+      }
+      done = true;
+      reader.join();
+      index.flush();
+      check(torn == 0 && searches > 0 && totalRemoved == 199*3, "snapshot consistency");
+      check(index.size() == 103 && index.search("marker", 10).size() == 3 && index.segmentCount() > 0, "snapshot replace");
+      index.replaceDocuments({"multi"}, {}, &removed);
+      check(removed == 3 && index.size() == 100 && index.search("marker", 10).empty(), "snapshot remove document");
+    }
+    removeDir(indexDir, true);
+
+    // search-as-you-type: last word matched as a prefix, or within words, in segments and the memtable; all
+    //  words required; highlights cover just the matching part
+    {
+      SegmentedIndex index(indexDir, options);
+      index.add(doc("kick", "Kickoff: the Pre-Meeting agenda"));
+      for(int ii = 0; ii < 120; ++ii)
+        index.add(doc(fstring("t%d", ii), fstring("meeting notes %d for project%d", ii, ii % 4)));
+      index.flush();
+      index.add(doc("late", "late premeeting memo"));
+      std::vector<RAGDocument> hits = index.searchAsYouType("mee", 200);
+      std::vector<std::string> infix;
+      for(size_t ii = 120; ii < hits.size(); ++ii)
+        infix.push_back(hits[ii].id);
+      std::sort(infix.begin(), infix.end());
+      check(index.segmentCount() > 0 && hits.size() == 122 && infix == std::vector<std::string>{"kick", "late"}, "typeahead prefix");
+      auto kick = std::find_if(hits.begin(), hits.end(), [](const RAGDocument& d){ return d.id == "kick"; });
+      check(hits[0].highlights.size() == 1 && hits[0].highlights[0].offset == 0 && hits[0].highlights[0].length == 3
+          && kick->highlights.size() == 1 && kick->content.substr(kick->highlights[0].offset, kick->highlights[0].length) == "Mee",
+          "typeahead highlights");
+      hits = index.searchAsYouType("Notes project3", 200);
+      bool highlighted = !hits.empty();
+      for(const RAGDocument& hit : hits)
+        highlighted = highlighted && hit.highlights.size() == 2;
+      check(hits.size() == 30 && highlighted && index.searchAsYouType("notes pro", 200).size() == 120, "typeahead words");
+      check(index.searchAsYouType("meeting xyzzy ", 10).empty() && index.searchAsYouType("qqz", 10).empty(), "typeahead no match");
+      AICancelToken cancelled;
+      cancelled.cancel();
+      check(index.searchAsYouType("mee", 10, &cancelled).empty() && index.searchAsYouType("mee", 10).size() == 10, "typeahead cancel");
+    }
+    removeDir(indexDir, true);
+
+    // sharded index: same results as a single index, since BM25 statistics are collection wide; reopening with
+    //  a different shard count moves every passage
+    {
+      auto passage = [&doc](int n, const std::string& content) {
+        RAGDocument d = doc(passageId(fstring("n%d", n), 0), content);
+        d.documentId = fstring("n%d", n);
+        return d;
+      };
+      // ids with scores, or just ids if scores differ (doc frequencies count removed passages until merged)
+      auto scored = [](std::vector<RAGDocument> hits, bool withScores = true) {
+        std::vector<std::string> result;
+        for(const RAGDocument& hit : hits)
+          result.push_back(withScores ? fstring("%s %.5f", hit.id.c_str(), hit.relevanceScore) : hit.id);
+        std::sort(result.begin(), result.end());
+        return result;
+      };
+      std::vector<RAGDocument> passages;
+      for(int ii = 0; ii < 200; ++ii)
+        passages.push_back(passage(ii, fstring("shard notes %d about topic%d and item%d", ii, ii % 7, ii % 13)));
+      std::string singleDir = indexDir + "_single";
+      removeDir(singleDir, true);
+      {
+        SegmentedIndex single(singleDir, options);
+        single.replaceDocuments({}, passages);
+        ShardedIndex sharded(indexDir, 3, options);
+        sharded.replaceDocuments({}, passages);
+        std::vector<std::string> hits = scored(sharded.search("topic3 item5", 300));
+        check(sharded.shardCount() == 3 && sharded.size() == 200 && hits.size() == 42
+            && hits == scored(single.search("topic3 item5", 300))
+            && scored(sharded.searchAsYouType("notes ite", 300)) == scored(single.searchAsYouType("notes ite", 300)), "shard search");
+        size_t removed = 0;
+        sharded.replaceDocuments({"n1", "n2", "n3"}, {passage(1, "replaced shard note")}, &removed);
+        check(removed == 3 && sharded.size() == 198 && sharded.search("replaced", 5).size() == 1, "shard replace");
+        std::vector<RAGShardStats> stats = sharded.shardStats();
+        bool counted = stats.size() == 3;
+        size_t total = 0;
+        for(const RAGShardStats& s : stats) {
+          counted = counted && s.searches == 3 && s.passages > 0 && s.maxSearchUs >= s.lastSearchUs;
+          total += s.passages;
+        }
+        check(counted && total == 198, "shard stats");
+      }
+      removeDir(singleDir, true);
+      std::vector<std::string> expected;
+      {
+        ShardedIndex sharded(indexDir, 0, options);
+        expected = scored(sharded.search("topic3 item5", 300), false);
+        check(sharded.shardCount() == 3 && sharded.size() == 198, "shard reopen");
+      }
+      {
+        ShardedIndex sharded(indexDir, 1, options);
+        check(sharded.shardCount() == 1 && sharded.size() == 198 && scored(sharded.search("topic3 item5", 300), false) == expected
+            && !FSPath(indexDir, "0of3").exists(), "reshard to one");
+      }
+      {
+        ShardedIndex sharded(indexDir, 4, options);
+        sharded.replaceDocuments({"n4"}, {});
+      }
+      {
+        ShardedIndex sharded(indexDir, 0, options);
+        check(sharded.shardCount() == 4 && sharded.size() == 197 && lsDirectory(FSPath(indexDir)).size() == 5
+            && scored(sharded.search("topic3 item5", 300), false) == expected, "reshard");
+      }
+    }
+    removeDir(indexDir, true);
+  }
+
+  // content filter: one pass over the text; patterns match whole words, or word prefixes if ending with '*',
+  //  case insensitively and with any run of non-word characters matching any other
+  {
+    ContentFilter filter;
+    filter.filterLevel = "moderate";
+    filter.blockedTopics = {"Machine Learning", "crypto*", "+++"};
+    ContentFilterEngine engine(filter);
+    AIRequest request;
+    check(engine.isContentAllowed("Whatever you think of the chateau", request) && !engine.isContentAllowed("They HATED it", request)
+        && !engine.isContentAllowed("a violent storm", request) && !engine.isContentAllowed("hatred", request)
+        && engine.getFilterReason() == "Content blocked by safety filter", "filter safety");
+    check(!engine.isContentAllowed("notes on machine-learning", request) && !engine.isContentAllowed("MACHINE\n  learning", request)
+        && engine.isContentAllowed("machine learnings", request) && !engine.isContentAllowed("(Cryptocurrency)", request)
+        && engine.isContentAllowed("a cryptic note", request) && engine.isContentAllowed("+++", request)
+        && engine.getFilterReason().empty(), "filter blocked topics");
+    filter.blockedTopics.clear();
+    filter.allowedTopics = {"math", "physics"};
+    filter.filterLevel = "permissive";
+    engine.updateFilterConfig(filter);
+    check(engine.isContentAllowed("Math homework", request) && engine.isContentAllowed("violent physics", request)
+        && !engine.isContentAllowed("mathematics", request) && !engine.isContentAllowed("", request)
+        && engine.getFilterReason() == "Content blocked by topic filter", "filter allowed topics");
+
+    PatternMatcher matcher;
+    matcher.addPattern("he", 0);
+    matcher.addPattern("she*", 1);
+    matcher.addPattern("hers", 2);
+    matcher.addPattern("his her", 3);
+    matcher.compile();
+    check(matcher.scan("ushers") == 0 && matcher.scan("shelf") == 2 && matcher.scan("He") == 1 && matcher.scan("his, hers.") == 4
+        && matcher.scan("his  her") == 8 && PatternMatcher().scan("anything") == 0, "filter matcher");
+
+    // fed in pieces: same result as the whole text, with blocked patterns reported as soon as they are seen
+    filter.filterLevel = "moderate";
+    filter.allowedTopics = {"notes"};
+    filter.blockedTopics = {"machine learning"};
+    engine.updateFilterConfig(filter);
+    ContentFilterEngine::Stream stream = engine.stream();
+    bool fed = stream.feed("some notes on machine") && stream.feed(" learning");
+    check(fed && !stream.finish(request) && stream.reason() == "Content blocked by topic filter", "filter stream finish");
+    stream = engine.stream();
+    fed = stream.feed("notes on vio") && stream.feed("lent");
+    check(!fed && stream.isBlocked() && !stream.feed("more") && stream.bytesFed() == 16
+        && stream.reason() == "Content blocked by safety filter", "filter stream stop");
+    const char* texts[] = {"notes", "noted", "notes: machine learning", "MACHINE\n  learning notes", "notes on hatred"};
+    bool same = true;
+    for(const char* text : texts) {
+      stream = engine.stream();
+      for(const char* p = text; *p; ++p)
+        stream.feed(p, 1);
+      same = same && stream.finish(request) == engine.isContentAllowed(text, request)
+          && stream.reason() == engine.getFilterReason();
+    }
+    check(same, "filter stream bytewise");
+  }
+
+  // passage chunking: overlapping windows within pages, with provenance
+  {
+    RAGDocument doc;
+    doc.id = "notes";
+    std::string page1, page2;
+    for(int ii = 0; ii < 250; ++ii)
+      page1 += fstring("w%d ", ii);
+    for(int ii = 0; ii < 20; ++ii)
+      page2 += fstring("v%d ", ii);
+    doc.content = page1 + "\n\n" + page2;
+    doc.pageOffsets = {0, page1.size() + 2};
+    PassageOptions options;
+    options.windowWords = 100;
+    options.overlapWords = 20;
+    std::vector<RAGDocument> passages = splitPassages(doc, options);
+    check(passages.size() == 4 && passages[0].id == "notes#0" && passages[3].id == "notes#3", "passage split");
+    check(passages[1].content.substr(0, 4) == "w80 " && passages[2].content.substr(0, 5) == "w160 "
+        && passages[2].content.substr(passages[2].content.size() - 4) == "w249" && passages[3].page == 1, "passage windows");
+    bool provenance = true;
+    for(const RAGDocument& p : passages)
+      provenance = provenance && p.documentId == "notes" && doc.content.compare(p.offset, p.content.size(), p.content) == 0;
+    check(provenance, "passage provenance");
+  }
+
+  // passage retrieval fills the prompt token budget with the best passages only
+  {
+    std::string indexDir = outPath + "/ai_rag_passages";
+    removeDir(indexDir, true);
+    StandInProvider primary(10, "primary");
+    AIAgent agent(scribbleConfig);
+    agent.configure(AIProvider::OLLAMA, "", primary.url());
+    agent.setRAGService(createLocalRAGService(indexDir));
+    std::vector<std::string> pages;
+    for(int pp = 0; pp < 3; ++pp) {
+      std::string page;
+      for(int ii = 0; ii < 600; ++ii)
+        page += ii == 300 && pp == 2 ? "the quokka lives on rottnest island " : fstring("filler%d text ", ii % 37);
+      pages.push_back(page);
+    }
+    agent.indexDocumentPages(pages, "Field notes", "field");
+    agent.indexDocument("Quokka sightings are common near the ferry.", "Trip", "trip");
+    std::vector<RAGDocument> hits = agent.searchRelevantContent("quokka island", 5);
+    check(hits.size() == 2 && hits[0].documentId == "field" && hits[0].page == 2 && hits[0].content.size() < 2000
+        && pages[2].find(hits[0].content) != std::string::npos, "passage search");
+    AIRequest req;
+    req.prompt = "where does the quokka live on the island";
+    req.documents = {"field"};
+    req.ragTokenBudget = 300;
+    AIResponse res = agent.processRequest(req);
+    std::string sent = primary.lastRequest();
+    check(res.success && sent.find("rottnest") != std::string::npos && sent.find("Field notes (page 3)") != std::string::npos
+        && sent.size() < 300*4 + 1000, "passage prompt budget");
+    agent.indexDocument("Nothing relevant here.", "Field notes", "field");
+    check(agent.searchRelevantContent("rottnest", 5).empty() && agent.searchRelevantContent("relevant", 5).size() == 1, "passage replace");
+    agent.setRAGService(nullptr);
+    removeDir(indexDir, true);
+  }
+
+  // pipelined stages: the provider connection is opened while retrieval runs (slowed here), so the request is
+  //  sent on an already open connection as soon as retrieval finishes
+  {
+    std::string indexDir = outPath + "/ai_rag_pipeline";
+    removeDir(indexDir, true);
+    StandInProvider primary(10, "primary");
+    AIAgent agent(scribbleConfig);
+    agent.configure(AIProvider::OLLAMA, "", primary.url());
+    std::unique_ptr<CountingRAGService> service(new CountingRAGService(createLocalRAGService(indexDir)));
+    service->searchDelayMs = 150;
+    agent.setRAGService(std::move(service));
+    AIRequest req;
+    req.prompt = "hello";
+    req.documents = {"notes"};
+    AIResponse res = agent.processRequest(req);
+    int ragMs = atoi(res.metadata["rag_ms"].c_str());
+    check(res.success && res.metadata["preconnected"] == "true" && ragMs >= 150 && primary.lastIdleMs >= 100
+        && atoi(res.metadata["connect_wait_ms"].c_str()) < 50 && atoi(res.metadata["total_ms"].c_str()) >= ragMs
+        && res.metadata.count("filter_ms") && res.metadata.count("response_filter_ms"), "pipelined connect");
+    // rejected prompt: the connection opened for it is closed unused
+    int served = primary.served;
+    res = agent.generateText("a violent storm");
+    check(!res.success && res.filteredReason == "Content blocked by safety filter" && primary.served == served, "pipelined reject");
+    agent.setRAGService(nullptr);
+    removeDir(indexDir, true);
+  }
+
+  // replacing the RAG service while a request is searching it: the request keeps the old service until done
+  {
+    std::string indexDir = outPath + "/ai_rag_replace";
+    removeDir(indexDir, true);
+    StandInProvider primary(10, "primary");
+    AIAgent agent(scribbleConfig);
+    agent.configure(AIProvider::OLLAMA, "", primary.url());
+    std::atomic<bool> destroyed{false};
+    std::unique_ptr<CountingRAGService> service(new CountingRAGService(createLocalRAGService(indexDir)));
+    service->destroyed = &destroyed;
+    service->searchDelayMs = 300;
+    agent.setRAGService(std::move(service));
+    agent.indexDocument("The quokka lives on Rottnest Island.", "Trip", "trip");
+    AIRequest req;
+    req.prompt = "where does the quokka live";
+    req.documents = {"trip"};
+    AIResponse res;
+    std::thread requestThread([&](){ res = agent.processRequest(req); });
+    std::this_thread::sleep_for(std::chrono::milliseconds(100));
+    agent.setRAGService(nullptr);
+    bool keptAlive = !destroyed;
+    requestThread.join();
+    check(keptAlive && destroyed && res.success && primary.lastRequest().find("Rottnest") != std::string::npos,
+        "rag service replaced in use");
+    removeDir(indexDir, true);
+  }
+
+  // warm connection: opened ahead of a request, which then doesn't wait to connect; closed once idle
+  {
+    StandInProvider primary(10, "primary");
+    AIAgent agent(scribbleConfig);
+    agent.configure(AIProvider::OLLAMA, "", primary.url());
+    int connectMs = -1;
+    check(agent.probeConnection(&connectMs) && connectMs >= 0, "warm probe");
+    std::this_thread::sleep_for(std::chrono::milliseconds(100));
+    AIResponse res = agent.generateText("hello");
+    check(res.success && res.metadata["warm_connection"] == "true" && primary.lastIdleMs >= 100
+        && atoi(res.metadata["connect_wait_ms"].c_str()) < 50, "warm connection used");
+    res = agent.generateText("hello");
+    check(res.success && res.metadata["warm_connection"].empty(), "warm connection taken once");
+    agent.setWarmConnectionIdleMs(50);
+    agent.prewarmConnection();
+    std::this_thread::sleep_for(std::chrono::milliseconds(200));
+    res = agent.generateText("hello");
+    check(res.success && res.metadata["warm_connection"].empty(), "warm connection expired");
+    // nothing listening: the probe fails fast
+    agent.configure(AIProvider::OLLAMA, "", "http://127.0.0.1:1");
+    Timestamp t0 = mSecSinceEpoch();
+    check(!agent.probeConnection() && elapsedMsSince(t0) < 500, "warm probe unreachable");
+  }
+
+  // HNSW vector index: recall against brute force, save and mapped load, copy on write after load
+  {
+    // clustered random vectors, like embeddings of notes on a handful of topics
+    std::mt19937 rng(7);
+    std::normal_distribution<float> gauss;
+    std::vector<float> centers(20*HashingEncoder::DIM);
+    for(float& c : centers)
+      c = gauss(rng);
+    auto randomVector = [&](float* v) {
+      const float* center = &centers[(rng() % 20)*HashingEncoder::DIM];
+      float norm = 0;
+      for(int ii = 0; ii < HashingEncoder::DIM; ++ii) {
+        v[ii] = center[ii] + gauss(rng);
+        norm += v[ii]*v[ii];
+      }
+      for(int ii = 0; ii < HashingEncoder::DIM; ++ii)
+        v[ii] /= std::sqrt(norm);
+    };
+    VectorIndex index;
+    std::vector<float> vecs(2000*HashingEncoder::DIM);
+    for(int ii = 0; ii < 2000; ++ii) {
+      randomVector(&vecs[ii*HashingEncoder::DIM]);
+      RAGDocument d;
+      d.id = fstring("v%d", ii);
+      index.add(d, &vecs[ii*HashingEncoder::DIM]);
+    }
+    int found = 0;
+    float query[HashingEncoder::DIM];
+    for(int q = 0; q < 50; ++q) {
+      randomVector(query);
+      std::vector<VectorIndex::Hit> exact = index.exactSearch(query, 10);
+      std::vector<VectorIndex::Hit> approx = index.search(query, 10);
+      for(const VectorIndex::Hit& hit : exact)
+        found += std::count_if(approx.begin(), approx.end(), [&](const VectorIndex::Hit& h){ return h.second == hit.second; });
+    }
+    check(found >= 50*10*0.9, "hnsw recall");
+    std::vector<VectorIndex::Hit> self = index.search(&vecs[5*HashingEncoder::DIM], 1);
+    check(self.size() == 1 && index.document(self[0].second).id == "v5" && self[0].first > 0.99f, "hnsw self match");
+
+    std::string path = outPath + "/ai_vectors.bin";
+    check(index.save(path), "hnsw save");
+    VectorIndex loaded;
+    check(loaded.load(path) && loaded.size() == 2000, "hnsw load");
+    randomVector(query);
+    std::vector<VectorIndex::Hit> before = index.search(query, 10), after = loaded.search(query, 10);
+    check(before.size() == 10 && after.size() == 10 && before[0].second == after[0].second && before[9].second == after[9].second, "hnsw load search");
+    check(loaded.remove("v5") && loaded.search(&vecs[5*HashingEncoder::DIM], 1)[0].second != 5, "hnsw remove after load");
+    VectorIndex reloaded;
+    check(reloaded.load(path) && reloaded.size() == 2000, "hnsw file unchanged");
+    loaded.rebuild();
+    check(loaded.size() == 1999 && loaded.nodeCount() == 1999 && loaded.search(query, 1)[0].second < 1999, "hnsw rebuild");
+    removeFile(path);
+  }
+
+  // bulk indexing gives the same results as indexing one by one
+  {
+    std::string bulkDir = outPath + "/ai_rag_bulk", singleDir = outPath + "/ai_rag_single";
+    removeDir(bulkDir, true);
+    removeDir(singleDir, true);
+    std::vector<RAGDocument> docs;
+    for(int ii = 0; ii < 3000; ++ii) {
+      RAGDocument d;
+      d.id = fstring("n%d", ii);
+      d.title = fstring("note %d", ii);
+      for(int jj = 0; jj < 40; ++jj)
+        d.content += fstring("word%d topic%d ", (ii*7 + jj*13) % 500, ii % 20);
+      docs.push_back(d);
+    }
+    {
+      auto bulk = createLocalRAGService(bulkDir);
+      auto single = createLocalRAGService(singleDir);
+      RAGDocument old;
+      old.id = "n5";
+      old.content = "stale zymurgy";
+      bulk->indexDocument(old);
+      check(bulk->indexDocuments(docs), "bulk index");
+      for(const RAGDocument& d : docs)
+        single->indexDocument(d);
+      bool same = true;
+      for(const char* query : {"word17 topic3", "word250", "topic19 word3 word499"}) {
+        // all matches, since ties may be ordered differently
+        std::vector<RAGDocument> a = bulk->searchDocuments(query, 5000), b = single->searchDocuments(query, 5000);
+        std::map<std::string, float> scores;
+        for(const RAGDocument& d : b)
+          scores[d.id] = d.relevanceScore;
+        same = same && !a.empty() && a.size() == b.size();
+        for(size_t ii = 0; same && ii < a.size(); ++ii)
+          same = scores.count(a[ii].id) && std::abs(scores[a[ii].id] - a[ii].relevanceScore) < 1E-4f;
+      }
+      check(same, "bulk matches single");
+      // later docs in a batch replace earlier ones with the same id
+      std::vector<RAGDocument> updates(docs.begin() + 20, docs.begin() + 40);
+      for(int ii = 0; ii < 20; ++ii)
+        updates[ii].id = fstring("n%d", ii % 10);
+      bulk->indexDocuments(updates);
+      std::vector<RAGDocument> hits = bulk->searchDocuments("topic19", 1000);
+      check(hits.size() == 151 && bulk->searchDocuments("zymurgy", 5).empty(), "bulk replace");
+      hits = bulk->searchDocuments("topic0", 1000);
+      check(hits.size() == 149 && std::count_if(hits.begin(), hits.end(), [](const RAGDocument& d) { return d.id == "n0#0"; }) == 0, "bulk duplicates");
+    }
+    auto reopened = createLocalRAGService(bulkDir);
+    check(reopened->searchDocuments("topic0", 1000).size() == 149, "bulk reopen");
+    reopened.reset();
+    removeDir(bulkDir, true);
+    removeDir(singleDir, true);
+  }
+
+  // background notebook indexer: debounced, only changed pages reindexed
+  {
+    std::string indexDir = outPath + "/ai_rag_notebook";
+    removeDir(indexDir, true);
+    CountingRAGService service(createLocalRAGService(indexDir));
+    NotebookIndexer::Options opts;
+    opts.debounceMs = 200;
+    NotebookIndexer indexer(&service, opts);
+    std::vector<NotebookPage> pages = {{0, "grocery list apples"}, {1, "meeting notes budget"}, {2, ""}};
+    indexer.pagesChanged("nb.svgz", "nb", {0, 1, 2}, pages);
+    check(indexer.progress().pagesPending == 3 && indexer.progress().indexing, "notebook pending");
+    std::this_thread::sleep_for(std::chrono::milliseconds(100));
+    indexer.pagesChanged("nb.svgz", "nb", {0, 1, 2}, {{1, "meeting notes budget forecast"}});  // restarts debounce
+    std::this_thread::sleep_for(std::chrono::milliseconds(150));
+    check(service.indexed == 0, "notebook debounce");
+    check(indexer.waitIdle(2000) && service.indexed == 2, "notebook indexed");
+    std::vector<RAGDocument> hits = service.searchDocuments("forecast", 5);
+    check(hits.size() == 1 && hits[0].documentId == notebookPageId("nb.svgz", 1) && hits[0].page == 1, "notebook page hit");
+    // unchanged pages are skipped
+    indexer.pagesChanged("nb.svgz", "nb", {0, 1, 2}, {{0, "grocery list apples"}, {1, "meeting notes budget forecast"}, {2, "todo"}});
+    indexer.indexNow();
+    check(indexer.waitIdle(2000) && service.indexed == 3, "notebook changed pages only");
+    // pages removed from the notebook are removed from the index
+    indexer.pagesChanged("nb.svgz", "nb", {0}, {});
+    indexer.indexNow();
+    check(indexer.waitIdle(2000) && service.removed == 2 && service.searchDocuments("forecast", 5).empty()
+        && service.searchDocuments("apples", 5).size() == 1, "notebook pages removed");
+    IndexProgress progress = indexer.progress();
+    check(progress.notebookId == "nb.svgz" && progress.pagesPending == 0 && !progress.indexing
+        && progress.pagesIndexed == 5 && progress.pageCount == 1, "notebook progress");
+    // a page keeps its entry as pages are inserted before it; pages not loaded by the UI are read on the
+    //  indexer thread
+    std::thread::id loadThread = std::this_thread::get_id();
+    NotebookPage unloaded;
+    unloaded.key = 7;
+    unloaded.loadText = [&loadThread](std::string& text) {
+      loadThread = std::this_thread::get_id();
+      text = "unloaded page about pears";
+      return true;
+    };
+    indexer.pagesChanged("nb.svgz", "nb", {5, 0, 7}, {{5, "inserted page about plums"}, unloaded});
+    indexer.indexNow();
+    check(indexer.waitIdle(2000) && loadThread != std::this_thread::get_id(), "notebook page loaded by indexer");
+    hits = service.searchDocuments("apples", 5);
+    std::vector<RAGDocument> pears = service.searchDocuments("pears", 5);
+    check(hits.size() == 1 && hits[0].documentId == notebookPageId("nb.svgz", 0) && hits[0].page == 1
+        && pears.size() == 1 && pears[0].documentId == notebookPageId("nb.svgz", 7) && pears[0].page == 2,
+        "notebook stable page ids");
+    indexer.pagesChanged("nb.svgz", "nb", {5, 7}, {});
+    indexer.indexNow();
+    check(indexer.waitIdle(2000) && service.searchDocuments("apples", 5).empty()
+        && service.searchDocuments("plums", 5).size() == 1, "notebook page deleted");
+    // switching services reindexes everything
+    std::string vectorPath = outPath + "/ai_rag_notebook.bin";
+    auto vectors = createVectorRAGService(vectorPath);
+    indexer.setService(vectors.get());
+    check(indexer.waitIdle(2000) && vectors->searchDocuments("apple", 5).size() == 1, "notebook service switch");
+    indexer.setService(nullptr);
+    vectors->clearIndex();
+    vectors.reset();
+    service.clearIndex();
+  }
+
+  // vector RAG service: hashed embeddings match inflections that the lexical index misses
+  {
+    std::string path = outPath + "/ai_vector_rag.bin";
+    removeFile(path);
+    {
+      auto service = createVectorRAGService(path);
+      auto doc = [](const char* id, const char* title, const char* content) {
+        RAGDocument d;
+        d.id = id;
+        d.title = title;
+        d.content = content;
+        return d;
+      };
+      service->indexDocument(doc("garden", "Garden", "Planted tomatoes and peppers in the raised garden beds."));
+      service->indexDocument(doc("car", "Car", "The mechanic replaced the engine timing belt and spark plugs."));
+      std::vector<RAGDocument> hits = service->searchDocuments("tomato gardening", 2);
+      check(!hits.empty() && hits[0].documentId == "garden", "vector rag search");
+      check(service->removeDocument("garden") && !service->removeDocument("garden"), "vector rag remove");
+      service->indexDocuments({doc("boat", "Boat", "Sanded and varnished the dinghy hull."), doc("car", "Car", "Washed the car.")});
+      hits = service->searchDocuments("varnishing the hull", 1);
+      check(hits.size() == 1 && hits[0].documentId == "boat" && service->searchDocuments("engine spark", 5).empty(), "vector rag bulk");
+      service->indexDocument(doc("car", "Car", "The mechanic replaced the engine timing belt and spark plugs."));
+      service->removeDocument("boat");
+    }
+    auto service = createVectorRAGService(path);
+    std::vector<RAGDocument> hits = service->searchDocuments("engine spark", 5);
+    check(hits.size() == 1 && hits[0].documentId == "car" && service->searchDocuments("tomatoes", 5).empty(), "vector rag reopen");
+    service->clearIndex();
+    removeFile(path);
+  }
+
+  runAllTime = mSecSinceEpoch() - runAllTime;
+  resultStr = fstring("AI tests completed in %d ms with %d failed tests (%s).",
+      int(runAllTime), nFailed, joinStr(slFailed, ", ").c_str());
+  if(exitAfterTest) {
+    SCRIBBLE_LOG(resultStr.c_str());
+    exit(nFailed);
+  }
+}
+
+#else
+
+void ScribbleTest::aiTest()
+{
+  resultStr = "AI tests require POSIX sockets for stand-in provider servers.";
+}
+
+#endif
+
+// synthetic notes: 60% words from one of 50 topic vocabularies, the rest from a Zipf-like general vocabulary;
+//  queries are a few words picked from a random note
+static void syntheticNotes(int nDocs, int nQueries, std::vector<std::string>& docs, std::vector<std::string>& queries)
+{
+  std::mt19937 rng(11);
+  std::vector<double> weights;
+  for(int ii = 0; ii < 5000; ++ii)
+    weights.push_back(1.0/(ii + 1));
+  std::discrete_distribution<int> word(weights.begin(), weights.end());
+  std::vector<std::vector<std::string>> docWords;
+  for(int ii = 0; ii < nDocs; ++ii) {
+    int topic = rng() % 50;
+    std::vector<std::string> words;
+    for(int jj = 0; jj < 80; ++jj)
+      words.push_back(rng() % 10 < 6 ? fstring("topic%dw%d", topic, int(rng() % 200)) : fstring("word%d", word(rng)));
+    docs.push_back(joinStr(words, " "));
+    docWords.push_back(words);
+  }
+  for(int ii = 0; ii < nQueries; ++ii) {
+    const std::vector<std::string>& words = docWords[rng() % nDocs];
+    std::vector<std::string> picked;
+    for(int jj = 0; jj < 6; ++jj)
+      picked.push_back(words[rng() % words.size()]);
+    queries.push_back(joinStr(picked, " "));
+  }
+}
+
+static double percentile(std::vector<double> v, double p)
+{
+  std::sort(v.begin(), v.end());
+  return v.empty() ? 0.0 : v[std::min(v.size() - 1, size_t(p*v.size()))];
+}
+
+static double usSince(std::chrono::steady_clock::time_point t0)
+{
+  return std::chrono::duration<double, std::micro>(std::chrono::steady_clock::now() - t0).count();
+}
+
+// retrieval benchmarks: HNSW recall@10 against brute force, query latency of HNSW, brute force and BM25
+void ScribbleTest::aiBenchmark()
+{
+  const int nDocs = 10000, nQueries = 200, k = 10;
+  std::vector<std::string> docs, queries;
+  syntheticNotes(nDocs, nQueries, docs, queries);
+
+  VectorIndex vectors;
+  InvertedIndex lexical;
+  std::vector<float> vec(HashingEncoder::DIM);
+  auto t0 = std::chrono::steady_clock::now();
+  for(int ii = 0; ii < nDocs; ++ii) {
+    RAGDocument d;
+    d.id = fstring("d%d", ii);
+    d.content = docs[ii];
+    HashingEncoder::encode(d.content, vec.data());
+    vectors.add(d, vec.data());
+  }
+  double buildVectorMs = usSince(t0)/1000;
+  t0 = std::chrono::steady_clock::now();
+  for(int ii = 0; ii < nDocs; ++ii) {
+    RAGDocument d;
+    d.id = fstring("d%d", ii);
+    d.content = docs[ii];
+    lexical.add(d);
+  }
+  double buildLexicalMs = usSince(t0)/1000;
+
+  std::vector<double> hnswUs, exactUs, bm25Us;
+  int found = 0, total = 0;
+  for(const std::string& q : queries) {
+    HashingEncoder::encode(q, vec.data());
+    t0 = std::chrono::steady_clock::now();
+    std::vector<VectorIndex::Hit> approx = vectors.search(vec.data(), k);
+    hnswUs.push_back(usSince(t0));
+    t0 = std::chrono::steady_clock::now();
+    std::vector<VectorIndex::Hit> exact = vectors.exactSearch(vec.data(), k);
+    exactUs.push_back(usSince(t0));
+    t0 = std::chrono::steady_clock::now();
+    lexical.search(q, k);
+    bm25Us.push_back(usSince(t0));
+    for(const VectorIndex::Hit& hit : exact)
+      found += std::count_if(approx.begin(), approx.end(), [&](const VectorIndex::Hit& h){ return h.second == hit.second; });
+    total += exact.size();
+  }
+
+  // importing notes into the persistent index, one at a time vs. in bulk
+  std::vector<RAGDocument> notes(nDocs);
+  for(int ii = 0; ii < nDocs; ++ii) {
+    notes[ii].id = fstring("d%d", ii);
+    notes[ii].content = docs[ii];
+  }
+  std::string indexDir = outPath + "/ai_bench_index";
+  removeDir(indexDir, true);
+  t0 = std::chrono::steady_clock::now();
+  {
+    auto service = createLocalRAGService(indexDir);
+    for(const RAGDocument& d : notes)
+      service->indexDocument(d);
+  }
+  double importSingleMs = usSince(t0)/1000;
+  removeDir(indexDir, true);
+  t0 = std::chrono::steady_clock::now();
+  {
+    auto service = createLocalRAGService(indexDir);
+    service->indexDocuments(notes);
+  }
+  double importBulkMs = usSince(t0)/1000;
+  removeDir(indexDir, true);
+  // searches read a snapshot of the index, so should not wait for an import (here replacing every note) in
+  //  progress
+  std::vector<double> importSearchUs, typeaheadUs;
+  {
+    auto service = createLocalRAGService(indexDir);
+    service->indexDocuments(notes);
+    std::atomic<bool> importing(true);
+    std::thread searcher([&]() {
+      for(size_t ii = 0; importing; ++ii) {
+        auto t1 = std::chrono::steady_clock::now();
+        service->searchDocuments(queries[ii % queries.size()], k);
+        importSearchUs.push_back(usSince(t1));
+      }
+    });
+    service->indexDocuments(notes);
+    importing = false;
+    searcher.join();
+    // search-as-you-type, one search per keystroke of each query (the first ones also build trigram indexes)
+    for(int qq = 0; qq < 20; ++qq) {
+      for(size_t len = 1; len <= queries[qq].size(); ++len) {
+        auto t1 = std::chrono::steady_clock::now();
+        service->searchAsYouType(queries[qq].substr(0, len), k, nullptr);
+        typeaheadUs.push_back(usSince(t1));
+      }
+    }
+  }
+  removeDir(indexDir, true);
+  // shards are scored in parallel and their hits merged
+  const int shardCounts[] = {1, 4};
+  std::vector<double> shardSearchUs[2];
+  for(int ss = 0; ss < 2; ++ss) {
+    {
+      auto service = createLocalRAGService(indexDir, shardCounts[ss]);
+      service->indexDocuments(notes);
+      for(const std::string& q : queries) {
+        auto t1 = std::chrono::steady_clock::now();
+        service->searchDocuments(q, k);
+        shardSearchUs[ss].push_back(usSince(t1));
+      }
+    }
+    removeDir(indexDir, true);
+  }
+
+  // content filter on a 100 KB prompt with 200 blocked topics (none present, so the whole prompt is scanned):
+  //  one lowercased copy and find() per topic, as before the filter was compiled, vs. the compiled automaton
+  std::string prompt;
+  for(size_t ii = 0; prompt.size() < 100000; ++ii)
+    prompt += docs[ii] + "\n";
+  ContentFilter filter;
+  filter.filterLevel = "strict";
+  for(int ii = 0; ii < 200; ++ii)
+    filter.blockedTopics.push_back(fstring("Blocked topic%d", ii));
+  t0 = std::chrono::steady_clock::now();
+  ContentFilterEngine engine(filter);
+  double filterCompileUs = usSince(t0);
+  std::vector<double> filterFindUs, filterScanUs;
+  AIRequest request;
+  for(int ii = 0; ii < 20; ++ii) {
+    t0 = std::chrono::steady_clock::now();
+    std::string lower = prompt;
+    std::transform(lower.begin(), lower.end(), lower.begin(), ::tolower);
+    bool blocked = false;
+    for(const std::string& pattern : ContentFilterEngine::safetyPatterns(filter.filterLevel))
+      blocked = blocked || lower.find(pattern.substr(0, pattern.size() - 1)) != std::string::npos;
+    for(std::string topic : filter.blockedTopics) {
+      std::transform(topic.begin(), topic.end(), topic.begin(), ::tolower);
+      blocked = blocked || lower.find(topic) != std::string::npos;
+    }
+    filterFindUs.push_back(usSince(t0));
+    t0 = std::chrono::steady_clock::now();
+    blocked = !engine.isContentAllowed(prompt, request) || blocked;
+    filterScanUs.push_back(usSince(t0));
+  }
+
+  std::string path = outPath + "/ai_bench_vectors.bin";
+  vectors.save(path);
+  t0 = std::chrono::steady_clock::now();
+  VectorIndex loaded;
+  loaded.load(path);
+  double loadMs = usSince(t0)/1000;
+  removeFile(path);
+
+  resultStr = fstring("%d docs: recall@%d %.3f; query us p50/p95 HNSW %.0f/%.0f, exact %.0f/%.0f, BM25 %.0f/%.0f; "
+      "build ms vector %.0f, BM25 %.0f; load ms %.1f; import ms single %.0f, bulk %.0f; "
+      "search us p50/p95 during import %.0f/%.0f; search-as-you-type us p50/p95/max %.0f/%.0f/%.0f; "
+      "search us p50/p95 %d shard %.0f/%.0f, %d shards %.0f/%.0f; "
+      "filter 100 KB with %d topics us p50 per-topic find %.0f, automaton %.0f (compile %.0f)", nDocs, k, total ? double(found)/total : 0.0,
+      percentile(hnswUs, 0.5), percentile(hnswUs, 0.95), percentile(exactUs, 0.5), percentile(exactUs, 0.95),
+      percentile(bm25Us, 0.5), percentile(bm25Us, 0.95), buildVectorMs, buildLexicalMs, loadMs,
+      importSingleMs, importBulkMs, percentile(importSearchUs, 0.5), percentile(importSearchUs, 0.95),
+      percentile(typeaheadUs, 0.5), percentile(typeaheadUs, 0.95), percentile(typeaheadUs, 1.0),
+      shardCounts[0], percentile(shardSearchUs[0], 0.5), percentile(shardSearchUs[0], 0.95),
+      shardCounts[1], percentile(shardSearchUs[1], 0.5), percentile(shardSearchUs[1], 0.95),
+      int(filter.blockedTopics.size()), percentile(filterFindUs, 0.5), percentile(filterScanUs, 0.5), filterCompileUs);
+  if(exitAfterTest) {
+    SCRIBBLE_LOG(resultStr.c_str());
+    exit(0);
+  }
+}
+
+// exhaustive BM25 scoring of every note, the reference for recall of the index
+class BruteForceBM25
+{
+public:
+  BruteForceBM25(const std::vector<std::string>& docs)
+  {
+    for(const std::string& doc : docs) {
+      std::vector<uint32_t> terms;
+      TextAnalyzer::forEachToken(doc, [&](const std::string& token) {
+        terms.push_back(vocab.emplace(token, uint32_t(vocab.size())).first->second);
+      });
+      std::sort(terms.begin(), terms.end());
+      totalLength += terms.size();
+      docFreq.resize(vocab.size(), 0);
+      for(size_t ii = 0; ii < terms.size(); ++ii) {
+        if(ii == 0 || terms[ii] != terms[ii-1])
+          ++docFreq[terms[ii]];
+      }
+      docTerms.push_back(std::move(terms));
+    }
+  }
+
+  // score of each note for query
+  std::vector<float> score(const std::string& query) const
+  {
+    std::vector<uint32_t> queryTerms;
+    TextAnalyzer::forEachToken(query, [&](const std::string& token) {
+      auto it = vocab.find(token);
+      if(it != vocab.end() && std::find(queryTerms.begin(), queryTerms.end(), it->second) == queryTerms.end())
+        queryTerms.push_back(it->second);
+    });
+    float numDocs = float(docTerms.size());
+    float avgLength = float(totalLength)/numDocs;
+    std::vector<float> scores(docTerms.size(), 0);
+    for(size_t doc = 0; doc < docTerms.size(); ++doc) {
+      const std::vector<uint32_t>& terms = docTerms[doc];
+      for(uint32_t term : queryTerms) {
+        auto range = std::equal_range(terms.begin(), terms.end(), term);
+        if(range.first != range.second)
+          scores[doc] += bm25Score(bm25Idf(float(docFreq[term]), numDocs), float(range.second - range.first),
+              float(terms.size()), avgLength, BM25Params());
+      }
+    }
+    return scores;
+  }
+
+private:
+  std::unordered_map<std::string, uint32_t> vocab;
+  std::vector<uint32_t> docFreq;
+  std::vector<std::vector<uint32_t>> docTerms;  // sorted term numbers
+  uint64_t totalLength = 0;
+};
+
+static int64_t dirSize(const std::string& dir)
+{
+  int64_t total = 0;
+  for(const std::string& name : lsDirectory(FSPath(dir))) {
+    FSPath path(dir, name);
+    total += path.isDir() ? dirSize(path.path) : getFileSize(path);
+  }
+  return total;
+}
+
+// value of key in a flat JSON object, or NAN if missing
+static double jsonNumber(const std::string& obj, const char* key)
+{
+  size_t pos = obj.find(fstring("\"%s\":", key));
+  return pos != std::string::npos ? atof(obj.c_str() + pos + strlen(key) + 3) : NAN;
+}
+
+// Retrieval benchmark suite, to tell whether a change to tokenization or the local RAG index makes retrieval
+//  better or worse: for synthetic corpora of 1k, 10k and 100k notes, measures index build time, index size
+//  on disk, search latency and recall@10 against exhaustive BM25 scoring.  Results are written as JSON to
+//  ragbench_out.json and compared with the baselines in ragbench_ref.json (copy the output of a good run over
+//  it to update them), with each regression counting as a failed test.  Needs no GL, so can run headless:
+//  SDL_VIDEODRIVER=dummy ./Write --ragbench
+void ScribbleTest::ragBenchmark()
+{
+  const int corpusSizes[] = {1000, 10000, 100000};
+  const int nQueries = 1000, nRecallQueries = 200, nWarmup = 10, k = 10;
+  // a metric regresses if worse than baseline by more than both the ratio and the absolute slack, to allow
+  //  for noise in timings (especially p99, which background segment merges can push up)
+  struct Metric { const char* key; bool lowerIsBetter; double ratio; double slack; };
+  const Metric metrics[] = {
+    {"buildMs", true, 1.5, 50}, {"indexBytes", true, 1.1, 0}, {"queryUsP50", true, 1.5, 20},
+    {"queryUsP99", true, 2.0, 100}, {"recall", false, 1.0, 0.01}
+  };
+
+  std::vector<std::string> baselines;
+  std::ifstream refFile(outPath + "/ragbench_ref.json");
+  for(std::string line; std::getline(refFile, line);) {
+    if(line.find("\"notes\":") != std::string::npos)
+      baselines.push_back(line);
+  }
+
+  nFailed = 0;
+  std::vector<std::string> corpora, regressions, summary;
+  std::string indexDir = outPath + "/ragbench_index";
+  for(int nDocs : corpusSizes) {
+    std::vector<std::string> docs, queries;
+    syntheticNotes(nDocs, nQueries + nWarmup, docs, queries);
+    std::vector<RAGDocument> notes(nDocs);
+    for(int ii = 0; ii < nDocs; ++ii) {
+      notes[ii].id = fstring("n%d", ii);
+      notes[ii].content = docs[ii];
+    }
+
+    // build includes writing segments, which is done when the service is destroyed
+    removeDir(indexDir, true);
+    auto t0 = std::chrono::steady_clock::now();
+    {
+      auto service = createLocalRAGService(indexDir);
+      service->indexDocuments(notes);
+    }
+    double buildMs = usSince(t0)/1000;
+    int64_t indexBytes = dirSize(indexDir);
+
+    BruteForceBM25 exhaustive(docs);
+    auto service = createLocalRAGService(indexDir);
+    std::vector<double> queryUs;
+    int found = 0, relevant = 0;
+    for(int qq = 0; qq < nQueries + nWarmup; ++qq) {
+      t0 = std::chrono::steady_clock::now();
+      std::vector<RAGDocument> hits = service->searchDocuments(queries[qq], k);
+      if(qq < nWarmup)
+        continue;
+      queryUs.push_back(usSince(t0));
+      if(qq >= nWarmup + nRecallQueries)
+        continue;
+      // hits tied with the k-th best note count as found
+      std::vector<float> scores = exhaustive.score(queries[qq]);
+      std::vector<float> best(scores);
+      std::nth_element(best.begin(), best.begin() + (k - 1), best.end(), std::greater<float>());
+      float threshold = std::max(best[k - 1]*(1 - 1e-4f), 1e-6f);
+      relevant += std::min(k, int(std::count_if(scores.begin(), scores.end(), [&](float s){ return s >= threshold; })));
+      for(const RAGDocument& hit : hits) {
+        int doc = atoi(hit.documentId.c_str() + 1);
+        found += scores[doc] >= threshold ? 1 : 0;
+      }
+    }
+    service.reset();
+    removeDir(indexDir, true);
+
+    double recall = relevant > 0 ? std::min(1.0, double(found)/relevant) : 1.0;
+    std::string corpus = fstring("{\"notes\": %d, \"buildMs\": %.1f, \"indexBytes\": %lld, \"queryUsP50\": %.1f, "
+        "\"queryUsP99\": %.1f, \"recall\": %.4f}", nDocs, buildMs, (long long)indexBytes,
+        percentile(queryUs, 0.5), percentile(queryUs, 0.99), recall);
+    corpora.push_back(corpus);
+    summary.push_back(fstring("%d notes: build %.0f ms, %.1f MB, query us p50/p99 %.0f/%.0f, recall@%d %.3f",
+        nDocs, buildMs, indexBytes/1E6, percentile(queryUs, 0.5), percentile(queryUs, 0.99), k, recall));
+
+    auto baseline = std::find_if(baselines.begin(), baselines.end(), [&](const std::string& b){
+      return int(jsonNumber(b, "notes")) == nDocs; });
+    if(baseline == baselines.end())
+      continue;
+    for(const Metric& m : metrics) {
+      double value = jsonNumber(corpus, m.key), ref = jsonNumber(*baseline, m.key);
+      bool worse = m.lowerIsBetter ? value > ref*m.ratio && value > ref + m.slack : value < ref - m.slack;
+      if(worse) {
+        ++nFailed;
+        regressions.push_back(fstring("%d notes %s: %g (baseline %g)", nDocs, m.key, value, ref));
+      }
+    }
+  }
+
+  std::vector<std::string> quoted;
+  for(const std::string& r : regressions)
+    quoted.push_back("\"" + r + "\"");
+  std::ofstream outFile(outPath + "/ragbench_out.json");
+  outFile << "{\n\"suite\": \"ragbench\",\n\"k\": " << k << ",\n\"corpora\": [\n" << joinStr(corpora, ",\n")
+      << "\n],\n\"regressions\": [" << joinStr(quoted, ", ") << "]\n}\n";
+
+  resultStr = joinStr(summary, "; ") + (baselines.empty() ? "; no baselines" :
+      fstring("; %d regressions (%s)", nFailed, joinStr(regressions, ", ").c_str()));
+  if(exitAfterTest) {
+    SCRIBBLE_LOG(resultStr.c_str());
+    exit(nFailed);
+  }
+}
@@ -0,0 +1,213 @@
+// PageExporter tests - included from scribbletest.cpp
+// - exports the reference notebooks used by runAll, so these need no other input files
+
+#include "pageexport.h"
+#include "miniz/miniz.h"
+#include <sstream>
+#include <thread>
+
+// entry of a ZIP archive, as read back from the archive's central directory
+struct ZipEntry
+{
+  std::string name;
+  std::string data;  // inflated
+  uint32_t crc32 = 0;
+  bool deflated = false;
+};
+
+static uint32_t zipGet(const std::string& s, size_t pos, int bytes)
+{
+  uint32_t v = 0;
+  for(int ii = bytes - 1; ii >= 0; --ii)
+    v = (v << 8) | uint8_t(s[pos + ii]);
+  return v;
+}
+
+// false unless zip is a complete archive, without comment, of stored and deflated entries whose local headers
+//  match the central directory
+static bool readZip(const std::string& zip, std::vector<ZipEntry>& entries)
+{
+  if(zip.size() < 22)
+    return false;
+  size_t eocd = zip.size() - 22;
+  if(zipGet(zip, eocd, 4) != 0x06054b50)
+    return false;
+  int count = zipGet(zip, eocd + 10, 2);
+  size_t pos = zipGet(zip, eocd + 16, 4);
+  for(int ii = 0; ii < count; ++ii) {
+    if(pos + 46 > eocd || zipGet(zip, pos, 4) != 0x02014b50)
+      return false;
+    ZipEntry entry;
+    int method = zipGet(zip, pos + 10, 2);
+    entry.crc32 = zipGet(zip, pos + 16, 4);
+    size_t csize = zipGet(zip, pos + 20, 4);
+    size_t size = zipGet(zip, pos + 24, 4);
+    size_t namelen = zipGet(zip, pos + 28, 2);
+    size_t local = zipGet(zip, pos + 42, 4);
+    entry.name = zip.substr(pos + 46, namelen);
+    pos += 46 + namelen + zipGet(zip, pos + 30, 2) + zipGet(zip, pos + 32, 2);
+    if(local + 30 > eocd || zipGet(zip, local, 4) != 0x04034b50 || zipGet(zip, local + 14, 4) != entry.crc32
+        || zipGet(zip, local + 18, 4) != csize || zip.compare(local + 30, namelen, entry.name) != 0)
+      return false;
+    size_t datapos = local + 30 + namelen + zipGet(zip, local + 28, 2);
+    if(datapos + csize > eocd)
+      return false;
+    if(method == 8) {
+      size_t outlen = 0;
+      void* inflated = tinfl_decompress_mem_to_heap(zip.data() + datapos, csize, &outlen, 0);
+      if(!inflated)
+        return false;
+      entry.data.assign((const char*)inflated, outlen);
+      mz_free(inflated);
+      entry.deflated = true;
+    }
+    else if(method == 0)
+      entry.data = zip.substr(datapos, csize);
+    else
+      return false;
+    if(entry.data.size() != size)
+      return false;
+    entries.push_back(std::move(entry));
+  }
+  return pos == eocd;
+}
+
+// number of page objects in a PDF file
+static int pdfPageCount(const std::string& pdf)
+{
+  int count = 0;
+  for(size_t pos = pdf.find("/Page"); pos != std::string::npos; pos = pdf.find("/Page", pos + 5)) {
+    // not /Pages or /PageLabels
+    if(pos + 5 < pdf.size() && !isalnum((unsigned char)pdf[pos + 5]))
+      ++count;
+  }
+  return count;
+}
+
+void ScribbleTest::exportTest()
+{
+  nFailed = 0;
+  std::vector<std::string> slFailed;
+  auto check = [&](bool ok, const char* name) {
+    if(!ok) {
+      ++nFailed;
+      slFailed.push_back(name);
+    }
+  };
+  Timestamp runAllTime = mSecSinceEpoch();
+  std::string multiPage = outPath + "/test4_ref.html";  // 3 pages
+  std::string onePage = outPath + "/test0_ref.html";
+
+  // the pages of multiPage as SVG, in order, to compare exported pages with
+  std::vector<std::string> pageSvgs;
+  {
+    Document doc;
+    Document::loadresult_t res = doc.load(new FileStream(multiPage.c_str(), "rb"), true);
+    for(Page* page : doc.pages) {
+      MemStream svgstrm(1 << 16);
+      if(page->ensureLoaded(false) && page->saveSVG(svgstrm))
+        pageSvgs.emplace_back((const char*)svgstrm.data(), svgstrm.size());
+    }
+    check((res == Document::LOAD_OK || res == Document::LOAD_NONFATAL) && pageSvgs.size() == 3, "export sample");
+  }
+
+  // SVG pages go in a ZIP archive with an entry per page, in page order, with the page's name and CRC; SVG is
+  //  deflated.  Progress is reported after each page on this thread.
+  {
+    PageExportOptions opts;
+    opts.format = PageExportOptions::SVG;
+    opts.threads = 2;
+    PageExporter exporter(multiPage, opts);
+    std::vector<int> progress;
+    bool progressThread = true;
+    std::thread::id thisThread = std::this_thread::get_id();
+    std::stringstream out;
+    bool ok = exporter.open() && exporter.pageCount() == 3 && exporter.exportTo(out, [&](int done, int count) {
+      progress.push_back(count == 3 ? done : -1);
+      progressThread = progressThread && std::this_thread::get_id() == thisThread;
+    });
+    check(ok && exporter.error().empty(), "export svg zip");
+    std::vector<ZipEntry> entries;
+    bool valid = readZip(out.str(), entries) && entries.size() == pageSvgs.size();
+    for(size_t ii = 0; valid && ii < entries.size(); ++ii) {
+      const ZipEntry& entry = entries[ii];
+      valid = entry.name == exporter.pageFileName(int(ii))
+          && StringRef(entry.name).endsWith(fstring("_page%03d.svg", int(ii) + 1).c_str()) && entry.deflated
+          && entry.crc32 == uint32_t(mz_crc32(MZ_CRC32_INIT, (const unsigned char*)entry.data.data(), entry.data.size()));
+    }
+    check(valid, "export zip entries");
+    bool ordered = valid;
+    for(size_t ii = 0; ordered && ii < entries.size(); ++ii)
+      ordered = entries[ii].data == pageSvgs[ii];
+    check(ordered, "export zip page order");
+    check(progress == std::vector<int>({1, 2, 3}) && progressThread, "export progress");
+  }
+
+  // PNG pages are stored, since PNG is already compressed
+  {
+    PageExportOptions opts;
+    opts.format = PageExportOptions::PNG;
+    opts.scale = 0.5;
+    PageExporter exporter(multiPage, opts);
+    std::stringstream out;
+    bool ok = exporter.exportTo(out);
+    std::vector<ZipEntry> entries;
+    bool valid = ok && readZip(out.str(), entries) && entries.size() == 3;
+    for(size_t ii = 0; valid && ii < entries.size(); ++ii) {
+      const ZipEntry& entry = entries[ii];
+      valid = StringRef(entry.name).endsWith(fstring("_page%03d.png", int(ii) + 1).c_str()) && !entry.deflated
+          && entry.data.compare(0, 4, "\x89PNG") == 0
+          && entry.crc32 == uint32_t(mz_crc32(MZ_CRC32_INIT, (const unsigned char*)entry.data.data(), entry.data.size()));
+    }
+    check(valid, "export png zip");
+  }
+
+  // PDF is always a single file, with a page per notebook page
+  {
+    PageExporter exporter(multiPage);
+    std::stringstream out;
+    int calls = 0;
+    int lastDone = 0;
+    bool ok = exporter.exportTo(out, [&](int done, int count) { ++calls; lastDone = done; });
+    std::string pdf = out.str();
+    check(ok && pdf.compare(0, 5, "%PDF-") == 0 && pdf.find("%%EOF") != std::string::npos
+        && pdfPageCount(pdf) == 3 && calls == 3 && lastDone == 3, "export pdf");
+  }
+
+  // a single page is written as a plain PNG or SVG file
+  {
+    PageExportOptions opts;
+    opts.format = PageExportOptions::PNG;
+    PageExporter exporter(onePage, opts);
+    std::stringstream out;
+    std::vector<int> progress;
+    bool ok = exporter.exportTo(out, [&](int done, int count) { progress.push_back(count == 1 ? done : -1); });
+    check(ok && out.str().compare(0, 4, "\x89PNG") == 0 && progress == std::vector<int>({1}), "export single page");
+  }
+
+  // cancel() stops the export after the page being written; exportTo() then fails with "Export canceled"
+  {
+    PageExportOptions opts;
+    opts.format = PageExportOptions::SVG;
+    PageExporter exporter(multiPage, opts);
+    std::stringstream out;
+    int calls = 0;
+    bool ok = exporter.exportTo(out, [&](int done, int count) { ++calls; exporter.cancel(); });
+    check(!ok && exporter.isCanceled() && exporter.error() == "Export canceled" && calls == 1, "export cancel");
+  }
+
+  // a missing notebook fails to open
+  {
+    PageExporter exporter(outPath + "/export_missing.html");
+    std::stringstream out;
+    check(!exporter.exportTo(out) && !exporter.error().empty() && out.str().empty(), "export missing notebook");
+  }
+
+  runAllTime = mSecSinceEpoch() - runAllTime;
+  resultStr = fstring("Export tests completed in %d ms with %d failed tests (%s).",
+      int(runAllTime), nFailed, joinStr(slFailed, ", ").c_str());
+  if(exitAfterTest) {
+    SCRIBBLE_LOG(resultStr.c_str());
+    exit(nFailed);
+  }
+}
@@ -847,7 +847,10 @@ void ScribbleTest::test5()
 // test opening file (test6_in.html) to saved position and lasso selection
 void ScribbleTest::test6()
 {
-  // make a lasso selection
+  // make a lasso selection, which should notify onSelectionChanged (used to pre-warm AI connections)
+  int selNotified = 0;
+  auto prevOnSelectionChanged = ScribbleDoc::onSelectionChanged;
+  ScribbleDoc::onSelectionChanged = [&selNotified](ScribbleDoc*) { ++selNotified; };
   scribbleMode->setMode(MODE_SELECTLASSO);
   ie(475.000, 199.000, 0.000, 1, 1, 0);
   ie(450.000, 175.000, 0.000, 1, 0, 0);
@@ -859,6 +862,11 @@ void ScribbleTest::test6()
   ie(387.000, 269.000, 0.000, 1, 0, 0);
   ie(452.000, 215.000, 0.000, 1, 0, 0);
   ie(0.000, 0.000, 0.000, 1, -1, 0);
+  ScribbleDoc::onSelectionChanged = prevOnSelectionChanged;
+  if(selNotified == 0 || !scribbleArea->hasSelection()) {
+    SCRIBBLE_LOG("test6 - lasso selection did not call onSelectionChanged");
+    nFailed++;
+  }
   // tap selection to switch to ruled mode
   ie(442, 262, 0, pen, press);
   ie(441, 262, 0, pen);
@@ -1485,3 +1493,6 @@ void ScribbleTest::synctest01slave2()
   while(!scribbleDoc->scribbleSync->isSyncActive())
     ScribbleApp::processEvents();
 }
+
+#include "aitest.cpp"
+#include "exporttest.cpp"
@@ -15,6 +15,10 @@ public:
   void runAll(bool runsynctest = false);
   void performanceTest();
   void inputTest();
+  void aiTest();
+  void aiBenchmark();
+  void ragBenchmark();
+  void exportTest();
   void syncSlaveMsg(std::string msg, int level);
 
   // result string to be read by caller
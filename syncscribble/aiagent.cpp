@@ -1,70 +1,527 @@
 #include "aiagent.h"
+#include "rag_indexer.h"
 #include "scribbleconfig.h"
 #include "ulib/stringutil.h"
 #include "pugixml.hpp"
 #include <algorithm>
 #include <sstream>
 #include <regex>
+#include <chrono>
+#include <condition_variable>
+#include <cmath>
+#include <cctype>
 
-// ContentFilterEngine Implementation
-ContentFilterEngine::ContentFilterEngine(const ContentFilter& config) : config_(config) {}
+static const char* providerKey(AIProvider provider) {
+    switch (provider) {
+        case AIProvider::OPENAI: return "openai";
+        case AIProvider::ANTHROPIC: return "anthropic";
+        case AIProvider::GOOGLE_GEMINI: return "google";
+        case AIProvider::OLLAMA: return "ollama";
+        case AIProvider::CUSTOM: return "custom";
+    }
+    return "openai";
+}
 
-bool ContentFilterEngine::isContentAllowed(const std::string& content, const AIRequest& request) const {
-    lastFilterReason_.clear();
-    
-    // Check safety filter first
-    if (!checkSafetyFilter(content)) {
-        lastFilterReason_ = "Content blocked by safety filter";
-        return false;
+// config keys of a provider's rate limits; ScribbleConfig keeps the key pointer, so these must be literals
+static const char* rateLimitKey(AIProvider provider, bool tokens) {
+    switch (provider) {
+        case AIProvider::OPENAI: return tokens ? "ai_tpm_openai" : "ai_rpm_openai";
+        case AIProvider::ANTHROPIC: return tokens ? "ai_tpm_anthropic" : "ai_rpm_anthropic";
+        case AIProvider::GOOGLE_GEMINI: return tokens ? "ai_tpm_google" : "ai_rpm_google";
+        case AIProvider::OLLAMA: return tokens ? "ai_tpm_ollama" : "ai_rpm_ollama";
+        case AIProvider::CUSTOM: return tokens ? "ai_tpm_custom" : "ai_rpm_custom";
     }
-    
-    // Check topics if configured
-    if (!config_.allowedTopics.empty() || !config_.blockedTopics.empty()) {
-        if (!checkTopics(content)) {
-            lastFilterReason_ = "Content blocked by topic filter";
-            return false;
+    return tokens ? "ai_tpm_openai" : "ai_rpm_openai";
+}
+
+static bool providerFromKey(const std::string& key, AIProvider& provider) {
+    for (int i = 0; i < 5; ++i) {
+        if (key == providerKey(static_cast<AIProvider>(i))) {
+            provider = static_cast<AIProvider>(i);
+            return true;
         }
     }
-    
-    // Check use cases
-    if (!checkUseCases(request)) {
-        lastFilterReason_ = "Request blocked by use case filter";
+    return false;
+}
+
+// ProviderHealth Implementation
+void ProviderHealth::recordSuccess(int latencyMs, int connectMs) {
+    std::lock_guard<std::mutex> lock(mutex_);
+    if (samples_.size() < MAX_SAMPLES) {
+        samples_.push_back(latencyMs);
+    } else {
+        samples_[nextSample_] = latencyMs;
+    }
+    nextSample_ = (nextSample_ + 1) % MAX_SAMPLES;
+    ewmaLatencyMs_ = samples_.size() == 1 ? latencyMs : EWMA_ALPHA * latencyMs + (1 - EWMA_ALPHA) * ewmaLatencyMs_;
+    if (connectMs >= 0) {
+        ewmaConnectMs_ = ewmaConnectMs_ < 0 ? connectMs : EWMA_ALPHA * connectMs + (1 - EWMA_ALPHA) * ewmaConnectMs_;
+    }
+    consecutiveFailures_ = 0;
+    state_ = BreakerState::CLOSED;
+    openMs_ = MIN_OPEN_MS;
+}
+
+void ProviderHealth::recordFailure() {
+    std::lock_guard<std::mutex> lock(mutex_);
+    if (++consecutiveFailures_ >= FAILURE_THRESHOLD && state_ == BreakerState::CLOSED) {
+        state_ = BreakerState::OPEN;
+        probeAt_ = std::chrono::steady_clock::now() + std::chrono::milliseconds(openMs_);
+    }
+}
+
+int ProviderHealth::percentile(float p) const {
+    std::lock_guard<std::mutex> lock(mutex_);
+    return percentileLocked(p);
+}
+
+int ProviderHealth::percentileLocked(float p) const {
+    if (samples_.empty()) {
+        return -1;
+    }
+    std::vector<int> sorted = samples_;
+    size_t rank = std::min(sorted.size() - 1, static_cast<size_t>(p * sorted.size()));
+    std::nth_element(sorted.begin(), sorted.begin() + rank, sorted.end());
+    return sorted[rank];
+}
+
+int ProviderHealth::sampleCount() const {
+    std::lock_guard<std::mutex> lock(mutex_);
+    return static_cast<int>(samples_.size());
+}
+
+// generous multiples of observed latency, bounded by the old fixed budgets where those made sense
+int ProviderHealth::connectTimeoutLocked() const {
+    if (ewmaConnectMs_ < 0) {
+        return 10;
+    }
+    return std::max(2, std::min(10, static_cast<int>(std::ceil(4 * ewmaConnectMs_ / 1000))));
+}
+
+int ProviderHealth::firstByteTimeoutLocked() const {
+    if (samples_.size() < 5) {
+        return 60;
+    }
+    return std::max(5, std::min(120, static_cast<int>(std::ceil(2 * percentileLocked(0.99f) / 1000.0))));
+}
+
+void ProviderHealth::applyTimeouts(AIRequest& request) const {
+    std::lock_guard<std::mutex> lock(mutex_);
+    request.connectTimeoutSecs = connectTimeoutLocked();
+    request.firstByteTimeoutSecs = firstByteTimeoutLocked();
+}
+
+bool ProviderHealth::allowRequest() const {
+    std::lock_guard<std::mutex> lock(mutex_);
+    return state_ == BreakerState::CLOSED;
+}
+
+bool ProviderHealth::beginProbe() {
+    std::lock_guard<std::mutex> lock(mutex_);
+    if (state_ != BreakerState::OPEN || std::chrono::steady_clock::now() < probeAt_) {
         return false;
     }
-    
+    state_ = BreakerState::HALF_OPEN;
     return true;
 }
 
-bool ContentFilterEngine::checkTopics(const std::string& content) const {
-    std::string lowerContent = content;
-    std::transform(lowerContent.begin(), lowerContent.end(), lowerContent.begin(), ::tolower);
-    
-    // Check blocked topics first
-    for (const auto& blocked : config_.blockedTopics) {
-        std::string lowerBlocked = blocked;
-        std::transform(lowerBlocked.begin(), lowerBlocked.end(), lowerBlocked.begin(), ::tolower);
-        if (lowerContent.find(lowerBlocked) != std::string::npos) {
-            return false;
+void ProviderHealth::endProbe(bool reachable) {
+    std::lock_guard<std::mutex> lock(mutex_);
+    if (state_ != BreakerState::HALF_OPEN) {
+        return;
+    }
+    if (reachable) {
+        state_ = BreakerState::CLOSED;
+        consecutiveFailures_ = 0;
+        openMs_ = MIN_OPEN_MS;
+    } else {
+        state_ = BreakerState::OPEN;
+        openMs_ = std::min(int(MAX_OPEN_MS), openMs_ * 2);
+        probeAt_ = std::chrono::steady_clock::now() + std::chrono::milliseconds(openMs_);
+    }
+}
+
+std::chrono::steady_clock::time_point ProviderHealth::nextProbeTime() const {
+    std::lock_guard<std::mutex> lock(mutex_);
+    return state_ == BreakerState::OPEN ? probeAt_ : std::chrono::steady_clock::time_point::max();
+}
+
+ProviderHealthStats ProviderHealth::stats() const {
+    std::lock_guard<std::mutex> lock(mutex_);
+    ProviderHealthStats stats;
+    stats.state = state_;
+    stats.ewmaLatencyMs = ewmaLatencyMs_;
+    stats.ewmaConnectMs = ewmaConnectMs_;
+    stats.p50Ms = percentileLocked(0.5f);
+    stats.p95Ms = percentileLocked(0.95f);
+    stats.p99Ms = percentileLocked(0.99f);
+    stats.samples = static_cast<int>(samples_.size());
+    stats.consecutiveFailures = consecutiveFailures_;
+    stats.connectTimeoutSecs = connectTimeoutLocked();
+    stats.firstByteTimeoutSecs = firstByteTimeoutLocked();
+    return stats;
+}
+
+// RequestScheduler Implementation
+void RequestScheduler::Bucket::setCapacity(double cap) {
+    level = capacity > 0 ? std::min(level, cap) : cap;
+    capacity = cap;
+}
+
+void RequestScheduler::Bucket::refill(double elapsedMs) {
+    if (capacity > 0) {
+        level = std::min(capacity, level + elapsedMs * capacity / 60000);
+    }
+}
+
+int RequestScheduler::Bucket::msUntil(double amount) const {
+    double needed = capacity > 0 ? std::min(amount, capacity) - level : 0;
+    return needed > 0 ? static_cast<int>(std::ceil(needed * 60000 / capacity)) : 0;
+}
+
+void RequestScheduler::setLimits(AIProvider provider, const RateLimits& limits) {
+    std::lock_guard<std::mutex> lock(mutex_);
+    ProviderQueue& queue = queues_[provider];
+    refillLocked(queue, std::chrono::steady_clock::now());
+    queue.requests.setCapacity(limits.requestsPerMinute);
+    queue.requests.configured = limits.requestsPerMinute > 0;
+    queue.tokens.setCapacity(limits.tokensPerMinute);
+    queue.tokens.configured = limits.tokensPerMinute > 0;
+    cv_.notify_all();
+}
+
+RateLimits RequestScheduler::getLimits(AIProvider provider) const {
+    std::lock_guard<std::mutex> lock(mutex_);
+    RateLimits limits;
+    auto it = queues_.find(provider);
+    if (it != queues_.end()) {
+        // limits learned from headers are not reported (or saved) as configured limits
+        const ProviderQueue& queue = it->second;
+        limits.requestsPerMinute = queue.requests.configured ? static_cast<int>(queue.requests.capacity) : 0;
+        limits.tokensPerMinute = queue.tokens.configured ? static_cast<int>(queue.tokens.capacity) : 0;
+    }
+    return limits;
+}
+
+int RequestScheduler::queueLength(AIProvider provider) const {
+    std::lock_guard<std::mutex> lock(mutex_);
+    auto it = queues_.find(provider);
+    return it != queues_.end() ? static_cast<int>(it->second.waiting.size()) : 0;
+}
+
+void RequestScheduler::refillLocked(ProviderQueue& queue, TimePoint now) {
+    double elapsedMs = std::chrono::duration<double, std::milli>(now - queue.lastRefill).count();
+    queue.requests.refill(elapsedMs);
+    queue.tokens.refill(elapsedMs);
+    queue.lastRefill = now;
+}
+
+bool RequestScheduler::acquire(AIProvider provider, int tokens, TimePoint deadline,
+                               const std::shared_ptr<AICancelToken>& cancelToken) {
+    std::unique_lock<std::mutex> lock(mutex_);
+    ProviderQueue& queue = queues_[provider];
+    unsigned long ticket = queue.nextTicket++;
+    queue.waiting.push_back(ticket);
+    bool granted = false;
+    while (!cancelToken || !cancelToken->isCancelled()) {
+        auto now = std::chrono::steady_clock::now();
+        TimePoint wakeAt = deadline;
+        // only the head of the queue may take capacity, so a large request is not starved by small ones
+        if (queue.waiting.front() == ticket) {
+            refillLocked(queue, now);
+            if (now >= queue.pausedUntil && queue.requests.has(1) && queue.tokens.has(tokens)) {
+                queue.requests.take(1);
+                queue.tokens.take(tokens);
+                granted = true;
+                break;
+            }
+            int waitMs = std::max(queue.requests.msUntil(1), queue.tokens.msUntil(tokens));
+            wakeAt = std::min(wakeAt, std::max(queue.pausedUntil, now + std::chrono::milliseconds(waitMs)));
+        }
+        if (now >= deadline) {
+            break;
         }
+        // cancel tokens can't wake us, so poll
+        wakeAt = std::min(wakeAt, now + std::chrono::milliseconds(100));
+        cv_.wait_until(lock, wakeAt);
     }
-    
-    // If allowed topics are specified, content must contain at least one
-    if (!config_.allowedTopics.empty()) {
-        for (const auto& allowed : config_.allowedTopics) {
-            std::string lowerAllowed = allowed;
-            std::transform(lowerAllowed.begin(), lowerAllowed.end(), lowerAllowed.begin(), ::tolower);
-            if (lowerContent.find(lowerAllowed) != std::string::npos) {
-                return true;
+    queue.waiting.erase(std::find(queue.waiting.begin(), queue.waiting.end(), ticket));
+    cv_.notify_all();
+    return granted;
+}
+
+int RequestScheduler::onResponse(AIProvider provider, const AIResponse& response) {
+    auto value = [&response](const char* key) {
+        auto it = response.metadata.find(key);
+        return it != response.metadata.end() && !it->second.empty() ? atof(it->second.c_str()) : -1.0;
+    };
+
+    std::lock_guard<std::mutex> lock(mutex_);
+    ProviderQueue& queue = queues_[provider];
+    auto now = std::chrono::steady_clock::now();
+    refillLocked(queue, now);
+
+    // learn limits from headers unless set explicitly, then trust the server's remaining counts
+    struct { Bucket& bucket; const char* limit; const char* remaining; const char* reset; } buckets[] = {
+        {queue.requests, "ratelimit_limit_requests", "ratelimit_remaining_requests", "ratelimit_reset_requests_ms"},
+        {queue.tokens, "ratelimit_limit_tokens", "ratelimit_remaining_tokens", "ratelimit_reset_tokens_ms"}
+    };
+    for (auto& b : buckets) {
+        double limit = value(b.limit);
+        if (limit > 0 && !b.bucket.configured && limit != b.bucket.capacity) {
+            b.bucket.setCapacity(limit);
+        }
+        double remaining = value(b.remaining);
+        if (remaining >= 0 && b.bucket.capacity > 0) {
+            b.bucket.level = std::min(b.bucket.level, remaining);
+        }
+        double resetMs = value(b.reset);
+        if (remaining == 0 && resetMs > 0) {
+            queue.pausedUntil = std::max(queue.pausedUntil, now + std::chrono::milliseconds(static_cast<int>(resetMs)));
+        }
+    }
+
+    int retryMs = -1;
+    if (value("http_status") == 429) {
+        // honour Retry-After if given, otherwise back off exponentially
+        double retryAfterMs = value("retry_after_ms");
+        if (retryAfterMs >= 0) {
+            retryMs = static_cast<int>(retryAfterMs);
+        } else {
+            retryMs = queue.retryMs;
+            queue.retryMs = std::min(int(MAX_RETRY_MS), 2 * queue.retryMs);
+        }
+        queue.pausedUntil = std::max(queue.pausedUntil, now + std::chrono::milliseconds(retryMs));
+    } else if (response.success) {
+        queue.retryMs = MIN_RETRY_MS;
+    }
+    cv_.notify_all();
+    return retryMs;
+}
+
+int RequestScheduler::estimateTokens(const AIRequest& request) {
+    // ~4 characters per token for English text, plus the completion budget
+    size_t chars = request.prompt.size() + request.context.size();
+    for (const auto& doc : request.documents) {
+        chars += doc.size();
+    }
+    return static_cast<int>(chars / 4) + request.maxTokens;
+}
+
+// PatternMatcher implementation
+static bool isWordByte(unsigned char c) {
+    return std::isalnum(c) || c >= 0x80;  // treat UTF-8 sequences as word characters
+}
+
+void PatternMatcher::addPattern(const std::string& pattern, int set) {
+    // separator before the pattern so it only matches at the start of a word, and after it unless prefix
+    std::string symbols(1, SEPARATOR);
+    bool prefix = !pattern.empty() && pattern.back() == '*';
+    for (size_t i = 0; i < pattern.size() - (prefix ? 1 : 0); ++i) {
+        unsigned char c = pattern[i];
+        if (isWordByte(c)) {
+            symbols += static_cast<char>(std::tolower(c));
+        } else if (symbols.back() != SEPARATOR) {
+            symbols += SEPARATOR;
+        }
+    }
+    if (symbols.size() == 1) {
+        return;  // no word characters
+    }
+    if (!prefix && symbols.back() != SEPARATOR) {
+        symbols += SEPARATOR;
+    } else if (prefix && symbols.back() == SEPARATOR) {
+        symbols.pop_back();
+    }
+    patterns_.push_back({symbols, 1u << set});
+}
+
+void PatternMatcher::compile() {
+    // symbol classes: the separator, each byte used in patterns, and all other word bytes
+    uint8_t byteClass[256] = {0};
+    numClasses_ = 1;
+    for (const Pattern& pattern : patterns_) {
+        for (unsigned char c : pattern.symbols) {
+            if (c != SEPARATOR && byteClass[c] == 0) {
+                byteClass[c] = static_cast<uint8_t>(numClasses_++);
             }
         }
-        return false; // No allowed topics found
     }
-    
+    size_t otherClass = numClasses_++;
+    for (int c = 0; c < 256; ++c) {
+        unsigned char folded = static_cast<unsigned char>(std::tolower(c));
+        classOf_[c] = !isWordByte(folded) ? 0 : (byteClass[folded] ? byteClass[folded] : uint8_t(otherClass));
+    }
+
+    // trie, with 0 for missing transitions (state 0 is the root, so never a transition target)
+    std::vector<uint32_t> next(numClasses_, 0);
+    std::vector<uint32_t> output(1, 0);
+    std::vector<bool> afterSeparator(1, false);  // state is entered on a separator
+    for (const Pattern& pattern : patterns_) {
+        uint32_t state = 0;
+        for (unsigned char c : pattern.symbols) {
+            size_t cls = classOf_[c];
+            if (next[state*numClasses_ + cls] == 0) {
+                next[state*numClasses_ + cls] = static_cast<uint32_t>(output.size());
+                next.resize(next.size() + numClasses_, 0);
+                output.push_back(0);
+                afterSeparator.push_back(cls == 0);
+            }
+            state = next[state*numClasses_ + cls];
+        }
+        output[state] |= pattern.sets;
+    }
+
+    // breadth first: failure links, then missing transitions filled in from the failure state's to make a DFA
+    std::vector<uint32_t> fail(output.size(), 0);
+    std::vector<uint32_t> queue;
+    for (size_t cls = 0; cls < numClasses_; ++cls) {
+        if (next[cls] != 0) {
+            queue.push_back(next[cls]);
+        }
+    }
+    for (size_t head = 0; head < queue.size(); ++head) {
+        uint32_t state = queue[head];
+        output[state] |= output[fail[state]];
+        for (size_t cls = 0; cls < numClasses_; ++cls) {
+            uint32_t& target = next[state*numClasses_ + cls];
+            if (target != 0) {
+                fail[target] = next[fail[state]*numClasses_ + cls];
+                queue.push_back(target);
+            } else {
+                target = next[fail[state]*numClasses_ + cls];
+            }
+        }
+    }
+
+    // patterns never have two separators in a row, so a separator after a state entered on one stays there,
+    //  collapsing runs of separators in the text without a branch in scan().  Entries are then made row
+    //  offsets, flagged if the target state matches a pattern.
+    next_.resize(next.size());
+    output_.swap(output);
+    for (size_t state = 0; state < output_.size(); ++state) {
+        if (afterSeparator[state]) {
+            next[state*numClasses_] = static_cast<uint32_t>(state);
+        }
+        for (size_t cls = 0; cls < numClasses_; ++cls) {
+            uint32_t target = next[state*numClasses_ + cls];
+            uint32_t flag = output_[target] != 0 ? uint32_t(MATCH) : 0u;
+            next_[state*numClasses_ + cls] = static_cast<uint32_t>(target*numClasses_) | flag;
+        }
+    }
+    start_ = next_[0] & ~MATCH;  // text is preceded by a separator
+}
+
+uint32_t PatternMatcher::scan(const std::string& text) const {
+    State state = start();
+    feed(state, text.data(), text.size());
+    return finish(state);
+}
+
+uint32_t PatternMatcher::feed(State& state, const char* text, size_t len) const {
+    if (patterns_.empty()) {
+        return 0;
+    }
+    uint32_t row = state.row;
+    uint32_t matched = state.matched;
+    for (size_t i = 0; i < len; ++i) {
+        uint32_t entry = next_[row + classOf_[static_cast<unsigned char>(text[i])]];
+        row = entry & ~MATCH;
+        if (entry & MATCH) {
+            matched |= output_[row/numClasses_];
+        }
+    }
+    state.row = row;
+    state.matched = matched;
+    return matched;
+}
+
+uint32_t PatternMatcher::finish(const State& state) const {
+    if (patterns_.empty()) {
+        return 0;
+    }
+    uint32_t entry = next_[state.row];  // text is followed by a separator
+    return (entry & MATCH) ? state.matched | output_[(entry & ~MATCH)/numClasses_] : state.matched;
+}
+
+// ContentFilterEngine Implementation
+ContentFilterEngine::ContentFilterEngine(const ContentFilter& config) {
+    updateFilterConfig(config);
+}
+
+std::vector<std::string> ContentFilterEngine::safetyPatterns(const std::string& filterLevel) {
+    // Basic safety filter - can be enhanced with more sophisticated detection
+    if (filterLevel == "strict") {
+        return {"violen*", "hate*", "hatred", "harass*", "illegal*", "harmful*", "dangerous*", "explicit*",
+                "nsfw", "toxic*"};
+    } else if (filterLevel == "moderate") {
+        return {"violen*", "hate*", "hatred", "harass*", "illegal*", "dangerous*"};
+    }
+    // "permissive" level has minimal filtering
+    return {};
+}
+
+bool ContentFilterEngine::isContentAllowed(const std::string& content, const AIRequest& request) const {
+    Stream check = stream();
+    check.feed(content);
+    bool allowed = check.finish(request);
+    lastFilterReason_ = check.reason();
+    return allowed;
+}
+
+ContentFilterEngine::Stream ContentFilterEngine::stream() const {
+    return Stream(std::atomic_load(&compiled_));
+}
+
+ContentFilterEngine::Stream::Stream(std::shared_ptr<const Compiled> compiled)
+    : compiled_(std::move(compiled)), state_(compiled_->matcher.start()) {}
+
+bool ContentFilterEngine::Stream::feed(const char* text, size_t len) {
+    if (blocked_) {
+        return false;
+    }
+    bytesFed_ += len;
+    return !block(compiled_->matcher.feed(state_, text, len));
+}
+
+bool ContentFilterEngine::Stream::finish(const AIRequest& request) {
+    if (blocked_) {
+        return false;
+    }
+    uint32_t matched = compiled_->matcher.finish(state_);
+    if (block(matched)) {
+        return false;
+    }
+    // if allowed topics are specified, content must contain at least one
+    const ContentFilter& config = compiled_->config;
+    if (!config.allowedTopics.empty() && !(matched & (1u << ALLOWED_SET))) {
+        blocked_ = true;
+        reason_ = "Content blocked by topic filter";
+        return false;
+    }
+    if (!checkUseCases(config, request)) {
+        blocked_ = true;
+        reason_ = "Request blocked by use case filter";
+        return false;
+    }
     return true;
 }
 
-bool ContentFilterEngine::checkUseCases(const AIRequest& request) const {
-    if (config_.allowedUseCases.empty()) {
+// sets reason and returns true if matched includes safety or blocked topic patterns
+bool ContentFilterEngine::Stream::block(uint32_t matched) {
+    if (matched & (1u << SAFETY_SET)) {
+        reason_ = "Content blocked by safety filter";
+    } else if (matched & (1u << BLOCKED_SET)) {
+        reason_ = "Content blocked by topic filter";
+    } else {
+        return false;
+    }
+    blocked_ = true;
+    return true;
+}
+
+bool ContentFilterEngine::checkUseCases(const ContentFilter& config, const AIRequest& request) {
+    if (config.allowedUseCases.empty()) {
         return true; // No restrictions
     }
     
@@ -72,43 +529,32 @@ bool ContentFilterEngine::checkUseCases(const AIRequest& request) const {
     auto it = request.metadata.find("useCase");
     if (it != request.metadata.end()) {
         const std::string& useCase = it->second;
-        return std::find(config_.allowedUseCases.begin(), config_.allowedUseCases.end(), useCase) 
-               != config_.allowedUseCases.end();
+        return std::find(config.allowedUseCases.begin(), config.allowedUseCases.end(), useCase) 
+               != config.allowedUseCases.end();
     }
     
     return false; // No use case specified but restrictions exist
 }
 
-bool ContentFilterEngine::checkSafetyFilter(const std::string& content) const {
-    // Basic safety filter - can be enhanced with more sophisticated detection
-    std::vector<std::string> unsafePatterns;
-    
-    if (config_.filterLevel == "strict") {
-        unsafePatterns = {
-            "violence", "hate", "harassment", "illegal", "harmful",
-            "dangerous", "explicit", "nsfw", "toxic"
-        };
-    } else if (config_.filterLevel == "moderate") {
-        unsafePatterns = {
-            "violence", "hate", "harassment", "illegal", "dangerous"
-        };
+void ContentFilterEngine::updateFilterConfig(const ContentFilter& config) {
+    // settings are often saved without changes to the filter, so don't recompile the matcher for those
+    std::shared_ptr<const Compiled> current = std::atomic_load(&compiled_);
+    if (current && current->config == config) {
+        return;
     }
-    // "permissive" level has minimal filtering
-    
-    std::string lowerContent = content;
-    std::transform(lowerContent.begin(), lowerContent.end(), lowerContent.begin(), ::tolower);
-    
-    for (const auto& pattern : unsafePatterns) {
-        if (lowerContent.find(pattern) != std::string::npos) {
-            return false;
-        }
+    auto compiled = std::make_shared<Compiled>();
+    compiled->config = config;
+    for (const std::string& pattern : safetyPatterns(config.filterLevel)) {
+        compiled->matcher.addPattern(pattern, SAFETY_SET);
     }
-    
-    return true;
-}
-
-void ContentFilterEngine::updateFilterConfig(const ContentFilter& config) {
-    config_ = config;
+    for (const std::string& topic : config.blockedTopics) {
+        compiled->matcher.addPattern(topic, BLOCKED_SET);
+    }
+    for (const std::string& topic : config.allowedTopics) {
+        compiled->matcher.addPattern(topic, ALLOWED_SET);
+    }
+    compiled->matcher.compile();
+    std::atomic_store(&compiled_, std::shared_ptr<const Compiled>(std::move(compiled)));
 }
 
 std::string ContentFilterEngine::getFilterReason() const {
@@ -119,6 +565,11 @@ std::string ContentFilterEngine::getFilterReason() const {
 AIAgent::AIAgent(ScribbleConfig* config) 
     : config_(config), currentProvider_(AIProvider::OPENAI) {
     
+    // create all entries up front so concurrent attempts never insert into the map
+    for (int i = 0; i < 5; ++i) {
+        health_[static_cast<AIProvider>(i)];
+    }
+    
     // Set default content filter
     currentFilter_.filterLevel = "moderate";
     currentFilter_.enableRagFiltering = true;
@@ -127,9 +578,21 @@ AIAgent::AIAgent(ScribbleConfig* config)
     
     loadConfiguration();
     initializeProviders();
+    
+    probeCancel_ = std::make_shared<AICancelToken>();
+    probeThread_ = std::thread([this]() { probeLoop(); });
 }
 
-AIAgent::~AIAgent() = default;
+AIAgent::~AIAgent() {
+    {
+        std::lock_guard<std::mutex> lock(probeMutex_);
+        stopProbing_ = true;
+    }
+    probeCancel_->cancel();
+    probeCv_.notify_all();
+    probeThread_.join();
+    reapAttempts(true);
+}
 
 void AIAgent::configure(AIProvider provider, const std::string& apiKey, const std::string& baseUrl) {
     currentProvider_ = provider;
@@ -144,13 +607,22 @@ void AIAgent::configure(AIProvider provider, const std::string& apiKey, const st
         case AIProvider::CUSTOM: providerName = "custom"; break;
     }
     
-    config_->setString(fstring("ai_%s_apikey", providerName.c_str()), apiKey);
+    std::string apiKeyName = fstring("ai_%s_apikey", providerName.c_str());
+    std::string baseUrlName = fstring("ai_%s_baseurl", providerName.c_str());
+    bool unchanged = config_->String(apiKeyName.c_str(), "") == apiKey
+        && (baseUrl.empty() || config_->String(baseUrlName.c_str(), "") == baseUrl);
+    config_->setString(apiKeyName, apiKey);
     if (!baseUrl.empty()) {
-        config_->setString(fstring("ai_%s_baseurl", providerName.c_str()), baseUrl);
+        config_->setString(baseUrlName, baseUrl);
     }
     
-    // Recreate provider with new configuration
-    providers_[provider] = createProvider(provider);
+    // Recreate provider with new configuration; an existing provider created from the same settings is
+    //  kept, along with its connections
+    if (!unchanged || !getProvider(provider)) {
+        std::shared_ptr<AIServiceProvider> created = createProvider(provider);
+        std::lock_guard<std::mutex> lock(providersMutex_);
+        providers_[provider] = created;
+    }
     
     saveConfiguration();
 }
@@ -162,24 +634,85 @@ void AIAgent::setContentFilter(const ContentFilter& filter) {
 }
 
 void AIAgent::setRAGService(std::unique_ptr<RAGService> ragService) {
-    ragService_ = std::move(ragService);
+    // indexer must be done with the old service before it is released; waiting for it doesn't hold
+    //  indexerMutex_, which notebookChanged() takes on the UI thread.  Calls still using the old service hold
+    //  their own reference to it, so it is destroyed when the last of them finishes.
+    std::shared_ptr<NotebookIndexer> indexer;
+    std::shared_ptr<RAGService> oldService;
+    std::shared_ptr<RAGService> service = std::move(ragService);
+    {
+        std::lock_guard<std::mutex> lock(indexerMutex_);
+        indexer = indexer_;
+        if (!service) {
+            indexer_.reset();
+        }
+        std::lock_guard<std::mutex> ragLock(ragMutex_);
+        oldService = std::move(ragService_);
+        ragService_ = service;
+    }
+    if (indexer) {
+        indexer->setService(service.get());
+    }
 }
 
+void AIAgent::setHedgingPolicy(const HedgingPolicy& policy) {
+    hedging_ = policy;
+    saveConfiguration();
+}
+
+void AIAgent::setRateLimits(AIProvider provider, const RateLimits& limits) {
+    scheduler_.setLimits(provider, limits);
+    saveConfiguration();
+}
+
+void AIAgent::setRAGTokenBudget(int tokens) {
+    ragTokenBudget_ = std::max(0, tokens);
+    saveConfiguration();
+}
+
+static int msSince(std::chrono::steady_clock::time_point start) {
+    return static_cast<int>(std::chrono::duration_cast<std::chrono::milliseconds>(
+            std::chrono::steady_clock::now() - start).count());
+}
+
+// Stages overlap: the provider connection is opened on another thread as soon as the request is accepted,
+//  while the prompt is filtered and retrieval runs on this one, and the request is sent once both are done.
+//  Stage timings are returned in the response metadata (filter_ms, rag_ms, connect_ms, connect_wait_ms,
+//  latency_ms, response_filter_ms, total_ms).
 AIResponse AIAgent::processRequest(const AIRequest& request) {
+    auto start = std::chrono::steady_clock::now();
     AIResponse response;
     lastError_.clear();
     
     // Check if provider is configured
-    auto it = providers_.find(currentProvider_);
-    if (it == providers_.end() || !it->second || !it->second->isConfigured()) {
+    auto provider = getProvider(currentProvider_);
+    if (!provider || !provider->isConfigured()) {
         response.success = false;
         response.error = "AI provider not configured";
         lastError_ = response.error;
         return response;
     }
     
+    // Use a warm connection, otherwise start connecting; closed unused if the request is rejected (or the
+    //  breaker is open, so dispatch fails fast)
+    AIRequest enhancedRequest = request;
+    const ProviderHealth& health = health_.at(currentProvider_);
+    bool warm = false;
+    if (!enhancedRequest.connection) {
+        enhancedRequest.connection = takeWarmConnection(currentProvider_);
+        warm = enhancedRequest.connection != nullptr;
+    }
+    if (!enhancedRequest.connection && health.allowRequest()) {
+        AIRequest timeouts;
+        health.applyTimeouts(timeouts);
+        enhancedRequest.connection = provider->preconnect(timeouts.connectTimeoutSecs);
+    }
+    
     // Apply content filtering
-    if (!filterEngine_->isContentAllowed(request.prompt, request)) {
+    auto stageStart = std::chrono::steady_clock::now();
+    bool allowed = filterEngine_->isContentAllowed(request.prompt, request);
+    int filterMs = msSince(stageStart);
+    if (!allowed) {
         response.success = false;
         response.error = "Content blocked by filter";
         response.filteredReason = filterEngine_->getFilterReason();
@@ -188,31 +721,403 @@ AIResponse AIAgent::processRequest(const AIRequest& request) {
     }
     
     // Enhance request with RAG if enabled
-    AIRequest enhancedRequest = request;
-    if (ragService_ && !request.documents.empty()) {
-        enhancedRequest.context = enhancePromptWithRAG(request);
+    stageStart = std::chrono::steady_clock::now();
+    auto ragService = getRAGService();
+    if (ragService && !request.documents.empty()) {
+        enhancedRequest.context = enhancePromptWithRAG(*ragService, request);
     }
+    int ragMs = msSince(stageStart);
     
     // Process with AI provider
     try {
-        response = it->second->generateResponse(enhancedRequest);
-        
-        // Post-process response filtering
-        if (response.success && !filterEngine_->isContentAllowed(response.content, request)) {
-            response.success = false;
-            response.error = "Response blocked by filter";
-            response.filteredReason = filterEngine_->getFilterReason();
-            response.content.clear();
-        }
+        // the response is filtered by dispatch(), as it arrives
+        response = hedging_.enabled ? dispatchHedged(enhancedRequest) : dispatch(currentProvider_, enhancedRequest);
     } catch (const std::exception& e) {
         response.success = false;
         response.error = fstring("AI processing error: %s", e.what());
         lastError_ = response.error;
     }
     
+    if (warm) {
+        response.metadata["warm_connection"] = "true";
+    }
+    response.metadata["filter_ms"] = std::to_string(filterMs);
+    response.metadata["rag_ms"] = std::to_string(ragMs);
+    response.metadata["total_ms"] = std::to_string(msSince(start));
     return response;
 }
 
+AIResponse AIAgent::dispatch(AIProvider providerId, const AIRequest& request) {
+    auto provider = getProvider(providerId);
+    if (!provider || !provider->isConfigured()) {
+        AIResponse response;
+        response.error = "AI provider not configured";
+        return response;
+    }
+
+    ProviderHealth& health = health_.at(providerId);
+    if (!health.allowRequest()) {
+        // fail fast while the breaker is open; counts as a transport error so failover can kick in
+        AIResponse response;
+        response.error = fstring("%s is unavailable (circuit breaker open)", provider->getProviderName().c_str());
+        response.transportError = true;
+        return response;
+    }
+
+    AIRequest attempt = request;
+    health.applyTimeouts(attempt);
+
+    // wait for rate limit capacity; if the provider still answers 429, requeue until the deadline
+    auto queuedAt = std::chrono::steady_clock::now();
+    auto deadline = queuedAt + std::chrono::milliseconds(request.queueTimeoutMs);
+    int tokens = RequestScheduler::estimateTokens(request);
+    int queuedMs = 0;
+    AIResponse response;
+    std::shared_ptr<ContentFilterEngine::Stream> responseFilter;
+    int elapsedMs = 0;
+    while (true) {
+        auto waitStart = std::chrono::steady_clock::now();
+        bool granted = scheduler_.acquire(providerId, tokens, deadline, request.cancelToken);
+        auto start = std::chrono::steady_clock::now();
+        queuedMs += static_cast<int>(std::chrono::duration_cast<std::chrono::milliseconds>(start - waitStart).count());
+        if (!granted) {
+            if (response.metadata["http_status"] != "429") {
+                response = AIResponse();
+                response.error = fstring("%s rate limit: request timed out waiting in queue",
+                                         provider->getProviderName().c_str());
+            }
+            response.metadata["rate_limited"] = "true";
+            break;
+        }
+        // filter the response as it arrives so a blocked one can be stopped without receiving the rest; the
+        //  caller's onContent only sees text the filter allowed
+        responseFilter = std::make_shared<ContentFilterEngine::Stream>(filterEngine_->stream());
+        attempt.onContent = [responseFilter, onContent = request.onContent](const char* text, size_t len) {
+            return responseFilter->feed(text, len) && (!onContent || onContent(text, len));
+        };
+        response = provider->generateResponse(attempt);
+        elapsedMs = static_cast<int>(std::chrono::duration_cast<std::chrono::milliseconds>(
+                std::chrono::steady_clock::now() - start).count());
+        if (responseFilter->isBlocked()) {
+            response.success = false;
+            response.error = "Response blocked by filter";
+            response.filteredReason = responseFilter->reason();
+            response.content.clear();
+            ++responsesStopped_;
+            stoppedBytesReceived_ += strtoull(response.metadata["bytes_received"].c_str(), nullptr, 10);
+            stoppedBytesSaved_ += strtoull(response.metadata["bytes_saved"].c_str(), nullptr, 10);
+        }
+        int retryMs = scheduler_.onResponse(providerId, response);
+        if (retryMs < 0 || (request.cancelToken && request.cancelToken->isCancelled())) {
+            break;
+        }
+        if (std::chrono::steady_clock::now() + std::chrono::milliseconds(retryMs) >= deadline) {
+            response.metadata["rate_limited"] = "true";
+            break;
+        }
+    }
+    response.metadata["queued_ms"] = std::to_string(queuedMs);
+
+    // an abandoned attempt says nothing about the provider; API errors (4xx) don't count against it
+    if (!request.cancelToken || !request.cancelToken->isCancelled()) {
+        int status = atoi(response.metadata["http_status"].c_str());
+        if (response.success) {
+            int connectMs = response.metadata.count("connect_ms") ? atoi(response.metadata["connect_ms"].c_str()) : -1;
+            health.recordSuccess(elapsedMs, connectMs);
+        } else if (response.transportError || status >= 500) {
+            health.recordFailure();
+            if (!health.allowRequest()) {
+                // taking the lock ensures the prober is either waiting or will see the new state
+                std::lock_guard<std::mutex> lock(probeMutex_);
+                probeCv_.notify_all();
+            }
+        }
+    }
+
+    // allowed topics and use cases can only be checked once the whole response is in; a response the
+    //  provider didn't pass to onContent is checked in full instead
+    if (response.success) {
+        auto filterStart = std::chrono::steady_clock::now();
+        bool streamed = responseFilter && responseFilter->bytesFed() == response.content.size();
+        if (streamed ? !responseFilter->finish(request) : !filterEngine_->isContentAllowed(response.content, request)) {
+            response.success = false;
+            response.error = "Response blocked by filter";
+            response.filteredReason = streamed ? responseFilter->reason() : filterEngine_->getFilterReason();
+            response.content.clear();
+        }
+        response.metadata["response_filter_ms"] = std::to_string(msSince(filterStart));
+    }
+    response.metadata["provider"] = provider->getProviderName();
+    response.metadata["latency_ms"] = std::to_string(elapsedMs);
+    return response;
+}
+
+std::vector<AIProvider> AIAgent::hedgeCandidates() const {
+    std::vector<AIProvider> candidates = {currentProvider_};
+    auto isUsable = [this, &candidates](AIProvider provider) {
+        auto it = providers_.find(provider);
+        return it != providers_.end() && it->second && it->second->isConfigured()
+            && health_.at(provider).allowRequest()
+            && std::find(candidates.begin(), candidates.end(), provider) == candidates.end();
+    };
+
+    std::lock_guard<std::mutex> lock(providersMutex_);
+    if (!hedging_.secondaries.empty()) {
+        for (AIProvider provider : hedging_.secondaries) {
+            if (isUsable(provider)) {
+                candidates.push_back(provider);
+            }
+        }
+    } else {
+        for (const auto& pair : providers_) {
+            if (isUsable(pair.first)) {
+                candidates.push_back(pair.first);
+            }
+        }
+    }
+    return candidates;
+}
+
+AIResponse AIAgent::dispatchHedged(const AIRequest& request) {
+    std::vector<AIProvider> candidates = hedgeCandidates();
+    if (candidates.size() < 2) {
+        return dispatch(currentProvider_, request);
+    }
+    reapAttempts(false);
+
+    struct Race {
+        std::mutex mutex;
+        std::condition_variable cv;
+        bool done = false;
+        int running = 0;
+        AIResponse result;
+        AIResponse lastFailure;
+    };
+    auto race = std::make_shared<Race>();
+    std::vector<std::shared_ptr<AICancelToken>> tokens;
+
+    auto launch = [&](AIProvider provider) {
+        AIRequest attempt = request;
+        attempt.cancelToken = std::make_shared<AICancelToken>();
+        tokens.push_back(attempt.cancelToken);
+        ++race->running;
+
+        auto finished = std::make_shared<std::atomic<bool>>(false);
+        std::thread thread([this, race, provider, attempt, finished]() {
+            AIResponse response = dispatch(provider, attempt);
+            {
+                std::lock_guard<std::mutex> lock(race->mutex);
+                --race->running;
+                if (!race->done && response.success) {
+                    race->done = true;
+                    race->result = response;
+                } else if (!response.success) {
+                    race->lastFailure = response;
+                }
+            }
+            race->cv.notify_all();
+            *finished = true;
+        });
+        std::lock_guard<std::mutex> lock(attemptsMutex_);
+        attempts_.push_back({std::move(thread), finished});
+    };
+
+    const ProviderHealth& primaryHealth = health_.at(currentProvider_);
+    int delayMs = primaryHealth.sampleCount() >= hedging_.minSamples
+        ? primaryHealth.percentile(0.95f) : hedging_.defaultDelayMs;
+    auto hedgeAt = std::chrono::steady_clock::now() + std::chrono::milliseconds(delayMs);
+    bool hedged = false;
+    size_t next = 0;
+
+    // each attempt has its own token so the losers can be cancelled; the caller's token can't wake us, so
+    //  poll it, and cancel all the attempts below once it fires
+    auto cancelled = [&request]() { return request.cancelToken && request.cancelToken->isCancelled(); };
+    std::unique_lock<std::mutex> lock(race->mutex);
+    launch(candidates[next++]);
+    while (!race->done && !cancelled()) {
+        if (race->running == 0) {
+            // every attempt so far has failed - fail over if the failure was a connection problem
+            if (next < candidates.size() && hedging_.failover && race->lastFailure.transportError) {
+                launch(candidates[next++]);
+                continue;
+            }
+            break;
+        }
+        auto now = std::chrono::steady_clock::now();
+        if (!hedged && next < candidates.size()) {
+            if (now >= hedgeAt) {
+                hedged = true;
+                launch(candidates[next++]);
+                continue;
+            }
+            race->cv.wait_until(lock, request.cancelToken ? std::min(hedgeAt, now + std::chrono::milliseconds(100))
+                                                          : hedgeAt);
+        } else if (request.cancelToken) {
+            race->cv.wait_until(lock, now + std::chrono::milliseconds(100));
+        } else {
+            race->cv.wait(lock);
+        }
+    }
+
+    AIResponse response = race->done ? race->result : race->lastFailure;
+    if (!race->done && cancelled()) {
+        response = AIResponse();
+        response.error = "Request cancelled";
+    }
+    lock.unlock();
+
+    // cancel the losers; their threads are joined later by reapAttempts()
+    for (auto& token : tokens) {
+        token->cancel();
+    }
+    if (hedged) {
+        response.metadata["hedged"] = "true";
+    }
+    return response;
+}
+
+std::shared_ptr<AIServiceProvider> AIAgent::getProvider(AIProvider provider) const {
+    std::lock_guard<std::mutex> lock(providersMutex_);
+    auto it = providers_.find(provider);
+    return it != providers_.end() ? it->second : nullptr;
+}
+
+std::shared_ptr<RAGService> AIAgent::getRAGService() const {
+    std::lock_guard<std::mutex> lock(ragMutex_);
+    return ragService_;
+}
+
+// Probes providers whose breaker is open once their back-off expires; sleeps until then
+void AIAgent::probeLoop() {
+    std::unique_lock<std::mutex> lock(probeMutex_);
+    while (!stopProbing_) {
+        auto nextProbe = std::chrono::steady_clock::time_point::max();
+        for (const auto& pair : health_) {
+            nextProbe = std::min(nextProbe, pair.second.nextProbeTime());
+        }
+        {
+            std::lock_guard<std::mutex> warmLock(warmMutex_);
+            nextProbe = std::min(nextProbe, warmExpiry_);
+        }
+        if (nextProbe == std::chrono::steady_clock::time_point::max()) {
+            probeCv_.wait(lock);
+        } else {
+            probeCv_.wait_until(lock, nextProbe);
+        }
+        if (stopProbing_) {
+            break;
+        }
+
+        lock.unlock();
+        expireWarmConnection();
+        for (auto& pair : health_) {
+            if (pair.second.beginProbe()) {
+                auto provider = getProvider(pair.first);
+                pair.second.endProbe(provider && provider->probe(probeCancel_));
+            }
+        }
+        lock.lock();
+    }
+}
+
+// Warm connections: one connection at most, for the current provider, kept while requests seem likely;
+//  requests take it instead of connecting (see processRequest)
+void AIAgent::prewarmConnection() {
+    warmConnection();
+}
+
+bool AIAgent::probeConnection(int* connectMs) {
+    std::shared_ptr<AIConnection> connection = warmConnection();
+    return connection && connection->wait(connectMs);
+}
+
+// the warm connection for the current provider, opened if there isn't one, with its idle time restarted;
+//  null if the provider isn't configured or its breaker is open
+std::shared_ptr<AIConnection> AIAgent::warmConnection() {
+    AIProvider current = currentProvider_;
+    auto provider = getProvider(current);
+    const ProviderHealth& health = health_.at(current);
+    if (!provider || !provider->isConfigured() || !health.allowRequest()) {
+        return nullptr;
+    }
+    std::shared_ptr<AIConnection> replaced;  // destroyed after unlocking, since that waits for its thread
+    std::shared_ptr<AIConnection> connection;
+    {
+        std::lock_guard<std::mutex> lock(warmMutex_);
+        if (!warmConnection_ || warmProvider_ != current || warmConnection_->failed()) {
+            AIRequest timeouts;
+            health.applyTimeouts(timeouts);
+            replaced = std::move(warmConnection_);
+            warmConnection_ = provider->preconnect(timeouts.connectTimeoutSecs);
+            warmProvider_ = current;
+        }
+        auto idle = std::chrono::milliseconds(warmIdleMs_.load());
+        warmExpiry_ = warmConnection_ ? std::chrono::steady_clock::now() + idle
+                                      : std::chrono::steady_clock::time_point::max();
+        connection = warmConnection_;
+    }
+    {
+        // so the probe thread wakes to expire it
+        std::lock_guard<std::mutex> lock(probeMutex_);
+        probeCv_.notify_all();
+    }
+    return connection;
+}
+
+std::shared_ptr<AIConnection> AIAgent::takeWarmConnection(AIProvider provider) {
+    std::lock_guard<std::mutex> lock(warmMutex_);
+    // a failed attempt would fail the request; let it connect itself, in case the network is back
+    if (!warmConnection_ || warmProvider_ != provider || std::chrono::steady_clock::now() >= warmExpiry_
+            || warmConnection_->failed()) {
+        return nullptr;
+    }
+    warmExpiry_ = std::chrono::steady_clock::time_point::max();
+    return std::move(warmConnection_);
+}
+
+// close the warm connection once idle for too long, so it doesn't keep the radio awake
+void AIAgent::expireWarmConnection() {
+    std::shared_ptr<AIConnection> expired;
+    std::lock_guard<std::mutex> lock(warmMutex_);
+    if (warmConnection_ && std::chrono::steady_clock::now() >= warmExpiry_) {
+        expired = std::move(warmConnection_);
+        warmExpiry_ = std::chrono::steady_clock::time_point::max();
+    }
+}
+
+ResponseFilterStats AIAgent::getResponseFilterStats() const {
+    ResponseFilterStats stats;
+    stats.responsesStopped = responsesStopped_;
+    stats.bytesReceived = stoppedBytesReceived_;
+    stats.bytesSaved = stoppedBytesSaved_;
+    return stats;
+}
+
+std::vector<ProviderHealthStats> AIAgent::getProviderHealth() const {
+    std::vector<ProviderHealthStats> result;
+    for (const auto& pair : health_) {
+        auto provider = getProvider(pair.first);
+        if (provider && provider->isConfigured()) {
+            ProviderHealthStats stats = pair.second.stats();
+            stats.provider = provider->getProviderName();
+            result.push_back(stats);
+        }
+    }
+    return result;
+}
+
+void AIAgent::reapAttempts(bool wait) {
+    std::lock_guard<std::mutex> lock(attemptsMutex_);
+    for (auto it = attempts_.begin(); it != attempts_.end();) {
+        if (wait || *it->finished) {
+            it->thread.join();
+            it = attempts_.erase(it);
+        } else {
+            ++it;
+        }
+    }
+}
+
 AIResponse AIAgent::generateText(const std::string& prompt, const std::string& context) {
     AIRequest request;
     request.prompt = prompt;
@@ -261,14 +1166,47 @@ AIResponse AIAgent::answerQuestion(const std::string& question, const std::strin
     return processRequest(request);
 }
 
+void AIAgent::notebookChanged(const std::string& notebookId, const std::string& title, std::vector<int> pageKeys,
+                              std::vector<NotebookPage> pages) {
+    std::lock_guard<std::mutex> lock(indexerMutex_);
+    // the service can't be replaced while indexerMutex_ is held, so the indexer is never given a stale one
+    auto ragService = getRAGService();
+    if (!ragService) {
+        return;
+    }
+    if (!indexer_) {
+        indexer_ = std::make_shared<NotebookIndexer>(ragService.get());
+    }
+    indexer_->pagesChanged(notebookId, title, std::move(pageKeys), std::move(pages));
+}
+
 bool AIAgent::indexCurrentDocument() {
-    // This would need integration with the current document system
-    // For now, return false to indicate not implemented
-    return false;
+    std::lock_guard<std::mutex> lock(indexerMutex_);
+    if (!indexer_) {
+        lastError_ = "No notebook to index";
+        return false;
+    }
+    indexer_->indexNow();
+    return true;
+}
+
+bool AIAgent::waitForIndexing(int timeoutMs) {
+    std::shared_ptr<NotebookIndexer> indexer;
+    {
+        std::lock_guard<std::mutex> lock(indexerMutex_);
+        indexer = indexer_;
+    }
+    return !indexer || indexer->waitIdle(timeoutMs);
+}
+
+IndexProgress AIAgent::getIndexProgress() const {
+    std::lock_guard<std::mutex> lock(indexerMutex_);
+    return indexer_ ? indexer_->progress() : IndexProgress();
 }
 
 bool AIAgent::indexDocument(const std::string& content, const std::string& title, const std::string& id) {
-    if (!ragService_) {
+    auto ragService = getRAGService();
+    if (!ragService) {
         lastError_ = "RAG service not configured";
         return false;
     }
@@ -279,30 +1217,94 @@ bool AIAgent::indexDocument(const std::string& content, const std::string& title
     doc.title = title;
     doc.source = "user_document";
     
-    return ragService_->indexDocument(doc);
+    return ragService->indexDocument(doc);
 }
 
-std::vector<RAGDocument> AIAgent::searchRelevantContent(const std::string& query) {
-    if (!ragService_) {
+bool AIAgent::indexDocumentPages(const std::vector<std::string>& pages, const std::string& title, const std::string& id) {
+    auto ragService = getRAGService();
+    if (!ragService) {
+        lastError_ = "RAG service not configured";
+        return false;
+    }
+    
+    RAGDocument doc;
+    doc.id = id.empty() ? fstring("doc_%llu", mSecSinceEpoch()) : id;
+    doc.title = title;
+    doc.source = "user_document";
+    for (const std::string& page : pages) {
+        if (!doc.content.empty()) {
+            doc.content += "\n\n";
+        }
+        doc.pageOffsets.push_back(doc.content.size());
+        doc.content += page;
+    }
+    
+    return ragService->indexDocument(doc);
+}
+
+bool AIAgent::indexDocuments(std::vector<RAGDocument> documents) {
+    auto ragService = getRAGService();
+    if (!ragService) {
+        lastError_ = "RAG service not configured";
+        return false;
+    }
+    
+    auto now = mSecSinceEpoch();
+    for (size_t i = 0; i < documents.size(); ++i) {
+        if (documents[i].id.empty()) {
+            documents[i].id = fstring("doc_%llu_%d", now, int(i));
+        }
+        if (documents[i].source.empty()) {
+            documents[i].source = "user_document";
+        }
+    }
+    return ragService->indexDocuments(documents);
+}
+
+std::vector<RAGDocument> AIAgent::searchRelevantContent(const std::string& query, int maxResults) {
+    auto ragService = getRAGService();
+    if (!ragService) {
         return {};
     }
     
-    return ragService_->searchDocuments(query);
+    return ragService->searchDocuments(query, maxResults);
+}
+
+bool AIAgent::searchAsYouType(const std::string& query, int maxResults, std::vector<RAGDocument>& results) {
+    auto cancelToken = std::make_shared<AICancelToken>();
+    {
+        std::lock_guard<std::mutex> lock(typeaheadMutex_);
+        if (typeaheadCancel_) {
+            typeaheadCancel_->cancel();
+        }
+        typeaheadCancel_ = cancelToken;
+    }
+    results.clear();
+    auto ragService = getRAGService();
+    if (ragService) {
+        results = ragService->searchAsYouType(query, maxResults, cancelToken);
+    }
+    return !cancelToken->isCancelled();
+}
+
+std::vector<RAGShardStats> AIAgent::getRAGShardStats() const {
+    auto ragService = getRAGService();
+    return ragService ? ragService->getShardStats() : std::vector<RAGShardStats>();
 }
 
 bool AIAgent::isConfigured() const {
-    auto it = providers_.find(currentProvider_);
-    return it != providers_.end() && it->second && it->second->isConfigured();
+    auto provider = getProvider(currentProvider_);
+    return provider && provider->isConfigured();
 }
 
 bool AIAgent::testConnection() {
-    auto it = providers_.find(currentProvider_);
-    if (it == providers_.end() || !it->second) {
+    auto provider = getProvider(currentProvider_);
+    if (!provider) {
         lastError_ = "Provider not available";
         return false;
     }
     
-    return it->second->testConnection();
+    return provider->testConnection();
 }
 
 void AIAgent::initializeProviders() {
@@ -311,6 +1313,7 @@ void AIAgent::initializeProviders() {
         AIProvider provider = static_cast<AIProvider>(i);
         auto created = createProvider(provider);
         if (created && created->isConfigured()) {
+            std::lock_guard<std::mutex> lock(providersMutex_);
             providers_[provider] = std::move(created);
         }
     }
@@ -364,6 +1367,31 @@ void AIAgent::loadConfiguration() {
     else if (providerStr == "google") currentProvider_ = AIProvider::GOOGLE_GEMINI;
     else if (providerStr == "ollama") currentProvider_ = AIProvider::OLLAMA;
     else currentProvider_ = AIProvider::OPENAI;
+    
+    // Load hedging policy
+    hedging_.enabled = config_->Bool("ai_hedging", false);
+    hedging_.failover = config_->Bool("ai_failover", true);
+    hedging_.defaultDelayMs = config_->Int("ai_hedge_delay", 2000);
+    hedging_.secondaries.clear();
+    std::stringstream secondaries(config_->String("ai_hedge_secondaries", ""));
+    std::string key;
+    while (std::getline(secondaries, key, ',')) {
+        AIProvider provider;
+        if (providerFromKey(key, provider)) {
+            hedging_.secondaries.push_back(provider);
+        }
+    }
+    
+    ragTokenBudget_ = config_->Int("ai_rag_token_budget", 1000);
+    
+    // Load rate limits (0 = learn from provider headers)
+    for (int i = 0; i < 5; ++i) {
+        AIProvider provider = static_cast<AIProvider>(i);
+        RateLimits limits;
+        limits.requestsPerMinute = config_->Int(rateLimitKey(provider, false), 0);
+        limits.tokensPerMinute = config_->Int(rateLimitKey(provider, true), 0);
+        scheduler_.setLimits(provider, limits);
+    }
 }
 
 void AIAgent::saveConfiguration() {
@@ -381,24 +1409,60 @@ void AIAgent::saveConfiguration() {
         default: providerStr = "openai"; break;
     }
     config_->setString("ai_current_provider", providerStr);
+    
+    // Save hedging policy
+    std::string secondaries;
+    for (AIProvider provider : hedging_.secondaries) {
+        if (!secondaries.empty()) secondaries += ",";
+        secondaries += providerKey(provider);
+    }
+    config_->setBool("ai_hedging", hedging_.enabled);
+    config_->setBool("ai_failover", hedging_.failover);
+    config_->set("ai_hedge_delay", hedging_.defaultDelayMs);
+    config_->setString("ai_hedge_secondaries", secondaries);
+    config_->set("ai_rag_token_budget", ragTokenBudget_);
+    
+    // Save rate limits
+    for (int i = 0; i < 5; ++i) {
+        AIProvider provider = static_cast<AIProvider>(i);
+        RateLimits limits = scheduler_.getLimits(provider);
+        config_->set(rateLimitKey(provider, false), limits.requestsPerMinute);
+        config_->set(rateLimitKey(provider, true), limits.tokensPerMinute);
+    }
 }
 
-std::string AIAgent::enhancePromptWithRAG(const AIRequest& request) {
-    if (!ragService_ || request.documents.empty()) {
+std::string AIAgent::enhancePromptWithRAG(RAGService& ragService, const AIRequest& request) {
+    if (request.documents.empty()) {
         return request.context;
     }
     
-    std::ostringstream enhanced;
-    enhanced << "Context from relevant documents:\n\n";
-    
-    // Search for relevant documents
-    auto relevantDocs = ragService_->searchDocuments(request.prompt, 3);
-    for (const auto& doc : relevantDocs) {
-        enhanced << "- " << doc.title << ": " << doc.content.substr(0, 200);
-        if (doc.content.length() > 200) enhanced << "...";
-        enhanced << "\n\n";
+    // fill the token budget with the best passages, skipping any overlapping a passage already included
+    static constexpr int MAX_CANDIDATES = 20;
+    int budget = request.ragTokenBudget > 0 ? request.ragTokenBudget : ragTokenBudget_;
+    int used = 0;
+    std::vector<const RAGDocument*> included;
+    std::ostringstream passages;
+    auto relevant = ragService.searchDocuments(request.prompt, MAX_CANDIDATES);
+    for (const auto& passage : relevant) {
+        bool overlaps = std::any_of(included.begin(), included.end(), [&](const RAGDocument* other) {
+            return other->documentId == passage.documentId && other->offset < passage.offset + passage.content.size()
+                && passage.offset < other->offset + other->content.size();
+        });
+        std::string label = passage.page >= 0 ? fstring("%s (page %d)", passage.title.c_str(), passage.page + 1) : passage.title;
+        int tokens = RequestScheduler::estimateTokens(label) + RequestScheduler::estimateTokens(passage.content) + 2;
+        if (overlaps || used + tokens > budget) {
+            continue;
+        }
+        passages << "- " << label << ": " << passage.content << "\n\n";
+        included.push_back(&passage);
+        used += tokens;
+    }
+    if (included.empty()) {
+        return request.context;
     }
     
+    std::ostringstream enhanced;
+    enhanced << "Context from relevant documents:\n\n" << passages.str();
     if (!request.context.empty()) {
         enhanced << "Additional context:\n" << request.context << "\n\n";
     }
@@ -407,6 +1471,7 @@ std::string AIAgent::enhancePromptWithRAG(const AIRequest& request) {
 }
 
 std::vector<std::string> AIAgent::getAvailableProviders() const {
+    std::lock_guard<std::mutex> lock(providersMutex_);
     std::vector<std::string> available;
     for (const auto& pair : providers_) {
         if (pair.second && pair.second->isConfigured()) {
@@ -417,8 +1482,8 @@ std::vector<std::string> AIAgent::getAvailableProviders() const {
 }
 
 bool AIAgent::switchProvider(AIProvider provider) {
-    auto it = providers_.find(provider);
-    if (it != providers_.end() && it->second && it->second->isConfigured()) {
+    auto existing = getProvider(provider);
+    if (existing && existing->isConfigured()) {
         currentProvider_ = provider;
         saveConfiguration();
         return true;
@@ -428,6 +1493,7 @@ bool AIAgent::switchProvider(AIProvider provider) {
 
 void AIAgent::addCustomProvider(std::unique_ptr<AIServiceProvider> provider) {
     if (provider) {
+        std::lock_guard<std::mutex> lock(providersMutex_);
         providers_[AIProvider::CUSTOM] = std::move(provider);
     }
 }
\ No newline at end of file
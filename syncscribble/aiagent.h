@@ -5,6 +5,12 @@
 #include <memory>
 #include <functional>
 #include <map>
+#include <mutex>
+#include <atomic>
+#include <thread>
+#include <chrono>
+#include <condition_variable>
+#include <algorithm>
 #include "basics.h"
 
 // Forward declarations
@@ -19,13 +25,65 @@ enum class AIProvider {
     CUSTOM
 };
 
-// Content filtering configuration
+// Content filtering configuration; topics are matched case insensitively as whole words or phrases, or as
+//  word prefixes if they end with '*' (e.g. "violen*")
 struct ContentFilter {
     std::vector<std::string> allowedTopics;
     std::vector<std::string> blockedTopics;
     std::vector<std::string> allowedUseCases;
     std::string filterLevel; // "strict", "moderate", "permissive"
     bool enableRagFiltering = true;
+
+    bool operator==(const ContentFilter& other) const {
+        return allowedTopics == other.allowedTopics && blockedTopics == other.blockedTopics
+            && allowedUseCases == other.allowedUseCases && filterLevel == other.filterLevel
+            && enableRagFiltering == other.enableRagFiltering;
+    }
+    bool operator!=(const ContentFilter& other) const { return !(*this == other); }
+};
+
+// Cancellation handle shared between a request and whoever may abandon it; cancel() shuts down the
+//  socket currently attached so a blocked read returns immediately
+class AICancelToken {
+public:
+    void cancel();
+    bool isCancelled() const { return cancelled_; }
+    // returns false (and does not attach) if already cancelled
+    bool attachSocket(int sock);
+    void detachSocket();
+
+private:
+    std::mutex mutex_;
+    std::atomic<bool> cancelled_{false};
+    int socket_ = -1;
+};
+
+// Provider connection opened on another thread ahead of the request that will use it, so that connection
+//  setup overlaps the work done before sending (see AIServiceProvider::preconnect).  Closed if not taken.
+class AIConnection {
+public:
+    AIConnection(const std::string& host, const std::string& port, int timeoutSecs);
+    ~AIConnection();
+    // the connected socket, which the caller then owns, waiting for the connection if necessary; -1 if the
+    //  connection failed, is for another endpoint or was already taken.  connectMs and waitMs are only set
+    //  when taking the result of the attempt, so a -1 return with waitMs set means the connection failed.
+    int take(const std::string& host, const std::string& port, int* connectMs = nullptr, int* waitMs = nullptr);
+    // wait for the connection attempt to finish; true if it connected and the socket hasn't been taken
+    bool wait(int* connectMs = nullptr);
+    // true if the attempt has finished without connecting; doesn't wait
+    bool failed();
+
+private:
+    std::string host_;
+    std::string port_;
+    std::shared_ptr<AICancelToken> cancelToken_;  // to abandon the connection attempt if not taken
+    std::thread thread_;
+    std::mutex mutex_;
+    std::condition_variable cv_;
+    bool connected_ = false;  // attempt finished
+    bool taken_ = false;
+    int socket_ = -1;
+    int connectMs_ = -1;
 };
 
 // AI Request/Response structures
@@ -38,17 +96,38 @@ struct AIRequest {
     AIProvider provider = AIProvider::OPENAI;
     int maxTokens = 1000;
     float temperature = 0.7f;
+    std::shared_ptr<AICancelToken> cancelToken;
+    // transport budgets in seconds; AIAgent derives these from the provider's observed latency
+    int connectTimeoutSecs = 10;
+    int firstByteTimeoutSecs = 60;
+    int readTimeoutSecs = 4;
+    // how long the request may wait for rate limit capacity (including retries after HTTP 429)
+    int queueTimeoutMs = 120000;
+    // tokens of retrieved passages to add to context; 0 to use the agent's default
+    int ragTokenBudget = 0;
+    // optional: passed the generated text in pieces as the response is received; returning false stops
+    //  receiving it, and the provider's response fails with metadata "aborted" (see HTTPClient::annotate)
+    std::function<bool(const char* text, size_t len)> onContent;
+    // optional connection to the provider opened in advance; used if it is for the provider's endpoint
+    std::shared_ptr<AIConnection> connection;
 };
 
 struct AIResponse {
     std::string content;
     std::string filteredReason;
     bool success = false;
+    bool transportError = false; // provider could not be reached (as opposed to an API error)
     std::string error;
     std::map<std::string, std::string> metadata;
     float confidence = 0.0f;
 };
 
+// byte range in a text
+struct TextSpan {
+    size_t offset;
+    size_t length;
+};
+
 // RAG Document processing
 struct RAGDocument {
     std::string id;
@@ -57,6 +136,45 @@ struct RAGDocument {
     std::string source;
     std::vector<std::string> tags;
     float relevanceScore = 0.0f;
+    // optional start offset of each page in content, for passage provenance; if empty, page applies to
+    //  the whole document
+    std::vector<size_t> pageOffsets;
+    // set on passages: the documents are split into overlapping passages when indexed and searches return
+    //  passages, with content being the passage text found at offset in the parent document
+    std::string documentId;
+    int page = -1;
+    size_t offset = 0;
+    // set on search-as-you-type hits: where the query matches in content
+    std::vector<TextSpan> highlights;
+};
+
+// Background indexing of the open notebook (see NotebookIndexer): a changed page, identified by a key that
+//  stays the same while pages are inserted and deleted, unlike its page number, so each page keeps its own
+//  entry in the index
+struct NotebookPage {
+    int key = -1;
+    std::string text;
+    // for a page the UI hasn't loaded: reads its text, on the indexer thread, instead of text; false on error
+    std::function<bool(std::string& text)> loadText;
+};
+
+struct IndexProgress {
+    std::string notebookId;
+    int pageCount = 0;
+    int pagesPending = 0;  // changed pages waiting to be indexed
+    int pagesIndexed = 0;  // since the notebook was opened
+    int errors = 0;
+    bool indexing = false;
+};
+
+// Search timing of one shard of a sharded RAG index
+struct RAGShardStats {
+    int shard = 0;
+    size_t passages = 0;
+    uint64_t searches = 0;
+    float lastSearchUs = 0.0f;
+    float avgSearchUs = 0.0f;
+    float maxSearchUs = 0.0f;
 };
 
 // AI Service Provider Interface
@@ -67,6 +185,11 @@ public:
     virtual bool isConfigured() const = 0;
     virtual std::string getProviderName() const = 0;
     virtual bool testConnection() = 0;
+    // cheap reachability check used to probe a provider while its circuit breaker is open
+    virtual bool probe(const std::shared_ptr<AICancelToken>& cancelToken) { return testConnection(); }
+    // start connecting for a generateResponse() call about to be made, to pass as AIRequest::connection;
+    //  null if not supported
+    virtual std::shared_ptr<AIConnection> preconnect(int connectTimeoutSecs) { return nullptr; }
 };
 
 // RAG Service Interface
@@ -75,27 +198,261 @@ public:
     virtual ~RAGService() = default;
     virtual std::vector<RAGDocument> searchDocuments(const std::string& query, int maxResults = 5) = 0;
     virtual bool indexDocument(const RAGDocument& document) = 0;
+    // services should override to index in parallel and avoid per-document commits
+    virtual bool indexDocuments(const std::vector<RAGDocument>& documents) {
+        bool ok = true;
+        for (const RAGDocument& document : documents) {
+            ok = indexDocument(document) && ok;
+        }
+        return ok;
+    }
     virtual bool removeDocument(const std::string& documentId) = 0;
     virtual void clearIndex() = 0;
+    // for searching on each keystroke: the last word of query is matched as a prefix and hits have
+    //  highlights set; returns nothing once cancelled.  Services should override, as by default this is
+    //  an ordinary search.
+    virtual std::vector<RAGDocument> searchAsYouType(const std::string& query, int maxResults,
+                                                     const std::shared_ptr<AICancelToken>& cancelToken) {
+        return searchDocuments(query, maxResults);
+    }
+    // per shard, for services that partition their index
+    virtual std::vector<RAGShardStats> getShardStats() const { return {}; }
+};
+
+// Hedging: if the primary provider has not answered within its observed p95 latency, send a duplicate
+//  request to a secondary provider and take whichever succeeds first; failover retries on the next
+//  provider when an attempt fails to connect
+struct HedgingPolicy {
+    bool enabled = false;
+    bool failover = true;
+    std::vector<AIProvider> secondaries; // in order of preference; empty for all other configured providers
+    int defaultDelayMs = 2000; // hedge delay used until enough latency samples are available
+    int minSamples = 10;
+};
+
+// Circuit breaker: OPEN after consecutive transport failures, during which requests fail fast and the
+//  provider is probed in the background; HALF_OPEN while a probe is in flight
+enum class BreakerState {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+};
+
+struct ProviderHealthStats {
+    std::string provider;
+    BreakerState state = BreakerState::CLOSED;
+    float ewmaLatencyMs = 0.0f;
+    float ewmaConnectMs = -1.0f;
+    int p50Ms = -1;
+    int p95Ms = -1;
+    int p99Ms = -1;
+    int samples = 0;
+    int consecutiveFailures = 0;
+    int connectTimeoutSecs = 0;
+    int firstByteTimeoutSecs = 0;
+};
+
+// Latency statistics (rolling window plus EWMA), derived timeouts and circuit breaker for a provider
+class ProviderHealth {
+public:
+    void recordSuccess(int latencyMs, int connectMs = -1);
+    void recordFailure(); // transport failure or server error
+    int percentile(float p) const; // -1 if no samples
+    int sampleCount() const;
+
+    void applyTimeouts(AIRequest& request) const;
+
+    bool allowRequest() const;
+    bool beginProbe(); // true if breaker is open and a probe is due; moves to HALF_OPEN
+    void endProbe(bool reachable);
+    // time of next due probe, or max() if breaker is closed
+    std::chrono::steady_clock::time_point nextProbeTime() const;
+
+    ProviderHealthStats stats() const;
+
+    static constexpr int FAILURE_THRESHOLD = 3;
+    static constexpr int MIN_OPEN_MS = 5000;
+    static constexpr int MAX_OPEN_MS = 300000;
+
+private:
+    static constexpr size_t MAX_SAMPLES = 128;
+    static constexpr float EWMA_ALPHA = 0.2f;
+    mutable std::mutex mutex_;
+    std::vector<int> samples_;
+    size_t nextSample_ = 0;
+    float ewmaLatencyMs_ = 0.0f;
+    float ewmaConnectMs_ = -1.0f;  // < 0 until first connect time is recorded
+    int consecutiveFailures_ = 0;
+    BreakerState state_ = BreakerState::CLOSED;
+    int openMs_ = MIN_OPEN_MS;
+    std::chrono::steady_clock::time_point probeAt_;
+
+    int percentileLocked(float p) const;
+    int connectTimeoutLocked() const;
+    int firstByteTimeoutLocked() const;
 };
 
-// Content Filter Engine
+// Requests/min and tokens/min allowed for a provider; 0 for no configured limit, in which case limits
+//  are learned from the provider's rate limit response headers
+struct RateLimits {
+    int requestsPerMinute = 0;
+    int tokensPerMinute = 0;
+};
+
+// Per-provider token buckets in front of the provider layer: requests wait in FIFO order until their
+//  provider has request and token capacity, rather than failing with HTTP 429.  Buckets are corrected
+//  from rate limit headers and a 429 (or exhausted remaining count) pauses the provider until reset.
+class RequestScheduler {
+public:
+    typedef std::chrono::steady_clock::time_point TimePoint;
+
+    void setLimits(AIProvider provider, const RateLimits& limits);
+    RateLimits getLimits(AIProvider provider) const;
+    // blocks until request may be sent; false if deadline passed or request was cancelled first
+    bool acquire(AIProvider provider, int tokens, TimePoint deadline, const std::shared_ptr<AICancelToken>& cancelToken);
+    // update provider state from response metadata; returns ms to wait before retrying if the request was
+    //  rate limited, otherwise -1
+    int onResponse(AIProvider provider, const AIResponse& response);
+    int queueLength(AIProvider provider) const;
+
+    static int estimateTokens(const AIRequest& request);
+    static int estimateTokens(const std::string& text) { return static_cast<int>(text.size() / 4); }
+
+    static constexpr int MIN_RETRY_MS = 1000;
+    static constexpr int MAX_RETRY_MS = 60000;
+
+private:
+    struct Bucket {
+        double capacity = 0;  // 0 for unlimited
+        double level = 0;
+        bool configured = false;  // capacity set by user rather than learned from headers
+
+        void setCapacity(double cap);
+        void refill(double elapsedMs);
+        bool has(double amount) const { return capacity <= 0 || level >= std::min(amount, capacity); }
+        void take(double amount) { if (capacity > 0) level -= std::min(amount, capacity); }
+        int msUntil(double amount) const;
+    };
+    struct ProviderQueue {
+        Bucket requests;
+        Bucket tokens;
+        TimePoint lastRefill = std::chrono::steady_clock::now();
+        TimePoint pausedUntil;
+        int retryMs = MIN_RETRY_MS;
+        std::vector<unsigned long> waiting;  // tickets in arrival order
+        unsigned long nextTicket = 0;
+    };
+
+    mutable std::mutex mutex_;
+    std::condition_variable cv_;
+    std::map<AIProvider, ProviderQueue> queues_;
+
+    void refillLocked(ProviderQueue& queue, TimePoint now);
+};
+
+// Multi-pattern matcher (Aho-Corasick automaton) for content filtering: text is scanned once, whatever the
+//  number of patterns.  Matching is ASCII case insensitive and word aware: a pattern matches only at the start
+//  of a word and, unless it ends with '*', only up to the end of a word; any run of non-word characters in
+//  the pattern or the text is treated as a single separator, so "machine learning" matches "Machine-learning".
+//  Patterns belong to sets (up to 32), and scans return the sets matched as a bitmask.
+class PatternMatcher {
+public:
+    void addPattern(const std::string& pattern, int set);
+    // builds the automaton; call after adding patterns and before scanning
+    void compile();
+    bool empty() const { return patterns_.empty(); }
+    uint32_t scan(const std::string& text) const;
+
+    // for text arriving in pieces: feed() each piece in turn, then finish() for the sets matched; matches
+    //  spanning pieces are found, and feed() returns the sets matched so far
+    struct State {
+        uint32_t row;
+        uint32_t matched;
+    };
+    State start() const { return {start_, 0}; }
+    uint32_t feed(State& state, const char* text, size_t len) const;
+    uint32_t finish(const State& state) const;
+
+private:
+    struct Pattern {
+        std::string symbols;  // folded bytes, with SEPARATOR for runs of non-word characters
+        uint32_t sets;
+    };
+    std::vector<Pattern> patterns_;
+    uint8_t classOf_[256];  // byte -> symbol class; 0 is the separator class
+    size_t numClasses_ = 1;
+    // DFA: next_[row + class] is the row (state*numClasses_) of the next state, | MATCH if it has output
+    std::vector<uint32_t> next_;
+    std::vector<uint32_t> output_;  // per state, sets matched on entering it
+    uint32_t start_ = 0;  // row of the state after the separator implied before the text
+
+    static const char SEPARATOR = ' ';
+    static const uint32_t MATCH = 0x80000000u;
+};
+
+// Content Filter Engine: topics and safety patterns are compiled into one PatternMatcher when the config is
+//  set, so checking content is a single pass over it
 class ContentFilterEngine {
+    struct Compiled;
+
 public:
     ContentFilterEngine(const ContentFilter& config);
     bool isContentAllowed(const std::string& content, const AIRequest& request) const;
     std::string getFilterReason() const;
     void updateFilterConfig(const ContentFilter& config);
 
+    enum PatternSet { SAFETY_SET = 0, BLOCKED_SET = 1, ALLOWED_SET = 2 };
+    static std::vector<std::string> safetyPatterns(const std::string& filterLevel);
+
+    // Incremental check of text received in pieces (e.g. a response as it arrives), using the config current
+    //  when the stream was created.  Safety and blocked topic matches are reported as soon as they are seen,
+    //  so the rest of the text need not be fetched; allowed topics can only be checked at the end.
+    class Stream {
+    public:
+        // false once the text so far is blocked
+        bool feed(const char* text, size_t len);
+        bool feed(const std::string& text) { return feed(text.data(), text.size()); }
+        // whether the whole text is allowed, as isContentAllowed() would return
+        bool finish(const AIRequest& request);
+        bool isBlocked() const { return blocked_; }
+        const std::string& reason() const { return reason_; }
+        size_t bytesFed() const { return bytesFed_; }
+
+    private:
+        friend class ContentFilterEngine;
+        explicit Stream(std::shared_ptr<const Compiled> compiled);
+        std::shared_ptr<const Compiled> compiled_;
+        PatternMatcher::State state_;
+        size_t bytesFed_ = 0;
+        bool blocked_ = false;
+        std::string reason_;
+
+        bool block(uint32_t matched);
+    };
+    Stream stream() const;
+
 private:
-    ContentFilter config_;
+    // config with its compiled patterns, replaced as a whole so checks running on other threads see a
+    //  consistent config
+    struct Compiled {
+        ContentFilter config;
+        PatternMatcher matcher;
+    };
+    std::shared_ptr<const Compiled> compiled_;  // only accessed with std::atomic_load/store
     mutable std::string lastFilterReason_;
     
-    bool checkTopics(const std::string& content) const;
-    bool checkUseCases(const AIRequest& request) const;
-    bool checkSafetyFilter(const std::string& content) const;
+    static bool checkUseCases(const ContentFilter& config, const AIRequest& request);
+};
+
+// Responses stopped while being received because the content filter blocked them
+struct ResponseFilterStats {
+    uint64_t responsesStopped = 0;
+    uint64_t bytesReceived = 0;  // of stopped responses
+    uint64_t bytesSaved = 0;  // not received; only counted when the server gave the response length
 };
 
+class NotebookIndexer;
+
 // Main AI Agent class
 class AIAgent {
 public:
@@ -106,6 +463,10 @@ public:
     void configure(AIProvider provider, const std::string& apiKey, const std::string& baseUrl = "");
     void setContentFilter(const ContentFilter& filter);
     void setRAGService(std::unique_ptr<RAGService> ragService);
+    void setHedgingPolicy(const HedgingPolicy& policy);
+    const HedgingPolicy& getHedgingPolicy() const { return hedging_; }
+    void setRateLimits(AIProvider provider, const RateLimits& limits);
+    RateLimits getRateLimits(AIProvider provider) const { return scheduler_.getLimits(provider); }
 
     // Core AI operations
     AIResponse processRequest(const AIRequest& request);
@@ -115,9 +476,28 @@ public:
     AIResponse answerQuestion(const std::string& question, const std::string& context = "");
 
     // RAG operations
+    // background indexing of the open notebook: called on the UI thread with the keys of all pages and the
+    //  changed pages, which are indexed after edits pause; see NotebookIndexer
+    void notebookChanged(const std::string& notebookId, const std::string& title, std::vector<int> pageKeys,
+                         std::vector<NotebookPage> pages);
+    // index pending notebook changes now; false if there is no notebook
     bool indexCurrentDocument();
+    // false if still indexing after timeoutMs
+    bool waitForIndexing(int timeoutMs);
+    IndexProgress getIndexProgress() const;
     bool indexDocument(const std::string& content, const std::string& title, const std::string& id = "");
-    std::vector<RAGDocument> searchRelevantContent(const std::string& query);
+    bool indexDocumentPages(const std::vector<std::string>& pages, const std::string& title, const std::string& id = "");
+    // bulk import, e.g. of a notes archive; documents without an id are given one
+    bool indexDocuments(std::vector<RAGDocument> documents);
+    // best matching passages
+    std::vector<RAGDocument> searchRelevantContent(const std::string& query, int maxResults = 5);
+    // search-as-you-type: call with the whole query on each keystroke; a call cancels any earlier one still
+    //  running, which returns false
+    bool searchAsYouType(const std::string& query, int maxResults, std::vector<RAGDocument>& results);
+    std::vector<RAGShardStats> getRAGShardStats() const;
+    // default number of tokens of retrieved passages added to a request's context
+    void setRAGTokenBudget(int tokens);
+    int getRAGTokenBudget() const { return ragTokenBudget_; }
 
     // Provider management
     void addCustomProvider(std::unique_ptr<AIServiceProvider> provider);
@@ -127,24 +507,83 @@ public:
 
     // Status and diagnostics
     bool isConfigured() const;
+    // sends a minimal generation request, so checks the API key too; see probeConnection()
     bool testConnection();
+    // Warm connections: open a connection to the current provider in the background, for the next request
+    //  to use instead of connecting; closed if not used within the warm connection idle time.  Call when a
+    //  request is likely soon, e.g. when the user opens the chat or selects text; cheap to call repeatedly.
+    void prewarmConnection();
+    // connect to the current provider without sending anything, keeping the connection for the next request
+    //  as prewarmConnection() does; false if the connection failed
+    bool probeConnection(int* connectMs = nullptr);
+    void setWarmConnectionIdleMs(int ms) { warmIdleMs_ = ms; }
     std::string getLastError() const { return lastError_; }
+    std::vector<ProviderHealthStats> getProviderHealth() const;
+    ResponseFilterStats getResponseFilterStats() const;
 
 private:
     ScribbleConfig* config_;
     AIProvider currentProvider_;
-    std::map<AIProvider, std::unique_ptr<AIServiceProvider>> providers_;
-    std::unique_ptr<RAGService> ragService_;
+    // shared so a request or background probe keeps its provider alive across reconfiguration
+    std::map<AIProvider, std::shared_ptr<AIServiceProvider>> providers_;
+    mutable std::mutex providersMutex_;
+    // shared so a request, search or indexing call keeps the service it started with alive if the service is
+    //  replaced; only read through getRAGService()
+    std::shared_ptr<RAGService> ragService_;
+    mutable std::mutex ragMutex_;
+    std::shared_ptr<NotebookIndexer> indexer_;  // detached from ragService_ before it is replaced
+    mutable std::mutex indexerMutex_;  // taken before ragMutex_ when both are held
+    std::shared_ptr<AICancelToken> typeaheadCancel_;  // for the latest searchAsYouType() call
+    std::mutex typeaheadMutex_;
     std::unique_ptr<ContentFilterEngine> filterEngine_;
     ContentFilter currentFilter_;
+    std::atomic<uint64_t> responsesStopped_{0};
+    std::atomic<uint64_t> stoppedBytesReceived_{0};
+    std::atomic<uint64_t> stoppedBytesSaved_{0};
     std::string lastError_;
+    HedgingPolicy hedging_;
+    int ragTokenBudget_ = 1000;
+    std::map<AIProvider, ProviderHealth> health_;
+    RequestScheduler scheduler_;
+
+    // hedged and failover attempts still running (losers are cancelled but may take a moment to exit)
+    struct PendingAttempt {
+        std::thread thread;
+        std::shared_ptr<std::atomic<bool>> finished;
+    };
+    std::mutex attemptsMutex_;
+    std::vector<PendingAttempt> attempts_;
+
+    // background prober for providers with an open circuit breaker
+    std::thread probeThread_;
+    std::mutex probeMutex_;
+    std::condition_variable probeCv_;
+    bool stopProbing_ = false;
+    std::shared_ptr<AICancelToken> probeCancel_;
+
+    // connection opened by prewarmConnection(); expired by the probe thread
+    std::mutex warmMutex_;
+    std::shared_ptr<AIConnection> warmConnection_;
+    AIProvider warmProvider_ = AIProvider::OPENAI;
+    std::chrono::steady_clock::time_point warmExpiry_ = std::chrono::steady_clock::time_point::max();
+    std::atomic<int> warmIdleMs_{30000};
 
     // Helper methods
     std::unique_ptr<AIServiceProvider> createProvider(AIProvider provider);
     void initializeProviders();
     void loadConfiguration();
     void saveConfiguration();
-    std::string enhancePromptWithRAG(const AIRequest& request);
+    std::string enhancePromptWithRAG(RAGService& ragService, const AIRequest& request);
+    AIResponse dispatch(AIProvider provider, const AIRequest& request);
+    AIResponse dispatchHedged(const AIRequest& request);
+    std::vector<AIProvider> hedgeCandidates() const;
+    void reapAttempts(bool wait);
+    std::shared_ptr<AIServiceProvider> getProvider(AIProvider provider) const;
+    std::shared_ptr<RAGService> getRAGService() const;
+    void probeLoop();
+    std::shared_ptr<AIConnection> warmConnection();
+    std::shared_ptr<AIConnection> takeWarmConnection(AIProvider provider);
+    void expireWarmConnection();
 };
 
 // Factory functions for providers
@@ -154,5 +593,7 @@ std::unique_ptr<AIServiceProvider> createGoogleProvider(const std::string& apiKe
 std::unique_ptr<AIServiceProvider> createOllamaProvider(const std::string& baseUrl = "http://localhost:11434");
 
 // Factory functions for RAG services
-std::unique_ptr<RAGService> createLocalRAGService(const std::string& indexPath);
+// the index is partitioned into shards which are searched in parallel; 0 keeps the count of an existing
+//  index, or picks one from the number of cores for a new one
+std::unique_ptr<RAGService> createLocalRAGService(const std::string& indexPath, int shards = 0);
 std::unique_ptr<RAGService> createVectorRAGService(const std::string& connectionString);
\ No newline at end of file
@@ -3,6 +3,10 @@
 #include "pugixml.hpp"
 #include <sstream>
 #include <regex>
+#include <chrono>
+#include <algorithm>
+#include <cctype>
+#include <cstdio>
 
 // Include the existing networking functions
 extern "C" {
@@ -21,6 +25,44 @@ extern "C" {
     #define UNET_SHUT_RDWR 2
 }
 
+// timeouts in seconds (unet_select granularity)
+struct HTTPOptions {
+    int connectTimeout = 10;
+    int firstByteTimeout = 60;
+    int readTimeout = 4;
+    std::shared_ptr<AICancelToken> cancelToken;
+    // optional: called with the response body as it is received; returning false stops reading it
+    std::function<bool(const char* data, size_t len)> onBody;
+    // optional: connection opened in advance, used instead of connecting if it is for the same endpoint
+    std::shared_ptr<AIConnection> connection;
+};
+
+// Extracts the values of a string field from JSON as it is received, e.g. the generated text from a
+//  provider's response, passing them unescaped to onText; values of different occurrences of the field are
+//  separated by a newline.  Feeding stops when onText returns false.
+class JsonFieldReader {
+public:
+    JsonFieldReader(const std::string& field, std::function<bool(const char* text, size_t len)> onText)
+        : field_(field), onText_(std::move(onText)) {}
+    bool feed(const char* data, size_t len);
+
+private:
+    enum State { OUTSIDE, IN_STRING, AFTER_STRING, BEFORE_VALUE, IN_VALUE, IN_ESCAPE, IN_UNICODE };
+    std::string field_;
+    std::function<bool(const char*, size_t)> onText_;
+    State state_ = OUTSIDE;
+    bool escaped_ = false;  // in a string that isn't a value of the field
+    std::string key_;  // string so far, up to one byte longer than field_
+    uint32_t codePoint_ = 0;
+    int hexDigits_ = 0;
+    uint32_t highSurrogate_ = 0;
+    std::string text_;  // unescaped text not yet passed to onText_
+    bool sawValue_ = false;
+    bool stopped_ = false;
+
+    void appendUtf8(uint32_t c);
+};
+
 // HTTP helper for making API calls using the existing unet API
 class HTTPClient {
 public:
@@ -28,18 +70,46 @@ public:
         int statusCode = 0;
         std::string body;
         bool success = false;
+        int connectMs = -1;
+        std::map<std::string, std::string> headers;  // names lower-cased
+        bool aborted = false;  // Options::onBody stopped the response, so body is incomplete
+        long long contentLength = -1;  // from header, if present
+        int connectWaitMs = -1;  // time spent waiting for Options::connection, if it was used
     };
     
+    typedef HTTPOptions Options;
+    // if the request has an onContent callback, it is passed the values of contentField in the response body
+    static Options optionsFor(const AIRequest& request, const char* contentField = nullptr);
+    
     static Response post(const std::string& url, const std::string& data, 
-                        const std::map<std::string, std::string>& headers = {});
+                        const std::map<std::string, std::string>& headers = {},
+                        const Options& options = Options());
     static Response get(const std::string& url, 
-                       const std::map<std::string, std::string>& headers = {});
+                       const std::map<std::string, std::string>& headers = {},
+                       const Options& options = Options());
+    // TCP connect only - used to probe an unhealthy provider without spending tokens
+    static bool probe(const std::string& url, const Options& options);
+    // start connecting to url's endpoint on another thread, for Options::connection
+    static std::shared_ptr<AIConnection> preconnect(const std::string& url, int connectTimeoutSecs);
+    // record transport details on the provider's response for health tracking
+    static void annotate(AIResponse& response, const Response& httpResponse);
+    static std::string escapeJson(const std::string& str);
+    // parse rate limit reset values: durations like "1s", "6m0s", "250ms" or RFC 3339 timestamps
+    static int parseResetMs(const std::string& value);
 
 private:
-    static std::string escapeJson(const std::string& str);
-    static std::pair<std::string, std::string> parseUrl(const std::string& url);
+    struct Endpoint {
+        std::string host;
+        std::string port;
+        std::string path;
+    };
+    static Endpoint parseUrl(const std::string& url);
     static Response makeRequest(const std::string& method, const std::string& url, 
-                               const std::string& data, const std::map<std::string, std::string>& headers);
+                               const std::string& data, const std::map<std::string, std::string>& headers,
+                               const Options& options);
+    static int connect(const Endpoint& endpoint, const Options& options, int* connectMs);
+
+    friend class AIConnection;
 };
 
 // OpenAI Provider Implementation
@@ -81,20 +151,30 @@ public:
         
         // Make the API call
         auto httpResponse = HTTPClient::post(baseUrl_ + "/chat/completions", 
-                                           jsonPayload.str(), headers);
+                                           jsonPayload.str(), headers, HTTPClient::optionsFor(request, "content"));
         
         if (!httpResponse.success) {
             response.error = "Failed to connect to OpenAI API";
+            response.transportError = true;
+            return response;
+        }
+        
+        if (httpResponse.aborted) {
+            response.error = "OpenAI response stopped by request";
+            HTTPClient::annotate(response, httpResponse);
             return response;
         }
         
         if (httpResponse.statusCode != 200) {
             response.error = fstring("OpenAI API error: HTTP %d", httpResponse.statusCode);
+            HTTPClient::annotate(response, httpResponse);
             return response;
         }
         
         // Parse the response
-        return parseOpenAIResponse(httpResponse.body);
+        response = parseOpenAIResponse(httpResponse.body);
+        HTTPClient::annotate(response, httpResponse);
+        return response;
     }
     
     bool isConfigured() const override {
@@ -116,6 +196,16 @@ public:
         auto response = generateResponse(testRequest);
         return response.success;
     }
+    
+    bool probe(const std::shared_ptr<AICancelToken>& cancelToken) override {
+        HTTPClient::Options options;
+        options.cancelToken = cancelToken;
+        return HTTPClient::probe(baseUrl_, options);
+    }
+    
+    std::shared_ptr<AIConnection> preconnect(int connectTimeoutSecs) override {
+        return apiKey_.empty() ? nullptr : HTTPClient::preconnect(baseUrl_, connectTimeoutSecs);
+    }
 
 private:
     std::string apiKey_;
@@ -206,20 +296,30 @@ public:
         
         // Make the API call
         auto httpResponse = HTTPClient::post("https://api.anthropic.com/v1/messages", 
-                                           jsonPayload.str(), headers);
+                                           jsonPayload.str(), headers, HTTPClient::optionsFor(request, "text"));
         
         if (!httpResponse.success) {
             response.error = "Failed to connect to Anthropic API";
+            response.transportError = true;
+            return response;
+        }
+        
+        if (httpResponse.aborted) {
+            response.error = "Anthropic response stopped by request";
+            HTTPClient::annotate(response, httpResponse);
             return response;
         }
         
         if (httpResponse.statusCode != 200) {
             response.error = fstring("Anthropic API error: HTTP %d", httpResponse.statusCode);
+            HTTPClient::annotate(response, httpResponse);
             return response;
         }
         
         // Parse the response (similar to OpenAI but different structure)
-        return parseAnthropicResponse(httpResponse.body);
+        response = parseAnthropicResponse(httpResponse.body);
+        HTTPClient::annotate(response, httpResponse);
+        return response;
     }
     
     bool isConfigured() const override {
@@ -240,6 +340,16 @@ public:
         auto response = generateResponse(testRequest);
         return response.success;
     }
+    
+    bool probe(const std::shared_ptr<AICancelToken>& cancelToken) override {
+        HTTPClient::Options options;
+        options.cancelToken = cancelToken;
+        return HTTPClient::probe("https://api.anthropic.com/v1/messages", options);
+    }
+    
+    std::shared_ptr<AIConnection> preconnect(int connectTimeoutSecs) override {
+        return apiKey_.empty() ? nullptr : HTTPClient::preconnect("https://api.anthropic.com/v1/messages", connectTimeoutSecs);
+    }
 
 private:
     std::string apiKey_;
@@ -311,20 +421,30 @@ public:
         
         // Make the API call
         auto httpResponse = HTTPClient::post(baseUrl_ + "/api/generate", 
-                                           jsonPayload.str(), headers);
+                                           jsonPayload.str(), headers, HTTPClient::optionsFor(request, "response"));
         
         if (!httpResponse.success) {
             response.error = "Failed to connect to Ollama";
+            response.transportError = true;
+            return response;
+        }
+        
+        if (httpResponse.aborted) {
+            response.error = "Ollama response stopped by request";
+            HTTPClient::annotate(response, httpResponse);
             return response;
         }
         
         if (httpResponse.statusCode != 200) {
             response.error = fstring("Ollama error: HTTP %d", httpResponse.statusCode);
+            HTTPClient::annotate(response, httpResponse);
             return response;
         }
         
         // Parse the response
-        return parseOllamaResponse(httpResponse.body);
+        response = parseOllamaResponse(httpResponse.body);
+        HTTPClient::annotate(response, httpResponse);
+        return response;
     }
     
     bool isConfigured() const override {
@@ -340,6 +460,16 @@ public:
         auto response = HTTPClient::get(baseUrl_ + "/api/tags");
         return response.success && response.statusCode == 200;
     }
+    
+    bool probe(const std::shared_ptr<AICancelToken>& cancelToken) override {
+        HTTPClient::Options options;
+        options.cancelToken = cancelToken;
+        return HTTPClient::probe(baseUrl_, options);
+    }
+    
+    std::shared_ptr<AIConnection> preconnect(int connectTimeoutSecs) override {
+        return HTTPClient::preconnect(baseUrl_, connectTimeoutSecs);
+    }
 
 private:
     std::string baseUrl_;
@@ -401,69 +531,273 @@ std::unique_ptr<AIServiceProvider> createGoogleProvider(const std::string& apiKe
     return nullptr;
 }
 
+// AICancelToken implementation
+void AICancelToken::cancel() {
+    std::lock_guard<std::mutex> lock(mutex_);
+    cancelled_ = true;
+    if (socket_ != -1) {
+        // wakes up any select/recv blocked on the socket; owner still closes it
+        unet_shutdown(socket_, UNET_SHUT_RDWR);
+    }
+}
+
+bool AICancelToken::attachSocket(int sock) {
+    std::lock_guard<std::mutex> lock(mutex_);
+    if (cancelled_) {
+        return false;
+    }
+    socket_ = sock;
+    return true;
+}
+
+void AICancelToken::detachSocket() {
+    std::lock_guard<std::mutex> lock(mutex_);
+    socket_ = -1;
+}
+
 // HTTPClient implementation using existing unet API
+HTTPClient::Options HTTPClient::optionsFor(const AIRequest& request, const char* contentField) {
+    Options options;
+    options.connectTimeout = request.connectTimeoutSecs;
+    options.firstByteTimeout = request.firstByteTimeoutSecs;
+    options.readTimeout = request.readTimeoutSecs;
+    options.cancelToken = request.cancelToken;
+    options.connection = request.connection;
+    if (request.onContent && contentField) {
+        auto reader = std::make_shared<JsonFieldReader>(contentField, request.onContent);
+        options.onBody = [reader](const char* data, size_t len) { return reader->feed(data, len); };
+    }
+    return options;
+}
+
 HTTPClient::Response HTTPClient::post(const std::string& url, const std::string& data, 
-                                     const std::map<std::string, std::string>& headers) {
-    return makeRequest("POST", url, data, headers);
+                                     const std::map<std::string, std::string>& headers,
+                                     const Options& options) {
+    return makeRequest("POST", url, data, headers, options);
 }
 
 HTTPClient::Response HTTPClient::get(const std::string& url, 
-                                    const std::map<std::string, std::string>& headers) {
-    return makeRequest("GET", url, "", headers);
+                                    const std::map<std::string, std::string>& headers,
+                                    const Options& options) {
+    return makeRequest("GET", url, "", headers, options);
+}
+
+void HTTPClient::annotate(AIResponse& response, const Response& httpResponse) {
+    response.metadata["http_status"] = std::to_string(httpResponse.statusCode);
+    if (httpResponse.connectMs >= 0) {
+        response.metadata["connect_ms"] = std::to_string(httpResponse.connectMs);
+    }
+    if (httpResponse.connectWaitMs >= 0) {
+        response.metadata["preconnected"] = "true";
+        response.metadata["connect_wait_ms"] = std::to_string(httpResponse.connectWaitMs);
+    }
+    if (httpResponse.aborted) {
+        // bytes saved is only known if the server sent Content-Length
+        long long received = static_cast<long long>(httpResponse.body.size());
+        response.metadata["aborted"] = "true";
+        response.metadata["bytes_received"] = std::to_string(received);
+        if (httpResponse.contentLength > received) {
+            response.metadata["bytes_saved"] = std::to_string(httpResponse.contentLength - received);
+        }
+    }
+    
+    // Rate limit headers, normalized for RequestScheduler (OpenAI: x-ratelimit-*, Anthropic: anthropic-ratelimit-*)
+    auto header = [&httpResponse](const std::string& name) {
+        auto it = httpResponse.headers.find(name);
+        return it != httpResponse.headers.end() ? it->second : std::string();
+    };
+    for (const char* kind : {"requests", "tokens"}) {
+        std::string k(kind);
+        std::string limit = header("x-ratelimit-limit-" + k);
+        std::string remaining = header("x-ratelimit-remaining-" + k);
+        std::string reset = header("x-ratelimit-reset-" + k);
+        if (limit.empty() && remaining.empty()) {
+            limit = header("anthropic-ratelimit-" + k + "-limit");
+            remaining = header("anthropic-ratelimit-" + k + "-remaining");
+            reset = header("anthropic-ratelimit-" + k + "-reset");
+        }
+        if (!limit.empty()) response.metadata["ratelimit_limit_" + k] = limit;
+        if (!remaining.empty()) response.metadata["ratelimit_remaining_" + k] = remaining;
+        int resetMs = parseResetMs(reset);
+        if (resetMs >= 0) response.metadata["ratelimit_reset_" + k + "_ms"] = std::to_string(resetMs);
+    }
+    std::string retryAfterMs = header("retry-after-ms");
+    std::string retryAfter = header("retry-after");
+    if (!retryAfterMs.empty()) {
+        response.metadata["retry_after_ms"] = retryAfterMs;
+    } else if (!retryAfter.empty() && isdigit(static_cast<unsigned char>(retryAfter[0]))) {
+        // HTTP-date form is not supported; scheduler falls back to exponential backoff
+        response.metadata["retry_after_ms"] = std::to_string(static_cast<int>(atof(retryAfter.c_str()) * 1000));
+    }
+}
+
+int HTTPClient::parseResetMs(const std::string& value) {
+    if (value.empty()) {
+        return -1;
+    }
+    // RFC 3339 timestamp, e.g. 2024-05-01T12:00:30Z
+    int year, month, day, hour, minute;
+    double second;
+    if (value.size() >= 19 && value[4] == '-' && value[10] == 'T' &&
+            sscanf(value.c_str(), "%d-%d-%dT%d:%d:%lf", &year, &month, &day, &hour, &minute, &second) == 6) {
+        // days from civil date (proleptic Gregorian) - avoids non-portable timegm()
+        int y = year - (month <= 2);
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yoe = y - era * 400;
+        int doy = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long days = era * 146097L + yoe * 365 + yoe / 4 - yoe / 100 + doy - 719468;
+        double resetSecs = days * 86400.0 + hour * 3600 + minute * 60 + second;
+        double nowSecs = std::chrono::duration<double>(std::chrono::system_clock::now().time_since_epoch()).count();
+        return std::max(0, static_cast<int>((resetSecs - nowSecs) * 1000));
+    }
+    // duration, e.g. 1h2m3.5s, 250ms
+    double totalMs = 0;
+    const char* p = value.c_str();
+    while (*p) {
+        char* end;
+        double x = strtod(p, &end);
+        if (end == p) {
+            return -1;
+        }
+        p = end;
+        if (p[0] == 'm' && p[1] == 's') { totalMs += x; p += 2; }
+        else if (p[0] == 'h') { totalMs += x * 3600000; ++p; }
+        else if (p[0] == 'm') { totalMs += x * 60000; ++p; }
+        else if (p[0] == 's') { totalMs += x * 1000; ++p; }
+        else if (!p[0]) { totalMs += x * 1000; }  // bare number of seconds
+        else { return -1; }
+    }
+    return static_cast<int>(totalMs);
+}
+
+bool HTTPClient::probe(const std::string& url, const Options& options) {
+    Endpoint endpoint = parseUrl(url);
+    if (endpoint.host.empty()) {
+        return false;
+    }
+    int sock = connect(endpoint, options, nullptr);
+    if (sock == -1) {
+        return false;
+    }
+    if (options.cancelToken) options.cancelToken->detachSocket();
+    unet_close(sock);
+    return true;
 }
 
-std::pair<std::string, std::string> HTTPClient::parseUrl(const std::string& url) {
-    // Simple URL parsing - extract host and path
-    std::string host, path;
+std::shared_ptr<AIConnection> HTTPClient::preconnect(const std::string& url, int connectTimeoutSecs) {
+    Endpoint endpoint = parseUrl(url);
+    if (endpoint.host.empty()) {
+        return nullptr;
+    }
+    return std::make_shared<AIConnection>(endpoint.host, endpoint.port, connectTimeoutSecs);
+}
+
+// Returns connected socket (attached to cancel token, if any) or -1
+int HTTPClient::connect(const Endpoint& endpoint, const Options& options, int* connectMs) {
+    auto start = std::chrono::steady_clock::now();
+    int sock = unet_socket(UNET_TCP, UNET_CONNECT, UNET_NOBLOCK, endpoint.host.c_str(), endpoint.port.c_str());
+    if (sock == -1) {
+        return -1;
+    }
+    
+    // Register with cancel token so another thread can abort the request
+    if (options.cancelToken && !options.cancelToken->attachSocket(sock)) {
+        unet_close(sock);
+        return -1;
+    }
+    
+    // Wait for connection
+    if (unet_select(-1, sock, options.connectTimeout) <= 0) {
+        if (options.cancelToken) options.cancelToken->detachSocket();
+        unet_close(sock);
+        return -1;
+    }
+    
+    if (connectMs) {
+        *connectMs = static_cast<int>(std::chrono::duration_cast<std::chrono::milliseconds>(
+                std::chrono::steady_clock::now() - start).count());
+    }
+    return sock;
+}
+
+HTTPClient::Endpoint HTTPClient::parseUrl(const std::string& url) {
+    // Simple URL parsing - extract host, port and path
+    Endpoint endpoint;
     
     size_t protocolEnd = url.find("://");
     if (protocolEnd == std::string::npos) {
-        return {"", ""};
+        return endpoint;
     }
     
     size_t hostStart = protocolEnd + 3;
     size_t pathStart = url.find("/", hostStart);
     
     if (pathStart == std::string::npos) {
-        host = url.substr(hostStart);
-        path = "/";
+        endpoint.host = url.substr(hostStart);
+        endpoint.path = "/";
     } else {
-        host = url.substr(hostStart, pathStart - hostStart);
-        path = url.substr(pathStart);
+        endpoint.host = url.substr(hostStart, pathStart - hostStart);
+        endpoint.path = url.substr(pathStart);
     }
     
-    return {host, path};
+    // Explicit port (e.g. local Ollama server), otherwise 443 for https, 80 for http
+    size_t portStart = endpoint.host.rfind(':');
+    if (portStart != std::string::npos) {
+        endpoint.port = endpoint.host.substr(portStart + 1);
+        endpoint.host.resize(portStart);
+    } else {
+        endpoint.port = url.compare(0, 7, "http://") == 0 ? "80" : "443";
+    }
+    
+    return endpoint;
 }
 
 HTTPClient::Response HTTPClient::makeRequest(const std::string& method, const std::string& url, 
-                                           const std::string& data, const std::map<std::string, std::string>& headers) {
+                                           const std::string& data, const std::map<std::string, std::string>& headers,
+                                           const Options& options) {
     Response response;
+    const std::shared_ptr<AICancelToken>& cancelToken = options.cancelToken;
     
-    auto [host, path] = parseUrl(url);
+    Endpoint endpoint = parseUrl(url);
+    const std::string& host = endpoint.host;
+    const std::string& path = endpoint.path;
     if (host.empty()) {
         response.success = false;
         return response;
     }
     
-    // Determine port (default to 443 for https, 80 for http)
-    std::string port = "443";
-    if (url.find("http://") == 0) {
-        port = "80";
+    // Use the connection opened in advance if there is one, unless the server has since closed it (nothing
+    //  has been sent, so the socket being readable means EOF); otherwise create socket and wait for connection
+    int sock = -1;
+    if (options.connection) {
+        int waitMs = -1;
+        sock = options.connection->take(endpoint.host, endpoint.port, &response.connectMs, &waitMs);
+        if (sock == -1 && waitMs >= 0) {
+            response.success = false;  // don't spend another connect timeout on an endpoint that just failed
+            return response;
+        }
+        if (sock != -1 && unet_select(sock, -1, 0) > 0) {
+            unet_close(sock);
+            sock = -1;
+        }
+        if (sock != -1 && options.cancelToken && !options.cancelToken->attachSocket(sock)) {
+            unet_close(sock);
+            response.success = false;
+            return response;
+        }
+        response.connectWaitMs = sock != -1 ? waitMs : -1;
     }
-    
-    // Create socket
-    int sock = unet_socket(UNET_TCP, UNET_CONNECT, UNET_NOBLOCK, host.c_str(), port.c_str());
     if (sock == -1) {
-        response.success = false;
-        return response;
+        sock = connect(endpoint, options, &response.connectMs);
     }
-    
-    // Wait for connection
-    if (unet_select(-1, sock, 10) <= 0) {
-        unet_close(sock);
+    if (sock == -1) {
         response.success = false;
         return response;
     }
+    auto closeSocket = [&]() {
+        if (cancelToken) cancelToken->detachSocket();
+        unet_close(sock);
+    };
     
     // Build HTTP request
     std::ostringstream request;
@@ -492,27 +826,45 @@ HTTPClient::Response HTTPClient::makeRequest(const std::string& method, const st
     
     // Send request
     if (unet_send(sock, requestStr.data(), requestStr.size()) <= 0) {
-        unet_close(sock);
+        closeSocket();
         response.success = false;
         return response;
     }
     
-    // Read response
+    // Read response - first byte may take as long as the whole generation
     std::string responseData;
     char buffer[4096];
+    size_t bodyFed = std::string::npos;  // end of data passed to onBody, once the headers are complete
     
-    while (unet_select(sock, -1, 4) > 0) {
+    int timeout = options.firstByteTimeout;
+    while (unet_select(sock, -1, timeout) > 0) {
         int bytesRead = unet_recv(sock, buffer, sizeof(buffer) - 1);
         if (bytesRead <= 0) {
             break;
         }
+        timeout = options.readTimeout;
         buffer[bytesRead] = '\0';
         responseData.append(buffer, bytesRead);
+        
+        if (options.onBody) {
+            if (bodyFed == std::string::npos) {
+                size_t headerEnd = responseData.find("\r\n\r\n");
+                bodyFed = headerEnd != std::string::npos ? headerEnd + 4 : std::string::npos;
+            }
+            if (bodyFed != std::string::npos && bodyFed < responseData.size()) {
+                bool more = options.onBody(responseData.data() + bodyFed, responseData.size() - bodyFed);
+                bodyFed = responseData.size();
+                if (!more) {
+                    response.aborted = true;
+                    break;
+                }
+            }
+        }
     }
     
-    unet_close(sock);
+    closeSocket();
     
-    if (responseData.empty()) {
+    if (responseData.empty() || (cancelToken && cancelToken->isCancelled())) {
         response.success = false;
         return response;
     }
@@ -527,6 +879,26 @@ HTTPClient::Response HTTPClient::makeRequest(const std::string& method, const st
     std::string headerSection = responseData.substr(0, headerEnd);
     response.body = responseData.substr(headerEnd + 4);
     
+    // Extract headers (after status line)
+    size_t lineStart = headerSection.find("\r\n");
+    while (lineStart != std::string::npos) {
+        lineStart += 2;
+        size_t lineEnd = headerSection.find("\r\n", lineStart);
+        std::string line = headerSection.substr(lineStart, lineEnd == std::string::npos ? std::string::npos : lineEnd - lineStart);
+        size_t colon = line.find(':');
+        if (colon != std::string::npos) {
+            std::string name = line.substr(0, colon);
+            std::transform(name.begin(), name.end(), name.begin(), ::tolower);
+            size_t valueStart = line.find_first_not_of(" \t", colon + 1);
+            response.headers[name] = valueStart != std::string::npos ? line.substr(valueStart) : "";
+        }
+        lineStart = lineEnd;
+    }
+    auto contentLength = response.headers.find("content-length");
+    if (contentLength != response.headers.end()) {
+        response.contentLength = atoll(contentLength->second.c_str());
+    }
+    
     // Extract status code
     size_t statusStart = headerSection.find(" ");
     if (statusStart != std::string::npos) {
@@ -541,6 +913,182 @@ HTTPClient::Response HTTPClient::makeRequest(const std::string& method, const st
     return response;
 }
 
+// AIConnection implementation
+AIConnection::AIConnection(const std::string& host, const std::string& port, int timeoutSecs)
+    : host_(host), port_(port), cancelToken_(std::make_shared<AICancelToken>()) {
+    thread_ = std::thread([this, timeoutSecs]() {
+        HTTPClient::Options options;
+        options.connectTimeout = timeoutSecs;
+        options.cancelToken = cancelToken_;
+        int connectMs = -1;
+        int sock = HTTPClient::connect({host_, port_, ""}, options, &connectMs);
+        if (sock != -1) {
+            cancelToken_->detachSocket();
+        }
+        std::lock_guard<std::mutex> lock(mutex_);
+        socket_ = sock;
+        connectMs_ = connectMs;
+        connected_ = true;
+        cv_.notify_all();
+    });
+}
+
+AIConnection::~AIConnection() {
+    cancelToken_->cancel();  // stop waiting for a connection nobody will use
+    thread_.join();
+    if (!taken_ && socket_ != -1) {
+        unet_close(socket_);
+    }
+}
+
+int AIConnection::take(const std::string& host, const std::string& port, int* connectMs, int* waitMs) {
+    if (host != host_ || port != port_) {
+        return -1;
+    }
+    auto start = std::chrono::steady_clock::now();
+    std::unique_lock<std::mutex> lock(mutex_);
+    cv_.wait(lock, [this]() { return connected_; });
+    if (taken_) {
+        return -1;
+    }
+    taken_ = true;
+    if (connectMs) {
+        *connectMs = connectMs_;
+    }
+    if (waitMs) {
+        *waitMs = static_cast<int>(std::chrono::duration_cast<std::chrono::milliseconds>(
+                std::chrono::steady_clock::now() - start).count());
+    }
+    return socket_;
+}
+
+bool AIConnection::wait(int* connectMs) {
+    std::unique_lock<std::mutex> lock(mutex_);
+    cv_.wait(lock, [this]() { return connected_; });
+    if (connectMs) {
+        *connectMs = connectMs_;
+    }
+    return socket_ != -1 && !taken_;
+}
+
+bool AIConnection::failed() {
+    std::lock_guard<std::mutex> lock(mutex_);
+    return connected_ && socket_ == -1;
+}
+
+// JsonFieldReader implementation
+bool JsonFieldReader::feed(const char* data, size_t len) {
+    for (size_t i = 0; i < len && !stopped_; ++i) {
+        char c = data[i];
+        switch (state_) {
+        case OUTSIDE:
+            if (c == '"') {
+                state_ = IN_STRING;
+                escaped_ = false;
+                key_.clear();
+            }
+            break;
+        case IN_STRING:
+            if (escaped_) {
+                escaped_ = false;
+            } else if (c == '\\') {
+                escaped_ = true;
+            } else if (c == '"') {
+                state_ = AFTER_STRING;
+                break;
+            }
+            if (key_.size() <= field_.size()) {
+                key_ += c;
+            }
+            break;
+        case AFTER_STRING:
+            if (c == ':' && key_ == field_) {
+                state_ = BEFORE_VALUE;
+            } else if (!isspace(static_cast<unsigned char>(c))) {
+                state_ = OUTSIDE;
+                --i;  // e.g. the start of the next string
+            }
+            break;
+        case BEFORE_VALUE:
+            if (c == '"') {
+                // separate values without adding anything after the last, so a single value is passed as is
+                if (sawValue_) {
+                    text_ += '\n';
+                }
+                sawValue_ = true;
+                state_ = IN_VALUE;
+            } else if (!isspace(static_cast<unsigned char>(c))) {
+                state_ = OUTSIDE;  // not a string
+                --i;
+            }
+            break;
+        case IN_VALUE:
+            if (c == '\\') {
+                state_ = IN_ESCAPE;
+            } else if (c == '"') {
+                state_ = OUTSIDE;
+            } else {
+                text_ += c;
+            }
+            break;
+        case IN_ESCAPE:
+            state_ = IN_VALUE;
+            switch (c) {
+            case 'n': text_ += '\n'; break;
+            case 't': text_ += '\t'; break;
+            case 'r': text_ += '\r'; break;
+            case 'b': text_ += '\b'; break;
+            case 'f': text_ += '\f'; break;
+            case 'u':
+                state_ = IN_UNICODE;
+                codePoint_ = 0;
+                hexDigits_ = 0;
+                break;
+            default: text_ += c; break;  // ", \\ and /
+            }
+            break;
+        case IN_UNICODE:
+            codePoint_ = codePoint_*16 + (isdigit(static_cast<unsigned char>(c)) ? c - '0' : (tolower(c) - 'a' + 10) & 0xF);
+            if (++hexDigits_ == 4) {
+                appendUtf8(codePoint_);
+                state_ = IN_VALUE;
+            }
+            break;
+        }
+    }
+    if (!text_.empty() && !stopped_) {
+        stopped_ = !onText_(text_.data(), text_.size());
+        text_.clear();
+    }
+    return !stopped_;
+}
+
+void JsonFieldReader::appendUtf8(uint32_t c) {
+    if (c >= 0xD800 && c < 0xDC00) {
+        highSurrogate_ = c;  // first of a pair
+        return;
+    }
+    if (c >= 0xDC00 && c < 0xE000) {
+        c = highSurrogate_ ? 0x10000 + ((highSurrogate_ - 0xD800) << 10) + (c - 0xDC00) : 0xFFFD;
+    }
+    highSurrogate_ = 0;
+    if (c < 0x80) {
+        text_ += static_cast<char>(c);
+    } else if (c < 0x800) {
+        text_ += static_cast<char>(0xC0 | (c >> 6));
+        text_ += static_cast<char>(0x80 | (c & 0x3F));
+    } else if (c < 0x10000) {
+        text_ += static_cast<char>(0xE0 | (c >> 12));
+        text_ += static_cast<char>(0x80 | ((c >> 6) & 0x3F));
+        text_ += static_cast<char>(0x80 | (c & 0x3F));
+    } else {
+        text_ += static_cast<char>(0xF0 | (c >> 18));
+        text_ += static_cast<char>(0x80 | ((c >> 12) & 0x3F));
+        text_ += static_cast<char>(0x80 | ((c >> 6) & 0x3F));
+        text_ += static_cast<char>(0x80 | (c & 0x3F));
+    }
+}
+
 std::string HTTPClient::escapeJson(const std::string& str) {
     std::string escaped;
     escaped.reserve(str.length() * 1.1); // Reserve some extra space
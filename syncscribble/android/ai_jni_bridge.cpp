@@ -1,13 +1,116 @@
 #include "aiagent.h"
 #include "android/androidhelper.h"
+#ifdef ANDROID_NATIVE_UI
+#include "android/native_android.h"
+#endif
+#include "android/startuptrace.h"
+#include "scribbledoc.h"
+#include "document.h"
+#include "scribblearea.h"
+#include "ulib/fileutil.h"
 #include <jni.h>
+#include <algorithm>
 #include <memory>
 #include <map>
+#include <unordered_map>
 
 // Global AI agent instances (managed by Java)
 static std::map<jlong, std::unique_ptr<AIAgent>> g_aiAgents;
 static jlong g_nextAgentId = 1;
 
+// Agent whose RAG index receives changes to the open notebook; set and read under g_indexingMutex since
+//  notebook changes arrive on the app thread
+static AIAgent* g_indexingAgent = nullptr;
+static std::mutex g_indexingMutex;
+
+// keys of the pages of the open notebook (see NotebookPage), which pages keep as others are inserted and
+//  deleted, and when deleted, in case undo restores them; only used on the app thread
+static std::unordered_map<const Page*, int> g_pageKeys;
+static int g_nextPageKey = 0;
+
+// reads pages the UI hasn't loaded from the saved notebook, on the indexer thread; such pages haven't changed
+//  since the notebook was opened, so are in the file at the page number they had then
+struct SavedNotebook {
+    std::string fileName;
+    std::unique_ptr<Document> doc;
+    bool failed = false;
+
+    bool pageText(int pagenum, std::string& text) {
+        if (!doc && !failed) {
+            doc.reset(new Document);
+            Document::loadresult_t res = doc->load(new FileStream(fileName.c_str(), "rb"), true);
+            failed = res != Document::LOAD_OK && res != Document::LOAD_NONFATAL;
+        }
+        if (failed || pagenum >= doc->numPages() || !doc->pages[pagenum]->ensureLoaded(false)) {
+            return false;
+        }
+        text = doc->pages[pagenum]->getText();
+        doc->pages[pagenum]->unload();
+        return true;
+    }
+};
+
+// called on the app thread: pass text of changed pages to the background indexer
+static void notebookChanged(ScribbleDoc* doc, int pagenum) {
+    Document* document = doc->document;
+    if (!document || !doc->fileName()[0]) {
+        return;  // unsaved notebook has no stable id
+    }
+    bool opened = pagenum < 0;
+    bool allpages = opened || (pagenum & UndoHistory::MULTIPAGE);
+    pagenum &= ~UndoHistory::MULTIPAGE;
+    if (opened) {
+        // numbered in page order, as they were when the notebook was last open, so a page replaces its entry
+        g_pageKeys.clear();
+        g_nextPageKey = 0;
+    }
+    std::shared_ptr<SavedNotebook> saved;
+    std::vector<int> pageKeys;
+    std::vector<NotebookPage> pages;
+    for (int ii = 0; ii < document->numPages(); ++ii) {
+        Page* page = document->pages[ii];
+        auto key = g_pageKeys.emplace(page, g_nextPageKey);
+        if (key.second) {
+            ++g_nextPageKey;
+        }
+        pageKeys.push_back(key.first->second);
+        if (!allpages && ii != pagenum) {
+            continue;
+        }
+        NotebookPage changed;
+        changed.key = key.first->second;
+        if (page->loadStatus == Page::LOAD_OK) {
+            changed.text = page->getText();
+        } else if (opened && page->loadStatus == Page::NOT_LOADED) {
+            // loading it here would block the UI; pages unloaded later have not changed since they were indexed
+            if (!saved) {
+                saved = std::make_shared<SavedNotebook>();
+                saved->fileName = doc->fileName();
+            }
+            changed.loadText = [saved, ii](std::string& text) { return saved->pageText(ii, text); };
+        } else {
+            continue;
+        }
+        pages.push_back(std::move(changed));
+    }
+    std::lock_guard<std::mutex> lock(g_indexingMutex);
+    if (g_indexingAgent) {
+        g_indexingAgent->notebookChanged(doc->fileName(), FSPath(doc->fileName()).baseName(), std::move(pageKeys),
+                                         std::move(pages));
+    }
+}
+
+// called on the app thread: a request about the selection may follow, so have a connection ready for it
+static void selectionChanged(ScribbleDoc* doc) {
+    if (!doc->activeArea || !doc->activeArea->hasSelection()) {
+        return;
+    }
+    std::lock_guard<std::mutex> lock(g_indexingMutex);
+    if (g_indexingAgent) {
+        g_indexingAgent->prewarmConnection();
+    }
+}
+
 // JNI Helper functions
 jstring createJString(JNIEnv* env, const std::string& str) {
     return env->NewStringUTF(str.c_str());
@@ -113,6 +216,14 @@ AIRequest convertAIRequest(JNIEnv* env, jobject jrequest) {
     jstring jUseCase = (jstring) env->GetObjectField(jrequest, useCaseField);
     request.metadata["useCase"] = getJString(env, jUseCase);
     
+    // Get queue timeout (how long to wait for rate limit capacity)
+    jfieldID queueTimeoutField = env->GetFieldID(requestClass, "queueTimeoutMs", "I");
+    request.queueTimeoutMs = env->GetIntField(jrequest, queueTimeoutField);
+    
+    // Get token budget for retrieved passages
+    jfieldID ragTokenBudgetField = env->GetFieldID(requestClass, "ragTokenBudget", "I");
+    request.ragTokenBudget = env->GetIntField(jrequest, ragTokenBudgetField);
+    
     return request;
 }
 
@@ -144,9 +255,66 @@ jobject convertAIResponse(JNIEnv* env, const AIResponse& response) {
     jfieldID confidenceField = env->GetFieldID(responseClass, "confidence", "F");
     env->SetFloatField(jresponse, confidenceField, response.confidence);
     
+    auto bytesSaved = response.metadata.find("bytes_saved");
+    if (bytesSaved != response.metadata.end()) {
+        jfieldID bytesSavedField = env->GetFieldID(responseClass, "bytesSaved", "J");
+        env->SetLongField(jresponse, bytesSavedField, jlong(strtoll(bytesSaved->second.c_str(), nullptr, 10)));
+    }
+    
     return jresponse;
 }
 
+// Convert C++ ProviderHealthStats to Java ProviderHealth
+jobject convertProviderHealth(JNIEnv* env, jclass healthClass, const ProviderHealthStats& stats) {
+    jmethodID constructor = env->GetMethodID(healthClass, "<init>", "()V");
+    jobject jhealth = env->NewObject(healthClass, constructor);
+    
+    const char* state = stats.state == BreakerState::OPEN ? "open" :
+            stats.state == BreakerState::HALF_OPEN ? "half_open" : "closed";
+    env->SetObjectField(jhealth, env->GetFieldID(healthClass, "provider", "Ljava/lang/String;"),
+            createJString(env, stats.provider));
+    env->SetObjectField(jhealth, env->GetFieldID(healthClass, "breakerState", "Ljava/lang/String;"),
+            createJString(env, state));
+    env->SetFloatField(jhealth, env->GetFieldID(healthClass, "ewmaLatencyMs", "F"), stats.ewmaLatencyMs);
+    env->SetFloatField(jhealth, env->GetFieldID(healthClass, "ewmaConnectMs", "F"), stats.ewmaConnectMs);
+    env->SetIntField(jhealth, env->GetFieldID(healthClass, "p50Ms", "I"), stats.p50Ms);
+    env->SetIntField(jhealth, env->GetFieldID(healthClass, "p95Ms", "I"), stats.p95Ms);
+    env->SetIntField(jhealth, env->GetFieldID(healthClass, "p99Ms", "I"), stats.p99Ms);
+    env->SetIntField(jhealth, env->GetFieldID(healthClass, "samples", "I"), stats.samples);
+    env->SetIntField(jhealth, env->GetFieldID(healthClass, "consecutiveFailures", "I"), stats.consecutiveFailures);
+    env->SetIntField(jhealth, env->GetFieldID(healthClass, "connectTimeoutSecs", "I"), stats.connectTimeoutSecs);
+    env->SetIntField(jhealth, env->GetFieldID(healthClass, "firstByteTimeoutSecs", "I"), stats.firstByteTimeoutSecs);
+    return jhealth;
+}
+
+// Convert C++ RAGDocument passage search hit to Java SearchResult
+jobject convertSearchResult(JNIEnv* env, jclass resultClass, const RAGDocument& doc) {
+    jmethodID constructor = env->GetMethodID(resultClass, "<init>", "()V");
+    jobject jresult = env->NewObject(resultClass, constructor);
+    
+    env->SetObjectField(jresult, env->GetFieldID(resultClass, "id", "Ljava/lang/String;"), createJString(env, doc.id));
+    env->SetObjectField(jresult, env->GetFieldID(resultClass, "title", "Ljava/lang/String;"), createJString(env, doc.title));
+    env->SetObjectField(jresult, env->GetFieldID(resultClass, "source", "Ljava/lang/String;"), createJString(env, doc.source));
+    env->SetObjectField(jresult, env->GetFieldID(resultClass, "content", "Ljava/lang/String;"), createJString(env, doc.content));
+    env->SetFloatField(jresult, env->GetFieldID(resultClass, "score", "F"), doc.relevanceScore);
+    env->SetObjectField(jresult, env->GetFieldID(resultClass, "documentId", "Ljava/lang/String;"), createJString(env, doc.documentId));
+    env->SetIntField(jresult, env->GetFieldID(resultClass, "page", "I"), doc.page);
+    env->SetIntField(jresult, env->GetFieldID(resultClass, "offset", "I"), static_cast<jint>(doc.offset));
+    env->SetIntField(jresult, env->GetFieldID(resultClass, "length", "I"), static_cast<jint>(doc.content.size()));
+    if (!doc.highlights.empty()) {
+        std::vector<jint> spans;
+        for (const TextSpan& span : doc.highlights) {
+            spans.push_back(static_cast<jint>(span.offset));
+            spans.push_back(static_cast<jint>(span.length));
+        }
+        jintArray jspans = env->NewIntArray(spans.size());
+        env->SetIntArrayRegion(jspans, 0, spans.size(), spans.data());
+        env->SetObjectField(jresult, env->GetFieldID(resultClass, "highlights", "[I"), jspans);
+        env->DeleteLocalRef(jspans);
+    }
+    return jresult;
+}
+
 // Convert provider string to enum
 AIProvider getProviderFromString(const std::string& providerStr) {
     if (providerStr == "openai") return AIProvider::OPENAI;
@@ -162,6 +330,7 @@ extern "C" {
 // Create AI Agent
 JNIEXPORT jlong JNICALL
 Java_com_jio_writingapp_AIAgentManager_nativeCreateAgent(JNIEnv* env, jobject thiz) {
+    StartupSection section("createAIAgent");
     try {
         // Get ScribbleApp config (assuming it's available)
         ScribbleConfig* config = ScribbleApp::cfg;
@@ -170,6 +339,19 @@ Java_com_jio_writingapp_AIAgentManager_nativeCreateAgent(JNIEnv* env, jobject th
         }
         
         auto agent = std::make_unique<AIAgent>(config);
+#ifdef ANDROID_NATIVE_UI
+        // local document index for RAG and search, kept in app storage
+        const char* appstorage = Native_AndroidGetExternalStoragePath();
+        if (appstorage) {
+            agent->setRAGService(createLocalRAGService(FSPath(appstorage, ".ai_rag_index").c_str()));
+        }
+#endif
+        {
+            std::lock_guard<std::mutex> lock(g_indexingMutex);
+            g_indexingAgent = agent.get();
+            ScribbleDoc::onContentChanged = notebookChanged;
+            ScribbleDoc::onSelectionChanged = selectionChanged;
+        }
         jlong agentId = g_nextAgentId++;
         g_aiAgents[agentId] = std::move(agent);
         return agentId;
@@ -183,6 +365,12 @@ JNIEXPORT void JNICALL
 Java_com_jio_writingapp_AIAgentManager_nativeDestroyAgent(JNIEnv* env, jobject thiz, jlong agentPtr) {
     auto it = g_aiAgents.find(agentPtr);
     if (it != g_aiAgents.end()) {
+        {
+            std::lock_guard<std::mutex> lock(g_indexingMutex);
+            if (g_indexingAgent == it->second.get()) {
+                g_indexingAgent = nullptr;
+            }
+        }
         g_aiAgents.erase(it);
     }
 }
@@ -268,6 +456,37 @@ Java_com_jio_writingapp_AIAgentManager_nativeTestConnection(JNIEnv* env, jobject
     }
 }
 
+// Prewarm Connection
+JNIEXPORT void JNICALL
+Java_com_jio_writingapp_AIAgentManager_nativePrewarmConnection(JNIEnv* env, jobject thiz, jlong agentPtr) {
+    auto it = g_aiAgents.find(agentPtr);
+    if (it == g_aiAgents.end()) {
+        return;
+    }
+    
+    try {
+        it->second->prewarmConnection();
+    } catch (const std::exception& e) {
+        // Error opening connection
+    }
+}
+
+// Probe Connection - returns connect time in ms, or -1 if the connection failed
+JNIEXPORT jint JNICALL
+Java_com_jio_writingapp_AIAgentManager_nativeProbeConnection(JNIEnv* env, jobject thiz, jlong agentPtr) {
+    auto it = g_aiAgents.find(agentPtr);
+    if (it == g_aiAgents.end()) {
+        return -1;
+    }
+    
+    try {
+        int connectMs = -1;
+        return it->second->probeConnection(&connectMs) ? std::max(connectMs, 0) : -1;
+    } catch (const std::exception& e) {
+        return -1;
+    }
+}
+
 // Get Available Providers
 JNIEXPORT jobjectArray JNICALL
 Java_com_jio_writingapp_AIAgentManager_nativeGetAvailableProviders(JNIEnv* env, jobject thiz, jlong agentPtr) {
@@ -292,6 +511,53 @@ Java_com_jio_writingapp_AIAgentManager_nativeGetAvailableProviders(JNIEnv* env,
     }
 }
 
+// Set Rate Limits
+JNIEXPORT void JNICALL
+Java_com_jio_writingapp_AIAgentManager_nativeSetRateLimits(JNIEnv* env, jobject thiz, jlong agentPtr,
+                                                          jstring jprovider, jint requestsPerMinute,
+                                                          jint tokensPerMinute) {
+    auto it = g_aiAgents.find(agentPtr);
+    if (it == g_aiAgents.end()) {
+        return;
+    }
+    
+    try {
+        RateLimits limits;
+        limits.requestsPerMinute = requestsPerMinute;
+        limits.tokensPerMinute = tokensPerMinute;
+        it->second->setRateLimits(getProviderFromString(getJString(env, jprovider)), limits);
+    } catch (const std::exception& e) {
+        // Error setting rate limits
+    }
+}
+
+// Get Provider Health
+JNIEXPORT jobjectArray JNICALL
+Java_com_jio_writingapp_AIAgentManager_nativeGetProviderHealth(JNIEnv* env, jobject thiz, jlong agentPtr) {
+    auto it = g_aiAgents.find(agentPtr);
+    if (it == g_aiAgents.end()) {
+        return nullptr;
+    }
+    
+    try {
+        auto health = it->second->getProviderHealth();
+        
+        jclass healthClass = env->FindClass("com/jio/writingapp/AIAgentManager$ProviderHealth");
+        if (!healthClass) {
+            return nullptr;
+        }
+        jobjectArray result = env->NewObjectArray(health.size(), healthClass, nullptr);
+        
+        for (size_t i = 0; i < health.size(); i++) {
+            env->SetObjectArrayElement(result, i, convertProviderHealth(env, healthClass, health[i]));
+        }
+        
+        return result;
+    } catch (const std::exception& e) {
+        return nullptr;
+    }
+}
+
 // Index Document
 JNIEXPORT jboolean JNICALL
 Java_com_jio_writingapp_AIAgentManager_nativeIndexDocument(JNIEnv* env, jobject thiz, 
@@ -313,4 +579,256 @@ Java_com_jio_writingapp_AIAgentManager_nativeIndexDocument(JNIEnv* env, jobject
     }
 }
 
+// Index Documents in bulk - parallel arrays so only strings cross JNI
+JNIEXPORT jboolean JNICALL
+Java_com_jio_writingapp_AIAgentManager_nativeIndexDocuments(JNIEnv* env, jobject thiz, jlong agentPtr,
+                                                           jobjectArray jcontents, jobjectArray jtitles,
+                                                           jobjectArray jids) {
+    auto it = g_aiAgents.find(agentPtr);
+    if (it == g_aiAgents.end()) {
+        return JNI_FALSE;
+    }
+    
+    try {
+        auto getElement = [env](jobjectArray array, jsize i) {
+            jstring jstr = static_cast<jstring>(env->GetObjectArrayElement(array, i));
+            std::string str = jstr ? getJString(env, jstr) : std::string();
+            env->DeleteLocalRef(jstr);
+            return str;
+        };
+        std::vector<RAGDocument> documents(env->GetArrayLength(jcontents));
+        for (jsize i = 0; i < jsize(documents.size()); ++i) {
+            documents[i].content = getElement(jcontents, i);
+            documents[i].title = getElement(jtitles, i);
+            documents[i].id = getElement(jids, i);
+        }
+        
+        return it->second->indexDocuments(std::move(documents)) ? JNI_TRUE : JNI_FALSE;
+    } catch (const std::exception& e) {
+        return JNI_FALSE;
+    }
+}
+
+// Index Document given as separate pages
+JNIEXPORT jboolean JNICALL
+Java_com_jio_writingapp_AIAgentManager_nativeIndexDocumentPages(JNIEnv* env, jobject thiz, jlong agentPtr,
+                                                               jobjectArray jpages, jstring jtitle, jstring jid) {
+    auto it = g_aiAgents.find(agentPtr);
+    if (it == g_aiAgents.end()) {
+        return JNI_FALSE;
+    }
+    
+    try {
+        std::vector<std::string> pages;
+        jsize count = env->GetArrayLength(jpages);
+        for (jsize i = 0; i < count; ++i) {
+            jstring jpage = static_cast<jstring>(env->GetObjectArrayElement(jpages, i));
+            pages.push_back(getJString(env, jpage));
+            env->DeleteLocalRef(jpage);
+        }
+        std::string title = getJString(env, jtitle);
+        std::string id = getJString(env, jid);
+        
+        return it->second->indexDocumentPages(pages, title, id) ? JNI_TRUE : JNI_FALSE;
+    } catch (const std::exception& e) {
+        return JNI_FALSE;
+    }
+}
+
+// Set Retrieval Mode - replaces the agent's document index
+JNIEXPORT jboolean JNICALL
+Java_com_jio_writingapp_AIAgentManager_nativeSetRetrievalMode(JNIEnv* env, jobject thiz, jlong agentPtr,
+                                                             jstring jmode) {
+    auto it = g_aiAgents.find(agentPtr);
+    if (it == g_aiAgents.end()) {
+        return JNI_FALSE;
+    }
+    
+    try {
+        std::string mode = getJString(env, jmode);
+#ifdef ANDROID_NATIVE_UI
+        const char* appstorage = Native_AndroidGetExternalStoragePath();
+        if (!appstorage) {
+            return JNI_FALSE;
+        }
+        if (mode == "semantic") {
+            it->second->setRAGService(createVectorRAGService(FSPath(appstorage, ".ai_vector_index").c_str()));
+        } else {
+            it->second->setRAGService(createLocalRAGService(FSPath(appstorage, ".ai_rag_index").c_str()));
+        }
+        return JNI_TRUE;
+#else
+        return JNI_FALSE;
+#endif
+    } catch (const std::exception& e) {
+        return JNI_FALSE;
+    }
+}
+
+// Index Current Document - index pending notebook changes without waiting for edits to pause
+JNIEXPORT jboolean JNICALL
+Java_com_jio_writingapp_AIAgentManager_nativeIndexCurrentDocument(JNIEnv* env, jobject thiz, jlong agentPtr,
+                                                                 jint timeoutMs) {
+    auto it = g_aiAgents.find(agentPtr);
+    if (it == g_aiAgents.end()) {
+        return JNI_FALSE;
+    }
+    
+    try {
+        return it->second->indexCurrentDocument() && it->second->waitForIndexing(timeoutMs) ? JNI_TRUE : JNI_FALSE;
+    } catch (const std::exception& e) {
+        return JNI_FALSE;
+    }
+}
+
+// Get Index Progress
+JNIEXPORT jobject JNICALL
+Java_com_jio_writingapp_AIAgentManager_nativeGetIndexProgress(JNIEnv* env, jobject thiz, jlong agentPtr) {
+    auto it = g_aiAgents.find(agentPtr);
+    if (it == g_aiAgents.end()) {
+        return nullptr;
+    }
+    
+    try {
+        IndexProgress progress = it->second->getIndexProgress();
+        jclass progressClass = env->FindClass("com/jio/writingapp/AIAgentManager$IndexProgress");
+        jmethodID constructor = env->GetMethodID(progressClass, "<init>", "()V");
+        jobject jprogress = env->NewObject(progressClass, constructor);
+        env->SetObjectField(jprogress, env->GetFieldID(progressClass, "notebookId", "Ljava/lang/String;"),
+                            createJString(env, progress.notebookId));
+        env->SetIntField(jprogress, env->GetFieldID(progressClass, "pageCount", "I"), progress.pageCount);
+        env->SetIntField(jprogress, env->GetFieldID(progressClass, "pagesPending", "I"), progress.pagesPending);
+        env->SetIntField(jprogress, env->GetFieldID(progressClass, "pagesIndexed", "I"), progress.pagesIndexed);
+        env->SetIntField(jprogress, env->GetFieldID(progressClass, "errors", "I"), progress.errors);
+        env->SetBooleanField(jprogress, env->GetFieldID(progressClass, "indexing", "Z"),
+                             progress.indexing ? JNI_TRUE : JNI_FALSE);
+        return jprogress;
+    } catch (const std::exception& e) {
+        return nullptr;
+    }
+}
+
+// Search Documents
+JNIEXPORT jobjectArray JNICALL
+Java_com_jio_writingapp_AIAgentManager_nativeSearchDocuments(JNIEnv* env, jobject thiz, jlong agentPtr,
+                                                            jstring jquery, jint maxResults) {
+    auto it = g_aiAgents.find(agentPtr);
+    if (it == g_aiAgents.end()) {
+        return nullptr;
+    }
+    
+    try {
+        auto hits = it->second->searchRelevantContent(getJString(env, jquery), maxResults);
+        
+        jclass resultClass = env->FindClass("com/jio/writingapp/AIAgentManager$SearchResult");
+        if (!resultClass) {
+            return nullptr;
+        }
+        jobjectArray result = env->NewObjectArray(hits.size(), resultClass, nullptr);
+        
+        for (size_t i = 0; i < hits.size(); i++) {
+            jobject jhit = convertSearchResult(env, resultClass, hits[i]);
+            env->SetObjectArrayElement(result, i, jhit);
+            env->DeleteLocalRef(jhit);
+        }
+        
+        return result;
+    } catch (const std::exception& e) {
+        return nullptr;
+    }
+}
+
+// Search As You Type - returns null if superseded by a newer query
+JNIEXPORT jobjectArray JNICALL
+Java_com_jio_writingapp_AIAgentManager_nativeSearchAsYouType(JNIEnv* env, jobject thiz, jlong agentPtr,
+                                                            jstring jquery, jint maxResults) {
+    auto it = g_aiAgents.find(agentPtr);
+    if (it == g_aiAgents.end()) {
+        return nullptr;
+    }
+    
+    try {
+        std::vector<RAGDocument> hits;
+        if (!it->second->searchAsYouType(getJString(env, jquery), maxResults, hits)) {
+            return nullptr;
+        }
+        
+        jclass resultClass = env->FindClass("com/jio/writingapp/AIAgentManager$SearchResult");
+        if (!resultClass) {
+            return nullptr;
+        }
+        jobjectArray result = env->NewObjectArray(hits.size(), resultClass, nullptr);
+        
+        for (size_t i = 0; i < hits.size(); i++) {
+            jobject jhit = convertSearchResult(env, resultClass, hits[i]);
+            env->SetObjectArrayElement(result, i, jhit);
+            env->DeleteLocalRef(jhit);
+        }
+        
+        return result;
+    } catch (const std::exception& e) {
+        return nullptr;
+    }
+}
+
+// Get RAG Shard Stats
+JNIEXPORT jobjectArray JNICALL
+Java_com_jio_writingapp_AIAgentManager_nativeGetShardStats(JNIEnv* env, jobject thiz, jlong agentPtr) {
+    auto it = g_aiAgents.find(agentPtr);
+    if (it == g_aiAgents.end()) {
+        return nullptr;
+    }
+    
+    try {
+        std::vector<RAGShardStats> stats = it->second->getRAGShardStats();
+        jclass statsClass = env->FindClass("com/jio/writingapp/AIAgentManager$ShardStats");
+        if (!statsClass) {
+            return nullptr;
+        }
+        jmethodID constructor = env->GetMethodID(statsClass, "<init>", "()V");
+        jobjectArray result = env->NewObjectArray(stats.size(), statsClass, nullptr);
+        
+        for (size_t i = 0; i < stats.size(); i++) {
+            jobject jstats = env->NewObject(statsClass, constructor);
+            env->SetIntField(jstats, env->GetFieldID(statsClass, "shard", "I"), stats[i].shard);
+            env->SetLongField(jstats, env->GetFieldID(statsClass, "passages", "J"), jlong(stats[i].passages));
+            env->SetLongField(jstats, env->GetFieldID(statsClass, "searches", "J"), jlong(stats[i].searches));
+            env->SetFloatField(jstats, env->GetFieldID(statsClass, "lastSearchUs", "F"), stats[i].lastSearchUs);
+            env->SetFloatField(jstats, env->GetFieldID(statsClass, "avgSearchUs", "F"), stats[i].avgSearchUs);
+            env->SetFloatField(jstats, env->GetFieldID(statsClass, "maxSearchUs", "F"), stats[i].maxSearchUs);
+            env->SetObjectArrayElement(result, i, jstats);
+            env->DeleteLocalRef(jstats);
+        }
+        
+        return result;
+    } catch (const std::exception& e) {
+        return nullptr;
+    }
+}
+
+// Get Response Filter Stats
+JNIEXPORT jobject JNICALL
+Java_com_jio_writingapp_AIAgentManager_nativeGetResponseFilterStats(JNIEnv* env, jobject thiz, jlong agentPtr) {
+    auto it = g_aiAgents.find(agentPtr);
+    if (it == g_aiAgents.end()) {
+        return nullptr;
+    }
+    
+    try {
+        ResponseFilterStats stats = it->second->getResponseFilterStats();
+        jclass statsClass = env->FindClass("com/jio/writingapp/AIAgentManager$ResponseFilterStats");
+        if (!statsClass) {
+            return nullptr;
+        }
+        jmethodID constructor = env->GetMethodID(statsClass, "<init>", "()V");
+        jobject jstats = env->NewObject(statsClass, constructor);
+        env->SetLongField(jstats, env->GetFieldID(statsClass, "responsesStopped", "J"), jlong(stats.responsesStopped));
+        env->SetLongField(jstats, env->GetFieldID(statsClass, "bytesReceived", "J"), jlong(stats.bytesReceived));
+        env->SetLongField(jstats, env->GetFieldID(statsClass, "bytesSaved", "J"), jlong(stats.bytesSaved));
+        return jstats;
+    } catch (const std::exception& e) {
+        return nullptr;
+    }
+}
+
 } // extern "C"
\ No newline at end of file
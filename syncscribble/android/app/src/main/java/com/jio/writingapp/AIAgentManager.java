@@ -1,28 +1,43 @@
 package com.jio.writingapp;
 
 import android.content.Context;
-import android.content.SharedPreferences;
 import android.util.Log;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * Android AI Agent Manager - handles AI service integration and configuration
  */
 public class AIAgentManager {
     private static final String TAG = "AIAgentManager";
-    private static final String PREFS_NAME = "ai_agent_prefs";
     
-    // Native AI Agent instance
-    private long nativeAgentPtr = 0;
+    // Native AI Agent instance, created in the background by whenReady()
+    private volatile long nativeAgentPtr = 0;
+    private CompletableFuture<Void> readyFuture;
+    private static boolean libraryLoaded = false;
+    private static long instanceCreateNanos = 0;
     
     // Configuration
-    private SharedPreferences preferences;
+    private AIConfigStore configStore;
+    // configuration last pushed to the native agent, per part, so that only changed parts are pushed; guarded
+    //  by configLock rather than this, so that whenReady() never waits for a filter to be rebuilt
+    private final Object configLock = new Object();
+    private AIConfigStore.Snapshot appliedProvider;
+    private AIConfigStore.Snapshot appliedFilter;
+    private String appliedRetrievalMode = RetrievalMode.LEXICAL.getName();
     private ExecutorService executorService;
+    // applies configuration changes one at a time in the order they were made; requests that depend on the
+    //  configuration wait on it for the changes made before them, then run on executorService
+    private ExecutorService serialExecutor;
     private Context context;
+    private final AtomicLong latestTypeaheadQuery = new AtomicLong();
+    private ConversationContext chatConversation;
     
     // AI Provider Types
     public enum AIProvider {
@@ -37,6 +52,16 @@ public class AIAgentManager {
         public String getName() { return name; }
     }
     
+    // Document retrieval used for search and RAG context
+    public enum RetrievalMode {
+        LEXICAL("lexical"),   // BM25 keyword index
+        SEMANTIC("semantic"); // embedding index, matches related wording
+        
+        private final String name;
+        RetrievalMode(String name) { this.name = name; }
+        public String getName() { return name; }
+    }
+    
     // Content Filter Configuration
     public static class ContentFilter {
         public List<String> allowedTopics = new ArrayList<>();
@@ -55,6 +80,8 @@ public class AIAgentManager {
         public int maxTokens = 1000;
         public float temperature = 0.7f;
         public String useCase = "general";
+        public int queueTimeoutMs = 120000; // max wait for provider rate limit capacity
+        public int ragTokenBudget = 0; // tokens of retrieved passages added to context; 0 for default
     }
     
     public static class AIResponse {
@@ -63,6 +90,77 @@ public class AIAgentManager {
         public boolean success = false;
         public String error = "";
         public float confidence = 0.0f;
+        public long bytesSaved = 0; // not received because the response was blocked by the filter as it arrived
+    }
+    
+    /** Document for bulk indexing with indexDocuments() */
+    public static class Document {
+        public String id = ""; // generated if empty; replaces any indexed document with the same id
+        public String title = "";
+        public String content = "";
+        
+        public Document() {}
+        public Document(String content, String title, String id) {
+            this.content = content;
+            this.title = title;
+            this.id = id;
+        }
+    }
+    
+    /** Ranked passage search hit; content is the passage text at offset in the indexed document */
+    public static class SearchResult {
+        public String id = "";
+        public String documentId = "";
+        public String title = "";
+        public String source = "";
+        public String content = "";
+        public int page = -1; // index into pages passed to indexDocumentPages; -1 if indexed as one text
+        public int offset = 0; // UTF-8 byte offset of passage in the document text (pages joined by blank lines)
+        public int length = 0; // in UTF-8 bytes
+        public float score = 0.0f; // BM25 score; only meaningful relative to other hits for the same query
+        public int[] highlights = new int[0]; // searchAsYouType: (offset, length) pairs of matches in content, in UTF-8 bytes
+    }
+    
+    /** Background indexing of the open notebook, which runs after edits pause */
+    public static class IndexProgress {
+        public String notebookId = "";
+        public int pageCount = 0;
+        public int pagesPending = 0; // changed pages waiting to be indexed
+        public int pagesIndexed = 0; // since the notebook was opened
+        public int errors = 0;
+        public boolean indexing = false;
+    }
+    
+    /** Size and search timing of one shard of the local RAG index */
+    public static class ShardStats {
+        public int shard = 0;
+        public long passages = 0;
+        public long searches = 0;
+        public float lastSearchUs = 0.0f;
+        public float avgSearchUs = 0.0f;
+        public float maxSearchUs = 0.0f;
+    }
+    
+    /** Responses stopped while being received because the content filter blocked them */
+    public static class ResponseFilterStats {
+        public long responsesStopped = 0;
+        public long bytesReceived = 0; // of stopped responses
+        public long bytesSaved = 0; // only counted when the server gave the response length
+    }
+    
+    /** Latency stats, adaptive timeouts and circuit breaker state for a provider */
+    public static class ProviderHealth {
+        public String provider = "";
+        public String breakerState = "closed"; // "closed", "open", "half_open"
+        public float ewmaLatencyMs = 0.0f;
+        public float ewmaConnectMs = -1.0f;
+        public int p50Ms = -1;
+        public int p95Ms = -1;
+        public int p99Ms = -1;
+        public int samples = 0;
+        public int consecutiveFailures = 0;
+        public int connectTimeoutSecs = 0;
+        public int firstByteTimeoutSecs = 0;
     }
     
     // Callback interfaces
@@ -75,23 +173,92 @@ public class AIAgentManager {
         void onConfigured(boolean success, String message);
     }
     
+    public interface SearchAsYouTypeCallback {
+        void onResults(String query, List<SearchResult> results);
+    }
+    
     // Singleton instance
     private static AIAgentManager instance;
     
+    /**
+     * Get the AI agent manager; cheap enough for the main thread during startup since the native agent is
+     * only created, in the background, when first needed (or when whenReady() is called)
+     */
     public static synchronized AIAgentManager getInstance(Context context) {
         if (instance == null) {
+            long start = System.nanoTime();
             instance = new AIAgentManager(context);
+            instanceCreateNanos = System.nanoTime() - start;
+            Log.i(TAG, "AI agent manager created in " + instanceCreateNanos / 1000 + " us");
         }
         return instance;
     }
     
+    /**
+     * Time taken by the getInstance() call which created the manager, in nanoseconds
+     */
+    public static synchronized long getInstanceCreateNanos() {
+        return instanceCreateNanos;
+    }
+    
     private AIAgentManager(Context context) {
         this.context = context.getApplicationContext();
-        this.preferences = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        this.configStore = AIConfigStore.getInstance(context);
         this.executorService = Executors.newCachedThreadPool();
-        
-        // Initialize native agent
-        initializeNativeAgent();
+        this.serialExecutor = Executors.newSingleThreadExecutor();
+        // changes are pushed to the native agent once it is ready; it reads the latest configuration when
+        //  initialized, so changes made before then are not lost
+        configStore.addListener((previous, current) -> configureWhenReady(() -> {
+            if (nativeAgentPtr != 0) {
+                applyConfiguration(nativeAgentPtr, configStore.get());
+            }
+        }));
+    }
+    
+    /**
+     * Start creating and configuring the native agent in the background if not already started; the
+     * returned future completes once that is done.  Requests made before then are queued until it completes.
+     * If it failed, requests report that the agent isn't initialized and the next request tries again.
+     */
+    public synchronized CompletableFuture<Void> whenReady() {
+        if (readyFuture == null || (readyFuture.isDone() && nativeAgentPtr == 0)) {
+            readyFuture = CompletableFuture.runAsync(this::initializeNativeAgent, executorService);
+        }
+        return readyFuture;
+    }
+    
+    /**
+     * True once the native agent has been created and configured
+     */
+    public boolean isReady() {
+        return nativeAgentPtr != 0;
+    }
+    
+    // run task on the executor once the agent is initialized, starting that if needed; for work that doesn't
+    //  depend on the configuration, such as search and indexing, which the native agent runs concurrently
+    private void runWhenReady(Runnable task) {
+        whenReady().exceptionally(e -> null).thenRunAsync(task, executorService);
+    }
+    
+    private <T> CompletableFuture<T> supplyWhenReady(Supplier<T> task) {
+        return whenReady().exceptionally(e -> null).thenApplyAsync(ready -> task.get(), executorService);
+    }
+    
+    // apply a configuration change on the serial executor once the agent is initialized, after the changes
+    //  made before it
+    private void configureWhenReady(Runnable change) {
+        CompletableFuture<Void> ready = whenReady();
+        serialExecutor.execute(() -> {
+            ready.exceptionally(e -> null).join();
+            change.run();
+        });
+    }
+    
+    // completes, on the serial executor, once the configuration changes made before this call are applied;
+    //  requests chain onto it with executorService so they see those changes but don't wait for each other
+    private CompletableFuture<Void> afterConfiguration() {
+        CompletableFuture<Void> ready = whenReady();
+        return CompletableFuture.runAsync(() -> ready.exceptionally(e -> null).join(), serialExecutor);
     }
     
     // Native method declarations
@@ -101,20 +268,45 @@ public class AIAgentManager {
     private native void nativeSetContentFilter(long agentPtr, ContentFilter filter);
     private native AIResponse nativeProcessRequest(long agentPtr, AIRequest request);
     private native boolean nativeTestConnection(long agentPtr);
+    private native void nativePrewarmConnection(long agentPtr);
+    private native int nativeProbeConnection(long agentPtr);
     private native String[] nativeGetAvailableProviders(long agentPtr);
+    private native ProviderHealth[] nativeGetProviderHealth(long agentPtr);
+    private native void nativeSetRateLimits(long agentPtr, String provider, int requestsPerMinute, int tokensPerMinute);
     private native boolean nativeIndexDocument(long agentPtr, String content, String title, String id);
+    private native boolean nativeIndexDocuments(long agentPtr, String[] contents, String[] titles, String[] ids);
+    private native boolean nativeIndexDocumentPages(long agentPtr, String[] pages, String title, String id);
+    private native SearchResult[] nativeSearchDocuments(long agentPtr, String query, int maxResults);
+    private native SearchResult[] nativeSearchAsYouType(long agentPtr, String query, int maxResults);
+    private native boolean nativeSetRetrievalMode(long agentPtr, String mode);
+    private native boolean nativeIndexCurrentDocument(long agentPtr, int timeoutMs);
+    private native IndexProgress nativeGetIndexProgress(long agentPtr);
+    private native ShardStats[] nativeGetShardStats(long agentPtr);
+    private native ResponseFilterStats nativeGetResponseFilterStats(long agentPtr);
     
     private void initializeNativeAgent() {
+        long start = System.nanoTime();
+        StartupTrace.begin("aiAgentInit");
         try {
-            nativeAgentPtr = nativeCreateAgent();
-            if (nativeAgentPtr == 0) {
+            synchronized (AIAgentManager.class) {
+                if (!libraryLoaded) {
+                    System.loadLibrary("main");
+                    libraryLoaded = true;
+                }
+            }
+            long agentPtr = nativeCreateAgent();
+            if (agentPtr == 0) {
                 Log.e(TAG, "Failed to create native AI agent");
             } else {
-                Log.i(TAG, "Native AI agent initialized successfully");
-                loadConfiguration();
+                applyConfiguration(agentPtr, configStore.get());
+                // only published once configured, so nothing uses the agent before then
+                nativeAgentPtr = agentPtr;
+                Log.i(TAG, "Native AI agent initialized in " + (System.nanoTime() - start) / 1000000 + " ms");
             }
-        } catch (Exception e) {
+        } catch (Exception | UnsatisfiedLinkError e) {
             Log.e(TAG, "Error initializing native AI agent", e);
+        } finally {
+            StartupTrace.end("aiAgentInit");
         }
     }
     
@@ -123,26 +315,21 @@ public class AIAgentManager {
      */
     public void configureProvider(AIProvider provider, String apiKey, String baseUrl, 
                                  ConfigurationCallback callback) {
-        executorService.execute(() -> {
+        configureWhenReady(() -> {
             try {
                 if (nativeAgentPtr == 0) {
                     callback.onConfigured(false, "AI agent not initialized");
                     return;
                 }
                 
-                boolean success = nativeConfigureProvider(nativeAgentPtr, provider.getName(), 
-                                                        apiKey, baseUrl != null ? baseUrl : "");
+                // no base URL keeps the one set before
+                String name = provider.getName();
+                String url = baseUrl != null && !baseUrl.isEmpty() ? baseUrl
+                                                                   : configStore.get().getProvider(name).baseUrl;
+                configStore.edit().setCurrentProvider(name).setProvider(name, apiKey, url).commit();
                 
-                if (success) {
-                    // Save configuration
-                    SharedPreferences.Editor editor = preferences.edit();
-                    editor.putString("current_provider", provider.getName());
-                    editor.putString(provider.getName() + "_api_key", apiKey);
-                    if (baseUrl != null && !baseUrl.isEmpty()) {
-                        editor.putString(provider.getName() + "_base_url", baseUrl);
-                    }
-                    editor.apply();
-                    
+                // the provider is only recreated if its settings changed
+                if (applyConfiguration(nativeAgentPtr, configStore.get())) {
                     callback.onConfigured(true, "Provider configured successfully");
                 } else {
                     callback.onConfigured(false, "Failed to configure provider");
@@ -155,20 +342,39 @@ public class AIAgentManager {
     }
     
     /**
-     * Set content filtering configuration
+     * Set content filtering configuration; the native filter is rebuilt in the background, and only if the
+     * filter changed
      */
     public void setContentFilter(ContentFilter filter) {
-        if (nativeAgentPtr != 0) {
-            nativeSetContentFilter(nativeAgentPtr, filter);
-            saveFilterConfiguration(filter);
-        }
+        configStore.edit().setContentFilter(filter).commit();
+    }
+    
+    /**
+     * The configuration store, for reading settings or listening for changes to them
+     */
+    public AIConfigStore getConfigStore() {
+        return configStore;
+    }
+    
+    /**
+     * Select the document index used for search and RAG.  Each mode keeps its own index, so documents
+     * indexed before switching must be indexed again to be found.  The index is opened in the background,
+     * in order with other configuration changes, so requests made after this call use it.
+     */
+    public void setRetrievalMode(RetrievalMode mode) {
+        configStore.edit().setRetrievalMode(mode.getName()).commit();
+    }
+    
+    public RetrievalMode getRetrievalMode() {
+        String mode = configStore.get().retrievalMode;
+        return mode.equals(RetrievalMode.SEMANTIC.getName()) ? RetrievalMode.SEMANTIC : RetrievalMode.LEXICAL;
     }
     
     /**
      * Generate AI response asynchronously
      */
     public void generateResponse(AIRequest request, AIResponseCallback callback) {
-        executorService.execute(() -> {
+        afterConfiguration().thenRunAsync(() -> {
             try {
                 if (nativeAgentPtr == 0) {
                     callback.onError("AI agent not initialized");
@@ -186,7 +392,7 @@ public class AIAgentManager {
                 Log.e(TAG, "Error generating AI response", e);
                 callback.onError("AI processing error: " + e.getMessage());
             }
-        });
+        }, executorService);
     }
     
     /**
@@ -201,6 +407,23 @@ public class AIAgentManager {
         generateResponse(request, callback);
     }
     
+    /**
+     * The conversation of the chat screen, kept while the app runs
+     */
+    public synchronized ConversationContext getChatConversation() {
+        if (chatConversation == null) {
+            chatConversation = newConversation(ConversationContext.DEFAULT_TOKEN_BUDGET);
+        }
+        return chatConversation;
+    }
+    
+    /**
+     * Start a conversation whose messages are sent with up to tokenBudget tokens of earlier turns
+     */
+    public ConversationContext newConversation(int tokenBudget) {
+        return new ConversationContext(this, tokenBudget);
+    }
+    
     /**
      * Summarize content
      */
@@ -245,7 +468,7 @@ public class AIAgentManager {
      * Index a document for RAG
      */
     public CompletableFuture<Boolean> indexDocument(String content, String title, String id) {
-        return CompletableFuture.supplyAsync(() -> {
+        return supplyWhenReady(() -> {
             if (nativeAgentPtr == 0) {
                 return false;
             }
@@ -257,14 +480,144 @@ public class AIAgentManager {
                 Log.e(TAG, "Error indexing document", e);
                 return false;
             }
-        }, executorService);
+        });
+    }
+    
+    /**
+     * Index changes to the open notebook now rather than once editing pauses; completes when done.
+     * Pages of the notebook are indexed as documents "<notebook path>#p<page number>".
+     */
+    public CompletableFuture<Boolean> indexCurrentDocument() {
+        return supplyWhenReady(() -> {
+            if (nativeAgentPtr == 0) {
+                return false;
+            }
+            
+            try {
+                return nativeIndexCurrentDocument(nativeAgentPtr, 60000);
+            } catch (Exception e) {
+                Log.e(TAG, "Error indexing notebook", e);
+                return false;
+            }
+        });
+    }
+    
+    /**
+     * Progress of background notebook indexing; cheap enough to poll from the UI thread
+     */
+    public IndexProgress getIndexProgress() {
+        IndexProgress progress = nativeAgentPtr != 0 ? nativeGetIndexProgress(nativeAgentPtr) : null;
+        return progress != null ? progress : new IndexProgress();
+    }
+    
+    /**
+     * Per shard size and search timing of the local RAG index, whose shards are searched in parallel
+     */
+    public List<ShardStats> getShardStats() {
+        ShardStats[] stats = nativeAgentPtr != 0 ? nativeGetShardStats(nativeAgentPtr) : null;
+        return stats != null ? Arrays.asList(stats) : new ArrayList<>();
+    }
+    
+    /**
+     * Index many documents at once, e.g. when importing an archive; much faster than calling
+     * indexDocument for each since documents are tokenized in parallel and committed together
+     */
+    public CompletableFuture<Boolean> indexDocuments(List<Document> documents) {
+        return supplyWhenReady(() -> {
+            if (nativeAgentPtr == 0) {
+                return false;
+            }
+            
+            try {
+                int count = documents.size();
+                String[] contents = new String[count];
+                String[] titles = new String[count];
+                String[] ids = new String[count];
+                for (int i = 0; i < count; i++) {
+                    Document doc = documents.get(i);
+                    contents[i] = doc.content;
+                    titles[i] = doc.title;
+                    ids[i] = doc.id;
+                }
+                return nativeIndexDocuments(nativeAgentPtr, contents, titles, ids);
+            } catch (Exception e) {
+                Log.e(TAG, "Error indexing documents", e);
+                return false;
+            }
+        });
+    }
+    
+    /**
+     * Index a multi-page document for RAG, so search hits report the page of each passage
+     */
+    public CompletableFuture<Boolean> indexDocumentPages(List<String> pages, String title, String id) {
+        return supplyWhenReady(() -> {
+            if (nativeAgentPtr == 0) {
+                return false;
+            }
+            
+            try {
+                return nativeIndexDocumentPages(nativeAgentPtr, pages.toArray(new String[0]), title,
+                                                id != null ? id : "doc_" + System.currentTimeMillis());
+            } catch (Exception e) {
+                Log.e(TAG, "Error indexing document", e);
+                return false;
+            }
+        });
+    }
+    
+    /**
+     * Search indexed documents, best matching passages first
+     */
+    public CompletableFuture<List<SearchResult>> searchDocuments(String query, int maxResults) {
+        return supplyWhenReady(() -> {
+            List<SearchResult> result = new ArrayList<>();
+            if (nativeAgentPtr == 0) {
+                return result;
+            }
+            
+            try {
+                SearchResult[] hits = nativeSearchDocuments(nativeAgentPtr, query, maxResults);
+                if (hits != null) {
+                    for (SearchResult hit : hits) {
+                        result.add(hit);
+                    }
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Error searching documents", e);
+            }
+            return result;
+        });
+    }
+    
+    /**
+     * Search as the user types: call with the whole query on each keystroke.  The last word is matched as a
+     * prefix (and from 3 characters, anywhere in a word) and hits have highlights set.  A newer query cancels
+     * any older one still running, and callback is only called (on a background thread) for the latest query.
+     */
+    public void searchAsYouType(String query, int maxResults, SearchAsYouTypeCallback callback) {
+        long queryNum = latestTypeaheadQuery.incrementAndGet();
+        runWhenReady(() -> {
+            if (nativeAgentPtr == 0 || queryNum != latestTypeaheadQuery.get()) {
+                return;
+            }
+            
+            try {
+                SearchResult[] hits = nativeSearchAsYouType(nativeAgentPtr, query, maxResults);
+                if (hits != null && queryNum == latestTypeaheadQuery.get()) {
+                    callback.onResults(query, Arrays.asList(hits));
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Error searching documents", e);
+            }
+        });
     }
     
     /**
      * Test connection to current AI provider
      */
     public CompletableFuture<Boolean> testConnection() {
-        return CompletableFuture.supplyAsync(() -> {
+        return afterConfiguration().thenApplyAsync(configured -> {
             if (nativeAgentPtr == 0) {
                 return false;
             }
@@ -278,6 +631,45 @@ public class AIAgentManager {
         }, executorService);
     }
     
+    /**
+     * Open a connection to the current AI provider in the background, ahead of a request the user is likely
+     * to make soon (e.g. when the chat is opened or its input focused); the next request uses it instead of
+     * connecting.  Closed if unused for a while; cheap to call again while it is open.
+     */
+    public void prewarmConnection() {
+        runWhenReady(() -> {
+            if (nativeAgentPtr == 0) {
+                return;
+            }
+            
+            try {
+                nativePrewarmConnection(nativeAgentPtr);
+            } catch (Exception e) {
+                Log.e(TAG, "Error prewarming connection", e);
+            }
+        });
+    }
+    
+    /**
+     * Check that the current AI provider is reachable by connecting to it, without making a request; the
+     * result is the connect time in ms, or -1 if it could not be reached.  The connection is kept for the
+     * next request.
+     */
+    public CompletableFuture<Integer> probeConnection() {
+        return supplyWhenReady(() -> {
+            if (nativeAgentPtr == 0) {
+                return -1;
+            }
+            
+            try {
+                return nativeProbeConnection(nativeAgentPtr);
+            } catch (Exception e) {
+                Log.e(TAG, "Error probing connection", e);
+                return -1;
+            }
+        });
+    }
+    
     /**
      * Get list of available AI providers
      */
@@ -302,99 +694,103 @@ public class AIAgentManager {
     }
     
     /**
-     * Check if AI agent is properly configured
+     * Set requests/min and tokens/min limits for a provider; requests beyond these are queued rather
+     * than sent.  Pass 0 to use the limits reported by the provider's rate limit headers.
      */
-    public boolean isConfigured() {
-        String currentProvider = preferences.getString("current_provider", "");
-        if (currentProvider.isEmpty()) {
-            return false;
+    public void setRateLimits(AIProvider provider, int requestsPerMinute, int tokensPerMinute) {
+        if (nativeAgentPtr != 0) {
+            nativeSetRateLimits(nativeAgentPtr, provider.getName(), requestsPerMinute, tokensPerMinute);
+        } else {
+            configureWhenReady(() -> {
+                if (nativeAgentPtr != 0) {
+                    nativeSetRateLimits(nativeAgentPtr, provider.getName(), requestsPerMinute, tokensPerMinute);
+                }
+            });
+        }
+    }
+    
+    /**
+     * Get per-provider health (latency percentiles, current timeouts, breaker state)
+     */
+    public List<ProviderHealth> getProviderHealth() {
+        if (nativeAgentPtr == 0) {
+            return new ArrayList<>();
         }
         
-        String apiKey = preferences.getString(currentProvider + "_api_key", "");
-        return !apiKey.isEmpty();
+        try {
+            ProviderHealth[] health = nativeGetProviderHealth(nativeAgentPtr);
+            List<ProviderHealth> result = new ArrayList<>();
+            if (health != null) {
+                for (ProviderHealth h : health) {
+                    result.add(h);
+                }
+            }
+            return result;
+        } catch (Exception e) {
+            Log.e(TAG, "Error getting provider health", e);
+            return new ArrayList<>();
+        }
+    }
+    
+    /**
+     * Get totals for responses stopped by the content filter, including the bytes saved by not receiving them
+     */
+    public ResponseFilterStats getResponseFilterStats() {
+        ResponseFilterStats stats = nativeAgentPtr != 0 ? nativeGetResponseFilterStats(nativeAgentPtr) : null;
+        return stats != null ? stats : new ResponseFilterStats();
+    }
+    
+    /**
+     * Check if AI agent is properly configured
+     */
+    public boolean isConfigured() {
+        return configStore.get().isConfigured();
     }
     
     /**
      * Get current provider name
      */
     public String getCurrentProvider() {
-        return preferences.getString("current_provider", "");
+        return configStore.get().currentProvider;
     }
     
-    private void loadConfiguration() {
-        // Load current provider configuration
-        String currentProvider = preferences.getString("current_provider", "");
-        if (!currentProvider.isEmpty()) {
-            String apiKey = preferences.getString(currentProvider + "_api_key", "");
-            String baseUrl = preferences.getString(currentProvider + "_base_url", "");
-            
-            if (!apiKey.isEmpty()) {
-                try {
-                    AIProvider provider = AIProvider.valueOf(currentProvider.toUpperCase());
-                    nativeConfigureProvider(nativeAgentPtr, provider.getName(), apiKey, baseUrl);
-                } catch (IllegalArgumentException e) {
-                    Log.w(TAG, "Unknown provider in preferences: " + currentProvider);
-                }
+    // Push the parts of config that differ from what the native agent has, so that providers and the filter
+    //  are only rebuilt when their settings change; returns false if a part failed (and is tried again next time)
+    private boolean applyConfiguration(long agentPtr, AIConfigStore.Snapshot config) {
+        synchronized (configLock) {
+            boolean success = true;
+            // when initializing, the native agent has loaded the provider itself; configure it if one is set up
+            boolean providerChanged = appliedProvider == null ? config.isConfigured()
+                                                              : !config.sameProvider(appliedProvider);
+            if (providerChanged && !config.currentProvider.isEmpty()) {
+                AIConfigStore.ProviderSettings settings = config.getCurrentProviderSettings();
+                success = nativeConfigureProvider(agentPtr, config.currentProvider, settings.apiKey,
+                                                  settings.baseUrl);
             }
-        }
-        
-        // Load content filter configuration
-        ContentFilter filter = loadFilterConfiguration();
-        if (filter != null) {
-            nativeSetContentFilter(nativeAgentPtr, filter);
-        }
-    }
-    
-    private ContentFilter loadFilterConfiguration() {
-        ContentFilter filter = new ContentFilter();
-        filter.filterLevel = preferences.getString("filter_level", "moderate");
-        filter.enableRagFiltering = preferences.getBoolean("enable_rag_filtering", true);
-        
-        // Load topics and use cases (stored as comma-separated strings)
-        String allowedTopics = preferences.getString("allowed_topics", "");
-        if (!allowedTopics.isEmpty()) {
-            String[] topics = allowedTopics.split(",");
-            for (String topic : topics) {
-                filter.allowedTopics.add(topic.trim());
+            if (success) {
+                appliedProvider = config;
             }
-        }
         
-        String blockedTopics = preferences.getString("blocked_topics", "");
-        if (!blockedTopics.isEmpty()) {
-            String[] topics = blockedTopics.split(",");
-            for (String topic : topics) {
-                filter.blockedTopics.add(topic.trim());
+            if (!config.retrievalMode.equals(appliedRetrievalMode)) {
+                if (nativeSetRetrievalMode(agentPtr, config.retrievalMode)) {
+                    appliedRetrievalMode = config.retrievalMode;
+                } else {
+                    success = false;
+                }
             }
-        }
         
-        String allowedUseCases = preferences.getString("allowed_use_cases", "");
-        if (!allowedUseCases.isEmpty()) {
-            String[] useCases = allowedUseCases.split(",");
-            for (String useCase : useCases) {
-                filter.allowedUseCases.add(useCase.trim());
+            if (appliedFilter == null || !config.sameFilter(appliedFilter)) {
+                nativeSetContentFilter(agentPtr, config.getContentFilter());
+                appliedFilter = config;
             }
+            return success;
         }
-        
-        return filter;
-    }
-    
-    private void saveFilterConfiguration(ContentFilter filter) {
-        SharedPreferences.Editor editor = preferences.edit();
-        editor.putString("filter_level", filter.filterLevel);
-        editor.putBoolean("enable_rag_filtering", filter.enableRagFiltering);
-        
-        // Save topics and use cases as comma-separated strings
-        editor.putString("allowed_topics", String.join(",", filter.allowedTopics));
-        editor.putString("blocked_topics", String.join(",", filter.blockedTopics));
-        editor.putString("allowed_use_cases", String.join(",", filter.allowedUseCases));
-        
-        editor.apply();
     }
     
     /**
      * Clean up resources
      */
-    public void destroy() {
+    public synchronized void destroy() {
         if (nativeAgentPtr != 0) {
             nativeDestroyAgent(nativeAgentPtr);
             nativeAgentPtr = 0;
@@ -403,10 +799,8 @@ public class AIAgentManager {
         if (executorService != null && !executorService.isShutdown()) {
             executorService.shutdown();
         }
-    }
-    
-    // Load native library
-    static {
-        System.loadLibrary("main");
+        if (serialExecutor != null && !serialExecutor.isShutdown()) {
+            serialExecutor.shutdown();
+        }
     }
 }
\ No newline at end of file
@@ -18,6 +18,7 @@ import com.google.android.material.chip.Chip;
 import com.google.android.material.chip.ChipGroup;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -35,22 +36,37 @@ public class AIChatActivity extends AppCompatActivity {
     private ChipGroup actionChipsGroup;
     private MaterialToolbar toolbar;
     
+    // Messages shown are a window of the saved history, starting at position windowStart, of at most
+    //  MAX_WINDOW messages; pages are loaded in the background as the user scrolls towards either end of it.
+    //  Notices, which aren't saved, follow the window.
+    private static final int MAX_WINDOW = 4 * ChatHistory.PAGE_SIZE;
+    private static final int LOAD_MARGIN = 10; // load another page when this close to the end of the window
+    private ChatHistory history;
     private List<AIChatMessage> chatMessages = new ArrayList<>();
+    private long windowStart = 0;
+    private boolean loadingPage = true; // until the first page is shown
+    private List<AIChatMessage> appendedWhileLoading = new ArrayList<>();
+    private List<AIChatMessage> notices = new ArrayList<>();
     
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_ai_chat);
+        history = ChatHistory.getInstance(this);
         
         initializeViews();
         setupChat();
         setupActionChips();
         
         aiAgent = AIAgentManager.getInstance(this);
+        aiAgent.whenReady();
         
         // Check if AI agent is configured
         if (!aiAgent.isConfigured()) {
             showConfigurationNeeded();
+        } else {
+            // a message is likely soon, so connect to the provider while the user types it
+            aiAgent.prewarmConnection();
         }
     }
     
@@ -69,9 +85,20 @@ public class AIChatActivity extends AppCompatActivity {
     }
     
     private void setupChat() {
-        chatAdapter = new AIChatAdapter(chatMessages);
+        chatAdapter = new AIChatAdapter();
         chatRecyclerView.setLayoutManager(new LinearLayoutManager(this));
         chatRecyclerView.setAdapter(chatAdapter);
+        chatRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                LinearLayoutManager layoutManager = (LinearLayoutManager) recyclerView.getLayoutManager();
+                if (dy < 0 && layoutManager.findFirstVisibleItemPosition() < LOAD_MARGIN) {
+                    loadOlderPage();
+                } else if (dy > 0 && layoutManager.findLastVisibleItemPosition() >= chatMessages.size() - LOAD_MARGIN) {
+                    loadNewerPage();
+                }
+            }
+        });
         
         // Setup message input
         messageInput.addTextChangedListener(new TextWatcher() {
@@ -87,13 +114,25 @@ public class AIChatActivity extends AppCompatActivity {
             }
         });
         
+        messageInput.setOnFocusChangeListener((v, hasFocus) -> {
+            if (hasFocus && aiAgent.isConfigured()) {
+                aiAgent.prewarmConnection();
+            }
+        });
+        
         // Setup send button
         sendButton.setOnClickListener(v -> sendMessage());
         sendButton.setEnabled(false);
         
-        // Add welcome message
-        addMessage("Hi! I'm your AI writing assistant. I can help you with:", false, true);
-        addMessage("• Summarize your notes\n• Extract key points\n• Answer questions about your content\n• Generate new text\n• And much more!", false, false);
+        // Add welcome message at the start of the history, then show the most recent page; the history is
+        //  opened in the background, so the size is only known once it is
+        history.whenOpened().thenRun(() -> {
+            if (history.size() == 0) {
+                history.append("Hi! I'm your AI writing assistant. I can help you with:", false, true);
+                history.append("• Summarize your notes\n• Extract key points\n• Answer questions about your content\n• Generate new text\n• And much more!", false, false);
+            }
+            runOnUiThread(this::showLatestPage);
+        });
     }
     
     private void setupActionChips() {
@@ -149,8 +188,8 @@ public class AIChatActivity extends AppCompatActivity {
         // Show loading
         setLoading(true);
         
-        // Send to AI
-        aiAgent.generateText(message, "", new AIAgentManager.AIResponseCallback() {
+        // Send to AI, with the conversation so far
+        aiAgent.getChatConversation().sendMessage(message, new AIAgentManager.AIResponseCallback() {
             @Override
             public void onSuccess(AIAgentManager.AIResponse response) {
                 runOnUiThread(() -> {
@@ -218,10 +257,117 @@ public class AIChatActivity extends AppCompatActivity {
     }
     
     private void addMessage(String content, boolean isUser, boolean isSystem) {
-        AIChatMessage message = new AIChatMessage(content, isUser, isSystem, System.currentTimeMillis());
-        chatMessages.add(message);
-        chatAdapter.notifyItemInserted(chatMessages.size() - 1);
-        chatRecyclerView.scrollToPosition(chatMessages.size() - 1);
+        history.append(content, isUser, isSystem).thenAccept(message -> runOnUiThread(() -> {
+            if (message == null) {
+                addNotice(content); // couldn't be saved, so show it anyway
+            } else {
+                showAppended(message);
+            }
+        }));
+    }
+    
+    // show a message just saved, if the window reaches the end of the history; messages saved while a page
+    //  is loading are held until it is in, since the window may move
+    private void showAppended(AIChatMessage message) {
+        if (loadingPage) {
+            appendedWhileLoading.add(message);
+            return;
+        }
+        long windowEnd = windowStart + chatMessages.size();
+        if (message.id < windowEnd) {
+            return; // in the page just loaded
+        }
+        boolean atBottom = !chatRecyclerView.canScrollVertically(1);
+        if (windowEnd == message.id && (atBottom || chatMessages.size() < MAX_WINDOW)) {
+            chatMessages.add(message);
+            if (chatMessages.size() > MAX_WINDOW) {
+                chatMessages.remove(0);
+                windowStart++;
+            }
+            chatAdapter.prefetch(Collections.singletonList(message));
+            submitMessages(atBottom);
+        } else if (message.isUser) {
+            // the window doesn't reach the end of the history; show the message just sent
+            showLatestPage();
+        }
+    }
+    
+    private void pageLoaded() {
+        loadingPage = false;
+        List<AIChatMessage> appended = appendedWhileLoading;
+        appendedWhileLoading = new ArrayList<>();
+        for (AIChatMessage message : appended) {
+            showAppended(message);
+        }
+    }
+    
+    // a message that isn't saved, shown after the history
+    private void addNotice(String content) {
+        notices.add(new AIChatMessage(-1 - notices.size(), content, false, true, System.currentTimeMillis()));
+        submitMessages(!chatRecyclerView.canScrollVertically(1));
+    }
+    
+    private void showLatestPage() {
+        loadingPage = true;
+        history.loadLatest().thenAccept(page -> runOnUiThread(() -> {
+            chatMessages = new ArrayList<>(page);
+            windowStart = page.isEmpty() ? 0 : page.get(0).id;
+            chatAdapter.prefetch(page);
+            submitMessages(true);
+            pageLoaded();
+        }));
+    }
+    
+    private void loadOlderPage() {
+        if (loadingPage || windowStart == 0) {
+            return;
+        }
+        loadingPage = true;
+        long from = Math.max(0, windowStart - ChatHistory.PAGE_SIZE);
+        history.load(from, (int) (windowStart - from)).thenAccept(page -> runOnUiThread(() -> {
+            // otherwise the window has moved
+            if (!page.isEmpty() && page.get(page.size() - 1).id == windowStart - 1) {
+                chatMessages.addAll(0, page);
+                windowStart = page.get(0).id;
+                while (chatMessages.size() > MAX_WINDOW) {
+                    chatMessages.remove(chatMessages.size() - 1);
+                }
+                submitMessages(false);
+            }
+            pageLoaded();
+        }));
+    }
+    
+    private void loadNewerPage() {
+        long windowEnd = windowStart + chatMessages.size();
+        if (loadingPage || windowEnd >= history.size()) {
+            return;
+        }
+        loadingPage = true;
+        history.load(windowEnd, ChatHistory.PAGE_SIZE).thenAccept(page -> runOnUiThread(() -> {
+            // otherwise the window has moved
+            if (!page.isEmpty() && page.get(0).id == windowStart + chatMessages.size()) {
+                chatMessages.addAll(page);
+                int excess = Math.max(0, chatMessages.size() - MAX_WINDOW);
+                chatMessages.subList(0, excess).clear();
+                windowStart += excess;
+                chatAdapter.prefetch(page);
+                submitMessages(false);
+            }
+            pageLoaded();
+        }));
+    }
+    
+    // The adapter diffs a snapshot of the list in the background; with followEnd, the chat scrolls to the
+    //  last message once the update is applied
+    private void submitMessages(boolean followEnd) {
+        List<AIChatMessage> snapshot = new ArrayList<>(chatMessages);
+        snapshot.addAll(notices);
+        chatAdapter.submitList(snapshot, () -> {
+            if (followEnd && !snapshot.isEmpty()) {
+                chatRecyclerView.scrollToPosition(snapshot.size() - 1);
+            }
+        });
     }
     
     private void setLoading(boolean loading) {
@@ -231,8 +377,8 @@ public class AIChatActivity extends AppCompatActivity {
     }
     
     private void showConfigurationNeeded() {
-        addMessage("⚠️ AI Assistant needs to be configured first.", false, true);
-        addMessage("Please go to Settings > AI Configuration to set up your AI provider.", false, true);
+        addNotice("⚠️ AI Assistant needs to be configured first.");
+        addNotice("Please go to Settings > AI Configuration to set up your AI provider.");
         
         // Disable input
         messageInput.setEnabled(false);
@@ -251,6 +397,12 @@ public class AIChatActivity extends AppCompatActivity {
         return "";
     }
     
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        chatAdapter.shutdown();
+    }
+    
     @Override
     public boolean onSupportNavigateUp() {
         onBackPressed();
@@ -259,12 +411,14 @@ public class AIChatActivity extends AppCompatActivity {
     
     // Data class for chat messages
     public static class AIChatMessage {
+        public final long id; // position in ChatHistory; negative for notices that aren't saved
         public String content;
         public boolean isUser;
         public boolean isSystem;
         public long timestamp;
         
-        public AIChatMessage(String content, boolean isUser, boolean isSystem, long timestamp) {
+        public AIChatMessage(long id, String content, boolean isUser, boolean isSystem, long timestamp) {
+            this.id = id;
             this.content = content;
             this.isUser = isUser;
             this.isSystem = isSystem;
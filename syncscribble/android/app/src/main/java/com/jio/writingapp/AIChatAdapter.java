@@ -1,68 +1,145 @@
 package com.jio.writingapp;
 
+import android.util.LruCache;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
 import androidx.annotation.NonNull;
+import androidx.appcompat.widget.AppCompatTextView;
+import androidx.core.text.PrecomputedTextCompat;
+import androidx.core.widget.TextViewCompat;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.ListAdapter;
 import androidx.recyclerview.widget.RecyclerView;
 import com.google.android.material.card.MaterialCardView;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
- * RecyclerView adapter for AI chat messages
+ * RecyclerView adapter for AI chat messages.  Update with submitList(); the list is diffed on a background
+ * thread.  Message text is measured (PrecomputedTextCompat) on a background thread too, and cached per
+ * message, so binding a long answer while scrolling only has to break lines.
  */
-public class AIChatAdapter extends RecyclerView.Adapter<AIChatAdapter.MessageViewHolder> {
-    
-    private List<AIChatActivity.AIChatMessage> messages;
+public class AIChatAdapter extends ListAdapter<AIChatActivity.AIChatMessage, AIChatAdapter.MessageViewHolder> {
+
+    // shorter messages are cheap enough to measure when bound
+    private static final int PRECOMPUTE_MIN_LENGTH = 200;
+    private static final int MAX_CACHED_TEXTS = 200;
+
     private SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm", Locale.getDefault());
-    
-    public AIChatAdapter(List<AIChatActivity.AIChatMessage> messages) {
-        this.messages = messages;
+    private final ExecutorService layoutExecutor = Executors.newSingleThreadExecutor();
+    // measured text by message id; PrecomputedText doesn't depend on the view width, so an entry serves any
+    //  width the message is laid out at (e.g. after rotation)
+    private final LruCache<Long, PrecomputedTextCompat> textCache = new LruCache<>(MAX_CACHED_TEXTS);
+    // text metrics of the message views (the same for user and assistant messages); null until a view exists
+    private PrecomputedTextCompat.Params textParams;
+
+    private static final DiffUtil.ItemCallback<AIChatActivity.AIChatMessage> DIFF_CALLBACK =
+            new DiffUtil.ItemCallback<AIChatActivity.AIChatMessage>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull AIChatActivity.AIChatMessage oldItem,
+                                       @NonNull AIChatActivity.AIChatMessage newItem) {
+            return oldItem.id == newItem.id;
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull AIChatActivity.AIChatMessage oldItem,
+                                          @NonNull AIChatActivity.AIChatMessage newItem) {
+            return oldItem.content.equals(newItem.content) && oldItem.isUser == newItem.isUser
+                    && oldItem.isSystem == newItem.isSystem && oldItem.timestamp == newItem.timestamp;
+        }
+    };
+
+    public AIChatAdapter() {
+        super(DIFF_CALLBACK);
+    }
+
+    /**
+     * Measure the text of long messages in the background ahead of them being shown, e.g. for messages
+     * just submitted
+     */
+    public void prefetch(List<AIChatActivity.AIChatMessage> messages) {
+        if (textParams == null) {
+            return;
+        }
+        for (AIChatActivity.AIChatMessage message : messages) {
+            if (message.content.length() >= PRECOMPUTE_MIN_LENGTH && textCache.get(message.id) == null) {
+                precompute(message);
+            }
+        }
     }
-    
+
+    /** Stop the background layout thread; call when the adapter is no longer used */
+    public void shutdown() {
+        layoutExecutor.shutdownNow();
+    }
+
+    private Future<PrecomputedTextCompat> precompute(AIChatActivity.AIChatMessage message) {
+        final PrecomputedTextCompat.Params params = textParams;
+        return layoutExecutor.submit(() -> {
+            PrecomputedTextCompat text = textCache.get(message.id);
+            if (text == null || !text.getParams().equals(params)) {
+                text = PrecomputedTextCompat.create(message.content, params);
+                textCache.put(message.id, text);
+            }
+            return text;
+        });
+    }
+
     @NonNull
     @Override
     public MessageViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
         View view = LayoutInflater.from(parent.getContext())
                 .inflate(R.layout.item_chat_message, parent, false);
-        return new MessageViewHolder(view);
+        MessageViewHolder holder = new MessageViewHolder(view);
+        if (textParams == null) {
+            textParams = TextViewCompat.getTextMetricsParams(holder.userMessageText);
+        }
+        return holder;
     }
-    
+
     @Override
     public void onBindViewHolder(@NonNull MessageViewHolder holder, int position) {
-        AIChatActivity.AIChatMessage message = messages.get(position);
+        AIChatActivity.AIChatMessage message = getItem(position);
         holder.bind(message);
     }
-    
-    @Override
-    public int getItemCount() {
-        return messages.size();
-    }
-    
+
     class MessageViewHolder extends RecyclerView.ViewHolder {
-        private MaterialCardView messageCard;
-        private TextView messageText;
-        private TextView timeText;
+        private MaterialCardView userMessageCard;
+        private MaterialCardView assistantMessageCard;
+        private TextView userMessageText;
+        private TextView assistantMessageText;
+        private TextView userTimeText;
+        private TextView assistantTimeText;
         private View userMessageLayout;
         private View assistantMessageLayout;
-        
+
         public MessageViewHolder(@NonNull View itemView) {
             super(itemView);
-            messageCard = itemView.findViewById(R.id.message_card);
-            messageText = itemView.findViewById(R.id.message_text);
-            timeText = itemView.findViewById(R.id.time_text);
             userMessageLayout = itemView.findViewById(R.id.user_message_layout);
             assistantMessageLayout = itemView.findViewById(R.id.assistant_message_layout);
+            // both layouts use the same ids, so look each up within its own layout
+            userMessageCard = userMessageLayout.findViewById(R.id.message_card);
+            userMessageText = userMessageLayout.findViewById(R.id.message_text);
+            userTimeText = userMessageLayout.findViewById(R.id.time_text);
+            assistantMessageCard = assistantMessageLayout.findViewById(R.id.message_card);
+            assistantMessageText = assistantMessageLayout.findViewById(R.id.message_text);
+            assistantTimeText = assistantMessageLayout.findViewById(R.id.time_text);
         }
-        
+
         public void bind(AIChatActivity.AIChatMessage message) {
-            messageText.setText(message.content);
+            TextView messageText = message.isUser ? userMessageText : assistantMessageText;
+            TextView timeText = message.isUser ? userTimeText : assistantTimeText;
+            MaterialCardView messageCard = message.isUser ? userMessageCard : assistantMessageCard;
+            setMessageText(messageText, message);
             timeText.setText(timeFormat.format(new Date(message.timestamp)));
-            
+
             // Configure layout based on message type
             if (message.isUser) {
                 // User message - align right, blue background
@@ -74,7 +151,7 @@ public class AIChatAdapter extends RecyclerView.Adapter<AIChatAdapter.MessageVie
                 // Assistant message - align left, gray background
                 userMessageLayout.setVisibility(View.GONE);
                 assistantMessageLayout.setVisibility(View.VISIBLE);
-                
+
                 if (message.isSystem) {
                     messageCard.setCardBackgroundColor(
                         itemView.getContext().getColor(R.color.system_message_background));
@@ -84,5 +161,18 @@ public class AIChatAdapter extends RecyclerView.Adapter<AIChatAdapter.MessageVie
                 }
             }
         }
+
+        private void setMessageText(TextView messageText, AIChatActivity.AIChatMessage message) {
+            PrecomputedTextCompat cached = textCache.get(message.id);
+            if (cached != null && cached.getParams().equals(TextViewCompat.getTextMetricsParams(messageText))) {
+                TextViewCompat.setPrecomputedText(messageText, cached);
+            } else if (message.content.length() >= PRECOMPUTE_MIN_LENGTH && textParams != null
+                    && messageText instanceof AppCompatTextView) {
+                // not measured yet: the view only waits for it if it is laid out before measuring finishes
+                ((AppCompatTextView) messageText).setTextFuture(precompute(message));
+            } else {
+                messageText.setText(message.content);
+            }
+        }
     }
-}
\ No newline at end of file
+}
@@ -18,6 +18,7 @@ import android.widget.AutoCompleteTextView;
 
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * AI Configuration Activity - allows users to configure AI providers and content filtering
@@ -166,8 +167,22 @@ public class AIConfigActivity extends AppCompatActivity {
         
         aiAgent.configureProvider(provider, apiKey, baseUrl, (success, message) -> {
             if (success) {
-                // Test the connection
-                aiAgent.testConnection().thenAccept(connectionSuccess -> {
+                // Check that the provider is reachable first, so that a bad URL or no network fails fast;
+                //  otherwise the full test, which sends a request, would wait out its much longer timeout
+                aiAgent.probeConnection().thenCompose(connectMs -> {
+                    if (connectMs < 0) {
+                        runOnUiThread(() -> {
+                            setLoading(false);
+                            Toast.makeText(this, "Provider unreachable. Please check the URL and your network.",
+                                         Toast.LENGTH_LONG).show();
+                        });
+                        return CompletableFuture.<Boolean>completedFuture(null);
+                    }
+                    return aiAgent.testConnection();
+                }).thenAccept(connectionSuccess -> {
+                    if (connectionSuccess == null) {
+                        return;
+                    }
                     runOnUiThread(() -> {
                         setLoading(false);
                         if (connectionSuccess) {
@@ -0,0 +1,393 @@
+package com.jio.writingapp;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.AtomicFile;
+import android.util.Log;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * AI configuration store.  The configuration is read as an immutable Snapshot, which each commit replaces
+ * atomically with a new one, numbered by an increasing version; listeners are called with the old and new
+ * snapshots.  Snapshots are written to disk on a background thread (just the latest one if several are
+ * committed meanwhile), so committing never waits for storage.
+ *
+ * Configuration saved in SharedPreferences by earlier versions is imported the first time the store is read.
+ */
+public class AIConfigStore {
+    private static final String TAG = "AIConfigStore";
+    private static final String FILE_NAME = "ai_config.json";
+    private static final String LEGACY_PREFS_NAME = "ai_agent_prefs";
+
+    public interface Listener {
+        /** Called on the committing thread; concurrent commits may be reported out of order */
+        void onConfigChanged(Snapshot previous, Snapshot current);
+    }
+
+    public static class ProviderSettings {
+        public static final ProviderSettings NONE = new ProviderSettings("", "");
+
+        public final String apiKey;
+        public final String baseUrl;
+
+        public ProviderSettings(String apiKey, String baseUrl) {
+            this.apiKey = apiKey != null ? apiKey : "";
+            this.baseUrl = baseUrl != null ? baseUrl : "";
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ProviderSettings)) return false;
+            ProviderSettings other = (ProviderSettings) o;
+            return apiKey.equals(other.apiKey) && baseUrl.equals(other.baseUrl);
+        }
+
+        @Override
+        public int hashCode() {
+            return apiKey.hashCode() * 31 + baseUrl.hashCode();
+        }
+    }
+
+    public static class Snapshot {
+        public final long version;
+        public final String currentProvider; // empty if none has been configured
+        public final Map<String, ProviderSettings> providers;
+        public final String retrievalMode;
+        public final String filterLevel;
+        public final boolean enableRagFiltering;
+        public final List<String> allowedTopics;
+        public final List<String> blockedTopics;
+        public final List<String> allowedUseCases;
+
+        private Snapshot(long version, String currentProvider, Map<String, ProviderSettings> providers,
+                         String retrievalMode, String filterLevel, boolean enableRagFiltering,
+                         List<String> allowedTopics, List<String> blockedTopics, List<String> allowedUseCases) {
+            this.version = version;
+            this.currentProvider = currentProvider;
+            this.providers = Collections.unmodifiableMap(providers);
+            this.retrievalMode = retrievalMode;
+            this.filterLevel = filterLevel;
+            this.enableRagFiltering = enableRagFiltering;
+            this.allowedTopics = Collections.unmodifiableList(allowedTopics);
+            this.blockedTopics = Collections.unmodifiableList(blockedTopics);
+            this.allowedUseCases = Collections.unmodifiableList(allowedUseCases);
+        }
+
+        static Snapshot defaults() {
+            return new Snapshot(0, "", new HashMap<>(), AIAgentManager.RetrievalMode.LEXICAL.getName(),
+                    "moderate", true, new ArrayList<>(), new ArrayList<>(), new ArrayList<>());
+        }
+
+        public ProviderSettings getProvider(String name) {
+            ProviderSettings settings = providers.get(name);
+            return settings != null ? settings : ProviderSettings.NONE;
+        }
+
+        public ProviderSettings getCurrentProviderSettings() {
+            return getProvider(currentProvider);
+        }
+
+        /** True if a provider has been selected and has an API key */
+        public boolean isConfigured() {
+            return !currentProvider.isEmpty() && !getCurrentProviderSettings().apiKey.isEmpty();
+        }
+
+        /** True if the current provider and its settings are the same as in other */
+        public boolean sameProvider(Snapshot other) {
+            return currentProvider.equals(other.currentProvider)
+                    && getCurrentProviderSettings().equals(other.getCurrentProviderSettings());
+        }
+
+        /** True if the content filter settings are the same as in other */
+        public boolean sameFilter(Snapshot other) {
+            return filterLevel.equals(other.filterLevel) && enableRagFiltering == other.enableRagFiltering
+                    && allowedTopics.equals(other.allowedTopics) && blockedTopics.equals(other.blockedTopics)
+                    && allowedUseCases.equals(other.allowedUseCases);
+        }
+
+        public AIAgentManager.ContentFilter getContentFilter() {
+            AIAgentManager.ContentFilter filter = new AIAgentManager.ContentFilter();
+            filter.filterLevel = filterLevel;
+            filter.enableRagFiltering = enableRagFiltering;
+            filter.allowedTopics = new ArrayList<>(allowedTopics);
+            filter.blockedTopics = new ArrayList<>(blockedTopics);
+            filter.allowedUseCases = new ArrayList<>(allowedUseCases);
+            return filter;
+        }
+    }
+
+    /**
+     * Changes to the configuration, applied to whatever snapshot is current when committed, so concurrent
+     * editors only conflict on the values they both set
+     */
+    public class Editor {
+        private String currentProvider;
+        private final Map<String, ProviderSettings> providers = new HashMap<>();
+        private String retrievalMode;
+        private AIAgentManager.ContentFilter filter;
+
+        private Editor() {}
+
+        public Editor setCurrentProvider(String name) {
+            currentProvider = name;
+            return this;
+        }
+
+        public Editor setProvider(String name, String apiKey, String baseUrl) {
+            providers.put(name, new ProviderSettings(apiKey, baseUrl));
+            return this;
+        }
+
+        public Editor setRetrievalMode(String mode) {
+            retrievalMode = mode;
+            return this;
+        }
+
+        public Editor setContentFilter(AIAgentManager.ContentFilter filter) {
+            this.filter = filter;
+            return this;
+        }
+
+        /**
+         * Publish the changes as a new snapshot, to be saved in the background; returns the new snapshot, or
+         * the current one if nothing changed
+         */
+        public Snapshot commit() {
+            Snapshot previous;
+            Snapshot current;
+            synchronized (AIConfigStore.this) {
+                previous = get();
+                Map<String, ProviderSettings> mergedProviders = new HashMap<>(previous.providers);
+                mergedProviders.putAll(providers);
+                current = new Snapshot(previous.version + 1,
+                        currentProvider != null ? currentProvider : previous.currentProvider,
+                        mergedProviders,
+                        retrievalMode != null ? retrievalMode : previous.retrievalMode,
+                        filter != null ? filter.filterLevel : previous.filterLevel,
+                        filter != null ? filter.enableRagFiltering : previous.enableRagFiltering,
+                        filter != null ? normalizeList(filter.allowedTopics) : previous.allowedTopics,
+                        filter != null ? normalizeList(filter.blockedTopics) : previous.blockedTopics,
+                        filter != null ? normalizeList(filter.allowedUseCases) : previous.allowedUseCases);
+                if (current.sameProvider(previous) && current.providers.equals(previous.providers)
+                        && current.retrievalMode.equals(previous.retrievalMode) && current.sameFilter(previous)) {
+                    return previous;
+                }
+                snapshot = current;
+            }
+            schedulePersist();
+            for (Listener listener : listeners) {
+                listener.onConfigChanged(previous, current);
+            }
+            return current;
+        }
+    }
+
+    private static AIConfigStore instance;
+
+    private final Context context;
+    private final File file;
+    private final ExecutorService persistExecutor = Executors.newSingleThreadExecutor();
+    private final AtomicBoolean persistPending = new AtomicBoolean(false);
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private volatile Snapshot snapshot; // null until loaded
+
+    public static synchronized AIConfigStore getInstance(Context context) {
+        if (instance == null) {
+            instance = new AIConfigStore(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private AIConfigStore(Context context) {
+        this.context = context;
+        this.file = new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    /**
+     * The current configuration; the first call reads it from disk, so make it off the main thread if
+     * possible (AIAgentManager does so when initializing)
+     */
+    public Snapshot get() {
+        Snapshot current = snapshot;
+        if (current != null) {
+            return current;
+        }
+        synchronized (this) {
+            if (snapshot == null) {
+                snapshot = load();
+            }
+            return snapshot;
+        }
+    }
+
+    public Editor edit() {
+        return new Editor();
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    private static List<String> normalizeList(List<String> values) {
+        List<String> result = new ArrayList<>();
+        if (values != null) {
+            for (String value : values) {
+                String trimmed = value.trim();
+                if (!trimmed.isEmpty()) {
+                    result.add(trimmed);
+                }
+            }
+        }
+        return result;
+    }
+
+    private Snapshot load() {
+        try {
+            return parse(new String(new AtomicFile(file).readFully(), StandardCharsets.UTF_8));
+        } catch (FileNotFoundException e) {
+            Snapshot imported = readLegacyPreferences(
+                    context.getSharedPreferences(LEGACY_PREFS_NAME, Context.MODE_PRIVATE));
+            if (imported == null) {
+                return Snapshot.defaults();
+            }
+            snapshot = imported;
+            schedulePersist();
+            return imported;
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Error reading AI configuration", e);
+            return Snapshot.defaults();
+        }
+    }
+
+    /** Read a snapshot saved by toJson() */
+    static Snapshot parse(String text) throws JSONException {
+        JSONObject json = new JSONObject(text);
+        Map<String, ProviderSettings> providers = new HashMap<>();
+        JSONObject jsonProviders = json.optJSONObject("providers");
+        if (jsonProviders != null) {
+            Iterator<String> names = jsonProviders.keys();
+            while (names.hasNext()) {
+                String name = names.next();
+                JSONObject settings = jsonProviders.getJSONObject(name);
+                providers.put(name, new ProviderSettings(settings.optString("api_key"),
+                        settings.optString("base_url")));
+            }
+        }
+        return new Snapshot(json.optLong("version"), json.optString("current_provider"), providers,
+                json.optString("retrieval_mode", AIAgentManager.RetrievalMode.LEXICAL.getName()),
+                json.optString("filter_level", "moderate"), json.optBoolean("enable_rag_filtering", true),
+                readList(json, "allowed_topics"), readList(json, "blocked_topics"),
+                readList(json, "allowed_use_cases"));
+    }
+
+    private static List<String> readList(JSONObject json, String key) {
+        List<String> values = new ArrayList<>();
+        JSONArray array = json.optJSONArray(key);
+        for (int i = 0; array != null && i < array.length(); i++) {
+            values.add(array.optString(i));
+        }
+        return values;
+    }
+
+    /**
+     * Configuration saved by versions before this store, as provider keys and comma separated lists; null if
+     * nothing was saved
+     */
+    static Snapshot readLegacyPreferences(SharedPreferences preferences) {
+        if (preferences.getAll().isEmpty()) {
+            return null;
+        }
+        Map<String, ProviderSettings> providers = new HashMap<>();
+        for (AIAgentManager.AIProvider provider : AIAgentManager.AIProvider.values()) {
+            String name = provider.getName();
+            if (preferences.contains(name + "_api_key") || preferences.contains(name + "_base_url")) {
+                providers.put(name, new ProviderSettings(preferences.getString(name + "_api_key", ""),
+                        preferences.getString(name + "_base_url", "")));
+            }
+        }
+        return new Snapshot(1, preferences.getString("current_provider", ""), providers,
+                preferences.getString("retrieval_mode", AIAgentManager.RetrievalMode.LEXICAL.getName()),
+                preferences.getString("filter_level", "moderate"),
+                preferences.getBoolean("enable_rag_filtering", true),
+                splitLegacyList(preferences.getString("allowed_topics", "")),
+                splitLegacyList(preferences.getString("blocked_topics", "")),
+                splitLegacyList(preferences.getString("allowed_use_cases", "")));
+    }
+
+    private static List<String> splitLegacyList(String joined) {
+        List<String> values = new ArrayList<>();
+        for (String value : joined.split(",")) {
+            values.add(value);
+        }
+        return normalizeList(values);
+    }
+
+    // write the latest snapshot in the background; commits made before the write starts share it
+    private void schedulePersist() {
+        if (persistPending.compareAndSet(false, true)) {
+            persistExecutor.execute(() -> {
+                persistPending.set(false);
+                persist(snapshot);
+            });
+        }
+    }
+
+    private void persist(Snapshot config) {
+        AtomicFile atomicFile = new AtomicFile(file);
+        FileOutputStream out = null;
+        try {
+            String json = toJson(config);
+            out = atomicFile.startWrite();
+            out.write(json.getBytes(StandardCharsets.UTF_8));
+            atomicFile.finishWrite(out);
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Error saving AI configuration", e);
+            if (out != null) {
+                atomicFile.failWrite(out);
+            }
+        }
+    }
+
+    /** Snapshot as saved on disk, read by parse() */
+    static String toJson(Snapshot config) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("version", config.version);
+        json.put("current_provider", config.currentProvider);
+        JSONObject jsonProviders = new JSONObject();
+        for (Map.Entry<String, ProviderSettings> entry : config.providers.entrySet()) {
+            JSONObject settings = new JSONObject();
+            settings.put("api_key", entry.getValue().apiKey);
+            settings.put("base_url", entry.getValue().baseUrl);
+            jsonProviders.put(entry.getKey(), settings);
+        }
+        json.put("providers", jsonProviders);
+        json.put("retrieval_mode", config.retrievalMode);
+        json.put("filter_level", config.filterLevel);
+        json.put("enable_rag_filtering", config.enableRagFiltering);
+        json.put("allowed_topics", new JSONArray(config.allowedTopics));
+        json.put("blocked_topics", new JSONArray(config.blockedTopics));
+        json.put("allowed_use_cases", new JSONArray(config.allowedUseCases));
+        return json.toString();
+    }
+}
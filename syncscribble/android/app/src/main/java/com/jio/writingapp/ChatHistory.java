@@ -0,0 +1,191 @@
+package com.jio.writingapp;
+
+import android.content.Context;
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Persistent AI chat history: messages are appended to a log file, and the offset of each message's record
+ * is appended to an index file, so any page of messages is read with two seeks.  Opening reads neither
+ * file, so it takes the same time however long the history is.  A message's id is its position in the log.
+ *
+ * Opening the files, appends and page loads all run in order on a background thread, so nothing blocks the
+ * caller and a load always sees earlier appends.  A message gets its id once it has been written.
+ */
+public class ChatHistory {
+    private static final String TAG = "ChatHistory";
+    public static final int PAGE_SIZE = 50;
+
+    // log record: int length of the rest, long timestamp, byte flags, UTF-8 content
+    private static final int RECORD_HEADER = 4 + 8 + 1;
+    private static final int FLAG_USER = 1;
+    private static final int FLAG_SYSTEM = 2;
+
+    private static ChatHistory instance;
+
+    private final ExecutorService ioExecutor = Executors.newSingleThreadExecutor();
+    private RandomAccessFile log; // only used on ioExecutor
+    private RandomAccessFile index;
+    private volatile long count = 0; // messages written
+
+    public static synchronized ChatHistory getInstance(Context context) {
+        if (instance == null) {
+            instance = new ChatHistory(new File(context.getFilesDir(), "chat_history"));
+        }
+        return instance;
+    }
+
+    private ChatHistory(File dir) {
+        ioExecutor.execute(() -> open(dir));
+    }
+
+    private void open(File dir) {
+        try {
+            dir.mkdirs();
+            log = new RandomAccessFile(new File(dir, "messages.log"), "rw");
+            index = new RandomAccessFile(new File(dir, "messages.idx"), "rw");
+            recover();
+        } catch (IOException e) {
+            Log.e(TAG, "Error opening chat history", e);
+            log = null;
+            index = null;
+        }
+    }
+
+    // An interrupted append leaves a partial index entry, or a log record without one (or only part of
+    //  one); drop them.  Only the last record is read.
+    private void recover() throws IOException {
+        long entries = index.length() / 8;
+        long logEnd = 0;
+        while (entries > 0) {
+            index.seek((entries - 1) * 8);
+            long offset = index.readLong();
+            if (offset + RECORD_HEADER <= log.length()) {
+                log.seek(offset);
+                long end = offset + 4 + log.readInt();
+                if (end <= log.length()) {
+                    logEnd = end;
+                    break;
+                }
+            }
+            --entries;
+        }
+        index.setLength(entries * 8);
+        log.setLength(logEnd);
+        count = entries;
+    }
+
+    /** Number of messages written; 0 until the history is opened (see {@link #whenOpened()}) */
+    public long size() {
+        return count;
+    }
+
+    /** Completes, on the history's thread, once the history is opened */
+    public CompletableFuture<Void> whenOpened() {
+        return CompletableFuture.runAsync(() -> {}, ioExecutor);
+    }
+
+    /**
+     * Add a message to the end of the history; completes, on the history's thread, with the message and its
+     * id once it is written, or with null if it couldn't be written
+     */
+    public CompletableFuture<AIChatActivity.AIChatMessage> append(String content, boolean isUser, boolean isSystem) {
+        long timestamp = System.currentTimeMillis();
+        return CompletableFuture.supplyAsync(() -> write(content, isUser, isSystem, timestamp), ioExecutor);
+    }
+
+    /**
+     * Messages from position {@code from} (clamped to the history), up to {@code n} of them, oldest first
+     */
+    public CompletableFuture<List<AIChatActivity.AIChatMessage>> load(long from, int n) {
+        return CompletableFuture.supplyAsync(() -> read(from, n), ioExecutor);
+    }
+
+    /** The most recent page of messages */
+    public CompletableFuture<List<AIChatActivity.AIChatMessage>> loadLatest() {
+        return CompletableFuture.supplyAsync(() -> read(Math.max(0, count - PAGE_SIZE), PAGE_SIZE), ioExecutor);
+    }
+
+    private AIChatActivity.AIChatMessage write(String text, boolean isUser, boolean isSystem, long timestamp) {
+        if (log == null) {
+            return null;
+        }
+        byte[] content = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + content.length);
+        record.putInt(RECORD_HEADER - 4 + content.length);
+        record.putLong(timestamp);
+        record.put((byte) ((isUser ? FLAG_USER : 0) | (isSystem ? FLAG_SYSTEM : 0)));
+        record.put(content);
+        long offset = 0;
+        try {
+            offset = log.length();
+            log.seek(offset);
+            log.write(record.array());
+            // index entry last, so a record is only visible once complete
+            index.seek(count * 8);
+            index.writeLong(offset);
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing chat history", e);
+            // drop what was written, so the next message takes this one's place
+            try {
+                index.setLength(count * 8);
+                log.setLength(offset);
+            } catch (IOException ignored) {
+                // recover() drops it when the history is next opened
+            }
+            return null;
+        }
+        return new AIChatActivity.AIChatMessage(count++, text, isUser, isSystem, timestamp);
+    }
+
+    private List<AIChatActivity.AIChatMessage> read(long from, int n) {
+        List<AIChatActivity.AIChatMessage> messages = new ArrayList<>();
+        try {
+            long written = index == null ? 0 : index.length() / 8;
+            from = Math.max(0, Math.min(from, written));
+            n = (int) Math.min(n, written - from);
+            if (n <= 0) {
+                return messages;
+            }
+            // offsets of the records, then the records in one read
+            byte[] entries = new byte[n * 8];
+            index.seek(from * 8);
+            index.readFully(entries);
+            ByteBuffer offsets = ByteBuffer.wrap(entries);
+            long start = offsets.getLong(0);
+            long end = from + n < written ? readOffset(from + n) : log.length();
+            byte[] data = new byte[(int) (end - start)];
+            log.seek(start);
+            log.readFully(data);
+
+            ByteBuffer records = ByteBuffer.wrap(data);
+            for (int i = 0; i < n; i++) {
+                records.position((int) (offsets.getLong(i * 8) - start));
+                int length = records.getInt();
+                long timestamp = records.getLong();
+                byte flags = records.get();
+                String content = new String(data, records.position(), length - (RECORD_HEADER - 4),
+                        StandardCharsets.UTF_8);
+                messages.add(new AIChatActivity.AIChatMessage(from + i, content, (flags & FLAG_USER) != 0,
+                        (flags & FLAG_SYSTEM) != 0, timestamp));
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Error reading chat history", e);
+        }
+        return messages;
+    }
+
+    private long readOffset(long position) throws IOException {
+        index.seek(position * 8);
+        return index.readLong();
+    }
+}
@@ -0,0 +1,224 @@
+package com.jio.writingapp;
+
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Conversation history sent as context with each message of a chat, within a fixed token budget: the most
+ * recent turns verbatim, after a running summary of older ones.  When the turns kept outgrow their share of
+ * the budget, the oldest are folded into the summary by a summarization request in the background; until it
+ * completes, turns that don't fit are left out, so requests never exceed the budget.
+ */
+public class ConversationContext {
+    private static final String TAG = "ConversationContext";
+    public static final int DEFAULT_TOKEN_BUDGET = 2000;
+    private static final float SUMMARY_SHARE = 0.25f; // of the budget, for the summary
+    private static final int MESSAGE_OVERHEAD = 4; // tokens for each message's role and separators
+
+    private static class Turn {
+        final String user;
+        final String assistant;
+        final int tokens;
+
+        Turn(String user, String assistant, int tokens) {
+            this.user = user;
+            this.assistant = assistant;
+            this.tokens = tokens;
+        }
+    }
+
+    private final AIAgentManager agent;
+    private final int tokenBudget;
+    private final List<Turn> turns = new ArrayList<>(); // not yet in the summary, oldest first
+    private String summary = "";
+    private int summaryTokens = 0;
+    private boolean compacting = false;
+    private int generation = 0; // incremented by clear(), to drop a compaction that was running
+
+    ConversationContext(AIAgentManager agent, int tokenBudget) {
+        this.agent = agent;
+        this.tokenBudget = tokenBudget;
+    }
+
+    /**
+     * Approximate token count of text for a provider's tokenizer: a word is split into a token per
+     * charsPerToken characters or part, each punctuation character is a token, and non-ASCII text is about
+     * a token per character (per byte pair for most tokenizers, so this overestimates a little).
+     */
+    public static int countTokens(String text, AIAgentManager.AIProvider provider) {
+        float charsPerToken = charsPerToken(provider);
+        int tokens = 0;
+        int wordLength = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80 && Character.isLetterOrDigit(c)) {
+                wordLength++;
+                continue;
+            }
+            tokens += (int) Math.ceil(wordLength / charsPerToken);
+            wordLength = 0;
+            if (c >= 0x80 || !Character.isWhitespace(c)) {
+                tokens++;
+            }
+        }
+        return tokens + (int) Math.ceil(wordLength / charsPerToken);
+    }
+
+    // average characters per token of English words, by tokenizer
+    private static float charsPerToken(AIAgentManager.AIProvider provider) {
+        switch (provider) {
+            case OPENAI: return 4.0f;
+            case GOOGLE_GEMINI: return 4.0f;
+            case ANTHROPIC: return 3.5f;
+            case OLLAMA: return 3.2f; // Llama sentencepiece vocabularies are smaller
+            default: return 3.2f;
+        }
+    }
+
+    /**
+     * Send a message with the conversation so far as context; the turn is added to the conversation if
+     * the request succeeds
+     */
+    public void sendMessage(String message, AIAgentManager.AIResponseCallback callback) {
+        String context = buildContext();
+        agent.generateText(message, context, new AIAgentManager.AIResponseCallback() {
+            @Override
+            public void onSuccess(AIAgentManager.AIResponse response) {
+                addTurn(message, response.content);
+                callback.onSuccess(response);
+            }
+
+            @Override
+            public void onError(String error) {
+                callback.onError(error);
+            }
+        });
+    }
+
+    /** Tokens of context the next message would be sent with */
+    public synchronized int getContextTokens() {
+        return countTokens(buildContext(), provider());
+    }
+
+    public synchronized String getSummary() {
+        return summary;
+    }
+
+    public synchronized void clear() {
+        turns.clear();
+        summary = "";
+        summaryTokens = 0;
+        compacting = false;
+        generation++;
+    }
+
+    private AIAgentManager.AIProvider provider() {
+        String name = agent.getCurrentProvider();
+        for (AIAgentManager.AIProvider provider : AIAgentManager.AIProvider.values()) {
+            if (provider.getName().equals(name)) {
+                return provider;
+            }
+        }
+        return AIAgentManager.AIProvider.CUSTOM;
+    }
+
+    private int summaryBudget() {
+        return (int) (tokenBudget * SUMMARY_SHARE);
+    }
+
+    // summary, then as many of the most recent turns as fit in the budget
+    private synchronized String buildContext() {
+        int available = tokenBudget - summaryTokens;
+        int first = turns.size();
+        while (first > 0 && turns.get(first - 1).tokens <= available) {
+            available -= turns.get(--first).tokens;
+        }
+        StringBuilder context = new StringBuilder();
+        if (!summary.isEmpty()) {
+            context.append("Summary of the earlier conversation:\n").append(summary).append("\n\n");
+        }
+        appendTurns(context, turns.subList(first, turns.size()));
+        return context.toString();
+    }
+
+    private static void appendTurns(StringBuilder text, List<Turn> turns) {
+        for (Turn turn : turns) {
+            text.append("User: ").append(turn.user).append("\n");
+            text.append("Assistant: ").append(turn.assistant).append("\n\n");
+        }
+    }
+
+    private synchronized void addTurn(String user, String assistant) {
+        AIAgentManager.AIProvider provider = provider();
+        int tokens = countTokens(user, provider) + countTokens(assistant, provider) + 2 * MESSAGE_OVERHEAD;
+        turns.add(new Turn(user, assistant, tokens));
+        compactIfNeeded();
+    }
+
+    // Once the turns outgrow their share of the budget, fold the oldest into the summary, leaving the
+    //  recent turns half their share so that compaction doesn't run again on every turn
+    private synchronized void compactIfNeeded() {
+        int turnsBudget = tokenBudget - summaryBudget();
+        int total = 0;
+        for (Turn turn : turns) {
+            total += turn.tokens;
+        }
+        if (compacting || total <= turnsBudget) {
+            return;
+        }
+        int count = 0;
+        while (count < turns.size() - 1 && total > turnsBudget / 2) {
+            total -= turns.get(count++).tokens;
+        }
+        if (count == 0) {
+            return;
+        }
+
+        StringBuilder text = new StringBuilder();
+        if (!summary.isEmpty()) {
+            text.append("Summary so far:\n").append(summary).append("\n\n");
+        }
+        appendTurns(text, turns.subList(0, count));
+        final int folded = count;
+        final int startGeneration = generation;
+        compacting = true;
+        agent.summarizeContent(truncate(text.toString(), tokenBudget), new AIAgentManager.AIResponseCallback() {
+            @Override
+            public void onSuccess(AIAgentManager.AIResponse response) {
+                synchronized (ConversationContext.this) {
+                    if (generation != startGeneration) {
+                        return;
+                    }
+                    summary = truncate(response.content.trim(), summaryBudget());
+                    summaryTokens = countTokens(summary, provider()) + MESSAGE_OVERHEAD;
+                    turns.subList(0, folded).clear();
+                    compacting = false;
+                    compactIfNeeded();
+                }
+            }
+
+            @Override
+            public void onError(String error) {
+                // turns are kept and retried after the next turn; context stays within budget meanwhile
+                Log.w(TAG, "Conversation compaction failed: " + error);
+                synchronized (ConversationContext.this) {
+                    if (generation == startGeneration) {
+                        compacting = false;
+                    }
+                }
+            }
+        });
+    }
+
+    // text cut (at a word boundary if possible) to about maxTokens
+    private String truncate(String text, int maxTokens) {
+        AIAgentManager.AIProvider provider = provider();
+        if (countTokens(text, provider) <= maxTokens) {
+            return text;
+        }
+        int end = (int) (text.length() * (float) maxTokens / countTokens(text, provider));
+        int space = text.lastIndexOf(' ', end);
+        return text.substring(0, space > end / 2 ? space : end);
+    }
+}
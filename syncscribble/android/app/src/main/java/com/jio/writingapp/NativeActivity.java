@@ -1,5 +1,9 @@
 package com.jio.writingapp;
 
+import androidx.activity.result.ActivityResult;
+import androidx.activity.result.ActivityResultLauncher;
+import androidx.activity.result.contract.ActivityResultContracts;
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.coordinatorlayout.widget.CoordinatorLayout;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
@@ -8,6 +12,8 @@ import com.google.android.material.appbar.MaterialToolbar;
 import com.google.android.material.button.MaterialButton;
 import com.google.android.material.button.MaterialButtonToggleGroup;
 import com.google.android.material.card.MaterialCardView;
+import com.google.android.material.dialog.MaterialAlertDialogBuilder;
+import com.google.android.material.progressindicator.LinearProgressIndicator;
 
 import android.content.Context;
 import android.content.Intent;
@@ -16,7 +22,10 @@ import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
 import android.provider.MediaStore;
 import android.util.DisplayMetrics;
 import android.view.Display;
@@ -42,6 +51,7 @@ import android.view.MotionEvent;
 import android.view.InputDevice;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.view.ViewTreeObserver;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
@@ -66,6 +76,7 @@ public class NativeActivity extends AppCompatActivity implements View.OnTouchLis
   private static native void jniOnDestroy();
   private static native void jniOnSaveInstanceState();
   private static native void jniOnLowMemory();
+  private static native String[] jniGetStartupPhases();
   
   // Touch event handling
   private static native void jniSendTouchEvent(int action, int pointerId, float x, float y, float pressure);
@@ -81,19 +92,38 @@ public class NativeActivity extends AppCompatActivity implements View.OnTouchLis
   // AI Agent
   private AIAgentManager aiAgent;
   
+  // Export: loading the notebook, waiting for the user to pick the output file, then running
+  private boolean openingExport;
+  private NotebookExporter pendingExport;
+  private NotebookExporter activeExport;
+  private final ActivityResultLauncher<Intent> exportFileLauncher = registerForActivityResult(
+      new ActivityResultContracts.StartActivityForResult(), this::onExportFilePicked);
+  
   static {
+    StartupTrace.begin("loadLibrary");
     System.loadLibrary("main");
+    StartupTrace.end("loadLibrary");
   }
 
   @Override
   protected void onCreate(Bundle savedInstanceState) {
+    StartupTrace.begin("onCreate");
     super.onCreate(savedInstanceState);
     
     // Initialize native code
+    StartupTrace.begin("jniOnCreate");
     jniOnCreate();
+    StartupTrace.end("jniOnCreate");
     
-    // Initialize AI Agent
+    // Initialize AI Agent: only once startup is done and the main thread is idle, since most sessions
+    //  don't use it before then (requests made earlier wait for it)
+    StartupTrace.begin("AIAgentManager.getInstance");
     aiAgent = AIAgentManager.getInstance(this);
+    StartupTrace.end("AIAgentManager.getInstance");
+    Looper.myQueue().addIdleHandler(() -> {
+      aiAgent.whenReady();
+      return false;
+    });
     
     // Setup Material 3 UI layout
     setupMaterial3UI();
@@ -103,11 +133,38 @@ public class NativeActivity extends AppCompatActivity implements View.OnTouchLis
     if (intent != null) {
       handleIntent(intent);
     }
+    
+    watchForFirstFrame();
+    StartupTrace.end("onCreate");
+  }
+  
+  // startup ends when the first frame is drawn; record it once the frame is done
+  private void watchForFirstFrame() {
+    View decorView = getWindow().getDecorView();
+    ViewTreeObserver.OnDrawListener listener = new ViewTreeObserver.OnDrawListener() {
+      @Override
+      public void onDraw() {
+        // can't remove a draw listener while drawing
+        decorView.post(() -> decorView.getViewTreeObserver().removeOnDrawListener(this));
+        new Handler(Looper.getMainLooper()).postAtFrontOfQueue(() -> {
+          StartupTrace.firstFrameDrawn();
+          reportFullyDrawn();
+        });
+      }
+    };
+    decorView.getViewTreeObserver().addOnDrawListener(listener);
+  }
+  
+  /** Native startup phases, as "name=microseconds" */
+  static String[] getNativeStartupPhases() {
+    return jniGetStartupPhases();
   }
   
   private void setupMaterial3UI() {
     // Use the Material 3 XML layout
+    StartupTrace.begin("setContentView");
     setContentView(R.layout.activity_main);
+    StartupTrace.end("setContentView");
     
     // Get references to layout components
     mRootLayout = findViewById(R.id.root_layout);
@@ -177,6 +234,9 @@ public class NativeActivity extends AppCompatActivity implements View.OnTouchLis
   @Override
   protected void onDestroy() {
     super.onDestroy();
+    if (activeExport != null) {
+      activeExport.cancel();
+    }
     jniOnDestroy();
   }
 
@@ -205,36 +265,7 @@ public class NativeActivity extends AppCompatActivity implements View.OnTouchLis
   // Touch Events
   @Override
   public boolean onTouch(View v, MotionEvent event) {
-    int action = event.getActionMasked();
-    int pointerCount = event.getPointerCount();
-    
-    for (int i = 0; i < pointerCount; i++) {
-      int pointerId = event.getPointerId(i);
-      float x = event.getX(i);
-      float y = event.getY(i);
-      float pressure = event.getPressure(i);
-      
-      int nativeAction = 0;
-      switch (action) {
-        case MotionEvent.ACTION_DOWN:
-        case MotionEvent.ACTION_POINTER_DOWN:
-          nativeAction = 0; // Touch down
-          break;
-        case MotionEvent.ACTION_MOVE:
-          nativeAction = 1; // Touch move
-          break;
-        case MotionEvent.ACTION_UP:
-        case MotionEvent.ACTION_POINTER_UP:
-          nativeAction = 2; // Touch up
-          break;
-        case MotionEvent.ACTION_CANCEL:
-          nativeAction = 3; // Touch cancel
-          break;
-      }
-      
-      jniSendTouchEvent(nativeAction, pointerId, x, y, pressure);
-    }
-    
+    TouchEventPacker.pack(event, NativeActivity::jniSendTouchEvent);
     return true;
   }
 
@@ -388,6 +419,12 @@ public class NativeActivity extends AppCompatActivity implements View.OnTouchLis
     } else if (id == R.id.action_ai_config) {
       openAIConfig();
       return true;
+    } else if (id == R.id.action_export) {
+      showExportDialog();
+      return true;
+    } else if (id == R.id.action_startup_report) {
+      showStartupReport();
+      return true;
     }
     
     return super.onOptionsItemSelected(item);
@@ -402,4 +439,120 @@ public class NativeActivity extends AppCompatActivity implements View.OnTouchLis
     Intent intent = new Intent(this, AIConfigActivity.class);
     startActivity(intent);
   }
+  
+  private void showExportDialog() {
+    String[] labels = {"PDF", "PNG images", "SVG"};
+    NotebookExporter.Format[] formats = {NotebookExporter.Format.PDF, NotebookExporter.Format.PNG,
+        NotebookExporter.Format.SVG};
+    new MaterialAlertDialogBuilder(this)
+        .setTitle("Export")
+        .setItems(labels, (dialog, which) -> pickExportFile(formats[which]))
+        .show();
+  }
+  
+  private void pickExportFile(NotebookExporter.Format format) {
+    if (activeExport != null) {
+      Toast.makeText(this, "An export is already running", Toast.LENGTH_SHORT).show();
+      return;
+    }
+    if (openingExport) {
+      return;
+    }
+    if (!NotebookExporter.open(format, this::onExportOpened)) {
+      Toast.makeText(this, "Save the notebook before exporting", Toast.LENGTH_LONG).show();
+      return;
+    }
+    openingExport = true;
+  }
+  
+  private void onExportOpened(NotebookExporter exporter) {
+    openingExport = false;
+    if (isDestroyed()) {
+      if (exporter != null) {
+        exporter.release();
+      }
+      return;
+    }
+    if (exporter == null) {
+      Toast.makeText(this, "Error reading notebook for export", Toast.LENGTH_LONG).show();
+      return;
+    }
+    if (pendingExport != null) {
+      pendingExport.release();
+    }
+    pendingExport = exporter;
+    Intent intent = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+    intent.addCategory(Intent.CATEGORY_OPENABLE);
+    intent.setType(exporter.getMimeType());
+    intent.putExtra(Intent.EXTRA_TITLE, exporter.getFileName());
+    exportFileLauncher.launch(intent);
+  }
+  
+  private void onExportFilePicked(ActivityResult result) {
+    NotebookExporter exporter = pendingExport;
+    pendingExport = null;
+    if (exporter == null) {
+      return;
+    }
+    Uri uri = result.getResultCode() == RESULT_OK && result.getData() != null ? result.getData().getData() : null;
+    ParcelFileDescriptor pfd = null;
+    try {
+      pfd = uri != null ? getContentResolver().openFileDescriptor(uri, "wt") : null;
+    } catch (FileNotFoundException e) {
+      Log.w("NativeActivity", "Error opening export file: " + uri, e);
+      Toast.makeText(this, "Unable to write to the chosen file", Toast.LENGTH_LONG).show();
+    }
+    if (pfd == null) {
+      exporter.release();
+      return;
+    }
+    
+    LinearProgressIndicator progress = new LinearProgressIndicator(this);
+    progress.setMax(exporter.getPageCount());
+    FrameLayout progressFrame = new FrameLayout(this);
+    int padding = (int) (24 * getResources().getDisplayMetrics().density);
+    progressFrame.setPadding(padding, padding, padding, 0);
+    progressFrame.addView(progress);
+    AlertDialog dialog = new MaterialAlertDialogBuilder(this)
+        .setTitle("Exporting " + exporter.getFileName())
+        .setView(progressFrame)
+        .setCancelable(false)
+        .setNegativeButton(android.R.string.cancel, (d, which) -> exporter.cancel())
+        .show();
+    
+    activeExport = exporter;
+    exporter.start(pfd, new NotebookExporter.Listener() {
+      @Override
+      public void onProgress(int pagesDone, int pageCount) {
+        progress.setProgressCompat(pagesDone, true);
+      }
+      
+      @Override
+      public void onFinished(String error) {
+        activeExport = null;
+        if (error != null) {
+          // don't leave a partial file behind
+          try {
+            DocumentsContract.deleteDocument(getContentResolver(), uri);
+          } catch (Exception e) {
+            Log.w("NativeActivity", "Error deleting incomplete export: " + uri, e);
+          }
+        }
+        if (isDestroyed()) {
+          return;
+        }
+        dialog.dismiss();
+        Toast.makeText(NativeActivity.this, error == null ? "Exported " + exporter.getPageCount() + " pages"
+            : error, Toast.LENGTH_LONG).show();
+      }
+    });
+  }
+  
+  private void showStartupReport() {
+    new MaterialAlertDialogBuilder(this)
+        .setTitle("Startup Report")
+        .setMessage(StartupTrace.getReport())
+        .setPositiveButton(android.R.string.ok, null)
+        .show();
+  }
 }
\ No newline at end of file
@@ -0,0 +1,160 @@
+package com.jio.writingapp;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Export of the open notebook to PNG, PDF or SVG.  Pages are rendered in parallel in native code (PageExporter
+ * in pageexport.h), with only a few pages in memory at a time, and written straight to a file descriptor, such
+ * as one for a document picked with ACTION_CREATE_DOCUMENT, without temporary files.  A single page is written
+ * as a PNG or SVG file and more than one as a ZIP archive with a file per page (see getMimeType()).
+ *
+ * Call open() and start() on the UI thread; the notebook is loaded for export on the export thread and the
+ * callbacks and listener are called on the UI thread.
+ */
+public class NotebookExporter {
+    private static final String TAG = "NotebookExporter";
+    // page units are 1/150 inch, so this is 300 dpi
+    public static final float PNG_SCALE = 2.0f;
+
+    // order must match PageExportOptions::Format
+    public enum Format {
+        PNG("png", "image/png"),
+        PDF("pdf", "application/pdf"),
+        SVG("svg", "image/svg+xml");
+
+        private final String extension;
+        private final String mimeType;
+
+        Format(String extension, String mimeType) {
+            this.extension = extension;
+            this.mimeType = mimeType;
+        }
+    }
+
+    public interface Listener {
+        void onProgress(int pagesDone, int pageCount);
+        /** error is null if the export succeeded */
+        void onFinished(String error);
+    }
+
+    private static native String jniPrepareExport();
+    private static native long jniCreateExporter(String path, int format, float scale);
+    private static native int jniGetPageCount(long exporter);
+    private native String jniExport(long exporter, int fd);
+    private static native void jniCancelExport(long exporter);
+    private static native void jniDestroyExporter(long exporter);
+
+    // one export at a time; the native render threads are sized to the cores
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final String path;
+    private final Format format;
+    private final int pageCount;
+    private long exporter;  // native PageExporter; guarded by this
+    private Listener listener;
+
+    private NotebookExporter(String path, Format format, long exporter) {
+        this.path = path;
+        this.format = format;
+        this.exporter = exporter;
+        this.pageCount = jniGetPageCount(exporter);
+    }
+
+    /**
+     * Prepare to export the open notebook, saving it first if modified since the saved file is exported.  The
+     * saved file is loaded on the export thread, then onOpened is called on the UI thread with the exporter, or
+     * with null if the notebook has never been saved or can't be read.  Returns false, without calling onOpened,
+     * if the notebook has never been saved or couldn't be saved.
+     */
+    public static boolean open(Format format, Consumer<NotebookExporter> onOpened) {
+        // saving touches the open document, so it stays on the UI thread
+        String path = jniPrepareExport();
+        if (path == null) {
+            return false;
+        }
+        executor.execute(() -> {
+            long ptr = jniCreateExporter(path, format.ordinal(), format == Format.PNG ? PNG_SCALE : 1.0f);
+            NotebookExporter exporter = ptr != 0 ? new NotebookExporter(path, format, ptr) : null;
+            mainHandler.post(() -> onOpened.accept(exporter));
+        });
+        return true;
+    }
+
+    public int getPageCount() {
+        return pageCount;
+    }
+
+    public boolean isZip() {
+        return pageCount > 1 && format != Format.PDF;
+    }
+
+    public String getMimeType() {
+        return isZip() ? "application/zip" : format.mimeType;
+    }
+
+    /** Suggested name for the output file */
+    public String getFileName() {
+        String name = new File(path).getName();
+        int dot = name.lastIndexOf('.');
+        return (dot > 0 ? name.substring(0, dot) : name) + "." + (isZip() ? "zip" : format.extension);
+    }
+
+    /**
+     * Export in the background, writing to pfd, which is closed when done.  The export can be stopped with
+     * cancel(), which finishes it with an error.
+     */
+    public void start(ParcelFileDescriptor pfd, Listener listener) {
+        this.listener = listener;
+        executor.execute(() -> {
+            // the render threads inherit this priority, so rendering doesn't take cycles from the UI
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            String error;
+            try {
+                long ptr;
+                synchronized (this) {
+                    ptr = exporter;
+                }
+                error = ptr != 0 ? jniExport(ptr, pfd.getFd()) : "Export canceled";
+            } finally {
+                try {
+                    pfd.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Error closing export file", e);
+                }
+                release();
+            }
+            final String result = error;
+            mainHandler.post(() -> listener.onFinished(result));
+        });
+    }
+
+    /** Stop the export; any thread */
+    public synchronized void cancel() {
+        if (exporter != 0) {
+            jniCancelExport(exporter);
+        }
+    }
+
+    /** Free the native exporter; only needed if start() is not called, e.g. if no output file was picked */
+    public synchronized void release() {
+        if (exporter != 0) {
+            jniDestroyExporter(exporter);
+            exporter = 0;
+        }
+    }
+
+    // called by jniExport on the export thread after each page is written
+    private void onNativeProgress(int pagesDone, int pageCount) {
+        mainHandler.post(() -> listener.onProgress(pagesDone, pageCount));
+    }
+}
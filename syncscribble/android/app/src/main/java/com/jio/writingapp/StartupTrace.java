@@ -0,0 +1,117 @@
+package com.jio.writingapp;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Cold start timing.  Each phase between begin() and end() is recorded for the startup report and marked
+ * as a trace section ("startup:<phase>"), so it also shows up in systrace/Perfetto captures.  Phases
+ * timed in native code (StartupSection in android/startuptrace.h) are added to the report when it is built.
+ *
+ * When the first frame is drawn, the report is logged as a single line under the tag "StartupTrace", with
+ * times in ms: "startup first_frame=<ms from process start> <phase>=<ms> ...".  Test runs can collect it
+ * from logcat to catch startup regressions.
+ */
+public final class StartupTrace {
+    private static final String TAG = "StartupTrace";
+
+    private static class Phase {
+        final String name;
+        final long startNanos;
+        long durationNanos = -1;
+
+        Phase(String name, long startNanos) {
+            this.name = name;
+            this.startNanos = startNanos;
+        }
+    }
+
+    private static final List<Phase> phases = new ArrayList<>();
+    private static long firstFrameMs = -1;
+
+    private StartupTrace() {}
+
+    /** Start timing a phase; must be ended by end() on the same thread */
+    public static void begin(String name) {
+        Trace.beginSection("startup:" + name);
+        synchronized (phases) {
+            phases.add(new Phase(name, System.nanoTime()));
+        }
+    }
+
+    /** End the most recent phase begun with this name */
+    public static void end(String name) {
+        long now = System.nanoTime();
+        synchronized (phases) {
+            for (int i = phases.size() - 1; i >= 0; i--) {
+                Phase phase = phases.get(i);
+                if (phase.name.equals(name) && phase.durationNanos < 0) {
+                    phase.durationNanos = now - phase.startNanos;
+                    break;
+                }
+            }
+        }
+        Trace.endSection();
+    }
+
+    /**
+     * Record that the first frame has been drawn, and log the report; later calls are ignored
+     */
+    public static void firstFrameDrawn() {
+        synchronized (phases) {
+            if (firstFrameMs >= 0) {
+                return;
+            }
+            firstFrameMs = SystemClock.uptimeMillis() - Process.getStartUptimeMillis();
+        }
+        Log.i(TAG, "startup " + formatPhases(" ", "%s=%.1f"));
+    }
+
+    /** Time from process start to the first frame drawn, in ms, or -1 if not drawn yet */
+    public static long getFirstFrameMs() {
+        synchronized (phases) {
+            return firstFrameMs;
+        }
+    }
+
+    /** The startup report: time of each phase, Java and native, and time to first frame */
+    public static String getReport() {
+        return formatPhases("\n", "%s: %.1f ms");
+    }
+
+    private static String formatPhases(String separator, String format) {
+        StringBuilder report = new StringBuilder();
+        synchronized (phases) {
+            report.append(String.format(Locale.US, format, "first_frame", (double) firstFrameMs));
+            for (Phase phase : phases) {
+                if (phase.durationNanos >= 0) {
+                    report.append(separator);
+                    report.append(String.format(Locale.US, format, phase.name, phase.durationNanos / 1e6));
+                }
+            }
+        }
+        for (String entry : nativePhases()) {
+            int split = entry.lastIndexOf('=');
+            if (split > 0) {
+                report.append(separator);
+                report.append(String.format(Locale.US, format, "native." + entry.substring(0, split),
+                        Long.parseLong(entry.substring(split + 1)) / 1e3));
+            }
+        }
+        return report.toString();
+    }
+
+    private static String[] nativePhases() {
+        try {
+            String[] entries = NativeActivity.getNativeStartupPhases();
+            return entries != null ? entries : new String[0];
+        } catch (UnsatisfiedLinkError e) {
+            return new String[0];
+        }
+    }
+}
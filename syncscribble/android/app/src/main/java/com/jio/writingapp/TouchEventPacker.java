@@ -0,0 +1,46 @@
+package com.jio.writingapp;
+
+import android.view.MotionEvent;
+
+/**
+ * Unpacks a MotionEvent into a touch event per pointer for the native side.  Called for every touch
+ * event, so it does no allocation; NativeActivity passes jniSendTouchEvent as the sink.
+ */
+public final class TouchEventPacker {
+    // native touch actions
+    public static final int TOUCH_DOWN = 0;
+    public static final int TOUCH_MOVE = 1;
+    public static final int TOUCH_UP = 2;
+    public static final int TOUCH_CANCEL = 3;
+
+    public interface Sink {
+        void onTouchEvent(int action, int pointerId, float x, float y, float pressure);
+    }
+
+    private TouchEventPacker() {}
+
+    /** Send each pointer of event to sink, with the event's action */
+    public static void pack(MotionEvent event, Sink sink) {
+        int nativeAction = nativeAction(event.getActionMasked());
+        int pointerCount = event.getPointerCount();
+        for (int i = 0; i < pointerCount; i++) {
+            sink.onTouchEvent(nativeAction, event.getPointerId(i), event.getX(i), event.getY(i),
+                    event.getPressure(i));
+        }
+    }
+
+    /** Native action for a MotionEvent action; other actions are sent as TOUCH_DOWN */
+    public static int nativeAction(int actionMasked) {
+        switch (actionMasked) {
+            case MotionEvent.ACTION_MOVE:
+                return TOUCH_MOVE;
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_POINTER_UP:
+                return TOUCH_UP;
+            case MotionEvent.ACTION_CANCEL:
+                return TOUCH_CANCEL;
+            default:
+                return TOUCH_DOWN;
+        }
+    }
+}
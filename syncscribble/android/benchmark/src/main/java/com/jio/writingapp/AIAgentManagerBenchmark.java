@@ -0,0 +1,86 @@
+package com.jio.writingapp;
+
+import android.content.Context;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Requests through AIAgentManager, from building the request to the callback, with the native agent
+ * answering at once (AIAgentManagerNatives), so only the Java side is timed: the hand-offs to the executor
+ * and, for a conversation, building the context from earlier turns and counting their tokens.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AIAgentManagerBenchmark {
+    private static final String PROMPT = "What were the main action items from the meeting notes on page three?";
+    private static final String CONTEXT = "Meeting notes, 14 March.  Attendees: design, engineering, QA.  "
+            + "Action items: finalize the export dialog, profile the pen latency on low-end tablets, and "
+            + "write up the sync conflict cases before the next review.";
+
+    private AIAgentManager manager;
+    private ConversationContext conversation;
+
+    @Setup
+    public void setup() throws IOException {
+        Context context = new Context(Files.createTempDirectory("aibench").toFile());
+        manager = AIAgentManager.getInstance(context);
+        manager.whenReady().join();
+        if (!manager.isReady()) {
+            throw new IllegalStateException("AI agent not initialized");
+        }
+        // enough turns that the context is at the token budget and compaction has run
+        conversation = manager.newConversation(ConversationContext.DEFAULT_TOKEN_BUDGET);
+        for (int i = 0; i < 50; i++) {
+            sendMessage();
+        }
+    }
+
+    private static AIAgentManager.AIResponseCallback complete(CompletableFuture<AIAgentManager.AIResponse> result) {
+        return new AIAgentManager.AIResponseCallback() {
+            @Override
+            public void onSuccess(AIAgentManager.AIResponse response) {
+                result.complete(response);
+            }
+
+            @Override
+            public void onError(String error) {
+                result.completeExceptionally(new IllegalStateException(error));
+            }
+        };
+    }
+
+    @Benchmark
+    public AIAgentManager.AIResponse generateText() {
+        CompletableFuture<AIAgentManager.AIResponse> result = new CompletableFuture<>();
+        manager.generateText(PROMPT, CONTEXT, complete(result));
+        return result.join();
+    }
+
+    @Benchmark
+    public AIAgentManager.AIResponse sendMessage() {
+        CompletableFuture<AIAgentManager.AIResponse> result = new CompletableFuture<>();
+        conversation.sendMessage(PROMPT, complete(result));
+        return result.join();
+    }
+
+    @Benchmark
+    public int countTokens() {
+        return ConversationContext.countTokens(CONTEXT, AIAgentManager.AIProvider.ANTHROPIC);
+    }
+}
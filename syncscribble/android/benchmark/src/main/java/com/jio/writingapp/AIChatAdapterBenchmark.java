@@ -0,0 +1,80 @@
+package com.jio.writingapp;
+
+import android.content.Context;
+import android.view.ViewGroup;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Binding chat messages to a view holder, as when scrolling: short messages are set as plain text, long
+ * ones from the measured text cache, which is filled before timing.  Text measuring itself isn't timed,
+ * since PrecomputedTextCompat is a stand-in.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AIChatAdapterBenchmark {
+    private static final int MESSAGES = 64;
+
+    @Param({"short", "long"})
+    public String messages;
+
+    private AIChatAdapter adapter;
+    private AIChatAdapter.MessageViewHolder holder;
+    private int position = 0;
+
+    @Setup
+    public void setup() {
+        Context context = new Context(new File(System.getProperty("java.io.tmpdir")));
+        String text = "Summarize my notes from today's lecture.";
+        if (messages.equals("long")) {
+            StringBuilder answer = new StringBuilder();
+            while (answer.length() < 1500) {
+                answer.append("The lecture covered eigenvalues and how they describe the scaling of a linear map "
+                        + "along its eigenvectors. ");
+            }
+            text = answer.toString();
+        }
+        List<AIChatActivity.AIChatMessage> list = new ArrayList<>();
+        long timestamp = 1700000000000L;
+        for (int i = 0; i < MESSAGES; i++) {
+            list.add(new AIChatActivity.AIChatMessage(i, text, i % 2 == 0, i % 16 == 15, timestamp + 60000L * i));
+        }
+        adapter = new AIChatAdapter();
+        adapter.submitList(list);
+        holder = adapter.onCreateViewHolder(new ViewGroup(context), 0);
+        // the first bind of a long message measures it in the background; measuring the view waits for that
+        for (int i = 0; i < MESSAGES; i++) {
+            adapter.onBindViewHolder(holder, i);
+            holder.itemView.measure(0, 0);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        adapter.shutdown();
+    }
+
+    @Benchmark
+    public void bind() {
+        adapter.onBindViewHolder(holder, position);
+        position = (position + 1) % MESSAGES;
+    }
+}
@@ -0,0 +1,83 @@
+package com.jio.writingapp;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Reading and writing the AI configuration, including the content filter: the JSON read when the agent
+ * is initialized, the SharedPreferences of earlier versions (comma separated filter lists) imported once,
+ * and the ContentFilter built for the native agent when the filter changes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AIConfigStoreBenchmark {
+    private SharedPreferences legacyPreferences;
+    private AIConfigStore.Snapshot snapshot;
+    private String json;
+
+    @Setup
+    public void setup() throws JSONException {
+        Context context = new Context(new File(System.getProperty("java.io.tmpdir")));
+        legacyPreferences = context.getSharedPreferences("ai_agent_prefs", Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = legacyPreferences.edit()
+                .putString("current_provider", "anthropic")
+                .putString("filter_level", "strict")
+                .putBoolean("enable_rag_filtering", true)
+                .putString("allowed_topics", list("topic", 20))
+                .putString("blocked_topics", list("blocked", 10))
+                .putString("allowed_use_cases", "summarization, key_extraction, question_answering, text_generation");
+        for (String provider : new String[] {"openai", "anthropic", "ollama"}) {
+            editor.putString(provider + "_api_key", "sk-" + provider + "-0123456789abcdef0123456789abcdef")
+                    .putString(provider + "_base_url", "https://api." + provider + ".example.com/v1");
+        }
+        editor.apply();
+        snapshot = AIConfigStore.readLegacyPreferences(legacyPreferences);
+        json = AIConfigStore.toJson(snapshot);
+    }
+
+    // comma separated, with spaces to trim as typed in the settings screen
+    private static String list(String prefix, int n) {
+        StringBuilder joined = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+            joined.append(i > 0 ? ", " : "").append(prefix).append(' ').append(i);
+        }
+        return joined.toString();
+    }
+
+    @Benchmark
+    public AIConfigStore.Snapshot parseJson() throws JSONException {
+        return AIConfigStore.parse(json);
+    }
+
+    @Benchmark
+    public String toJson() throws JSONException {
+        return AIConfigStore.toJson(snapshot);
+    }
+
+    @Benchmark
+    public AIConfigStore.Snapshot readLegacyPreferences() {
+        return AIConfigStore.readLegacyPreferences(legacyPreferences);
+    }
+
+    @Benchmark
+    public AIAgentManager.ContentFilter getContentFilter() {
+        return snapshot.getContentFilter();
+    }
+}
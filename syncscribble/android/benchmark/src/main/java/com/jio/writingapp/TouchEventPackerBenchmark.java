@@ -0,0 +1,74 @@
+package com.jio.writingapp;
+
+import android.view.MotionEvent;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Touch events as sent by NativeActivity.onTouch(), for a stylus (one pointer) and a five finger gesture;
+ * the sink stands in for jniSendTouchEvent.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TouchEventPackerBenchmark {
+    @Param({"1", "5"})
+    public int pointers;
+
+    private MotionEvent move;
+    private MotionEvent pointerDown;
+    private TouchEventPacker.Sink sink;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        move = event(MotionEvent.ACTION_MOVE);
+        pointerDown = event(MotionEvent.ACTION_POINTER_DOWN
+                | ((pointers - 1) << MotionEvent.ACTION_POINTER_INDEX_SHIFT));
+        sink = (action, pointerId, x, y, pressure) -> {
+            blackhole.consume(action);
+            blackhole.consume(pointerId);
+            blackhole.consume(x);
+            blackhole.consume(y);
+            blackhole.consume(pressure);
+        };
+    }
+
+    private MotionEvent event(int action) {
+        MotionEvent.PointerProperties[] properties = new MotionEvent.PointerProperties[pointers];
+        MotionEvent.PointerCoords[] coords = new MotionEvent.PointerCoords[pointers];
+        for (int i = 0; i < pointers; i++) {
+            properties[i] = new MotionEvent.PointerProperties();
+            properties[i].id = i;
+            properties[i].toolType = pointers == 1 ? MotionEvent.TOOL_TYPE_STYLUS : MotionEvent.TOOL_TYPE_FINGER;
+            coords[i] = new MotionEvent.PointerCoords();
+            coords[i].x = 100.5f + 40 * i;
+            coords[i].y = 200.25f + 25 * i;
+            coords[i].pressure = 0.6f;
+        }
+        return MotionEvent.obtain(0, 0, action, pointers, properties, coords, 0, 0, 1, 1, 0, 0, 0, 0);
+    }
+
+    @Benchmark
+    public void packMove() {
+        TouchEventPacker.pack(move, sink);
+    }
+
+    @Benchmark
+    public void packPointerDown() {
+        TouchEventPacker.pack(pointerDown, sink);
+    }
+}
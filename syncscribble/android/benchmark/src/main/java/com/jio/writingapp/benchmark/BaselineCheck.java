@@ -0,0 +1,102 @@
+package com.jio.writingapp.benchmark;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Compares JMH JSON results with a baseline: prints the change of each benchmark and exits with status 1
+ * if any got worse by more than the threshold (a fraction) beyond the error of both scores.  Benchmarks
+ * missing from either file are listed but not counted.
+ *
+ * Usage: BaselineCheck baseline.json results.json [threshold]
+ */
+public final class BaselineCheck {
+    private static final class Score {
+        final String mode;
+        final String unit;
+        final double score;
+        final double error;
+
+        Score(JSONObject result) {
+            JSONObject metric = result.getJSONObject("primaryMetric");
+            mode = result.getString("mode");
+            unit = metric.getString("scoreUnit");
+            score = metric.getDouble("score");
+            // NaN if there were too few iterations to estimate it
+            double scoreError = metric.optDouble("scoreError", 0);
+            error = Double.isNaN(scoreError) ? 0 : scoreError;
+        }
+    }
+
+    private BaselineCheck() {}
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: BaselineCheck baseline.json results.json [threshold]");
+            System.exit(2);
+        }
+        Map<String, Score> baseline = read(args[0]);
+        Map<String, Score> results = read(args[1]);
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 0.15;
+
+        int regressions = 0;
+        System.out.println(String.format(Locale.US, "%-64s %12s %12s %8s", "Benchmark", "Baseline", "Score", "Change"));
+        for (Map.Entry<String, Score> entry : results.entrySet()) {
+            Score current = entry.getValue();
+            Score base = baseline.get(entry.getKey());
+            if (base == null || !base.unit.equals(current.unit) || !base.mode.equals(current.mode)) {
+                System.out.println(String.format(Locale.US, "%-64s %12s %12.3f %8s  %s", entry.getKey(), "-",
+                        current.score, "-", "no baseline"));
+                continue;
+            }
+            // throughput is better when higher, the other modes (times) when lower
+            boolean higherIsBetter = current.mode.equals("thrpt");
+            double change = (current.score - base.score) / base.score;
+            double worse = higherIsBetter ? (base.score - base.error) - (current.score + current.error)
+                                          : (current.score - current.error) - (base.score + base.error);
+            boolean regressed = (higherIsBetter ? -change : change) > threshold && worse > 0;
+            if (regressed) {
+                regressions++;
+            }
+            System.out.println(String.format(Locale.US, "%-64s %12.3f %12.3f %+7.1f%%  %s%s", entry.getKey(),
+                    base.score, current.score, 100 * change, current.unit, regressed ? "  REGRESSION" : ""));
+        }
+        for (String name : baseline.keySet()) {
+            if (!results.containsKey(name)) {
+                System.out.println(String.format(Locale.US, "%-64s  not run", name));
+            }
+        }
+        if (regressions > 0) {
+            System.out.println(regressions + " benchmark(s) slower than the baseline by more than "
+                    + Math.round(100 * threshold) + "%");
+            System.exit(1);
+        }
+    }
+
+    // results by benchmark name and parameters
+    private static Map<String, Score> read(String path) throws IOException {
+        JSONArray array = new JSONArray(new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.UTF_8));
+        Map<String, Score> scores = new LinkedHashMap<>();
+        for (int i = 0; i < array.length(); i++) {
+            JSONObject result = array.getJSONObject(i);
+            StringBuilder name = new StringBuilder(result.getString("benchmark").replace("com.jio.writingapp.", ""));
+            JSONObject params = result.optJSONObject("params");
+            if (params != null) {
+                Map<String, Object> sorted = new TreeMap<>(params.toMap());
+                for (Map.Entry<String, Object> param : sorted.entrySet()) {
+                    name.append(':').append(param.getKey()).append('=').append(param.getValue());
+                }
+            }
+            scores.put(name.toString(), new Score(result));
+        }
+        return scores;
+    }
+}
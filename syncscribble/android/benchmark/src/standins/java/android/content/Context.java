@@ -0,0 +1,34 @@
+package android.content;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Stand-in: an application context with its files in filesDir */
+public class Context {
+    public static final int MODE_PRIVATE = 0;
+
+    private final File filesDir;
+    private final Map<String, SharedPreferences> preferences = new HashMap<>();
+
+    public Context(File filesDir) {
+        this.filesDir = filesDir;
+    }
+
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    public File getFilesDir() {
+        return filesDir;
+    }
+
+    public synchronized SharedPreferences getSharedPreferences(String name, int mode) {
+        return preferences.computeIfAbsent(name, n -> new SharedPreferences.MapPreferences());
+    }
+
+    /** Colors are not resolved; the resource id serves as the color */
+    public int getColor(int id) {
+        return 0xFF000000 | id;
+    }
+}
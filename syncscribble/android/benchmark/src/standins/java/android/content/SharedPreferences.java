@@ -0,0 +1,70 @@
+package android.content;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/** Stand-in: the parts used by the app; Context returns in-memory preferences */
+public interface SharedPreferences {
+    interface Editor {
+        Editor putString(String key, String value);
+        Editor putBoolean(String key, boolean value);
+        void apply();
+    }
+
+    Map<String, ?> getAll();
+    String getString(String key, String defValue);
+    boolean getBoolean(String key, boolean defValue);
+    boolean contains(String key);
+    Editor edit();
+
+    class MapPreferences implements SharedPreferences {
+        private final Map<String, Object> values = new HashMap<>();
+
+        @Override
+        public synchronized Map<String, ?> getAll() {
+            return new HashMap<>(values);
+        }
+
+        @Override
+        public synchronized String getString(String key, String defValue) {
+            Object value = values.get(key);
+            return value instanceof String ? (String) value : defValue;
+        }
+
+        @Override
+        public synchronized boolean getBoolean(String key, boolean defValue) {
+            Object value = values.get(key);
+            return value instanceof Boolean ? (Boolean) value : defValue;
+        }
+
+        @Override
+        public synchronized boolean contains(String key) {
+            return values.containsKey(key);
+        }
+
+        @Override
+        public Editor edit() {
+            Map<String, Object> changes = new HashMap<>();
+            return new Editor() {
+                @Override
+                public Editor putString(String key, String value) {
+                    changes.put(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor putBoolean(String key, boolean value) {
+                    changes.put(key, value);
+                    return this;
+                }
+
+                @Override
+                public void apply() {
+                    synchronized (MapPreferences.this) {
+                        values.putAll(changes);
+                    }
+                }
+            };
+        }
+    }
+}
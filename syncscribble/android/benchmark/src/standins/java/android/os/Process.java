@@ -0,0 +1,13 @@
+package android.os;
+
+/** Stand-in */
+public class Process {
+    public static final int THREAD_PRIORITY_BACKGROUND = 10;
+    private static final long START_UPTIME_MILLIS = SystemClock.uptimeMillis();
+
+    public static long getStartUptimeMillis() {
+        return START_UPTIME_MILLIS;
+    }
+
+    public static void setThreadPriority(int priority) {}
+}
@@ -0,0 +1,47 @@
+package android.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/** Stand-in: written to a .new file which replaces the file when finished */
+public class AtomicFile {
+    private final File baseName;
+    private final File newName;
+
+    public AtomicFile(File baseName) {
+        this.baseName = baseName;
+        this.newName = new File(baseName.getPath() + ".new");
+    }
+
+    public FileOutputStream startWrite() throws IOException {
+        return new FileOutputStream(newName);
+    }
+
+    public void finishWrite(FileOutputStream str) {
+        try {
+            str.close();
+            Files.move(newName.toPath(), baseName.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Log.e("AtomicFile", "finishWrite: Failed to rename", e);
+        }
+    }
+
+    public void failWrite(FileOutputStream str) {
+        try {
+            str.close();
+        } catch (IOException e) {
+            // ignored, as by Android
+        }
+        newName.delete();
+    }
+
+    public byte[] readFully() throws IOException {
+        try (FileInputStream in = new FileInputStream(baseName)) {
+            return in.readAllBytes();
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package android.util;
+
+/** Stand-in: errors and warnings go to stderr so that failures in a benchmark run are seen */
+public class Log {
+    public static int i(String tag, String msg) {
+        return 0;
+    }
+
+    public static int d(String tag, String msg) {
+        return 0;
+    }
+
+    public static int w(String tag, String msg) {
+        return println("W", tag, msg, null);
+    }
+
+    public static int w(String tag, String msg, Throwable tr) {
+        return println("W", tag, msg, tr);
+    }
+
+    public static int e(String tag, String msg) {
+        return println("E", tag, msg, null);
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        return println("E", tag, msg, tr);
+    }
+
+    private static int println(String level, String tag, String msg, Throwable tr) {
+        System.err.println(level + "/" + tag + ": " + msg + (tr != null ? " (" + tr + ")" : ""));
+        return 0;
+    }
+}
@@ -0,0 +1,36 @@
+package android.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** Stand-in: entries count as size 1, as with the default sizeOf() */
+public class LruCache<K, V> {
+    private final int maxSize;
+    private final LinkedHashMap<K, V> map;
+
+    public LruCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.map = new LinkedHashMap<K, V>(0, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > LruCache.this.maxSize;
+            }
+        };
+    }
+
+    public final synchronized V get(K key) {
+        return map.get(key);
+    }
+
+    public final synchronized V put(K key, V value) {
+        return map.put(key, value);
+    }
+
+    public final synchronized V remove(K key) {
+        return map.remove(key);
+    }
+
+    public final synchronized int size() {
+        return map.size();
+    }
+}
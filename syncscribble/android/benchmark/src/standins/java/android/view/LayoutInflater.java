@@ -0,0 +1,58 @@
+package android.view;
+
+import android.content.Context;
+import android.widget.TextView;
+import androidx.appcompat.widget.AppCompatTextView;
+import com.google.android.material.card.MaterialCardView;
+import com.jio.writingapp.R;
+
+/** Stand-in: builds the view tree of the layouts used by the benchmarked classes */
+public class LayoutInflater {
+    private final Context context;
+
+    private LayoutInflater(Context context) {
+        this.context = context;
+    }
+
+    public static LayoutInflater from(Context context) {
+        return new LayoutInflater(context);
+    }
+
+    public View inflate(int resource, ViewGroup root, boolean attachToRoot) {
+        View view;
+        if (resource == R.layout.item_chat_message) {
+            view = inflateChatMessage();
+        } else {
+            throw new IllegalArgumentException("No stand-in for layout " + resource);
+        }
+        if (root != null && attachToRoot) {
+            root.addView(view);
+            return root;
+        }
+        return view;
+    }
+
+    // item_chat_message.xml: a user and an assistant layout, each with a card holding the text, and a time;
+    //  TextViews are inflated as AppCompatTextView by AppCompat
+    private View inflateChatMessage() {
+        ViewGroup item = new ViewGroup(context);
+        item.addView(messageLayout(R.id.user_message_layout));
+        item.addView(messageLayout(R.id.assistant_message_layout));
+        return item;
+    }
+
+    private ViewGroup messageLayout(int id) {
+        ViewGroup layout = new ViewGroup(context);
+        layout.setId(id);
+        MaterialCardView card = new MaterialCardView(context);
+        card.setId(R.id.message_card);
+        TextView text = new AppCompatTextView(context);
+        text.setId(R.id.message_text);
+        card.addView(text);
+        layout.addView(card);
+        TextView time = new AppCompatTextView(context);
+        time.setId(R.id.time_text);
+        layout.addView(time);
+        return layout;
+    }
+}
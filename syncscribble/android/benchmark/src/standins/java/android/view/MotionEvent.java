@@ -0,0 +1,82 @@
+package android.view;
+
+/** Stand-in: pointer ids and coordinates of an event, created with obtain() as on Android */
+public final class MotionEvent {
+    public static final int ACTION_MASK = 0xff;
+    public static final int ACTION_DOWN = 0;
+    public static final int ACTION_UP = 1;
+    public static final int ACTION_MOVE = 2;
+    public static final int ACTION_CANCEL = 3;
+    public static final int ACTION_POINTER_DOWN = 5;
+    public static final int ACTION_POINTER_UP = 6;
+    public static final int ACTION_POINTER_INDEX_SHIFT = 8;
+    public static final int TOOL_TYPE_FINGER = 1;
+    public static final int TOOL_TYPE_STYLUS = 2;
+
+    public static final class PointerProperties {
+        public int id;
+        public int toolType;
+    }
+
+    public static final class PointerCoords {
+        public float x;
+        public float y;
+        public float pressure;
+        public float size;
+    }
+
+    private int action;
+    private int pointerCount;
+    private int[] ids;
+    private float[] coords; // x, y, pressure per pointer
+
+    private MotionEvent() {}
+
+    public static MotionEvent obtain(long downTime, long eventTime, int action, int pointerCount,
+                                     PointerProperties[] pointerProperties, PointerCoords[] pointerCoords,
+                                     int metaState, int buttonState, float xPrecision, float yPrecision,
+                                     int deviceId, int edgeFlags, int source, int flags) {
+        MotionEvent event = new MotionEvent();
+        event.action = action;
+        event.pointerCount = pointerCount;
+        event.ids = new int[pointerCount];
+        event.coords = new float[3 * pointerCount];
+        for (int i = 0; i < pointerCount; i++) {
+            event.ids[i] = pointerProperties[i].id;
+            event.coords[3 * i] = pointerCoords[i].x;
+            event.coords[3 * i + 1] = pointerCoords[i].y;
+            event.coords[3 * i + 2] = pointerCoords[i].pressure;
+        }
+        return event;
+    }
+
+    public int getAction() {
+        return action;
+    }
+
+    public int getActionMasked() {
+        return action & ACTION_MASK;
+    }
+
+    public int getPointerCount() {
+        return pointerCount;
+    }
+
+    public int getPointerId(int pointerIndex) {
+        return ids[pointerIndex];
+    }
+
+    public float getX(int pointerIndex) {
+        return coords[3 * pointerIndex];
+    }
+
+    public float getY(int pointerIndex) {
+        return coords[3 * pointerIndex + 1];
+    }
+
+    public float getPressure(int pointerIndex) {
+        return coords[3 * pointerIndex + 2];
+    }
+
+    public void recycle() {}
+}
@@ -0,0 +1,58 @@
+package android.view;
+
+import android.content.Context;
+
+/** Stand-in: id, visibility and measuring; no drawing */
+public class View {
+    public static final int NO_ID = -1;
+    public static final int VISIBLE = 0;
+    public static final int INVISIBLE = 4;
+    public static final int GONE = 8;
+
+    public interface OnTouchListener {
+        boolean onTouch(View v, MotionEvent event);
+    }
+
+    private final Context context;
+    private int id = NO_ID;
+    private int visibility = VISIBLE;
+
+    public View(Context context) {
+        this.context = context;
+    }
+
+    public Context getContext() {
+        return context;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public void setId(int id) {
+        this.id = id;
+    }
+
+    public int getVisibility() {
+        return visibility;
+    }
+
+    public void setVisibility(int visibility) {
+        this.visibility = visibility;
+    }
+
+    @SuppressWarnings("unchecked")
+    public final <T extends View> T findViewById(int id) {
+        return id == NO_ID ? null : (T) findViewTraversal(id);
+    }
+
+    protected View findViewTraversal(int id) {
+        return id == this.id ? this : null;
+    }
+
+    public final void measure(int widthMeasureSpec, int heightMeasureSpec) {
+        onMeasure(widthMeasureSpec, heightMeasureSpec);
+    }
+
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {}
+}
@@ -0,0 +1,47 @@
+package android.view;
+
+import android.content.Context;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Stand-in */
+public class ViewGroup extends View {
+    private final List<View> children = new ArrayList<>();
+
+    public ViewGroup(Context context) {
+        super(context);
+    }
+
+    public void addView(View child) {
+        children.add(child);
+    }
+
+    public int getChildCount() {
+        return children.size();
+    }
+
+    public View getChildAt(int index) {
+        return children.get(index);
+    }
+
+    @Override
+    protected View findViewTraversal(int id) {
+        if (id == getId()) {
+            return this;
+        }
+        for (View child : children) {
+            View found = child.findViewTraversal(id);
+            if (found != null) {
+                return found;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        for (View child : children) {
+            child.measure(widthMeasureSpec, heightMeasureSpec);
+        }
+    }
+}
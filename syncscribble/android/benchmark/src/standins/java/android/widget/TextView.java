@@ -0,0 +1,30 @@
+package android.widget;
+
+import android.content.Context;
+import android.view.View;
+
+/** Stand-in: holds the text; no layout */
+public class TextView extends View {
+    private CharSequence text = "";
+    private float textSize = 42.0f; // 14sp at xxhdpi
+
+    public TextView(Context context) {
+        super(context);
+    }
+
+    public CharSequence getText() {
+        return text;
+    }
+
+    public void setText(CharSequence text) {
+        this.text = text != null ? text : "";
+    }
+
+    public float getTextSize() {
+        return textSize;
+    }
+
+    public void setTextSize(float size) {
+        textSize = size;
+    }
+}
@@ -0,0 +1,41 @@
+package androidx.appcompat.widget;
+
+import android.content.Context;
+import android.widget.TextView;
+import androidx.core.text.PrecomputedTextCompat;
+import androidx.core.widget.TextViewCompat;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/** Stand-in: as on Android, a text future is waited for when the view is measured */
+public class AppCompatTextView extends TextView {
+    private Future<PrecomputedTextCompat> precomputedTextFuture;
+
+    public AppCompatTextView(Context context) {
+        super(context);
+    }
+
+    public void setTextFuture(Future<PrecomputedTextCompat> future) {
+        precomputedTextFuture = future;
+    }
+
+    @Override
+    public void setText(CharSequence text) {
+        precomputedTextFuture = null;
+        super.setText(text);
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        if (precomputedTextFuture != null) {
+            try {
+                Future<PrecomputedTextCompat> future = precomputedTextFuture;
+                precomputedTextFuture = null;
+                TextViewCompat.setPrecomputedText(this, future.get());
+            } catch (InterruptedException | ExecutionException e) {
+                // ignored, as by AppCompat
+            }
+        }
+        super.onMeasure(widthMeasureSpec, heightMeasureSpec);
+    }
+}
@@ -0,0 +1,67 @@
+package androidx.core.text;
+
+import java.util.Objects;
+
+/** Stand-in: the text isn't measured, so creating one costs nothing like it does on Android */
+public class PrecomputedTextCompat implements CharSequence {
+    public static final class Params {
+        private final float textSize;
+        private final int breakStrategy;
+        private final int hyphenationFrequency;
+
+        public Params(float textSize, int breakStrategy, int hyphenationFrequency) {
+            this.textSize = textSize;
+            this.breakStrategy = breakStrategy;
+            this.hyphenationFrequency = hyphenationFrequency;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Params)) return false;
+            Params other = (Params) o;
+            return textSize == other.textSize && breakStrategy == other.breakStrategy
+                    && hyphenationFrequency == other.hyphenationFrequency;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(textSize, breakStrategy, hyphenationFrequency);
+        }
+    }
+
+    private final CharSequence text;
+    private final Params params;
+
+    private PrecomputedTextCompat(CharSequence text, Params params) {
+        this.text = text;
+        this.params = params;
+    }
+
+    public static PrecomputedTextCompat create(CharSequence text, Params params) {
+        return new PrecomputedTextCompat(text, params);
+    }
+
+    public Params getParams() {
+        return params;
+    }
+
+    @Override
+    public int length() {
+        return text.length();
+    }
+
+    @Override
+    public char charAt(int index) {
+        return text.charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return text.subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        return text.toString();
+    }
+}
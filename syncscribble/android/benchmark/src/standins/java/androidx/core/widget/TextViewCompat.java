@@ -0,0 +1,18 @@
+package androidx.core.widget;
+
+import android.widget.TextView;
+import androidx.core.text.PrecomputedTextCompat;
+
+/** Stand-in */
+public final class TextViewCompat {
+    private TextViewCompat() {}
+
+    /** A new Params each call, as on Android */
+    public static PrecomputedTextCompat.Params getTextMetricsParams(TextView textView) {
+        return new PrecomputedTextCompat.Params(textView.getTextSize(), 1, 0);
+    }
+
+    public static void setPrecomputedText(TextView textView, PrecomputedTextCompat precomputed) {
+        textView.setText(precomputed);
+    }
+}
@@ -0,0 +1,10 @@
+package androidx.recyclerview.widget;
+
+/** Stand-in */
+public class DiffUtil {
+    public abstract static class ItemCallback<T> {
+        public abstract boolean areItemsTheSame(T oldItem, T newItem);
+
+        public abstract boolean areContentsTheSame(T oldItem, T newItem);
+    }
+}
@@ -0,0 +1,28 @@
+package androidx.recyclerview.widget;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Stand-in: submitted lists replace the current one at once, without diffing */
+public abstract class ListAdapter<T, VH extends RecyclerView.ViewHolder> extends RecyclerView.Adapter<VH> {
+    private List<T> currentList = new ArrayList<>();
+
+    protected ListAdapter(DiffUtil.ItemCallback<T> diffCallback) {}
+
+    public void submitList(List<T> list) {
+        currentList = list != null ? new ArrayList<>(list) : new ArrayList<>();
+    }
+
+    public List<T> getCurrentList() {
+        return currentList;
+    }
+
+    protected T getItem(int position) {
+        return currentList.get(position);
+    }
+
+    @Override
+    public int getItemCount() {
+        return currentList.size();
+    }
+}
@@ -0,0 +1,28 @@
+package androidx.recyclerview.widget;
+
+import android.content.Context;
+import android.view.View;
+import android.view.ViewGroup;
+
+/** Stand-in: just the adapter and view holder */
+public class RecyclerView extends ViewGroup {
+    public RecyclerView(Context context) {
+        super(context);
+    }
+
+    public abstract static class ViewHolder {
+        public final View itemView;
+
+        public ViewHolder(View itemView) {
+            this.itemView = itemView;
+        }
+    }
+
+    public abstract static class Adapter<VH extends ViewHolder> {
+        public abstract VH onCreateViewHolder(ViewGroup parent, int viewType);
+
+        public abstract void onBindViewHolder(VH holder, int position);
+
+        public abstract int getItemCount();
+    }
+}
@@ -0,0 +1,17 @@
+package com.google.android.material.card;
+
+import android.content.Context;
+import android.view.ViewGroup;
+
+/** Stand-in */
+public class MaterialCardView extends ViewGroup {
+    private int cardBackgroundColor;
+
+    public MaterialCardView(Context context) {
+        super(context);
+    }
+
+    public void setCardBackgroundColor(int color) {
+        cardBackgroundColor = color;
+    }
+}
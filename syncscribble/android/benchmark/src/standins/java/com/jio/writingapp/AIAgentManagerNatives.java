@@ -0,0 +1,98 @@
+package com.jio.writingapp;
+
+/**
+ * Stand-ins for the native methods of AIAgentManager (see build.gradle).  Like the JNI bridge, requests
+ * are read field by field and responses built as new objects, but no provider is called, so benchmarks
+ * measure the Java side of a request.
+ */
+final class AIAgentManagerNatives {
+    private static final String ANSWER = "Here is a short answer from the stand-in provider, long enough to "
+            + "be split into a few dozen tokens when the conversation context is built.";
+    private static final long AGENT_PTR = 1;
+
+    private AIAgentManagerNatives() {}
+
+    static void loadLibrary(String libname) {}
+
+    static long nativeCreateAgent() {
+        return AGENT_PTR;
+    }
+
+    static void nativeDestroyAgent(long agentPtr) {}
+
+    static boolean nativeConfigureProvider(long agentPtr, String provider, String apiKey, String baseUrl) {
+        return true;
+    }
+
+    static void nativeSetContentFilter(long agentPtr, AIAgentManager.ContentFilter filter) {}
+
+    static AIAgentManager.AIResponse nativeProcessRequest(long agentPtr, AIAgentManager.AIRequest request) {
+        AIAgentManager.AIResponse response = new AIAgentManager.AIResponse();
+        int promptLength = request.prompt.length() + request.context.length() + request.documents.size();
+        response.success = promptLength > 0 && request.maxTokens > 0;
+        response.content = response.success ? ANSWER : "";
+        response.error = response.success ? "" : "Empty request";
+        response.confidence = 1.0f;
+        return response;
+    }
+
+    static boolean nativeTestConnection(long agentPtr) {
+        return true;
+    }
+
+    static void nativePrewarmConnection(long agentPtr) {}
+
+    static int nativeProbeConnection(long agentPtr) {
+        return 0;
+    }
+
+    static String[] nativeGetAvailableProviders(long agentPtr) {
+        return new String[0];
+    }
+
+    static AIAgentManager.ProviderHealth[] nativeGetProviderHealth(long agentPtr) {
+        return new AIAgentManager.ProviderHealth[0];
+    }
+
+    static void nativeSetRateLimits(long agentPtr, String provider, int requestsPerMinute, int tokensPerMinute) {}
+
+    static boolean nativeIndexDocument(long agentPtr, String content, String title, String id) {
+        return true;
+    }
+
+    static boolean nativeIndexDocuments(long agentPtr, String[] contents, String[] titles, String[] ids) {
+        return true;
+    }
+
+    static boolean nativeIndexDocumentPages(long agentPtr, String[] pages, String title, String id) {
+        return true;
+    }
+
+    static AIAgentManager.SearchResult[] nativeSearchDocuments(long agentPtr, String query, int maxResults) {
+        return new AIAgentManager.SearchResult[0];
+    }
+
+    static AIAgentManager.SearchResult[] nativeSearchAsYouType(long agentPtr, String query, int maxResults) {
+        return new AIAgentManager.SearchResult[0];
+    }
+
+    static boolean nativeSetRetrievalMode(long agentPtr, String mode) {
+        return true;
+    }
+
+    static boolean nativeIndexCurrentDocument(long agentPtr, int timeoutMs) {
+        return true;
+    }
+
+    static AIAgentManager.IndexProgress nativeGetIndexProgress(long agentPtr) {
+        return new AIAgentManager.IndexProgress();
+    }
+
+    static AIAgentManager.ShardStats[] nativeGetShardStats(long agentPtr) {
+        return new AIAgentManager.ShardStats[0];
+    }
+
+    static AIAgentManager.ResponseFilterStats nativeGetResponseFilterStats(long agentPtr) {
+        return new AIAgentManager.ResponseFilterStats();
+    }
+}
@@ -0,0 +1,20 @@
+package com.jio.writingapp;
+
+/** Stand-in with just the message class of the chat screen, which must match AIChatActivity.AIChatMessage */
+public class AIChatActivity {
+    public static class AIChatMessage {
+        public final long id;
+        public String content;
+        public boolean isUser;
+        public boolean isSystem;
+        public long timestamp;
+
+        public AIChatMessage(long id, String content, boolean isUser, boolean isSystem, long timestamp) {
+            this.id = id;
+            this.content = content;
+            this.isUser = isUser;
+            this.isSystem = isSystem;
+            this.timestamp = timestamp;
+        }
+    }
+}
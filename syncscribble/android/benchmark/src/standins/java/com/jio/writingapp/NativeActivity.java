@@ -0,0 +1,8 @@
+package com.jio.writingapp;
+
+/** Stand-in for what StartupTrace uses */
+public class NativeActivity {
+    static String[] getNativeStartupPhases() {
+        return new String[0];
+    }
+}
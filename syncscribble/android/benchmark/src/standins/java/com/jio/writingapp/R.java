@@ -0,0 +1,22 @@
+package com.jio.writingapp;
+
+/** Stand-in for the generated resource ids used by the benchmarked classes */
+public final class R {
+    public static final class id {
+        public static final int user_message_layout = 0x7f080001;
+        public static final int assistant_message_layout = 0x7f080002;
+        public static final int message_card = 0x7f080003;
+        public static final int message_text = 0x7f080004;
+        public static final int time_text = 0x7f080005;
+    }
+
+    public static final class layout {
+        public static final int item_chat_message = 0x7f0b0001;
+    }
+
+    public static final class color {
+        public static final int user_message_background = 0x1976d2;
+        public static final int assistant_message_background = 0xf0f0f0;
+        public static final int system_message_background = 0xfff3e0;
+    }
+}
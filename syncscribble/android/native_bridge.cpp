@@ -2,14 +2,21 @@
 #include <android/log.h>
 #include <android/native_window.h>
 #include <android/native_window_jni.h>
+#include <errno.h>
 #include <string.h>
+#include <unistd.h>
+#include <ostream>
 #include <string>
+#include <memory>
 #include "application.h"
 #include "scribbleapp.h"
 #include "scribblearea.h"
+#include "scribbledoc.h"
 #include "scribbleinput.h"
 #include "scribblemode.h"
 #include "basics.h"
+#include "pageexport.h"
+#include "startuptrace.h"
 
 // Forward declaration
 class ScribbleApp;
@@ -72,6 +79,29 @@ Java_com_jio_writingapp_NativeActivity_jniSetIntent(JNIEnv *env, jobject thiz, j
 JNIEXPORT void JNICALL
 Java_com_jio_writingapp_NativeCanvasView_jniDrawFrame(JNIEnv *env, jobject thiz);
 
+// Startup report
+JNIEXPORT jobjectArray JNICALL
+Java_com_jio_writingapp_NativeActivity_jniGetStartupPhases(JNIEnv *env, jclass clazz);
+
+// Export
+JNIEXPORT jstring JNICALL
+Java_com_jio_writingapp_NotebookExporter_jniPrepareExport(JNIEnv *env, jclass clazz);
+
+JNIEXPORT jlong JNICALL
+Java_com_jio_writingapp_NotebookExporter_jniCreateExporter(JNIEnv *env, jclass clazz, jstring path, jint format, jfloat scale);
+
+JNIEXPORT jint JNICALL
+Java_com_jio_writingapp_NotebookExporter_jniGetPageCount(JNIEnv *env, jclass clazz, jlong exporter);
+
+JNIEXPORT jstring JNICALL
+Java_com_jio_writingapp_NotebookExporter_jniExport(JNIEnv *env, jobject thiz, jlong exporter, jint fd);
+
+JNIEXPORT void JNICALL
+Java_com_jio_writingapp_NotebookExporter_jniCancelExport(JNIEnv *env, jclass clazz, jlong exporter);
+
+JNIEXPORT void JNICALL
+Java_com_jio_writingapp_NotebookExporter_jniDestroyExporter(JNIEnv *env, jclass clazz, jlong exporter);
+
 } // extern "C"
 
 // Helper function to initialize the native application
@@ -81,7 +111,10 @@ static void initializeNativeApp() {
         extern int android_native_main(int argc, char* argv[]);
         
         char* dummy_argv[] = { (char*)"write", nullptr };
-        android_native_main(1, dummy_argv);
+        {
+            StartupSection section("android_native_main");
+            android_native_main(1, dummy_argv);
+        }
         
         // Get the initialized ScribbleApp instance
         extern ScribbleApp* scribbleApp;
@@ -153,6 +186,7 @@ Java_com_jio_writingapp_NativeActivity_jniOnDestroy(JNIEnv *env, jobject thiz) {
 JNIEXPORT void JNICALL
 Java_com_jio_writingapp_NativeCanvasView_jniSurfaceCreated(JNIEnv *env, jobject thiz, jobject surface, jint width, jint height) {
     LOGI("jniSurfaceCreated: %dx%d", width, height);
+    StartupSection section("surfaceCreated");
     
     // Get native window from surface
     g_native_window = ANativeWindow_fromSurface(env, surface);
@@ -258,6 +292,14 @@ JNIEXPORT void JNICALL
 Java_com_jio_writingapp_NativeCanvasView_jniDrawFrame(JNIEnv *env, jobject thiz) {
     if (!g_scribble_app || !g_native_window) return;
     
+    // time the first frame for the startup report
+    static bool firstFrame = true;
+    std::unique_ptr<StartupSection> section;
+    if (firstFrame) {
+        firstFrame = false;
+        section.reset(new StartupSection("firstDrawFrame"));
+    }
+    
     // Get window dimensions
     int32_t width = ANativeWindow_getWidth(g_native_window);
     int32_t height = ANativeWindow_getHeight(g_native_window);
@@ -286,6 +328,153 @@ Java_com_jio_writingapp_NativeCanvasView_jniDrawFrame(JNIEnv *env, jobject thiz)
     }
 }
 
+// Startup report: native phases as "name=microseconds", in the order they finished
+JNIEXPORT jobjectArray JNICALL
+Java_com_jio_writingapp_NativeActivity_jniGetStartupPhases(JNIEnv *env, jclass clazz) {
+    std::vector<StartupTrace::Phase> phases = StartupTrace::phases();
+    jclass stringClass = env->FindClass("java/lang/String");
+    jobjectArray result = env->NewObjectArray(phases.size(), stringClass, nullptr);
+    for (size_t ii = 0; ii < phases.size(); ++ii) {
+        std::string entry = phases[ii].name + "=" + std::to_string(phases[ii].micros);
+        jstring jentry = env->NewStringUTF(entry.c_str());
+        env->SetObjectArrayElement(result, ii, jentry);
+        env->DeleteLocalRef(jentry);
+    }
+    env->DeleteLocalRef(stringClass);
+    return result;
+}
+
+// Export: output goes straight to a file descriptor from the Java side (e.g. a document another app
+//  provides), which may be a pipe, so it is only ever written sequentially
+class FdStreamBuf : public std::streambuf {
+public:
+    explicit FdStreamBuf(int fd) : fd_(fd) { setp(buf_, buf_ + sizeof(buf_)); }
+    ~FdStreamBuf() override { sync(); }
+
+protected:
+    int overflow(int c) override {
+        if (!flushBuffer()) {
+            return traits_type::eof();
+        }
+        if (c != traits_type::eof()) {
+            *pptr() = char(c);
+            pbump(1);
+        }
+        return traits_type::not_eof(c);
+    }
+
+    int sync() override {
+        return flushBuffer() ? 0 : -1;
+    }
+
+    // pages are written whole, so skip copying them through the buffer
+    std::streamsize xsputn(const char* s, std::streamsize n) override {
+        if (n < epptr() - pptr()) {
+            return std::streambuf::xsputn(s, n);
+        }
+        return flushBuffer() && writeAll(s, n) ? n : 0;
+    }
+
+private:
+    int fd_;
+    char buf_[64*1024];
+
+    bool flushBuffer() {
+        bool ok = writeAll(pbase(), pptr() - pbase());
+        setp(buf_, buf_ + sizeof(buf_));
+        return ok;
+    }
+
+    bool writeAll(const char* data, size_t len) {
+        while (len > 0) {
+            ssize_t written = write(fd_, data, len);
+            if (written < 0) {
+                if (errno == EINTR) {
+                    continue;
+                }
+                LOGE("Export write failed: %s", strerror(errno));
+                return false;
+            }
+            data += written;
+            len -= written;
+        }
+        return true;
+    }
+};
+
+// called on the UI thread: save the active notebook if modified, since export reads the saved file; returns
+//  its path, or null if it has never been saved or saving failed
+JNIEXPORT jstring JNICALL
+Java_com_jio_writingapp_NotebookExporter_jniPrepareExport(JNIEnv *env, jclass clazz) {
+    ScribbleDoc* doc = g_scribble_app ? g_scribble_app->activeDoc() : nullptr;
+    if (!doc || !doc->fileName()[0]) {
+        return nullptr;
+    }
+    if (doc->isModified() && !doc->saveDocument()) {
+        LOGE("Error saving notebook for export");
+        return nullptr;
+    }
+    return env->NewStringUTF(doc->fileName());
+}
+
+// format is the ordinal of NotebookExporter.Format: PNG, PDF, SVG; returns 0 if the notebook can't be read
+JNIEXPORT jlong JNICALL
+Java_com_jio_writingapp_NotebookExporter_jniCreateExporter(JNIEnv *env, jclass clazz, jstring path, jint format, jfloat scale) {
+    const char* pathStr = env->GetStringUTFChars(path, nullptr);
+    PageExportOptions opts;
+    opts.format = PageExportOptions::Format(format);
+    opts.scale = scale;
+    PageExporter* exporter = new PageExporter(pathStr, opts);
+    env->ReleaseStringUTFChars(path, pathStr);
+    if (!exporter->open()) {
+        LOGE("Export: %s", exporter->error().c_str());
+        delete exporter;
+        return 0;
+    }
+    return reinterpret_cast<jlong>(exporter);
+}
+
+JNIEXPORT jint JNICALL
+Java_com_jio_writingapp_NotebookExporter_jniGetPageCount(JNIEnv *env, jclass clazz, jlong exporter) {
+    return reinterpret_cast<PageExporter*>(exporter)->pageCount();
+}
+
+// called on a background thread, blocking until done; progress is reported to onNativeProgress() on this
+//  thread.  Returns null on success, otherwise the error
+JNIEXPORT jstring JNICALL
+Java_com_jio_writingapp_NotebookExporter_jniExport(JNIEnv *env, jobject thiz, jlong exporter, jint fd) {
+    PageExporter* pageExporter = reinterpret_cast<PageExporter*>(exporter);
+    jclass exporterClass = env->GetObjectClass(thiz);
+    jmethodID onProgress = env->GetMethodID(exporterClass, "onNativeProgress", "(II)V");
+    env->DeleteLocalRef(exporterClass);
+
+    bool ok;
+    {
+        FdStreamBuf buf(fd);
+        std::ostream out(&buf);
+        ok = pageExporter->exportTo(out, [env, thiz, onProgress](int pagesDone, int pageCount) {
+            env->CallVoidMethod(thiz, onProgress, pagesDone, pageCount);
+        });
+    }
+    if (ok) {
+        return nullptr;
+    }
+    std::string error = pageExporter->error();
+    LOGE("Export failed: %s", error.c_str());
+    return env->NewStringUTF(error.c_str());
+}
+
+// any thread
+JNIEXPORT void JNICALL
+Java_com_jio_writingapp_NotebookExporter_jniCancelExport(JNIEnv *env, jclass clazz, jlong exporter) {
+    reinterpret_cast<PageExporter*>(exporter)->cancel();
+}
+
+JNIEXPORT void JNICALL
+Java_com_jio_writingapp_NotebookExporter_jniDestroyExporter(JNIEnv *env, jclass clazz, jlong exporter) {
+    delete reinterpret_cast<PageExporter*>(exporter);
+}
+
 // Native Android UI equivalents for SDL functions
 #ifdef ANDROID_NATIVE_UI
 
@@ -0,0 +1,99 @@
+#ifndef STARTUPTRACE_H
+#define STARTUPTRACE_H
+
+#include <dlfcn.h>
+#include <chrono>
+#include <mutex>
+#include <string>
+#include <vector>
+
+// Cold start timing: a StartupSection times its scope, recording it for the startup report
+//  (NativeActivity.jniGetStartupPhases) and marking it as a trace section for systrace/Perfetto.
+//  ATrace_* are looked up at runtime since they need a newer API level than we build for.
+class StartupTrace {
+public:
+    struct Phase {
+        std::string name;
+        int64_t micros;
+    };
+
+    // only the first time a phase finishes is recorded, so the list doesn't grow when one runs again after
+    //  startup, e.g. surfaceCreated each time the surface is recreated
+    static void record(const char* name, int64_t micros) {
+        std::lock_guard<std::mutex> lock(mutex());
+        std::vector<Phase>& list = phaseList();
+        for (const Phase& phase : list) {
+            if (phase.name == name) {
+                return;
+            }
+        }
+        list.push_back(Phase{name, micros});
+    }
+
+    static std::vector<Phase> phases() {
+        std::lock_guard<std::mutex> lock(mutex());
+        return phaseList();
+    }
+
+    static void beginSection(const char* name) {
+        if (atrace().begin) {
+            atrace().begin(name);
+        }
+    }
+
+    static void endSection() {
+        if (atrace().end) {
+            atrace().end();
+        }
+    }
+
+private:
+    struct ATraceFns {
+        void (*begin)(const char*) = nullptr;
+        void (*end)() = nullptr;
+        ATraceFns() {
+            void* lib = dlopen("libandroid.so", RTLD_NOW | RTLD_LOCAL);
+            if (lib) {
+                begin = reinterpret_cast<void (*)(const char*)>(dlsym(lib, "ATrace_beginSection"));
+                end = reinterpret_cast<void (*)()>(dlsym(lib, "ATrace_endSection"));
+            }
+        }
+    };
+
+    static const ATraceFns& atrace() {
+        static ATraceFns fns;
+        return fns;
+    }
+
+    static std::mutex& mutex() {
+        static std::mutex m;
+        return m;
+    }
+
+    static std::vector<Phase>& phaseList() {
+        static std::vector<Phase> list;
+        return list;
+    }
+};
+
+class StartupSection {
+public:
+    explicit StartupSection(const char* name) : name_(name), start_(std::chrono::steady_clock::now()) {
+        StartupTrace::beginSection(name);
+    }
+
+    ~StartupSection() {
+        StartupTrace::endSection();
+        StartupTrace::record(name_, std::chrono::duration_cast<std::chrono::microseconds>(
+            std::chrono::steady_clock::now() - start_).count());
+    }
+
+    StartupSection(const StartupSection&) = delete;
+    StartupSection& operator=(const StartupSection&) = delete;
+
+private:
+    const char* name_;
+    std::chrono::steady_clock::time_point start_;
+};
+
+#endif
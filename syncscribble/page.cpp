@@ -621,6 +621,28 @@ const char* Page::getHyperRef(Point pos) const
   return s;
 }
 
+static void appendText(SvgContainerNode* container, std::string& out)
+{
+  for(SvgNode* node : container->children()) {
+    if(node->type() == SvgNode::TEXT) {
+      std::string s = static_cast<SvgText*>(node)->text();
+      if(!s.empty())
+        out.append(out.empty() ? "" : "\n").append(s);
+    }
+    else if(node->asContainerNode())
+      appendText(node->asContainerNode(), out);
+  }
+}
+
+// text content of page (one line per text node, in document order) for search indexing; page must be loaded
+std::string Page::getText() const
+{
+  std::string text;
+  if(contentNode)
+    appendText(contentNode, text);
+  return text;
+}
+
 SvgNode* Page::findNamedNode(const char* idstr) const
 {
   const_cast<Page*>(this)->ensureLoaded();
@@ -83,6 +83,7 @@ public:
   void onAddStroke(Element* s);
   void onRemoveStroke(Element* s);
   const char* getHyperRef(Point pos) const;
+  std::string getText() const;
   SvgNode* findNamedNode(const char* idstr) const;
 
   bool saveSVG(IOStream& file, Dim x = 0, Dim y = 0);
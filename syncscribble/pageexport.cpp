@@ -0,0 +1,323 @@
+#include "pageexport.h"
+#include "document.h"
+#include "ulib/image.h"
+#include "ulib/painter.h"
+#include "usvg/pdfwriter.h"
+#include "miniz/miniz.h"
+#include <algorithm>
+#include <thread>
+#include <time.h>
+
+struct PageExporter::RenderedPage {
+  std::string data;  // PNG or SVG file; deflated if zipped and deflate helps
+  uint32_t crc32 = 0;  // of the uncompressed data
+  size_t size = 0;  // uncompressed size
+  bool deflated = false;
+  std::unique_ptr<SvgDocument> svgDoc;  // for PDF, which must be written in order by a single PdfWriter
+  Dim width = 0;
+  Dim height = 0;
+};
+
+// ZIP archive writer needing only sequential output: entries are added whole, so the sizes and CRC are known
+//  when the local header is written and no data descriptors or seeking back are needed
+class ZipStreamWriter
+{
+public:
+  ZipStreamWriter(std::ostream& _out) : out(_out)
+  {
+    time_t now = time(NULL);
+    struct tm* t = localtime(&now);
+    dosTime = (t->tm_hour << 11) | (t->tm_min << 5) | (t->tm_sec/2);
+    dosDate = ((t->tm_year - 80) << 9) | ((t->tm_mon + 1) << 5) | t->tm_mday;
+  }
+
+  bool add(const std::string& name, const std::string& data, uint32_t crc, size_t size, bool deflated)
+  {
+    // no ZIP64 support; a single page is never anywhere near 4 GB, but many pages can be
+    if(offset + 30 + name.size() + data.size() > 0xFFFFFFFFu || count >= 0xFFFF)
+      return false;
+    std::string header;
+    putHeader(header, 0x04034b50, crc, data.size(), size, name, deflated);
+    header += name;
+    putHeader(centralDir, 0x02014b50, crc, data.size(), size, name, deflated);
+    put32(centralDir, 0);  // disk number, internal attributes
+    put32(centralDir, 0);  // external attributes
+    put32(centralDir, uint32_t(offset));
+    centralDir += name;
+    out.write(header.data(), header.size());
+    out.write(data.data(), data.size());
+    offset += header.size() + data.size();
+    ++count;
+    return bool(out);
+  }
+
+  bool finish()
+  {
+    if(offset + centralDir.size() > 0xFFFFFFFFu)
+      return false;
+    std::string end;
+    put32(end, 0x06054b50);
+    put32(end, 0);  // disk numbers
+    put16(end, count);
+    put16(end, count);
+    put32(end, centralDir.size());
+    put32(end, uint32_t(offset));
+    put16(end, 0);  // comment length
+    out.write(centralDir.data(), centralDir.size());
+    out.write(end.data(), end.size());
+    return bool(out);
+  }
+
+private:
+  std::ostream& out;
+  uint64_t offset = 0;
+  int count = 0;
+  std::string centralDir;
+  uint16_t dosTime;
+  uint16_t dosDate;
+
+  static void put16(std::string& s, uint16_t v) { s += char(v & 0xFF); s += char(v >> 8); }
+  static void put32(std::string& s, uint32_t v) { put16(s, v & 0xFFFF); put16(s, v >> 16); }
+
+  // common part of local and central directory headers
+  void putHeader(std::string& s, uint32_t sig, uint32_t crc, size_t csize, size_t size,
+      const std::string& name, bool deflated)
+  {
+    bool central = sig == 0x02014b50;
+    put32(s, sig);
+    if(central)
+      put16(s, 20);  // version made by
+    put16(s, 20);  // version needed
+    put16(s, 0);  // flags
+    put16(s, deflated ? 8 : 0);
+    put16(s, dosTime);
+    put16(s, dosDate);
+    put32(s, crc);
+    put32(s, csize);
+    put32(s, size);
+    put16(s, name.size());
+    put16(s, 0);  // extra field length
+    if(central)
+      put16(s, 0);  // comment length
+  }
+};
+
+PageExporter::PageExporter(const std::string& filename, const Options& _opts) : fileName(filename), opts(_opts) {}
+
+PageExporter::~PageExporter()
+{
+  // exportTo() joins its threads before returning, so nothing to stop here
+}
+
+bool PageExporter::open()
+{
+  if(numPages >= 0)
+    return true;
+  Document doc;
+  Document::loadresult_t res = doc.load(new FileStream(fileName.c_str(), "rb"), true);
+  if(res != Document::LOAD_OK && res != Document::LOAD_NONFATAL) {
+    fail("Error opening notebook");
+    return false;
+  }
+  numPages = doc.numPages();
+  zipped = numPages > 1 && opts.format != Options::PDF;
+  // a notebook not in the block format is loaded whole, so don't have every thread load it
+  loadedWhole = numPages > 0 && doc.pages[0]->loadStatus == Page::LOAD_OK;
+  return true;
+}
+
+void PageExporter::cancel()
+{
+  {
+    std::lock_guard<std::mutex> lock(mutex);
+    canceled = true;
+  }
+  cv.notify_all();
+}
+
+std::string PageExporter::error() const
+{
+  std::lock_guard<std::mutex> lock(mutex);
+  return canceled ? std::string("Export canceled") : errorMsg;
+}
+
+std::string PageExporter::pageFileName(int pagenum) const
+{
+  return FSPath(fileName).baseName()
+      + fstring("_page%03d.%s", pagenum + 1, opts.format == Options::PNG ? "png" : "svg");
+}
+
+// first error wins, since later ones are usually caused by it
+void PageExporter::fail(const std::string& msg)
+{
+  {
+    std::lock_guard<std::mutex> lock(mutex);
+    if(!failed)
+      errorMsg = msg;
+    failed = true;
+  }
+  cv.notify_all();
+}
+
+bool PageExporter::exportTo(std::ostream& out, const ProgressFn& progress)
+{
+  if(!open())
+    return false;
+  if(numPages == 0) {
+    fail("Notebook has no pages");
+    return false;
+  }
+
+  int ncores = std::thread::hardware_concurrency();
+  int nthreads = opts.threads > 0 ? opts.threads : (ncores > 0 ? ncores : 4);
+  nthreads = loadedWhole ? 1 : std::min(nthreads, numPages);
+  {
+    std::lock_guard<std::mutex> lock(mutex);
+    rendered.clear();
+    nextPage = 0;
+    nextWrite = 0;
+    maxPending = std::max(opts.maxPending > 0 ? opts.maxPending : 2*nthreads, nthreads);
+  }
+
+  std::unique_ptr<PdfWriter> pdf;
+  if(opts.format == Options::PDF) {
+    pdf.reset(new PdfWriter(numPages));
+    pdf->anyHref = true;  // hack to work around our hack for links
+    // named link targets on other pages can't be resolved since only the page being rendered is loaded
+  }
+  ZipStreamWriter zip(out);
+  Dim ptsPerDim = 72.0/150;
+
+  std::vector<std::thread> threads;
+  for(int ii = 0; ii < nthreads; ++ii)
+    threads.emplace_back(&PageExporter::renderPages, this);
+
+  for(int pagenum = 0; pagenum < numPages; ++pagenum) {
+    std::unique_ptr<RenderedPage> page;
+    {
+      std::unique_lock<std::mutex> lock(mutex);
+      cv.wait(lock, [&](){ return stopped() || rendered.count(pagenum); });
+      if(stopped())
+        break;
+      page = std::move(rendered[pagenum]);
+      rendered.erase(pagenum);
+      nextWrite = pagenum + 1;
+    }
+    cv.notify_all();  // room for another page to be rendered
+
+    bool ok = true;
+    if(pdf) {
+      pdf->newPage(page->width, page->height, ptsPerDim);
+      pdf->drawNode(page->svgDoc.get());
+    }
+    else if(zipped)
+      ok = zip.add(pageFileName(pagenum), page->data, page->crc32, page->size, page->deflated);
+    else
+      out.write(page->data.data(), page->data.size());
+    if(!ok || !out) {
+      fail(!out ? "Error writing export" : "Export too large for ZIP archive");
+      break;
+    }
+    if(progress)
+      progress(pagenum + 1, numPages);
+  }
+
+  // threads exit once all pages are taken, or after the page they are rendering if export stopped
+  for(std::thread& thread : threads)
+    thread.join();
+  rendered.clear();
+  if(stopped())
+    return false;
+
+  if(pdf)
+    pdf->write(out);
+  else if(zipped && !zip.finish()) {
+    fail("Export too large for ZIP archive");
+    return false;
+  }
+  out.flush();
+  if(!out) {
+    fail("Error writing export");
+    return false;
+  }
+  return true;
+}
+
+// render thread: each has its own Document so pages can be loaded in parallel
+void PageExporter::renderPages()
+{
+  Document doc;
+  Document::loadresult_t res = doc.load(new FileStream(fileName.c_str(), "rb"), true);
+  if((res != Document::LOAD_OK && res != Document::LOAD_NONFATAL) || doc.numPages() != numPages) {
+    fail("Error opening notebook");
+    return;
+  }
+  for(;;) {
+    int pagenum;
+    {
+      std::unique_lock<std::mutex> lock(mutex);
+      cv.wait(lock, [&](){ return stopped() || nextPage >= numPages || nextPage < nextWrite + maxPending; });
+      if(stopped() || nextPage >= numPages)
+        return;
+      pagenum = nextPage++;
+    }
+    std::unique_ptr<RenderedPage> page = renderPage(doc.pages[pagenum], pagenum);
+    if(!page)
+      return;
+    {
+      std::lock_guard<std::mutex> lock(mutex);
+      rendered[pagenum] = std::move(page);
+    }
+    cv.notify_all();
+  }
+}
+
+std::unique_ptr<PageExporter::RenderedPage> PageExporter::renderPage(Page* page, int pagenum)
+{
+  if(!page->ensureLoaded(false)) {
+    fail(fstring("Error loading page %d", pagenum + 1));
+    return nullptr;
+  }
+  std::unique_ptr<RenderedPage> result(new RenderedPage);
+  result->width = page->width();
+  result->height = page->height();
+  if(opts.format == Options::PDF) {
+    // the writer thread draws it into the PdfWriter
+    result->svgDoc = std::move(page->svgDoc);
+  }
+  else if(opts.format == Options::PNG) {
+    Image img(page->width()*opts.scale, page->height()*opts.scale, Image::PNG);
+    Painter imgpaint(Painter::PAINT_SW | Painter::SRGB_AWARE, &img);
+    imgpaint.beginFrame();
+    imgpaint.scale(opts.scale);
+    imgpaint.setsRGBAdjAlpha(true);
+    page->draw(&imgpaint, page->rect(), opts.ruleLines);
+    imgpaint.endFrame();
+    auto pngenc = img.encodePNG();
+    result->data.assign((const char*)pngenc.data(), pngenc.size());
+  }
+  else {
+    MemStream svgstrm(1 << 16);
+    page->saveSVG(svgstrm);
+    result->data.assign((const char*)svgstrm.data(), svgstrm.size());
+  }
+  // page is only needed again if export is repeated
+  page->unload();
+
+  if(zipped) {
+    result->size = result->data.size();
+    result->crc32 = uint32_t(mz_crc32(MZ_CRC32_INIT, (const unsigned char*)result->data.data(), result->size));
+    // PNG is already compressed; SVG compresses well
+    if(opts.format == Options::SVG) {
+      size_t deflatedlen = 0;
+      int flags = tdefl_create_comp_flags_from_zip_params(MZ_DEFAULT_LEVEL, -MZ_DEFAULT_WINDOW_BITS, MZ_DEFAULT_STRATEGY);
+      void* deflated = tdefl_compress_mem_to_heap(result->data.data(), result->size, &deflatedlen, flags);
+      if(deflated && deflatedlen < result->size) {
+        result->data.assign((const char*)deflated, deflatedlen);
+        result->deflated = true;
+      }
+      mz_free(deflated);
+    }
+  }
+  return result;
+}
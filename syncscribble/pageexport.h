@@ -0,0 +1,77 @@
+#pragma once
+
+#include <atomic>
+#include <condition_variable>
+#include <functional>
+#include <map>
+#include <memory>
+#include <mutex>
+#include <ostream>
+#include <string>
+#include "basics.h"
+
+class SvgDocument;
+class Page;
+
+struct PageExportOptions {
+  enum Format {PNG, PDF, SVG} format = PDF;
+  Dim scale = 1;  // PNG pixels per document unit (1 = 150 dpi)
+  bool ruleLines = true;  // for PNG
+  int threads = 0;  // render threads; 0 for one per core
+  int maxPending = 0;  // pages being rendered or waiting to be written; 0 for 2 per thread
+};
+
+// Exports the pages of a saved notebook, rendering them on a pool of threads and writing them in page order
+//  to a stream, which need not be seekable (e.g. a pipe from another app).  One page is written as a PNG or
+//  SVG file, more than one as a ZIP archive with a file per page; PDF is always one file.
+// Each thread opens the notebook itself and has only the page it is rendering loaded, and threads stay at
+//  most maxPending pages ahead of the page being written, so memory use doesn't grow with the number of
+//  pages - except for PDF, where PdfWriter holds the (compressed) page content until the end.  The notebook
+//  file must not be saved while exporting.
+// Unlike ScribbleApp::writePDF(), PDF export has no resolveLink, since a link's target may be on a page that
+//  isn't loaded, so links to named targets on other pages are lost.
+class PageExporter
+{
+public:
+  typedef PageExportOptions Options;
+  // called on the thread calling exportTo() after each page is written
+  typedef std::function<void(int pagesDone, int pageCount)> ProgressFn;
+
+  PageExporter(const std::string& filename, const Options& opts = Options());
+  ~PageExporter();
+  // read the page list; called by exportTo() if needed
+  bool open();
+  int pageCount() const { return numPages; }
+  // blocks until all pages are written; false if export failed or was canceled
+  bool exportTo(std::ostream& out, const ProgressFn& progress = ProgressFn());
+  // stop an export in progress, from any thread
+  void cancel();
+  bool isCanceled() const { return canceled; }
+  std::string error() const;
+  // name of the file for a page in a ZIP archive
+  std::string pageFileName(int pagenum) const;
+
+private:
+  struct RenderedPage;
+
+  std::string fileName;
+  Options opts;
+  int numPages = -1;
+  bool zipped = false;
+  bool loadedWhole = false;
+  std::atomic<bool> canceled{false};
+
+  mutable std::mutex mutex;
+  std::condition_variable cv;  // signaled when a page is rendered or written, or export stops
+  std::map<int, std::unique_ptr<RenderedPage>> rendered;  // pages waiting to be written
+  int nextPage = 0;  // next page to render
+  int nextWrite = 0;  // next page to write
+  int maxPending = 1;
+  bool failed = false;
+  std::string errorMsg;
+
+  void renderPages();
+  std::unique_ptr<RenderedPage> renderPage(Page* page, int pagenum);
+  void fail(const std::string& msg);
+  bool stopped() const { return failed || canceled; }
+};
@@ -0,0 +1,440 @@
+#include "rag_index.h"
+#include "ulib/stringutil.h"
+#include <algorithm>
+#include <iterator>
+#include <cstring>
+#include <cmath>
+
+// WorkerPool implementation
+WorkerPool::WorkerPool(size_t threads) {
+    for (size_t i = 0; i < threads; ++i) {
+        threads_.emplace_back(&WorkerPool::workerLoop, this);
+    }
+}
+
+WorkerPool::~WorkerPool() {
+    {
+        std::lock_guard<std::mutex> lock(mutex_);
+        stop_ = true;
+    }
+    workCv_.notify_all();
+    for (std::thread& thread : threads_) {
+        thread.join();
+    }
+}
+
+void WorkerPool::workOn(Job& job) {
+    for (size_t i = job.next++; i < job.n; i = job.next++) {
+        (*job.fn)(i);
+        if (++job.finished == job.n) {
+            std::lock_guard<std::mutex> lock(mutex_);
+            doneCv_.notify_all();
+        }
+    }
+}
+
+void WorkerPool::run(size_t n, const std::function<void(size_t)>& fn) {
+    auto job = std::make_shared<Job>();
+    job->fn = &fn;
+    job->n = n;
+    if (n > 1 && !threads_.empty()) {
+        std::lock_guard<std::mutex> lock(mutex_);
+        jobs_.push_back(job);
+        workCv_.notify_all();
+    }
+    workOn(*job);
+    std::unique_lock<std::mutex> lock(mutex_);
+    jobs_.erase(std::remove(jobs_.begin(), jobs_.end(), job), jobs_.end());
+    doneCv_.wait(lock, [&job]() { return job->finished == job->n; });
+}
+
+void WorkerPool::workerLoop() {
+    std::unique_lock<std::mutex> lock(mutex_);
+    while (!stop_) {
+        if (jobs_.empty()) {
+            workCv_.wait(lock);
+            continue;
+        }
+        // keep job alive (run() removes it once all its indices are claimed)
+        std::shared_ptr<Job> job = jobs_.front();
+        if (job->next >= job->n) {
+            jobs_.erase(jobs_.begin());
+            continue;
+        }
+        lock.unlock();
+        workOn(*job);
+        lock.lock();
+    }
+}
+
+// passage chunking
+std::string passageId(const std::string& documentId, size_t n) {
+    return documentId + fstring("#%d", int(n));
+}
+
+std::string passageDocumentId(const std::string& passageId) {
+    size_t pos = passageId.rfind('#');
+    return pos != std::string::npos ? passageId.substr(0, pos) : passageId;
+}
+
+std::vector<RAGDocument> splitPassages(const RAGDocument& document, const PassageOptions& options) {
+    std::vector<RAGDocument> passages;
+    const std::string& text = document.content;
+    size_t window = std::max(size_t(1), options.windowWords);
+    size_t step = window > options.overlapWords ? window - options.overlapWords : window;
+    std::vector<size_t> pages = document.pageOffsets;
+    if (pages.empty() || pages[0] != 0) {
+        pages.insert(pages.begin(), 0);
+    }
+    pages.push_back(text.size());
+
+    std::vector<std::pair<size_t, size_t>> words;  // start and end of each word on the page
+    for (size_t page = 0; page + 1 < pages.size(); ++page) {
+        size_t end = std::min(pages[page + 1], text.size());
+        words.clear();
+        for (size_t pos = pages[page]; pos < end;) {
+            while (pos < end && std::isspace(static_cast<unsigned char>(text[pos]))) ++pos;
+            size_t start = pos;
+            while (pos < end && !std::isspace(static_cast<unsigned char>(text[pos]))) ++pos;
+            if (pos > start) words.emplace_back(start, pos);
+        }
+        for (size_t first = 0; first < words.size(); first += step) {
+            size_t last = std::min(first + window, words.size()) - 1;
+            RAGDocument passage;
+            passage.id = passageId(document.id, passages.size());
+            passage.title = document.title;
+            passage.source = document.source;
+            passage.tags = document.tags;
+            passage.documentId = document.id;
+            passage.page = document.pageOffsets.empty() ? document.page : static_cast<int>(page) - (document.pageOffsets[0] != 0);
+            passage.offset = words[first].first;
+            passage.content = text.substr(words[first].first, words[last].second - words[first].first);
+            passages.push_back(std::move(passage));
+            if (last + 1 == words.size()) {
+                break;
+            }
+        }
+    }
+    return passages;
+}
+
+// search-as-you-type
+TypeaheadQuery TypeaheadQuery::parse(const std::string& query) {
+    // same tokenization as TextAnalyzer::forEachToken, except that the last token is kept whatever its length
+    TypeaheadQuery result;
+    std::string token;
+    for (unsigned char c : query) {
+        if (std::isalnum(c)) {
+            token += static_cast<char>(std::tolower(c));
+        } else if (std::isspace(c)) {
+            if (token.size() > TextAnalyzer::MIN_TOKEN_LEN
+                    && std::find(result.words.begin(), result.words.end(), token) == result.words.end()) {
+                result.words.push_back(token);
+            }
+            token.clear();
+        }
+    }
+    result.prefix = std::move(token);
+    return result;
+}
+
+float TypeaheadQuery::prefixWeight(const char* term, size_t len) const {
+    if (prefix.empty() || len < prefix.size()) {
+        return 0;
+    }
+    if (memcmp(term, prefix.data(), prefix.size()) == 0) {
+        return len == prefix.size() ? 1.0f : float(COMPLETION_WEIGHT);
+    }
+    if (prefix.size() >= MIN_INFIX_LEN && std::search(term, term + len, prefix.begin(), prefix.end()) != term + len) {
+        return INFIX_WEIGHT;
+    }
+    return 0;
+}
+
+std::vector<TextSpan> findHighlights(const std::string& text, const TypeaheadQuery& query) {
+    std::vector<TextSpan> spans;
+    std::string token;
+    std::vector<size_t> positions;  // of token's chars in text
+    auto endToken = [&]() {
+        if (token.size() > TextAnalyzer::MIN_TOKEN_LEN) {
+            size_t start = 0, end = token.size();  // matching part of token
+            if (std::find(query.words.begin(), query.words.end(), token) == query.words.end()) {
+                if (query.prefixWeight(token.data(), token.size()) <= 0) {
+                    end = 0;
+                } else {
+                    start = token.compare(0, query.prefix.size(), query.prefix) == 0 ? 0 : token.find(query.prefix);
+                    end = start + query.prefix.size();
+                }
+            }
+            if (end > start) {
+                spans.push_back({positions[start], positions[end - 1] + 1 - positions[start]});
+            }
+        }
+        token.clear();
+        positions.clear();
+    };
+    for (size_t i = 0; i < text.size(); ++i) {
+        unsigned char c = text[i];
+        if (std::isalnum(c)) {
+            token += static_cast<char>(std::tolower(c));
+            positions.push_back(i);
+        } else if (std::isspace(c)) {
+            endToken();
+        }
+    }
+    endToken();
+    return spans;
+}
+
+static uint32_t trigramKey(const char* s) {
+    return uint32_t(uint8_t(s[0])) << 16 | uint32_t(uint8_t(s[1])) << 8 | uint8_t(s[2]);
+}
+
+void TrigramIndex::add(uint32_t term, const char* text, size_t len) {
+    for (size_t i = 0; i + 3 <= len; ++i) {
+        std::vector<uint32_t>& terms = terms_[trigramKey(text + i)];
+        if (terms.empty() || terms.back() != term) {
+            terms.push_back(term);
+        }
+    }
+}
+
+std::vector<uint32_t> TrigramIndex::candidates(const std::string& substring) const {
+    std::vector<const std::vector<uint32_t>*> lists;
+    for (size_t i = 0; i + 3 <= substring.size(); ++i) {
+        auto it = terms_.find(trigramKey(&substring[i]));
+        if (it == terms_.end()) {
+            return {};
+        }
+        lists.push_back(&it->second);
+    }
+    if (lists.empty()) {
+        return {};
+    }
+    // intersect sorted term lists, shortest first
+    std::sort(lists.begin(), lists.end(),
+              [](const std::vector<uint32_t>* a, const std::vector<uint32_t>* b) { return a->size() < b->size(); });
+    std::vector<uint32_t> result = *lists[0];
+    std::vector<uint32_t> next;
+    for (size_t i = 1; i < lists.size() && !result.empty(); ++i) {
+        next.clear();
+        std::set_intersection(result.begin(), result.end(), lists[i]->begin(), lists[i]->end(),
+                              std::back_inserter(next));
+        result.swap(next);
+    }
+    return result;
+}
+
+// InvertedIndex implementation
+InvertedIndex::AnalyzedDocument InvertedIndex::analyze(RAGDocument document) {
+    AnalyzedDocument analyzed;
+    std::unordered_map<std::string, uint32_t> tfs;
+    TextAnalyzer::forEachToken(document.content, [&](const std::string& token) {
+        ++tfs[token];
+        ++analyzed.length;
+    });
+    analyzed.terms.assign(tfs.begin(), tfs.end());
+    analyzed.document = std::move(document);
+    return analyzed;
+}
+
+void InvertedIndex::add(AnalyzedDocument&& analyzed, std::vector<uint32_t>* termNumbers) {
+    remove(analyzed.document.id);
+
+    uint32_t docNum = static_cast<uint32_t>(docs_.size());
+    docs_.emplace_back();
+    DocEntry& entry = docs_.back();
+    entry.document = std::move(analyzed.document);
+    entry.length = analyzed.length;
+
+    entry.terms.reserve(analyzed.terms.size());
+    if (termNumbers) {
+        termNumbers->clear();
+        termNumbers->reserve(analyzed.terms.size());
+    }
+    for (auto& tf : analyzed.terms) {
+        auto it = termIds_.find(tf.first);
+        if (it == termIds_.end()) {
+            it = termIds_.emplace(tf.first, static_cast<uint32_t>(terms_.size())).first;
+            terms_.push_back(std::move(tf.first));
+            postings_.emplace_back();
+            docFreq_.push_back(0);
+        }
+        entry.terms.push_back({it->second, tf.second});
+        postings_[it->second].push_back({docNum, tf.second});
+        ++docFreq_[it->second];
+        if (termNumbers) termNumbers->push_back(it->second);
+    }
+    totalLength_ += entry.length;
+    idToDoc_[entry.document.id] = docNum;
+}
+
+void InvertedIndex::replayAdd(AnalyzedDocument&& analyzed, const std::vector<uint32_t>& termNumbers) {
+    remove(analyzed.document.id);
+
+    uint32_t docNum = static_cast<uint32_t>(docs_.size());
+    docs_.emplace_back();
+    DocEntry& entry = docs_.back();
+    entry.document = std::move(analyzed.document);
+    entry.length = analyzed.length;
+
+    entry.terms.reserve(analyzed.terms.size());
+    for (size_t i = 0; i < analyzed.terms.size(); ++i) {
+        uint32_t term = termNumbers[i];
+        if (term == terms_.size()) {
+            // new term, numbered as in the original index
+            termIds_.emplace(analyzed.terms[i].first, term);
+            terms_.push_back(std::move(analyzed.terms[i].first));
+            postings_.emplace_back();
+            docFreq_.push_back(0);
+        }
+        uint32_t tf = analyzed.terms[i].second;
+        entry.terms.push_back({term, tf});
+        postings_[term].push_back({docNum, tf});
+        ++docFreq_[term];
+    }
+    totalLength_ += entry.length;
+    idToDoc_[entry.document.id] = docNum;
+}
+
+bool InvertedIndex::remove(const std::string& id) {
+    auto it = idToDoc_.find(id);
+    if (it == idToDoc_.end()) {
+        return false;
+    }
+
+    DocEntry& entry = docs_[it->second];
+    for (const TermFreq& term : entry.terms) {
+        --docFreq_[term.term];
+    }
+    totalLength_ -= entry.length;
+    entry.alive = false;
+    entry.document = RAGDocument();  // release content now; postings are cleaned up by compact()
+    idToDoc_.erase(it);
+
+    // compact once dead docs make up a quarter of the index
+    if (++deadDocs_ > 64 && deadDocs_ * 4 > docs_.size()) {
+        compact();
+    }
+    return true;
+}
+
+void InvertedIndex::clear() {
+    docs_.clear();
+    idToDoc_.clear();
+    termIds_.clear();
+    terms_.clear();
+    postings_.clear();
+    docFreq_.clear();
+    totalLength_ = 0;
+    deadDocs_ = 0;
+}
+
+const RAGDocument* InvertedIndex::find(const std::string& id) const {
+    auto it = idToDoc_.find(id);
+    return it != idToDoc_.end() ? &docs_[it->second].document : nullptr;
+}
+
+void InvertedIndex::compact() {
+    // renumber live docs and terms still in use, rebuilding postings from per-doc term lists
+    std::vector<DocEntry> oldDocs;
+    std::vector<std::string> oldTerms;
+    oldDocs.swap(docs_);
+    oldTerms.swap(terms_);
+    termIds_.clear();
+    idToDoc_.clear();
+    postings_.clear();
+    docFreq_.clear();
+    deadDocs_ = 0;
+
+    std::vector<uint32_t> termMap(oldTerms.size(), UINT32_MAX);
+    for (DocEntry& entry : oldDocs) {
+        if (!entry.alive) {
+            continue;
+        }
+        uint32_t docNum = static_cast<uint32_t>(docs_.size());
+        for (TermFreq& term : entry.terms) {
+            uint32_t& newId = termMap[term.term];
+            if (newId == UINT32_MAX) {
+                newId = static_cast<uint32_t>(terms_.size());
+                termIds_.emplace(oldTerms[term.term], newId);
+                terms_.push_back(std::move(oldTerms[term.term]));
+                postings_.emplace_back();
+                docFreq_.push_back(0);
+            }
+            term.term = newId;
+            postings_[newId].push_back({docNum, term.tf});
+            ++docFreq_[newId];
+        }
+        idToDoc_[entry.document.id] = docNum;
+        docs_.push_back(std::move(entry));
+    }
+}
+
+uint32_t InvertedIndex::docFreq(const std::string& term) const {
+    auto it = termIds_.find(term);
+    return it != termIds_.end() ? docFreq_[it->second] : 0;
+}
+
+int InvertedIndex::docNumber(const std::string& id) const {
+    auto it = idToDoc_.find(id);
+    return it != idToDoc_.end() ? static_cast<int>(it->second) : -1;
+}
+
+void InvertedIndex::collect(const std::vector<QueryTerm>& terms, float avgLength, int source, TopKCollector& top,
+                            const std::vector<bool>* deleted) const {
+    // term-at-a-time accumulation of BM25 scores
+    std::vector<float> scores;
+    std::vector<uint32_t> touched;
+    for (const QueryTerm& term : terms) {
+        auto it = termIds_.find(term.text);
+        if (it == termIds_.end()) {
+            continue;
+        }
+        if (scores.empty()) {
+            scores.resize(docs_.size(), 0.0f);
+        }
+        for (const Posting& posting : postings_[it->second]) {
+            const DocEntry& entry = docs_[posting.doc];
+            if (!entry.alive || (deleted && (*deleted)[posting.doc])) {
+                continue;
+            }
+            if (scores[posting.doc] == 0) {
+                touched.push_back(posting.doc);
+            }
+            scores[posting.doc] += bm25Score(term.idf, static_cast<float>(posting.tf), static_cast<float>(entry.length), avgLength, params);
+        }
+    }
+    for (uint32_t doc : touched) {
+        top.add(scores[doc], source, doc);
+    }
+}
+
+std::vector<RAGDocument> InvertedIndex::search(const std::string& query, int maxResults) const {
+    std::vector<RAGDocument> results;
+    size_t numDocs = idToDoc_.size();
+    if (numDocs == 0 || maxResults <= 0) {
+        return results;
+    }
+
+    // unique query terms present in the index
+    std::vector<QueryTerm> queryTerms;
+    TextAnalyzer::forEachToken(query, [&](const std::string& token) {
+        uint32_t df = docFreq(token);
+        if (df > 0 && std::find_if(queryTerms.begin(), queryTerms.end(),
+                                   [&](const QueryTerm& t) { return t.text == token; }) == queryTerms.end()) {
+            queryTerms.push_back({token, bm25Idf(static_cast<float>(df), static_cast<float>(numDocs))});
+        }
+    });
+    if (queryTerms.empty()) {
+        return results;
+    }
+
+    TopKCollector top(maxResults);
+    collect(queryTerms, static_cast<float>(totalLength_) / numDocs, 0, top);
+    for (const TopKCollector::Hit& hit : top.takeResults()) {
+        results.push_back(docs_[hit.doc].document);
+        results.back().relevanceScore = hit.score;
+    }
+    return results;
+}
@@ -0,0 +1,310 @@
+#pragma once
+
+#include "aiagent.h"
+#include <unordered_map>
+#include <algorithm>
+#include <cctype>
+#include <cmath>
+#include <atomic>
+#include <thread>
+
+// Simple text analysis functions
+class TextAnalyzer {
+public:
+    static std::vector<std::string> tokenize(const std::string& text);
+    static float calculateSimilarity(const std::string& query, const std::string& document);
+    static std::vector<std::string> extractKeywords(const std::string& text);
+    static std::string normalizeText(const std::string& text);
+    static bool isStopWord(const std::string& token);
+
+    // calls fn(token) for each token tokenize() would return, without building the normalized string;
+    //  token buffer is reused between calls
+    template<typename Fn>
+    static void forEachToken(const std::string& text, Fn&& fn) {
+        std::string token;
+        for (unsigned char c : text) {
+            if (std::isalnum(c)) {
+                token += static_cast<char>(std::tolower(c));
+            } else if (std::isspace(c)) {
+                if (token.size() > MIN_TOKEN_LEN) fn(token);
+                token.clear();
+            }
+        }
+        if (token.size() > MIN_TOKEN_LEN) fn(token);
+    }
+
+    static constexpr size_t MIN_TOKEN_LEN = 2;  // shorter tokens are dropped
+};
+
+// calls fn(i) for each i in [0, n) from up to hardware_concurrency threads (including the caller); fn must
+//  be safe to run concurrently for different i
+template<typename Fn>
+void parallelFor(size_t n, Fn&& fn) {
+    size_t nthreads = std::min<size_t>(std::max(1u, std::thread::hardware_concurrency()), n);
+    std::atomic<size_t> next{0};
+    auto worker = [&]() {
+        for (size_t i = next++; i < n; i = next++) {
+            fn(i);
+        }
+    };
+    std::vector<std::thread> threads;
+    for (size_t t = 1; t < nthreads; ++t) {
+        threads.emplace_back(worker);
+    }
+    worker();
+    for (std::thread& thread : threads) {
+        thread.join();
+    }
+}
+
+// Like parallelFor, but with threads kept between calls, for work too short to be worth starting threads
+//  for (such as scoring the shards of an index for a query); run() may be called from several threads at once
+class WorkerPool {
+public:
+    explicit WorkerPool(size_t threads);
+    ~WorkerPool();
+    // calls fn(i) for each i in [0, n) on the pool's threads and the caller, returning when all are done
+    void run(size_t n, const std::function<void(size_t)>& fn);
+    size_t threadCount() const { return threads_.size(); }
+
+private:
+    struct Job {
+        const std::function<void(size_t)>* fn;
+        size_t n;
+        std::atomic<size_t> next{0};
+        std::atomic<size_t> finished{0};
+    };
+    std::mutex mutex_;
+    std::condition_variable workCv_;
+    std::condition_variable doneCv_;
+    std::vector<std::shared_ptr<Job>> jobs_;  // with indices left to claim
+    std::vector<std::thread> threads_;
+    bool stop_ = false;
+
+    void workOn(Job& job);
+    void workerLoop();
+};
+
+// Passage chunking: documents are indexed as overlapping windows of words so retrieval returns (and prompts
+//  include) only the relevant part of a long note.  Windows do not cross page boundaries.
+struct PassageOptions {
+    size_t windowWords = 120;
+    size_t overlapWords = 30;
+};
+
+// passages of document with ids from passageId() and provenance (documentId, page, offset) set
+std::vector<RAGDocument> splitPassages(const RAGDocument& document, const PassageOptions& options = PassageOptions());
+std::string passageId(const std::string& documentId, size_t n);
+std::string passageDocumentId(const std::string& passageId);
+
+// Search-as-you-type query: the words typed so far, matched exactly, and the word being typed, matched as a
+//  prefix of indexed terms or, once it has MIN_INFIX_LEN characters, anywhere in a term
+struct TypeaheadQuery {
+    std::vector<std::string> words;  // tokens as from TextAnalyzer::forEachToken
+    std::string prefix;  // empty if query ends with whitespace
+
+    static TypeaheadQuery parse(const std::string& query);
+    bool empty() const { return words.empty() && prefix.empty(); }
+    // weight of a match of term (multiplying its BM25 score), or 0 if term doesn't match prefix
+    float prefixWeight(const char* term, size_t len) const;
+
+    static constexpr size_t MIN_INFIX_LEN = 3;
+    static constexpr float COMPLETION_WEIGHT = 0.8f;  // for terms starting with (but not equal to) prefix
+    static constexpr float INFIX_WEIGHT = 0.5f;
+};
+
+// byte ranges of text matching query (just the matching part of a term for prefix and infix matches)
+std::vector<TextSpan> findHighlights(const std::string& text, const TypeaheadQuery& query);
+
+// Terms containing each trigram, to find the terms containing a substring without scanning all of them
+class TrigramIndex {
+public:
+    // terms must be added in increasing order of number
+    void add(uint32_t term, const char* text, size_t len);
+    // terms containing all trigrams of substring (which must have at least 3 chars), so possibly containing
+    //  substring; caller must check
+    std::vector<uint32_t> candidates(const std::string& substring) const;
+
+private:
+    std::unordered_map<uint32_t, std::vector<uint32_t>> terms_;
+};
+
+// BM25 ranking parameters
+struct BM25Params {
+    float k1 = 1.2f;  // term frequency saturation
+    float b = 0.75f;  // document length normalization
+};
+
+// query term with inverse document frequency computed over everything being searched
+struct QueryTerm {
+    std::string text;
+    float idf;
+};
+
+// term frequency of a term in a document; same layout in memory and in segment files
+struct Posting {
+    uint32_t doc;
+    uint32_t tf;
+};
+
+static inline float bm25Idf(float docFreq, float numDocs) {
+    return std::log(1.0f + (numDocs - docFreq + 0.5f) / (docFreq + 0.5f));
+}
+
+static inline float bm25Score(float idf, float tf, float docLength, float avgLength, const BM25Params& params) {
+    float norm = params.k1 * (1 - params.b + params.b * docLength / avgLength);
+    return idf * tf * (params.k1 + 1) / (tf + norm);
+}
+
+// keeps the best k hits seen; source identifies which of several indexes a doc number belongs to
+class TopKCollector {
+public:
+    struct Hit {
+        float score;
+        int source;
+        uint32_t doc;
+        bool operator>(const Hit& other) const { return score > other.score; }
+    };
+
+    explicit TopKCollector(int k) : k_(k) {}
+    void add(float score, int source, uint32_t doc) {
+        if (static_cast<int>(heap_.size()) < k_) {
+            heap_.push_back({score, source, doc});
+            std::push_heap(heap_.begin(), heap_.end(), std::greater<Hit>());
+        } else if (k_ > 0 && score > heap_.front().score) {
+            std::pop_heap(heap_.begin(), heap_.end(), std::greater<Hit>());
+            heap_.back() = {score, source, doc};
+            std::push_heap(heap_.begin(), heap_.end(), std::greater<Hit>());
+        }
+    }
+    // best first; collector is left empty
+    std::vector<Hit> takeResults() {
+        std::sort_heap(heap_.begin(), heap_.end(), std::greater<Hit>());
+        return std::move(heap_);
+    }
+
+private:
+    int k_;
+    std::vector<Hit> heap_;  // min-heap on score
+};
+
+// In-memory inverted index with BM25 ranking; documents are tokenized once when added.  Deleted or replaced
+//  documents are tombstoned and skipped by queries until enough accumulate to make compaction worthwhile.
+//  Not thread safe, but const methods may be used concurrently.
+class InvertedIndex {
+public:
+    // a document with its term frequencies, from analyze(), which may run on any thread
+    struct AnalyzedDocument {
+        RAGDocument document;
+        uint32_t length = 0;  // in tokens
+        std::vector<std::pair<std::string, uint32_t>> terms;
+    };
+    static AnalyzedDocument analyze(RAGDocument document);
+
+    // adds document, replacing any existing document with the same id
+    void add(const RAGDocument& document) { add(analyze(document)); }
+    // optionally returns the term numbers used, so the same add can be replayed on an identical index (one
+    //  that has had the same sequence of changes) without looking the terms up
+    void add(AnalyzedDocument&& analyzed, std::vector<uint32_t>* termNumbers = nullptr);
+    void replayAdd(AnalyzedDocument&& analyzed, const std::vector<uint32_t>& termNumbers);
+    bool remove(const std::string& id);
+    void clear();
+    // top maxResults documents by BM25 score, with relevanceScore set
+    std::vector<RAGDocument> search(const std::string& query, int maxResults) const;
+
+    // for searching together with other indexes: accumulate scores for terms (idf supplied by caller) into top,
+    //  skipping docs flagged in optional deleted
+    void collect(const std::vector<QueryTerm>& terms, float avgLength, int source, TopKCollector& top,
+                 const std::vector<bool>* deleted = nullptr) const;
+    uint32_t docFreq(const std::string& term) const;
+    uint64_t totalLength() const { return totalLength_; }
+    // doc numbers are stable until the next remove() (which may compact)
+    int docNumber(const std::string& id) const;
+    const RAGDocument& document(uint32_t doc) const { return docs_[doc].document; }
+    uint32_t docLength(uint32_t doc) const { return docs_[doc].length; }
+    uint32_t docSlots() const { return static_cast<uint32_t>(docs_.size()); }
+    bool isAlive(uint32_t doc) const { return docs_[doc].alive; }
+    // fn(term, docFreq) for each term of a live document
+    template<typename Fn>
+    void forEachTerm(Fn&& fn) const {
+        for (size_t term = 0; term < terms_.size(); ++term) {
+            if (docFreq_[term] > 0) fn(terms_[term], docFreq_[term]);
+        }
+    }
+    // fn(doc, tf) for each live doc containing term
+    template<typename Fn>
+    void forEachPosting(const std::string& term, Fn&& fn) const {
+        auto it = termIds_.find(term);
+        if (it == termIds_.end()) return;
+        for (const Posting& posting : postings_[it->second]) {
+            if (docs_[posting.doc].alive) fn(posting.doc, posting.tf);
+        }
+    }
+
+    const RAGDocument* find(const std::string& id) const;
+    size_t size() const { return idToDoc_.size(); }
+    // visit all live documents (e.g. for saving)
+    template<typename Fn>
+    void forEach(Fn&& fn) const {
+        for (const DocEntry& entry : docs_) {
+            if (entry.alive) fn(entry.document);
+        }
+    }
+    // live documents (except those flagged in optional deleted) in order as docFn(document, length), then
+    //  terms in sorted order as termFn(term, postings), with docs renumbered to match the order of docFn calls
+    template<typename DocFn, typename TermFn>
+    void exportSorted(DocFn&& docFn, TermFn&& termFn, const std::vector<bool>* deleted = nullptr) const;
+
+    BM25Params params;
+
+private:
+    struct TermFreq {
+        uint32_t term;
+        uint32_t tf;
+    };
+    struct DocEntry {
+        RAGDocument document;
+        uint32_t length = 0;  // in tokens
+        std::vector<TermFreq> terms;  // to update stats on removal and rebuild postings on compaction
+        bool alive = true;
+    };
+
+    std::vector<DocEntry> docs_;
+    std::unordered_map<std::string, uint32_t> idToDoc_;
+    std::unordered_map<std::string, uint32_t> termIds_;
+    std::vector<std::string> terms_;
+    std::vector<std::vector<Posting>> postings_;  // per term, may include dead docs
+    std::vector<uint32_t> docFreq_;  // per term, live docs only
+    uint64_t totalLength_ = 0;  // of live docs
+    size_t deadDocs_ = 0;
+
+    void compact();
+};
+
+template<typename DocFn, typename TermFn>
+void InvertedIndex::exportSorted(DocFn&& docFn, TermFn&& termFn, const std::vector<bool>* deleted) const {
+    std::vector<uint32_t> docMap(docs_.size(), UINT32_MAX);
+    uint32_t nextDoc = 0;
+    for (size_t i = 0; i < docs_.size(); ++i) {
+        if (docs_[i].alive && !(deleted && (*deleted)[i])) {
+            docMap[i] = nextDoc++;
+            docFn(docs_[i].document, docs_[i].length);
+        }
+    }
+
+    std::vector<uint32_t> sortedTerms;
+    for (uint32_t term = 0; term < terms_.size(); ++term) {
+        if (docFreq_[term] > 0) sortedTerms.push_back(term);
+    }
+    std::sort(sortedTerms.begin(), sortedTerms.end(),
+              [this](uint32_t a, uint32_t b) { return terms_[a] < terms_[b]; });
+
+    std::vector<Posting> postings;
+    for (uint32_t term : sortedTerms) {
+        postings.clear();
+        for (const Posting& posting : postings_[term]) {
+            if (docMap[posting.doc] != UINT32_MAX) postings.push_back({docMap[posting.doc], posting.tf});
+        }
+        if (!postings.empty()) termFn(terms_[term], postings);
+    }
+}
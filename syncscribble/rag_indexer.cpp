@@ -0,0 +1,195 @@
+#include "rag_indexer.h"
+#include "ulib/stringutil.h"
+
+#ifdef _WIN32
+#define WIN32_LEAN_AND_MEAN
+#include <windows.h>
+#elif defined(__APPLE__)
+#include <pthread.h>
+#else
+#include <sys/resource.h>
+#endif
+
+// indexing should only use cycles the UI thread and renderer are not using
+static void lowerThreadPriority() {
+#ifdef _WIN32
+    SetThreadPriority(GetCurrentThread(), THREAD_PRIORITY_LOWEST);
+#elif defined(__APPLE__)
+    pthread_set_qos_class_self_np(QOS_CLASS_UTILITY, 0);
+#else
+    // on Linux (and Android) this applies to the calling thread only
+    setpriority(PRIO_PROCESS, 0, 10);
+#endif
+}
+
+std::string notebookPageId(const std::string& notebookId, int pageKey) {
+    return notebookId + fstring("#p%d", pageKey);
+}
+
+NotebookIndexer::NotebookIndexer(RAGService* service, const Options& options)
+    : options_(options), service_(service) {
+    worker_ = std::thread(&NotebookIndexer::workerLoop, this);
+}
+
+NotebookIndexer::~NotebookIndexer() {
+    {
+        std::lock_guard<std::mutex> lock(mutex_);
+        stop_ = true;
+    }
+    workCv_.notify_all();
+    worker_.join();
+}
+
+void NotebookIndexer::pagesChanged(const std::string& notebookId, const std::string& title,
+                                   std::vector<int> pageKeys, std::vector<NotebookPage> pages) {
+    std::lock_guard<std::mutex> lock(mutex_);
+    if (!service_) {
+        return;
+    }
+    if (notebookId != notebookId_) {
+        // pages of the previous notebook stay in the index
+        notebookId_ = notebookId;
+        pending_.clear();
+        indexed_.clear();
+        progress_ = IndexProgress();
+        progress_.notebookId = notebookId;
+    }
+    title_ = title;
+    progress_.pageCount = int(pageKeys.size());
+    pageNumbers_.clear();
+    for (size_t ii = 0; ii < pageKeys.size(); ++ii) {
+        pageNumbers_[pageKeys[ii]] = int(ii);
+    }
+    for (const auto& page : indexed_) {
+        auto number = pageNumbers_.find(page.first);
+        if (number == pageNumbers_.end()) {
+            pending_[page.first] = NotebookPage();  // empty text removes page from index
+        } else if (number->second != page.second.page && !pending_.count(page.first)) {
+            pending_[page.first].text = page.second.text;  // moved by pages inserted or deleted before it
+        }
+    }
+    for (auto it = pending_.begin(); it != pending_.end();) {
+        bool removal = it->second.text.empty() && !it->second.loadText;
+        it = pageNumbers_.count(it->first) || (removal && indexed_.count(it->first)) ? std::next(it) : pending_.erase(it);
+    }
+    for (NotebookPage& page : pages) {
+        if (pageNumbers_.count(page.key)) {
+            int key = page.key;
+            pending_[key] = std::move(page);
+        }
+    }
+    lastChange_ = Clock::now();
+    updateProgressLocked();
+    workCv_.notify_all();
+}
+
+void NotebookIndexer::indexNow() {
+    std::lock_guard<std::mutex> lock(mutex_);
+    indexNow_ = true;
+    workCv_.notify_all();
+}
+
+bool NotebookIndexer::waitIdle(int timeoutMs) {
+    std::unique_lock<std::mutex> lock(mutex_);
+    return idleCv_.wait_for(lock, std::chrono::milliseconds(timeoutMs),
+                            [this]() { return pending_.empty() && !busy_; });
+}
+
+void NotebookIndexer::setService(RAGService* service) {
+    std::unique_lock<std::mutex> lock(mutex_);
+    idleCv_.wait(lock, [this]() { return !busy_; });
+    service_ = service;
+    if (!service) {
+        pending_.clear();
+        updateProgressLocked();
+        idleCv_.notify_all();
+        return;
+    }
+    for (const auto& page : indexed_) {
+        if (!pending_.count(page.first)) {
+            pending_[page.first].text = page.second.text;
+        }
+    }
+    indexed_.clear();
+    indexNow_ = true;
+    updateProgressLocked();
+    workCv_.notify_all();
+}
+
+IndexProgress NotebookIndexer::progress() const {
+    std::lock_guard<std::mutex> lock(mutex_);
+    return progress_;
+}
+
+void NotebookIndexer::updateProgressLocked() {
+    progress_.pagesPending = int(pending_.size());
+    progress_.indexing = busy_ || !pending_.empty();
+}
+
+void NotebookIndexer::workerLoop() {
+    lowerThreadPriority();
+    std::unique_lock<std::mutex> lock(mutex_);
+    while (!stop_) {
+        if (pending_.empty()) {
+            indexNow_ = false;
+            workCv_.wait(lock);
+            continue;
+        }
+        Clock::time_point due = lastChange_ + std::chrono::milliseconds(options_.debounceMs);
+        if (!indexNow_ && Clock::now() < due) {
+            workCv_.wait_until(lock, due);
+            continue;
+        }
+        // one page at a time, so further edits update the text of queued pages and pause indexing again
+        auto next = pending_.begin();
+        int key = next->first;
+        NotebookPage page = std::move(next->second);
+        pending_.erase(next);
+        std::string notebookId = notebookId_;
+        RAGService* service = service_;  // setService() waits while busy_
+        busy_ = true;
+        updateProgressLocked();
+        bool ok = true;
+        if (page.loadText) {
+            lock.unlock();
+            ok = page.loadText(page.text);
+            lock.lock();
+        }
+        auto indexed = indexed_.find(key);
+        int pageNumber = pageNumbers_.count(key) ? pageNumbers_[key] : -1;
+        if (!ok || notebookId != notebookId_ || (indexed != indexed_.end()
+                ? indexed->second.text == page.text && indexed->second.page == pageNumber : page.text.empty())) {
+            busy_ = false;
+            if (!ok && notebookId == notebookId_) {
+                ++progress_.errors;
+            }
+            updateProgressLocked();
+            idleCv_.notify_all();
+            continue;
+        }
+        RAGDocument doc;
+        doc.id = notebookPageId(notebookId_, key);
+        doc.title = title_;
+        doc.source = "notebook";
+        doc.page = pageNumber;
+        doc.content = page.text;
+        lock.unlock();
+        ok = page.text.empty() ? (service->removeDocument(doc.id), true) : service->indexDocument(doc);
+        lock.lock();
+        busy_ = false;
+        if (notebookId == notebookId_) {
+            if (ok) {
+                if (page.text.empty()) {
+                    indexed_.erase(key);
+                } else {
+                    indexed_[key] = IndexedPage{std::move(page.text), pageNumber};
+                }
+                ++progress_.pagesIndexed;
+            } else {
+                ++progress_.errors;
+            }
+        }
+        updateProgressLocked();
+        idleCv_.notify_all();
+    }
+}
@@ -0,0 +1,64 @@
+#pragma once
+
+#include "aiagent.h"
+
+struct NotebookIndexerOptions {
+    int debounceMs = 1500;  // index once edits have paused this long
+};
+
+// Keeps the open notebook searchable: the UI thread hands over the text of changed pages, and once edits
+//  pause, a low priority background thread indexes them.  Each page is indexed as its own document
+//  (notebookPageId() of its key) so an edit only reindexes the pages whose text actually changed.  The text
+//  of indexed pages is kept so everything can be reindexed into a new RAG service.
+class NotebookIndexer {
+public:
+    typedef NotebookIndexerOptions Options;
+
+    NotebookIndexer(RAGService* service, const Options& options = Options());
+    // stops the background thread after any page being indexed; pending changes are dropped
+    ~NotebookIndexer();
+
+    // called on the UI thread with the keys of all pages, in page order, and the changed pages, so must not
+    //  block; pages whose key is not in pageKeys are removed from the index.  A different notebookId starts
+    //  over for that notebook.
+    void pagesChanged(const std::string& notebookId, const std::string& title, std::vector<int> pageKeys,
+                      std::vector<NotebookPage> pages);
+    // index pending changes without waiting for edits to pause
+    void indexNow();
+    // false if still busy after timeoutMs
+    bool waitIdle(int timeoutMs);
+    // reindex all pages into service (e.g. after changing retrieval mode); nullptr stops indexing so the
+    //  old service can be destroyed
+    void setService(RAGService* service);
+    IndexProgress progress() const;
+
+private:
+    typedef std::chrono::steady_clock Clock;
+
+    Options options_;
+    mutable std::mutex mutex_;
+    std::condition_variable workCv_;
+    std::condition_variable idleCv_;
+    RAGService* service_;
+    std::string notebookId_;
+    std::string title_;
+    std::map<int, NotebookPage> pending_;  // latest text of changed pages, by key
+    struct IndexedPage {
+        std::string text;
+        int page;
+    };
+    std::map<int, IndexedPage> indexed_;  // text and page number in the index, by key
+    std::map<int, int> pageNumbers_;  // by key
+    Clock::time_point lastChange_;
+    IndexProgress progress_;
+    bool indexNow_ = false;
+    bool busy_ = false;
+    bool stop_ = false;
+    std::thread worker_;
+
+    void workerLoop();
+    void updateProgressLocked();
+};
+
+// id of the document holding a page of a notebook
+std::string notebookPageId(const std::string& notebookId, int pageKey);
@@ -0,0 +1,1506 @@
+#include "rag_segment.h"
+#include "ulib/stringutil.h"
+#include "ulib/fileutil.h"
+#include "ulib/platformutil.h"
+#include <cstring>
+#include <sstream>
+#include <unordered_set>
+
+#ifdef _WIN32
+#define WIN32_LEAN_AND_MEAN
+#include <windows.h>
+#include <io.h>
+#else
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <fcntl.h>
+#include <unistd.h>
+#endif
+
+static const char SEGMENT_MAGIC[4] = {'W', 'R', 'A', 'G'};
+static const char* MANIFEST_NAME = "MANIFEST";
+static const char* MANIFEST_HEADER = "write-rag-index 1";
+
+static_assert(sizeof(Posting) == 8, "Posting layout");
+static_assert(sizeof(SegmentHeader) == 48, "SegmentHeader layout");
+static_assert(sizeof(SegmentDocRecord) == 64, "SegmentDocRecord layout");
+static_assert(sizeof(SegmentTermRecord) == 24, "SegmentTermRecord layout");
+static_assert(sizeof(SegmentIdRecord) == 16, "SegmentIdRecord layout");
+
+// doc record of version 1 segments, which held whole documents rather than passages
+struct SegmentDocRecordV1 {
+    uint64_t idOffset;
+    uint64_t titleOffset;
+    uint64_t sourceOffset;
+    uint64_t contentOffset;
+    uint32_t idLength;
+    uint32_t titleLength;
+    uint32_t sourceLength;
+    uint32_t contentLength;
+    uint32_t length;
+    uint32_t reserved;
+};
+
+static_assert(sizeof(SegmentDocRecordV1) == 56, "SegmentDocRecordV1 layout");
+
+// flush stdio buffers and OS buffers for file to disk
+bool syncFile(FILE* fp) {
+    if (fflush(fp) != 0) {
+        return false;
+    }
+#ifdef _WIN32
+    return _commit(_fileno(fp)) == 0;
+#else
+    return fsync(fileno(fp)) == 0;
+#endif
+}
+
+bool replaceFile(const std::string& src, const std::string& dest) {
+#ifdef _WIN32
+    return MoveFileExA(src.c_str(), dest.c_str(), MOVEFILE_REPLACE_EXISTING | MOVEFILE_WRITE_THROUGH) != 0;
+#else
+    return rename(src.c_str(), dest.c_str()) == 0;
+#endif
+}
+
+// same ordering as std::string comparison
+static int compareBytes(const char* a, size_t alen, const char* b, size_t blen) {
+    int c = memcmp(a, b, std::min(alen, blen));
+    return c != 0 ? c : (alen < blen ? -1 : (alen > blen ? 1 : 0));
+}
+
+// FNV-1a, to detect torn log records
+static uint32_t checksum(const char* data, size_t len) {
+    uint32_t hash = 2166136261u;
+    for (size_t i = 0; i < len; ++i) {
+        hash = (hash ^ static_cast<unsigned char>(data[i])) * 16777619u;
+    }
+    return hash;
+}
+
+// MappedFile implementation
+bool MappedFile::open(const std::string& path) {
+    close();
+#ifdef _WIN32
+    HANDLE file = CreateFileA(path.c_str(), GENERIC_READ, FILE_SHARE_READ | FILE_SHARE_DELETE, NULL,
+                              OPEN_EXISTING, FILE_ATTRIBUTE_NORMAL, NULL);
+    if (file == INVALID_HANDLE_VALUE) {
+        return false;
+    }
+    LARGE_INTEGER size;
+    HANDLE mapping = NULL;
+    if (GetFileSizeEx(file, &size) && size.QuadPart > 0) {
+        mapping = CreateFileMappingA(file, NULL, PAGE_READONLY, 0, 0, NULL);
+    }
+    void* data = mapping ? MapViewOfFile(mapping, FILE_MAP_READ, 0, 0, 0) : NULL;
+    if (!data) {
+        if (mapping) CloseHandle(mapping);
+        CloseHandle(file);
+        return false;
+    }
+    file_ = file;
+    mapping_ = mapping;
+    data_ = static_cast<const char*>(data);
+    size_ = static_cast<size_t>(size.QuadPart);
+#else
+    int fd = ::open(path.c_str(), O_RDONLY);
+    if (fd < 0) {
+        return false;
+    }
+    struct stat st;
+    void* data = MAP_FAILED;
+    if (fstat(fd, &st) == 0 && st.st_size > 0) {
+        data = mmap(NULL, st.st_size, PROT_READ, MAP_SHARED, fd, 0);
+    }
+    ::close(fd);  // mapping stays valid
+    if (data == MAP_FAILED) {
+        return false;
+    }
+    data_ = static_cast<const char*>(data);
+    size_ = st.st_size;
+#endif
+    return true;
+}
+
+void MappedFile::close() {
+    if (!data_) {
+        return;
+    }
+#ifdef _WIN32
+    UnmapViewOfFile(data_);
+    CloseHandle(mapping_);
+    CloseHandle(file_);
+    file_ = mapping_ = nullptr;
+#else
+    munmap(const_cast<char*>(data_), size_);
+#endif
+    data_ = nullptr;
+    size_ = 0;
+}
+
+// SegmentWriter implementation
+SegmentWriter::~SegmentWriter() {
+    if (fp_) {
+        fclose(fp_);
+    }
+}
+
+bool SegmentWriter::open(const std::string& path) {
+    fp_ = fopen(path.c_str(), "wb");
+    if (!fp_) {
+        return false;
+    }
+    SegmentHeader header = {};
+    write(&header, sizeof(header));  // placeholder until finish()
+    return ok_;
+}
+
+uint64_t SegmentWriter::write(const void* data, size_t len) {
+    uint64_t offset = offset_;
+    if (len > 0 && fwrite(data, 1, len, fp_) != len) {
+        ok_ = false;
+    }
+    offset_ += len;
+    return offset;
+}
+
+void SegmentWriter::align(size_t alignment) {
+    static const char zeros[8] = {0};
+    size_t pad = (alignment - offset_ % alignment) % alignment;
+    write(zeros, pad);
+}
+
+uint32_t SegmentWriter::addDocument(const RAGDocument& doc, uint32_t length) {
+    SegmentDocRecord rec = {};
+    rec.idOffset = write(doc.id.data(), doc.id.size());
+    rec.idLength = static_cast<uint32_t>(doc.id.size());
+    rec.titleOffset = write(doc.title.data(), doc.title.size());
+    rec.titleLength = static_cast<uint32_t>(doc.title.size());
+    rec.sourceOffset = write(doc.source.data(), doc.source.size());
+    rec.sourceLength = static_cast<uint32_t>(doc.source.size());
+    rec.contentOffset = write(doc.content.data(), doc.content.size());
+    rec.contentLength = static_cast<uint32_t>(doc.content.size());
+    rec.length = length;
+    rec.page = doc.page;
+    rec.offset = doc.offset;
+    uint32_t docNum = static_cast<uint32_t>(docs_.size());
+    docs_.push_back(rec);
+    ids_.emplace_back(doc.id, docNum);
+    totalLength_ += length;
+    return docNum;
+}
+
+uint32_t SegmentWriter::copyDocument(const char* base, const SegmentDocRecord& doc) {
+    SegmentDocRecord rec = doc;
+    rec.idOffset = write(base + doc.idOffset, doc.idLength);
+    rec.titleOffset = write(base + doc.titleOffset, doc.titleLength);
+    rec.sourceOffset = write(base + doc.sourceOffset, doc.sourceLength);
+    rec.contentOffset = write(base + doc.contentOffset, doc.contentLength);
+    uint32_t docNum = static_cast<uint32_t>(docs_.size());
+    docs_.push_back(rec);
+    ids_.emplace_back(std::string(base + doc.idOffset, doc.idLength), docNum);
+    totalLength_ += doc.length;
+    return docNum;
+}
+
+void SegmentWriter::addTerm(const char* text, size_t textLen, const Posting* postings, size_t count) {
+    SegmentTermRecord rec = {};
+    rec.textOffset = write(text, textLen);
+    rec.textLength = static_cast<uint32_t>(textLen);
+    align(alignof(Posting));
+    rec.postingsOffset = write(postings, count * sizeof(Posting));
+    rec.docFreq = static_cast<uint32_t>(count);
+    terms_.push_back(rec);
+}
+
+bool SegmentWriter::finish() {
+    if (!fp_) {
+        return false;
+    }
+    SegmentHeader header = {};
+    memcpy(header.magic, SEGMENT_MAGIC, sizeof(header.magic));
+    header.version = VERSION;
+    header.docCount = static_cast<uint32_t>(docs_.size());
+    header.termCount = static_cast<uint32_t>(terms_.size());
+    header.totalLength = totalLength_;
+
+    align(8);
+    header.docTableOffset = write(docs_.data(), docs_.size() * sizeof(SegmentDocRecord));
+    header.termTableOffset = write(terms_.data(), terms_.size() * sizeof(SegmentTermRecord));
+
+    std::sort(ids_.begin(), ids_.end());
+    std::vector<SegmentIdRecord> idTable;
+    idTable.reserve(ids_.size());
+    for (const auto& id : ids_) {
+        const SegmentDocRecord& doc = docs_[id.second];
+        idTable.push_back({doc.idOffset, doc.idLength, id.second});
+    }
+    header.idTableOffset = write(idTable.data(), idTable.size() * sizeof(SegmentIdRecord));
+
+    if (fseek(fp_, 0, SEEK_SET) != 0 || fwrite(&header, sizeof(header), 1, fp_) != 1) {
+        ok_ = false;
+    }
+    ok_ = syncFile(fp_) && ok_;
+    ok_ = fclose(fp_) == 0 && ok_;
+    fp_ = nullptr;
+    return ok_;
+}
+
+// IndexSegment implementation
+IndexSegment::~IndexSegment() {
+    if (tombstones_) {
+        fclose(tombstones_);
+    }
+    file_.close();
+    if (obsolete_) {
+        removeFile(path_);
+        removeFile(path_ + ".del");
+    }
+}
+
+std::shared_ptr<IndexSegment> IndexSegment::open(const std::string& path) {
+    auto segment = std::make_shared<IndexSegment>();
+    segment->path_ = path;
+    MappedFile& file = segment->file_;
+    if (!file.open(path) || file.size() < sizeof(SegmentHeader)) {
+        return nullptr;
+    }
+
+    // validate so a corrupt file can't send us outside the mapping
+    auto header = reinterpret_cast<const SegmentHeader*>(file.data());
+    auto fits = [&file](uint64_t offset, uint64_t count, size_t recordSize) {
+        return offset <= file.size() && count <= (file.size() - offset) / recordSize;
+    };
+    if (memcmp(header->magic, SEGMENT_MAGIC, sizeof(header->magic)) != 0 || header->version != SegmentWriter::VERSION
+            || !fits(header->docTableOffset, header->docCount, sizeof(SegmentDocRecord))
+            || !fits(header->termTableOffset, header->termCount, sizeof(SegmentTermRecord))
+            || !fits(header->idTableOffset, header->docCount, sizeof(SegmentIdRecord))) {
+        return nullptr;
+    }
+    segment->header_ = header;
+    segment->docTable_ = reinterpret_cast<const SegmentDocRecord*>(file.data() + header->docTableOffset);
+    segment->termTable_ = reinterpret_cast<const SegmentTermRecord*>(file.data() + header->termTableOffset);
+    segment->idTable_ = reinterpret_cast<const SegmentIdRecord*>(file.data() + header->idTableOffset);
+    for (uint32_t i = 0; i < header->termCount; ++i) {
+        const SegmentTermRecord& term = segment->termTable_[i];
+        if (!fits(term.textOffset, term.textLength, 1) || !fits(term.postingsOffset, term.docFreq, sizeof(Posting))) {
+            return nullptr;
+        }
+    }
+    for (uint32_t i = 0; i < header->docCount; ++i) {
+        const SegmentDocRecord& doc = segment->docTable_[i];
+        if (!fits(doc.idOffset, doc.idLength, 1) || !fits(doc.titleOffset, doc.titleLength, 1)
+                || !fits(doc.sourceOffset, doc.sourceLength, 1) || !fits(doc.contentOffset, doc.contentLength, 1)
+                || segment->idTable_[i].doc >= header->docCount) {
+            return nullptr;
+        }
+    }
+    return segment;
+}
+
+const SegmentTermRecord* IndexSegment::lowerBoundTerm(const std::string& term) const {
+    const char* base = file_.data();
+    return std::lower_bound(termTable_, termTable_ + header_->termCount, term,
+                            [base](const SegmentTermRecord& rec, const std::string& t) {
+        return compareBytes(base + rec.textOffset, rec.textLength, t.data(), t.size()) < 0;
+    });
+}
+
+const SegmentTermRecord* IndexSegment::findTerm(const std::string& term) const {
+    const SegmentTermRecord* it = lowerBoundTerm(term);
+    if (it != termTable_ + header_->termCount
+            && compareBytes(file_.data() + it->textOffset, it->textLength, term.data(), term.size()) == 0) {
+        return it;
+    }
+    return nullptr;
+}
+
+const TrigramIndex& IndexSegment::trigrams() const {
+    std::call_once(trigramsOnce_, [this]() {
+        for (uint32_t term = 0; term < header_->termCount; ++term) {
+            trigrams_.add(term, file_.data() + termTable_[term].textOffset, termTable_[term].textLength);
+        }
+    });
+    return trigrams_;
+}
+
+uint32_t IndexSegment::docFreq(const std::string& term) const {
+    const SegmentTermRecord* rec = findTerm(term);
+    return rec ? rec->docFreq : 0;
+}
+
+int IndexSegment::findDoc(const std::string& id) const {
+    const SegmentIdRecord* begin = idTable_;
+    const SegmentIdRecord* end = idTable_ + header_->docCount;
+    const char* base = file_.data();
+    auto it = std::lower_bound(begin, end, id, [base](const SegmentIdRecord& rec, const std::string& s) {
+        return compareBytes(base + rec.idOffset, rec.idLength, s.data(), s.size()) < 0;
+    });
+    if (it != end && compareBytes(base + it->idOffset, it->idLength, id.data(), id.size()) == 0) {
+        return static_cast<int>(it->doc);
+    }
+    return -1;
+}
+
+std::vector<bool> IndexSegment::readTombstones() const {
+    std::vector<bool> deleted(header_->docCount, false);
+    FILE* fp = fopen((path_ + ".del").c_str(), "rb");
+    if (fp) {
+        uint32_t doc;
+        while (fread(&doc, sizeof(doc), 1, fp) == 1) {
+            if (doc < header_->docCount) deleted[doc] = true;
+        }
+        fclose(fp);
+    }
+    return deleted;
+}
+
+void IndexSegment::appendTombstone(uint32_t doc) {
+    if (!tombstones_) {
+        tombstones_ = fopen((path_ + ".del").c_str(), "ab");
+    }
+    if (tombstones_) {
+        fwrite(&doc, sizeof(doc), 1, tombstones_);
+        fflush(tombstones_);
+    }
+}
+
+RAGDocument IndexSegment::document(uint32_t doc) const {
+    const SegmentDocRecord& rec = docTable_[doc];
+    const char* base = file_.data();
+    RAGDocument result;
+    result.id.assign(base + rec.idOffset, rec.idLength);
+    result.title.assign(base + rec.titleOffset, rec.titleLength);
+    result.source.assign(base + rec.sourceOffset, rec.sourceLength);
+    result.content.assign(base + rec.contentOffset, rec.contentLength);
+    result.documentId = passageDocumentId(result.id);
+    result.page = rec.page;
+    result.offset = rec.offset;
+    return result;
+}
+
+void IndexSegment::collect(const std::vector<QueryTerm>& terms, float avgLength, const BM25Params& params,
+                           int source, TopKCollector& top, const std::vector<bool>* deleted) const {
+    std::vector<float> scores;
+    std::vector<uint32_t> touched;
+    for (const QueryTerm& term : terms) {
+        const SegmentTermRecord* rec = findTerm(term.text);
+        if (!rec) {
+            continue;
+        }
+        if (scores.empty()) {
+            scores.resize(header_->docCount, 0.0f);
+        }
+        const Posting* postingList = postings(*rec);
+        for (uint32_t i = 0; i < rec->docFreq; ++i) {
+            uint32_t doc = postingList[i].doc;
+            if (doc >= header_->docCount || (deleted && (*deleted)[doc])) {
+                continue;
+            }
+            if (scores[doc] == 0) {
+                touched.push_back(doc);
+            }
+            scores[doc] += bm25Score(term.idf, static_cast<float>(postingList[i].tf),
+                                     static_cast<float>(docTable_[doc].length), avgLength, params);
+        }
+    }
+    for (uint32_t doc : touched) {
+        top.add(scores[doc], source, doc);
+    }
+}
+
+// IndexLayer implementation
+int IndexLayer::findDoc(const std::string& id) const {
+    int doc = run ? run->docNumber(id) : segment->findDoc(id);
+    return doc >= 0 && !isDeleted(doc) ? doc : -1;
+}
+
+void IndexLayer::collect(const std::vector<QueryTerm>& terms, float avgLength, const BM25Params& params,
+                         int source, TopKCollector& top) const {
+    if (run) {
+        run->collect(terms, avgLength, source, top, deleted.get());
+    } else {
+        segment->collect(terms, avgLength, params, source, top, deleted.get());
+    }
+}
+
+bool IndexLayer::markDeleted(uint32_t doc) {
+    if (isDeleted(doc)) {
+        return false;
+    }
+    if (!deleted) {
+        deleted = std::make_shared<std::vector<bool>>(docSlots(), false);
+    } else if (deleted.use_count() > 1) {
+        deleted = std::make_shared<std::vector<bool>>(*deleted);  // copy on write
+    }
+    (*deleted)[doc] = true;
+    ++deletedCount;
+    deletedLength += docLength(doc);
+    if (segment) {
+        segment->appendTombstone(doc);
+    }
+    return true;
+}
+
+// documents of a version 1 segment less its deletions; false if path isn't a valid version 1 segment
+static bool readSegmentV1(const std::string& path, std::vector<RAGDocument>& docs) {
+    MappedFile file;
+    if (!file.open(path) || file.size() < sizeof(SegmentHeader)) {
+        return false;
+    }
+    auto header = reinterpret_cast<const SegmentHeader*>(file.data());
+    auto fits = [&file](uint64_t offset, uint64_t count, size_t recordSize) {
+        return offset <= file.size() && count <= (file.size() - offset) / recordSize;
+    };
+    if (memcmp(header->magic, SEGMENT_MAGIC, sizeof(header->magic)) != 0 || header->version != 1
+            || !fits(header->docTableOffset, header->docCount, sizeof(SegmentDocRecordV1))) {
+        return false;
+    }
+    std::vector<bool> deleted(header->docCount, false);
+    FILE* fp = fopen((path + ".del").c_str(), "rb");
+    if (fp) {
+        uint32_t doc;
+        while (fread(&doc, sizeof(doc), 1, fp) == 1) {
+            if (doc < header->docCount) deleted[doc] = true;
+        }
+        fclose(fp);
+    }
+    auto records = reinterpret_cast<const SegmentDocRecordV1*>(file.data() + header->docTableOffset);
+    const char* base = file.data();
+    for (uint32_t i = 0; i < header->docCount; ++i) {
+        const SegmentDocRecordV1& rec = records[i];
+        if (!fits(rec.idOffset, rec.idLength, 1) || !fits(rec.titleOffset, rec.titleLength, 1)
+                || !fits(rec.sourceOffset, rec.sourceLength, 1) || !fits(rec.contentOffset, rec.contentLength, 1)) {
+            return false;
+        }
+        if (!deleted[i]) {
+            RAGDocument doc;
+            doc.id.assign(base + rec.idOffset, rec.idLength);
+            doc.title.assign(base + rec.titleOffset, rec.titleLength);
+            doc.source.assign(base + rec.sourceOffset, rec.sourceLength);
+            doc.content.assign(base + rec.contentOffset, rec.contentLength);
+            doc.documentId = doc.id;
+            docs.push_back(std::move(doc));
+        }
+    }
+    return true;
+}
+
+// layer for a segment with deletions from its tombstone file
+static IndexLayer segmentLayer(const std::shared_ptr<IndexSegment>& segment) {
+    IndexLayer layer;
+    layer.segment = segment;
+    std::vector<bool> deleted = segment->readTombstones();
+    for (uint32_t doc = 0; doc < deleted.size(); ++doc) {
+        if (deleted[doc]) {
+            ++layer.deletedCount;
+            layer.deletedLength += segment->docRecord(doc).length;
+        }
+    }
+    if (layer.deletedCount > 0) {
+        layer.deleted = std::make_shared<std::vector<bool>>(std::move(deleted));
+    }
+    return layer;
+}
+
+size_t IndexSnapshot::size() const {
+    size_t count = 0;
+    forEachLayer([&count](const IndexLayer& layer) { count += layer.liveCount(); });
+    return count;
+}
+
+// searching snapshots as one collection
+static void runShards(WorkerPool* pool, size_t n, const std::function<void(size_t)>& fn) {
+    if (pool && n > 1) {
+        pool->run(n, fn);
+    } else {
+        for (size_t i = 0; i < n; ++i) {
+            fn(i);
+        }
+    }
+}
+
+// the layers of each snapshot, with collection wide statistics; doc frequencies still count deleted docs
+//  until merged
+struct SnapshotLayers {
+    std::vector<std::vector<const IndexLayer*>> layers;
+    size_t numDocs = 0;
+    uint64_t totalLength = 0;
+
+    explicit SnapshotLayers(const std::vector<std::shared_ptr<const IndexSnapshot>>& snapshots) {
+        for (const std::shared_ptr<const IndexSnapshot>& snap : snapshots) {
+            layers.emplace_back();
+            snap->forEachLayer([this](const IndexLayer& layer) {
+                layers.back().push_back(&layer);
+                numDocs += layer.liveCount();
+                totalLength += layer.liveLength();
+            });
+        }
+    }
+
+    size_t docFreq(const std::string& term) const {
+        size_t df = 0;
+        for (const std::vector<const IndexLayer*>& snapLayers : layers) {
+            for (const IndexLayer* layer : snapLayers) {
+                df += layer->docFreq(term);
+            }
+        }
+        return df;
+    }
+    float idf(size_t docFreq) const {
+        return bm25Idf(static_cast<float>(std::min(docFreq, numDocs)), static_cast<float>(numDocs));
+    }
+    float avgLength() const { return std::max(1.0f, static_cast<float>(totalLength) / numDocs); }
+
+    // best maxResults hits; score(i, top) adds the hits of snapshot i to top, with source being the layer
+    //  number, and runs on pool
+    std::vector<RAGDocument> topHits(int maxResults, WorkerPool* pool, std::vector<double>* shardMicros,
+                                     const std::function<void(size_t, TopKCollector&)>& score) const {
+        std::vector<std::vector<TopKCollector::Hit>> shardHits(layers.size());
+        if (shardMicros) {
+            shardMicros->assign(layers.size(), 0);
+        }
+        runShards(pool, layers.size(), [&](size_t i) {
+            auto start = std::chrono::steady_clock::now();
+            TopKCollector top(maxResults);
+            score(i, top);
+            shardHits[i] = top.takeResults();
+            if (shardMicros) {
+                (*shardMicros)[i] = std::chrono::duration<double, std::micro>(std::chrono::steady_clock::now() - start).count();
+            }
+        });
+        // merge: source is the snapshot and doc the position in its hits
+        TopKCollector top(maxResults);
+        for (size_t i = 0; i < shardHits.size(); ++i) {
+            for (size_t j = 0; j < shardHits[i].size(); ++j) {
+                top.add(shardHits[i][j].score, static_cast<int>(i), static_cast<uint32_t>(j));
+            }
+        }
+        std::vector<RAGDocument> results;
+        for (const TopKCollector::Hit& hit : top.takeResults()) {
+            const TopKCollector::Hit& shardHit = shardHits[hit.source][hit.doc];
+            results.push_back(layers[hit.source][shardHit.source]->document(shardHit.doc));
+            results.back().relevanceScore = hit.score;
+        }
+        return results;
+    }
+};
+
+std::vector<RAGDocument> searchSnapshots(const std::vector<std::shared_ptr<const IndexSnapshot>>& snapshots,
+                                         const std::string& query, int maxResults, const BM25Params& params,
+                                         WorkerPool* pool, std::vector<double>* shardMicros) {
+    SnapshotLayers collection(snapshots);
+    if (collection.numDocs == 0 || maxResults <= 0) {
+        return {};
+    }
+    std::vector<QueryTerm> queryTerms;
+    TextAnalyzer::forEachToken(query, [&](const std::string& token) {
+        if (std::find_if(queryTerms.begin(), queryTerms.end(),
+                         [&](const QueryTerm& t) { return t.text == token; }) != queryTerms.end()) {
+            return;
+        }
+        size_t df = collection.docFreq(token);
+        if (df > 0) {
+            queryTerms.push_back({token, collection.idf(df)});
+        }
+    });
+    if (queryTerms.empty()) {
+        return {};
+    }
+
+    float avgLength = collection.avgLength();
+    return collection.topHits(maxResults, pool, shardMicros, [&](size_t shard, TopKCollector& top) {
+        const std::vector<const IndexLayer*>& layers = collection.layers[shard];
+        for (size_t i = 0; i < layers.size(); ++i) {
+            layers[i]->collect(queryTerms, avgLength, params, static_cast<int>(i), top);
+        }
+    });
+}
+
+std::vector<RAGDocument> searchSnapshotsAsYouType(const std::vector<std::shared_ptr<const IndexSnapshot>>& snapshots,
+                                                  const std::string& query, int maxResults, const BM25Params& params,
+                                                  size_t maxPrefixTerms, const AICancelToken* cancelToken,
+                                                  WorkerPool* pool, std::vector<double>* shardMicros) {
+    SnapshotLayers collection(snapshots);
+    TypeaheadQuery parsed = TypeaheadQuery::parse(query);
+    if (collection.numDocs == 0 || maxResults <= 0 || parsed.empty()) {
+        return {};
+    }
+    auto cancelled = [cancelToken]() { return cancelToken && cancelToken->isCancelled(); };
+
+    // passages must match each word and the prefix; the prefix (and so its slot) may match several terms
+    struct Alternative {
+        std::string term;
+        float weight = 1.0f;
+        size_t docFreq = 0;
+    };
+    std::vector<std::vector<Alternative>> slots;
+    std::vector<size_t> slotDocFreqs;
+    for (const std::string& word : parsed.words) {
+        Alternative alternative;
+        alternative.term = word;
+        alternative.docFreq = collection.docFreq(word);
+        if (alternative.docFreq == 0) {
+            return {};
+        }
+        slots.push_back({alternative});
+        slotDocFreqs.push_back(alternative.docFreq);
+    }
+    if (!parsed.prefix.empty()) {
+        // the word itself, then the most common completions, then terms containing it; only the best matches
+        //  of each layer are kept, so a short prefix matching thousands of terms stays cheap
+        struct Match {
+            const char* text;
+            size_t len;
+            uint32_t docFreq;
+            float weight;
+            bool operator<(const Match& other) const {
+                return weight != other.weight ? weight > other.weight : docFreq > other.docFreq;
+            }
+        };
+        std::vector<Match> matches;
+        std::unordered_map<std::string, Alternative> merged;
+        size_t prefixDocFreq = 0;
+        for (const std::vector<const IndexLayer*>& snapLayers : collection.layers) {
+            for (const IndexLayer* layer : snapLayers) {
+                matches.clear();
+                layer->forEachPrefixMatch(parsed, [&](const char* text, size_t len, uint32_t docFreq, float weight) {
+                    matches.push_back({text, len, docFreq, weight});
+                    prefixDocFreq += docFreq;
+                });
+                size_t best = std::min(matches.size(), maxPrefixTerms);
+                std::partial_sort(matches.begin(), matches.begin() + best, matches.end());
+                for (size_t i = 0; i < best; ++i) {
+                    Alternative& alternative = merged[std::string(matches[i].text, matches[i].len)];
+                    alternative.weight = matches[i].weight;
+                    alternative.docFreq += matches[i].docFreq;
+                }
+            }
+        }
+        if (merged.empty() || cancelled()) {
+            return {};
+        }
+        std::vector<Alternative> alternatives;
+        for (auto& entry : merged) {
+            entry.second.term = entry.first;
+            alternatives.push_back(std::move(entry.second));
+        }
+        std::sort(alternatives.begin(), alternatives.end(), [](const Alternative& a, const Alternative& b) {
+            return a.weight != b.weight ? a.weight > b.weight : a.docFreq > b.docFreq;
+        });
+        if (alternatives.size() > maxPrefixTerms) {
+            alternatives.resize(maxPrefixTerms);
+        }
+        slots.push_back(std::move(alternatives));
+        slotDocFreqs.push_back(prefixDocFreq);
+    }
+
+    // the alternatives share the idf of the slot as a whole, so a rare term containing the prefix doesn't
+    //  outrank the common words the user is more likely to be typing
+    std::vector<float> slotIdfs;
+    for (size_t docFreq : slotDocFreqs) {
+        slotIdfs.push_back(collection.idf(docFreq));
+    }
+
+    // slot at a time: a doc's score for a slot is its best scoring alternative, and docs missing a slot are
+    //  dropped (matched[doc] counts the slots matched so far)
+    float avgLength = collection.avgLength();
+    std::vector<RAGDocument> results = collection.topHits(maxResults, pool, shardMicros, [&](size_t shard, TopKCollector& top) {
+        std::vector<float> slotScores;
+        std::vector<float> scores;
+        std::vector<uint32_t> matched;
+        std::vector<uint32_t> touched;
+        const std::vector<const IndexLayer*>& layers = collection.layers[shard];
+        for (size_t i = 0; i < layers.size() && !cancelled(); ++i) {
+            const IndexLayer& layer = *layers[i];
+            slotScores.assign(layer.docSlots(), 0.0f);
+            scores.assign(layer.docSlots(), 0.0f);
+            matched.assign(layer.docSlots(), 0);
+            for (uint32_t slot = 0; slot < slots.size(); ++slot) {
+                touched.clear();
+                for (const Alternative& alternative : slots[slot]) {
+                    float idf = alternative.weight * slotIdfs[slot];
+                    layer.forEachPosting(alternative.term, [&](uint32_t doc, uint32_t tf) {
+                        if (matched[doc] != slot) {
+                            return;
+                        }
+                        float score = bm25Score(idf, static_cast<float>(tf), static_cast<float>(layer.docLength(doc)),
+                                                avgLength, params);
+                        if (slotScores[doc] == 0) {
+                            touched.push_back(doc);
+                        }
+                        slotScores[doc] = std::max(slotScores[doc], score);
+                    });
+                }
+                for (uint32_t doc : touched) {
+                    scores[doc] += slotScores[doc];
+                    slotScores[doc] = 0;
+                    matched[doc] = slot + 1;
+                }
+                if (touched.empty()) {
+                    break;
+                }
+            }
+            for (uint32_t doc : touched) {
+                if (matched[doc] == slots.size()) {
+                    top.add(scores[doc], static_cast<int>(i), doc);
+                }
+            }
+        }
+    });
+    if (cancelled()) {
+        return {};
+    }
+    for (RAGDocument& result : results) {
+        result.highlights = findHighlights(result.content, parsed);
+    }
+    return results;
+}
+
+// SegmentedIndex implementation
+SegmentedIndex::SegmentedIndex(const std::string& dir, const Options& options) : dir_(dir), options_(options) {
+    createPath(dir_);
+    resetMemtableLocked();
+    open();
+    worker_ = std::thread([this]() { workerLoop(); });
+}
+
+SegmentedIndex::~SegmentedIndex() {
+    {
+        std::lock_guard<std::mutex> lock(mutex_);
+        stopWorker_ = true;
+    }
+    workCv_.notify_all();
+    worker_.join();
+    if (wal_) {
+        fclose(wal_);
+    }
+}
+
+std::string SegmentedIndex::newFileName(const char* ext) {
+    return fstring("%06llu.%s", static_cast<unsigned long long>(nextFileNum_++), ext);
+}
+
+void SegmentedIndex::open() {
+    std::lock_guard<std::mutex> lock(mutex_);
+    std::vector<std::string> segmentNames, walNames;
+    readManifest(segmentNames, walNames);
+    // documents from before they were split into passages (version 1 segments and logs) are split as they are
+    //  loaded; segments are older than the logs, so theirs go into the memtable first
+    std::unordered_set<std::string> legacyDocuments;
+    for (const std::string& name : segmentNames) {
+        std::string path = FSPath(dir_, name).path;
+        auto segment = IndexSegment::open(path);
+        std::vector<RAGDocument> docs;
+        if (segment) {
+            next_.segments.push_back(segmentLayer(segment));
+        } else if (readSegmentV1(path, docs)) {
+            PLATFORM_LOG("Migrating RAG index segment %s: splitting %d documents into passages\n",
+                         path.c_str(), int(docs.size()));
+            for (const RAGDocument& doc : docs) {
+                legacyDocuments.insert(doc.id);
+                applyLegacyAddLocked(doc);
+            }
+            legacySegments_.push_back(name);
+        }
+    }
+
+    // logs are replayed into the memtable and stay referenced until it is written to a segment
+    for (const std::string& name : walNames) {
+        if (replayWal(FSPath(dir_, name).path, legacyDocuments) > 0) {
+            memtableWals_.push_back(name);
+        }
+    }
+
+    std::vector<std::string> referenced = segmentNames;
+    referenced.insert(referenced.end(), memtableWals_.begin(), memtableWals_.end());
+    removeUnreferencedFiles(referenced);
+
+    // always append to a new log, since the last one may end with a torn record
+    openWalLocked();
+    writeManifestLocked();
+    if (!legacyDocuments.empty()) {
+        // the migrated passages are only in the memtable, so have the worker write it to a segment now; the
+        //  version 1 segments stay in the manifest, and are loaded again after a crash, until it has
+        maybeFreezeLocked(true);
+        if (!next_.frozen.run && !legacySegments_.empty()) {
+            // all of their documents were deleted
+            std::vector<std::string> oldSegments;
+            oldSegments.swap(legacySegments_);
+            if (writeManifestLocked()) {
+                removeSegmentFiles(oldSegments);
+            } else {
+                legacySegments_ = oldSegments;
+            }
+        }
+    }
+    publishLocked();
+}
+
+bool SegmentedIndex::readManifest(std::vector<std::string>& segments, std::vector<std::string>& wals) {
+    FILE* fp = fopen(FSPath(dir_, MANIFEST_NAME).c_str(), "rb");
+    if (!fp) {
+        return false;
+    }
+    std::string contents;
+    char buffer[4096];
+    size_t n;
+    while ((n = fread(buffer, 1, sizeof(buffer), fp)) > 0) {
+        contents.append(buffer, n);
+    }
+    fclose(fp);
+
+    std::istringstream lines(contents);
+    std::string line;
+    if (!std::getline(lines, line) || line != MANIFEST_HEADER) {
+        return false;
+    }
+    while (std::getline(lines, line)) {
+        size_t space = line.find(' ');
+        if (space == std::string::npos) {
+            continue;
+        }
+        std::string key = line.substr(0, space);
+        std::string value = line.substr(space + 1);
+        if (key == "next") {
+            nextFileNum_ = std::max(nextFileNum_, static_cast<uint64_t>(strtoull(value.c_str(), NULL, 10)));
+        } else if (key == "segment") {
+            segments.push_back(value);
+        } else if (key == "wal") {
+            wals.push_back(value);
+        }
+    }
+    return true;
+}
+
+bool SegmentedIndex::writeManifestLocked() {
+    std::ostringstream manifest;
+    manifest << MANIFEST_HEADER << "\n";
+    manifest << "next " << nextFileNum_ << "\n";
+    for (const IndexLayer& layer : next_.segments) {
+        manifest << "segment " << FSPath(layer.segment->path()).fileName() << "\n";
+    }
+    for (const std::string& name : legacySegments_) {
+        manifest << "segment " << name << "\n";
+    }
+    for (const std::string& name : frozenWals_) {
+        manifest << "wal " << name << "\n";
+    }
+    for (const std::string& name : memtableWals_) {
+        manifest << "wal " << name << "\n";
+    }
+
+    std::string path = FSPath(dir_, MANIFEST_NAME).path;
+    std::string tmpPath = path + ".tmp";
+    FILE* fp = fopen(tmpPath.c_str(), "wb");
+    if (!fp) {
+        return false;
+    }
+    std::string contents = manifest.str();
+    bool ok = fwrite(contents.data(), 1, contents.size(), fp) == contents.size();
+    ok = syncFile(fp) && ok;
+    ok = fclose(fp) == 0 && ok;
+    return ok && replaceFile(tmpPath, path);
+}
+
+void SegmentedIndex::removeUnreferencedFiles(const std::vector<std::string>& referenced) {
+    // leftovers from interrupted segment writes, merges and log rotation
+    for (const std::string& name : lsDirectory(FSPath(dir_))) {
+        std::string ext = FSPath(name).extension();
+        if (ext != "seg" && ext != "log" && ext != "del" && ext != "tmp") {
+            continue;  // MANIFEST, or not ours (e.g. the shards of a ShardedIndex)
+        }
+        std::string base = name;
+        if (base.size() > 4 && base.compare(base.size() - 4, 4, ".del") == 0) {
+            base = base.substr(0, base.size() - 4);
+        }
+        if (std::find(referenced.begin(), referenced.end(), base) == referenced.end()) {
+            removeFile(FSPath(dir_, name).path);
+        }
+    }
+}
+
+void SegmentedIndex::removeSegmentFiles(const std::vector<std::string>& names) {
+    for (const std::string& name : names) {
+        removeFile(FSPath(dir_, name).path);
+        removeFile(FSPath(dir_, name + ".del").path);
+    }
+}
+
+bool SegmentedIndex::openWalLocked() {
+    if (wal_) {
+        fclose(wal_);
+    }
+    std::string name = newFileName("log");
+    wal_ = fopen(FSPath(dir_, name).c_str(), "ab");
+    memtableWals_.push_back(name);
+    return wal_ != nullptr;
+}
+
+// log record: payload size, checksum, payload = op followed by length-prefixed strings
+bool SegmentedIndex::appendWalLocked(char op, const RAGDocument& document, bool flush) {
+    if (!wal_) {
+        return false;
+    }
+    std::string payload(1, op);
+    auto putString = [&payload](const std::string& s) {
+        uint32_t len = static_cast<uint32_t>(s.size());
+        payload.append(reinterpret_cast<const char*>(&len), sizeof(len));
+        payload.append(s);
+    };
+    putString(document.id);
+    if (op == 'A') {
+        putString(document.title);
+        putString(document.source);
+        putString(document.content);
+        int32_t page = document.page;
+        uint64_t offset = document.offset;
+        payload.append(reinterpret_cast<const char*>(&page), sizeof(page));
+        payload.append(reinterpret_cast<const char*>(&offset), sizeof(offset));
+    }
+    uint32_t header[2] = {static_cast<uint32_t>(payload.size()), checksum(payload.data(), payload.size())};
+    bool ok = fwrite(header, sizeof(header), 1, wal_) == 1;
+    ok = ok && fwrite(payload.data(), 1, payload.size(), wal_) == payload.size();
+    // flushing to the OS is enough to survive the process being killed
+    return (!flush || fflush(wal_) == 0) && ok;
+}
+
+size_t SegmentedIndex::replayWal(const std::string& path, std::unordered_set<std::string>& legacyDocuments) {
+    FILE* fp = fopen(path.c_str(), "rb");
+    if (!fp) {
+        return 0;
+    }
+    size_t records = 0;
+    uint32_t header[2];
+    std::string payload;
+    while (fread(header, sizeof(header), 1, fp) == 1) {
+        payload.resize(header[0]);
+        if (header[0] == 0 || fread(&payload[0], 1, header[0], fp) != header[0]
+                || checksum(payload.data(), payload.size()) != header[1]) {
+            break;  // torn write at end of log
+        }
+        size_t pos = 1;
+        auto getString = [&payload, &pos](std::string& s) {
+            uint32_t len;
+            if (pos + sizeof(len) > payload.size()) return false;
+            memcpy(&len, &payload[pos], sizeof(len));
+            pos += sizeof(len);
+            if (len > payload.size() - pos) return false;
+            s.assign(payload, pos, len);
+            pos += len;
+            return true;
+        };
+        RAGDocument doc;
+        if (payload[0] == 'A' && getString(doc.id) && getString(doc.title) && getString(doc.source)
+                && getString(doc.content)) {
+            int32_t page;
+            uint64_t offset;
+            if (pos + sizeof(page) + sizeof(offset) <= payload.size()) {
+                memcpy(&page, &payload[pos], sizeof(page));
+                memcpy(&offset, &payload[pos + sizeof(page)], sizeof(offset));
+                doc.page = page;
+                doc.offset = offset;
+                doc.documentId = passageDocumentId(doc.id);
+                applyAddLocked(InvertedIndex::analyze(std::move(doc)));
+            } else {
+                // version 1 record of a whole document
+                doc.documentId = doc.id;
+                legacyDocuments.insert(doc.id);
+                applyLegacyAddLocked(doc);
+            }
+        } else if (payload[0] == 'R' && getString(doc.id)) {
+            if (legacyDocuments.count(doc.id)) {
+                applyLegacyRemoveLocked(doc.id);
+            } else {
+                applyRemoveLocked(doc.id);
+            }
+        }
+        ++records;
+    }
+    fclose(fp);
+    return records;
+}
+
+void SegmentedIndex::applyAddLocked(InvertedIndex::AnalyzedDocument&& analyzed) {
+    const RAGDocument& document = analyzed.document;
+    applyRemoveLocked(document.id);
+    memtableBytes_ += document.id.size() + document.title.size() + document.source.size() + document.content.size();
+    lag_.emplace_back();
+    lag_.back().op = 'A';
+    memtable_->add(InvertedIndex::AnalyzedDocument(analyzed), &lag_.back().termNumbers);
+    lag_.back().document = std::move(analyzed);
+}
+
+bool SegmentedIndex::applyRemoveLocked(const std::string& id) {
+    bool removed = memtable_->remove(id);
+    if (removed) {
+        lag_.emplace_back();
+        lag_.back().op = 'R';
+        lag_.back().document.document.id = id;
+    }
+    if (next_.frozen.run) {
+        int doc = next_.frozen.findDoc(id);
+        removed = (doc >= 0 && next_.frozen.markDeleted(doc)) || removed;
+    }
+    for (IndexLayer& layer : next_.segments) {
+        int doc = layer.findDoc(id);
+        removed = (doc >= 0 && layer.markDeleted(doc)) || removed;
+    }
+    return removed;
+}
+
+void SegmentedIndex::applyLegacyAddLocked(const RAGDocument& document) {
+    applyLegacyRemoveLocked(document.id);
+    for (RAGDocument& passage : splitPassages(document)) {
+        applyAddLocked(InvertedIndex::analyze(std::move(passage)));
+    }
+}
+
+void SegmentedIndex::applyLegacyRemoveLocked(const std::string& documentId) {
+    // passages of a document are numbered consecutively from 0
+    for (size_t n = 0; applyRemoveLocked(passageId(documentId, n)); ++n) {}
+}
+
+bool SegmentedIndex::containsLocked(const std::string& id) const {
+    bool found = memtable_->find(id) != nullptr;
+    next_.forEachLayer([&](const IndexLayer& layer) { found = found || layer.findDoc(id) >= 0; });
+    return found;
+}
+
+// keeps a published memtable alive and flags when no snapshot uses it any more
+struct MemtableLease {
+    std::shared_ptr<InvertedIndex> memtable;
+    std::shared_ptr<std::atomic<bool>> released;
+    ~MemtableLease() { released->store(true, std::memory_order_release); }
+};
+
+void SegmentedIndex::beginWriteLocked() {
+    // searches are short, so wait for any still using memtable_ to finish; copy if one is taking a while
+    //  (an exact copy, so term numbers match for later replays)
+    auto deadline = std::chrono::steady_clock::now() + std::chrono::milliseconds(5);
+    while (memtableReleased_ && !memtableReleased_->load(std::memory_order_acquire)) {
+        if (std::chrono::steady_clock::now() > deadline) {
+            memtable_ = std::make_shared<InvertedIndex>(*published_);
+            memtableReleased_.reset();
+            lag_.clear();
+            return;
+        }
+        std::this_thread::yield();
+    }
+    // same changes in the same order, so the copies stay identical
+    for (MemtableOp& op : lag_) {
+        if (op.op == 'A') {
+            memtable_->replayAdd(std::move(op.document), op.termNumbers);
+        } else {
+            memtable_->remove(op.document.document.id);
+        }
+    }
+    lag_.clear();
+}
+
+void SegmentedIndex::resetMemtableLocked() {
+    // copies still in use by snapshots are released by their leases
+    memtable_ = std::make_shared<InvertedIndex>();
+    published_ = std::make_shared<InvertedIndex>();
+    memtableReleased_.reset();
+    publishedReleased_.reset();
+    lag_.clear();
+    memtableBytes_ = 0;
+}
+
+void SegmentedIndex::maybeFreezeLocked(bool force) {
+    if (next_.frozen.run || memtable_->size() == 0 || (!force
+            && memtable_->size() < options_.memtableMaxDocs && memtableBytes_ < options_.memtableMaxBytes)) {
+        return;
+    }
+    next_.frozen = IndexLayer();
+    next_.frozen.run = memtable_;
+    resetMemtableLocked();
+    frozenWals_.swap(memtableWals_);
+    memtableWals_.clear();
+    openWalLocked();
+    writeManifestLocked();
+}
+
+void SegmentedIndex::publishLocked(bool memtableChanged) {
+    if (memtableChanged) {
+        maybeFreezeLocked();
+    }
+    auto snapshot = std::make_shared<IndexSnapshot>(next_);
+    if (memtableChanged) {
+        auto released = std::make_shared<std::atomic<bool>>(false);
+        auto lease = std::make_shared<MemtableLease>();
+        lease->memtable = memtable_;
+        lease->released = released;
+        snapshot->memtable.run = std::shared_ptr<const InvertedIndex>(lease, memtable_.get());
+        // the next write goes to the other copy, once it has caught up
+        std::swap(memtable_, published_);
+        memtableReleased_ = publishedReleased_;
+        publishedReleased_ = released;
+    } else if (current_) {
+        snapshot->memtable = std::atomic_load(&current_)->memtable;
+    }
+    std::atomic_store(&current_, std::shared_ptr<const IndexSnapshot>(snapshot));
+    // a frozen memtable, or deletions alone (which can leave a segment needing a rewrite), are work for the
+    //  worker, and flush() waits on it
+    if (hasWorkLocked()) {
+        workCv_.notify_all();
+    }
+}
+
+bool SegmentedIndex::add(const RAGDocument& document) {
+    // tokenizing is most of the cost of adding and needs no lock
+    InvertedIndex::AnalyzedDocument analyzed = InvertedIndex::analyze(document);
+    std::lock_guard<std::mutex> lock(mutex_);
+    beginWriteLocked();
+    bool ok = appendWalLocked('A', document);
+    applyAddLocked(std::move(analyzed));
+    publishLocked();
+    return ok;
+}
+
+bool SegmentedIndex::replaceDocuments(const std::vector<std::string>& documentIds, std::vector<RAGDocument> passages,
+                                      size_t* removed) {
+    std::vector<InvertedIndex::AnalyzedDocument> analyzed(passages.size());
+    parallelFor(passages.size(), [&](size_t i) {
+        analyzed[i] = InvertedIndex::analyze(std::move(passages[i]));
+    });
+
+    // documents with new passages are removed just before they are added, so the rest of the documents
+    //  stay searchable while a large batch is published
+    std::unordered_set<std::string> replaced;
+    for (const InvertedIndex::AnalyzedDocument& passage : analyzed) {
+        replaced.insert(passageDocumentId(passage.document.id));
+    }
+    std::lock_guard<std::mutex> lock(mutex_);
+    beginWriteLocked();
+    bool ok = true;
+    size_t count = 0;
+    auto removePassages = [&](const std::string& documentId) {
+        // passages of a document are numbered consecutively from 0
+        RAGDocument tombstone;
+        for (size_t n = 0; containsLocked(tombstone.id = passageId(documentId, n)); ++n) {
+            ok = appendWalLocked('R', tombstone, false) && ok;
+            applyRemoveLocked(tombstone.id);
+            ++count;
+        }
+    };
+    std::unordered_set<std::string> pending;
+    for (const std::string& documentId : documentIds) {
+        if (replaced.count(documentId)) {
+            pending.insert(documentId);
+        } else {
+            removePassages(documentId);
+        }
+    }
+    // large batches are published in chunks, so memtables stay about the configured size and the changes
+    //  to replay stay small, but never in the middle of a document
+    static constexpr size_t CHUNK = 256;
+    for (size_t i = 0; i < analyzed.size(); ++i) {
+        std::string documentId = passageDocumentId(analyzed[i].document.id);
+        if (lag_.size() >= CHUNK && i > 0 && documentId != passageDocumentId(analyzed[i - 1].document.id)) {
+            ok = wal_ && fflush(wal_) == 0 && ok;
+            publishLocked();
+            beginWriteLocked();
+        }
+        if (pending.erase(documentId)) {
+            removePassages(documentId);
+        }
+        ok = appendWalLocked('A', analyzed[i].document, false) && ok;
+        applyAddLocked(std::move(analyzed[i]));
+    }
+    ok = wal_ && fflush(wal_) == 0 && ok;
+    publishLocked();
+    if (removed) {
+        *removed = count;
+    }
+    return ok;
+}
+
+bool SegmentedIndex::remove(const std::string& id) {
+    std::lock_guard<std::mutex> lock(mutex_);
+    beginWriteLocked();
+    if (!containsLocked(id)) {
+        return false;
+    }
+    RAGDocument doc;
+    doc.id = id;
+    appendWalLocked('R', doc);
+    bool removed = applyRemoveLocked(id);
+    publishLocked();
+    return removed;
+}
+
+void SegmentedIndex::clear() {
+    std::unique_lock<std::mutex> lock(mutex_);
+    workCv_.wait(lock, [this]() { return !workerBusy_; });
+    for (const IndexLayer& layer : next_.segments) {
+        layer.segment->setObsolete();
+    }
+    next_ = IndexSnapshot();
+    resetMemtableLocked();
+    std::vector<std::string> oldWals = frozenWals_;
+    oldWals.insert(oldWals.end(), memtableWals_.begin(), memtableWals_.end());
+    frozenWals_.clear();
+    memtableWals_.clear();
+    std::vector<std::string> oldSegments;
+    oldSegments.swap(legacySegments_);
+    openWalLocked();
+    if (writeManifestLocked()) {
+        for (const std::string& name : oldWals) {
+            removeFile(FSPath(dir_, name).path);
+        }
+        removeSegmentFiles(oldSegments);
+    }
+    publishLocked();
+}
+
+bool SegmentedIndex::contains(const std::string& id) const {
+    bool found = false;
+    snapshot()->forEachLayer([&](const IndexLayer& layer) { found = found || layer.findDoc(id) >= 0; });
+    return found;
+}
+
+size_t SegmentedIndex::size() const {
+    return snapshot()->size();
+}
+
+size_t SegmentedIndex::segmentCount() const {
+    return snapshot()->segments.size();
+}
+
+std::vector<RAGDocument> SegmentedIndex::search(const std::string& query, int maxResults) const {
+    // no lock: the snapshot can't change, and keeps its runs and segments alive until we are done
+    return searchSnapshots({snapshot()}, query, maxResults, params_);
+}
+
+std::vector<RAGDocument> SegmentedIndex::searchAsYouType(const std::string& query, int maxResults,
+                                                         const AICancelToken* cancelToken) const {
+    return searchSnapshotsAsYouType({snapshot()}, query, maxResults, params_, options_.maxPrefixTerms, cancelToken);
+}
+
+void SegmentedIndex::flush() {
+    std::unique_lock<std::mutex> lock(mutex_);
+    workCv_.wait(lock, [this]() { return !workerBusy_ && (workFailed_ || !hasWorkLocked()); });
+}
+
+bool SegmentedIndex::hasWorkLocked() const {
+    if (next_.frozen.run || next_.segments.size() > options_.maxSegments) {
+        return true;
+    }
+    for (const IndexLayer& layer : next_.segments) {
+        if (layer.docSlots() > 0 && layer.liveCount() < (1 - options_.maxDeletedRatio) * layer.docSlots()) {
+            return true;
+        }
+    }
+    return false;
+}
+
+void SegmentedIndex::workerLoop() {
+    std::unique_lock<std::mutex> lock(mutex_);
+    while (!stopWorker_) {
+        if (!hasWorkLocked()) {
+            workCv_.wait(lock);
+            continue;
+        }
+        workerBusy_ = true;
+        bool ok;
+        // copies of the layers hold their current deletion masks, which the writer won't modify
+        if (next_.frozen.run) {
+            IndexLayer frozen = next_.frozen;
+            lock.unlock();
+            ok = sealFrozen(frozen);
+        } else {
+            // merge the smallest segments, or rewrite one with too many deletions
+            std::vector<IndexLayer> inputs = next_.segments;
+            if (inputs.size() > options_.maxSegments) {
+                std::sort(inputs.begin(), inputs.end(), [](const IndexLayer& a, const IndexLayer& b) {
+                    return a.liveCount() < b.liveCount();
+                });
+                inputs.resize(std::max(size_t(2), std::min(options_.mergeFactor, inputs.size())));
+            } else {
+                inputs.erase(std::remove_if(inputs.begin(), inputs.end(), [this](const IndexLayer& layer) {
+                    return layer.liveCount() >= (1 - options_.maxDeletedRatio) * layer.docSlots();
+                }), inputs.end());
+                inputs.resize(1);
+            }
+            lock.unlock();
+            ok = mergeSegments(inputs);
+        }
+        lock.lock();
+        workerBusy_ = false;
+        workFailed_ = !ok;
+        workCv_.notify_all();
+        if (!ok && !stopWorker_) {
+            // e.g. out of disk space; try again later
+            workCv_.wait_for(lock, std::chrono::seconds(30));
+        }
+    }
+}
+
+bool SegmentedIndex::sealFrozen(const IndexLayer& frozen) {
+    std::string name;
+    {
+        std::lock_guard<std::mutex> lock(mutex_);
+        name = newFileName("seg");
+    }
+    std::string path = FSPath(dir_, name).path;
+    std::string tmpPath = path + ".tmp";
+    SegmentWriter writer;
+    bool ok = writer.open(tmpPath);
+    if (ok) {
+        frozen.run->exportSorted(
+            [&writer](const RAGDocument& doc, uint32_t length) { writer.addDocument(doc, length); },
+            [&writer](const std::string& term, const std::vector<Posting>& postings) {
+                writer.addTerm(term.data(), term.size(), postings.data(), postings.size());
+            }, frozen.deleted.get());
+    }
+    ok = writer.finish() && ok && replaceFile(tmpPath, path);
+    std::shared_ptr<IndexSegment> segment = ok ? IndexSegment::open(path) : nullptr;
+
+    std::lock_guard<std::mutex> lock(mutex_);
+    if (!segment) {
+        removeFile(tmpPath);
+        removeFile(path);
+        return false;
+    }
+    // apply deletions made while the segment was being written
+    IndexLayer layer;
+    layer.segment = segment;
+    for (uint32_t doc = 0; doc < frozen.docSlots(); ++doc) {
+        if (next_.frozen.isDeleted(doc) && !frozen.isDeleted(doc)) {
+            int segDoc = segment->findDoc(frozen.run->document(doc).id);
+            if (segDoc >= 0) layer.markDeleted(segDoc);
+        }
+    }
+    next_.segments.push_back(layer);
+    next_.frozen = IndexLayer();
+    std::vector<std::string> oldWals, oldSegments;
+    oldWals.swap(frozenWals_);
+    oldSegments.swap(legacySegments_);  // migrated into the first frozen memtable (see open())
+    if (writeManifestLocked()) {
+        for (const std::string& wal : oldWals) {
+            removeFile(FSPath(dir_, wal).path);
+        }
+        removeSegmentFiles(oldSegments);
+    } else {
+        // still needed, since manifest on disk doesn't have the segment
+        frozenWals_ = oldWals;
+        legacySegments_ = oldSegments;
+    }
+    publishLocked(false);
+    return true;
+}
+
+bool SegmentedIndex::mergeSegments(const std::vector<IndexLayer>& inputs) {
+    std::string name;
+    {
+        std::lock_guard<std::mutex> lock(mutex_);
+        name = newFileName("seg");
+    }
+    std::string path = FSPath(dir_, name).path;
+    std::string tmpPath = path + ".tmp";
+    size_t liveDocs = 0;
+    for (const IndexLayer& input : inputs) {
+        liveDocs += input.liveCount();
+    }
+    SegmentWriter writer;
+    bool ok = liveDocs == 0 || writer.open(tmpPath);
+
+    // copy live docs, then k-way merge of the sorted term tables with docs renumbered
+    std::vector<std::vector<uint32_t>> docMaps(inputs.size());
+    for (size_t s = 0; s < inputs.size() && ok; ++s) {
+        const IndexSegment& segment = *inputs[s].segment;
+        const char* base = segment.data();
+        docMaps[s].assign(segment.docCount(), UINT32_MAX);
+        for (uint32_t doc = 0; doc < segment.docCount(); ++doc) {
+            if (!inputs[s].isDeleted(doc)) {
+                docMaps[s][doc] = writer.copyDocument(base, segment.docRecord(doc));
+            }
+        }
+    }
+
+    std::vector<uint32_t> next(inputs.size(), 0);
+    std::vector<Posting> merged;
+    while (ok && liveDocs > 0 && !stopWorker_) {
+        const char* text = nullptr;
+        size_t textLen = 0;
+        for (size_t s = 0; s < inputs.size(); ++s) {
+            if (next[s] < inputs[s].segment->termCount()) {
+                const SegmentTermRecord& rec = inputs[s].segment->termRecord(next[s]);
+                const char* t = inputs[s].segment->data() + rec.textOffset;
+                if (!text || compareBytes(t, rec.textLength, text, textLen) < 0) {
+                    text = t;
+                    textLen = rec.textLength;
+                }
+            }
+        }
+        if (!text) {
+            break;
+        }
+        merged.clear();
+        for (size_t s = 0; s < inputs.size(); ++s) {
+            if (next[s] < inputs[s].segment->termCount()) {
+                const SegmentTermRecord& rec = inputs[s].segment->termRecord(next[s]);
+                if (compareBytes(inputs[s].segment->data() + rec.textOffset, rec.textLength, text, textLen) == 0) {
+                    const Posting* postings = inputs[s].segment->postings(rec);
+                    for (uint32_t i = 0; i < rec.docFreq; ++i) {
+                        uint32_t doc = postings[i].doc < docMaps[s].size() ? docMaps[s][postings[i].doc] : UINT32_MAX;
+                        if (doc != UINT32_MAX) merged.push_back({doc, postings[i].tf});
+                    }
+                    ++next[s];
+                }
+            }
+        }
+        if (!merged.empty()) {
+            writer.addTerm(text, textLen, merged.data(), merged.size());
+        }
+    }
+    std::shared_ptr<IndexSegment> segment;
+    if (liveDocs > 0) {
+        ok = writer.finish() && ok && !stopWorker_ && replaceFile(tmpPath, path);
+        segment = ok ? IndexSegment::open(path) : nullptr;
+    }
+
+    std::lock_guard<std::mutex> lock(mutex_);
+    if (liveDocs > 0 && !segment) {
+        removeFile(tmpPath);
+        removeFile(path);
+        return stopWorker_;  // abandoned for shutdown is not a failure
+    }
+    // carry over deletions made while merging
+    IndexLayer layer;
+    layer.segment = segment;
+    for (size_t s = 0; s < inputs.size() && segment; ++s) {
+        for (const IndexLayer& current : next_.segments) {
+            if (current.segment != inputs[s].segment) {
+                continue;
+            }
+            for (uint32_t doc = 0; doc < current.docSlots(); ++doc) {
+                if (current.isDeleted(doc) && !inputs[s].isDeleted(doc) && docMaps[s][doc] != UINT32_MAX) {
+                    layer.markDeleted(docMaps[s][doc]);
+                }
+            }
+        }
+    }
+    std::vector<IndexLayer> oldSegments = next_.segments;
+    next_.segments.erase(std::remove_if(next_.segments.begin(), next_.segments.end(), [&inputs](const IndexLayer& l) {
+        return std::find_if(inputs.begin(), inputs.end(), [&l](const IndexLayer& input) {
+            return input.segment == l.segment;
+        }) != inputs.end();
+    }), next_.segments.end());
+    if (segment) {
+        next_.segments.push_back(layer);
+    }
+    if (!writeManifestLocked()) {
+        next_.segments = oldSegments;
+        if (segment) segment->setObsolete();
+        return false;
+    }
+    // files are removed once the last reference (possibly a snapshot being searched) is released
+    for (const IndexLayer& input : inputs) {
+        input.segment->setObsolete();
+    }
+    publishLocked(false);
+    return true;
+}
@@ -0,0 +1,375 @@
+#pragma once
+
+#include "rag_index.h"
+#include <cstdio>
+#include <cstring>
+#include <unordered_set>
+
+// fflush and fsync file; false on error
+bool syncFile(FILE* fp);
+// atomically replace dest with src
+bool replaceFile(const std::string& src, const std::string& dest);
+
+// Read-only memory mapping of a whole file
+class MappedFile {
+public:
+    MappedFile() {}
+    MappedFile(const MappedFile&) = delete;
+    MappedFile& operator=(const MappedFile&) = delete;
+    ~MappedFile() { close(); }
+
+    bool open(const std::string& path);
+    void close();
+    const char* data() const { return data_; }
+    size_t size() const { return size_; }
+
+private:
+    const char* data_ = nullptr;
+    size_t size_ = 0;
+#ifdef _WIN32
+    void* file_ = nullptr;
+    void* mapping_ = nullptr;
+#endif
+};
+
+// On-disk segment layout (native byte order; all supported platforms are little endian):
+//  SegmentHeader | doc strings, then each term's text and postings | doc table | term table | id table
+// Tables are fixed size records referring to strings and postings by absolute file offset.  The term and
+//  id tables are sorted so lookups are binary searches in the mapping and nothing is parsed at load.
+struct SegmentHeader {
+    char magic[4];
+    uint32_t version;
+    uint32_t docCount;
+    uint32_t termCount;
+    uint64_t totalLength;  // sum of doc lengths in tokens
+    uint64_t docTableOffset;
+    uint64_t termTableOffset;
+    uint64_t idTableOffset;
+};
+
+struct SegmentDocRecord {
+    uint64_t idOffset;
+    uint64_t titleOffset;
+    uint64_t sourceOffset;
+    uint64_t contentOffset;
+    uint32_t idLength;
+    uint32_t titleLength;
+    uint32_t sourceLength;
+    uint32_t contentLength;
+    uint32_t length;  // in tokens
+    int32_t page;  // passage provenance
+    uint64_t offset;
+};
+
+struct SegmentTermRecord {
+    uint64_t textOffset;
+    uint64_t postingsOffset;  // docFreq Postings in doc order
+    uint32_t textLength;
+    uint32_t docFreq;
+};
+
+struct SegmentIdRecord {
+    uint64_t idOffset;
+    uint32_t idLength;
+    uint32_t doc;
+};
+
+// Writes a segment file; all documents must be added before terms, and terms in sorted (byte) order
+class SegmentWriter {
+public:
+    static constexpr uint32_t VERSION = 2;
+
+    ~SegmentWriter();
+    bool open(const std::string& path);
+    uint32_t addDocument(const RAGDocument& doc, uint32_t length);
+    // copy a document record and its strings from another segment's data
+    uint32_t copyDocument(const char* base, const SegmentDocRecord& doc);
+    void addTerm(const char* text, size_t textLen, const Posting* postings, size_t count);
+    // writes tables and header and syncs file to disk
+    bool finish();
+
+private:
+    FILE* fp_ = nullptr;
+    uint64_t offset_ = 0;
+    bool ok_ = true;
+    uint64_t totalLength_ = 0;
+    std::vector<SegmentDocRecord> docs_;
+    std::vector<SegmentTermRecord> terms_;
+    std::vector<std::pair<std::string, uint32_t>> ids_;
+
+    uint64_t write(const void* data, size_t len);
+    void align(size_t alignment);
+};
+
+// An immutable, memory mapped segment; deletions are tracked by IndexLayer and appended to a tombstone file
+//  (<segment>.del) next to the segment
+class IndexSegment {
+public:
+    ~IndexSegment();
+    // returns nullptr if file is missing or invalid
+    static std::shared_ptr<IndexSegment> open(const std::string& path);
+
+    const std::string& path() const { return path_; }
+    uint32_t docCount() const { return header_->docCount; }
+    uint64_t totalLength() const { return header_->totalLength; }
+    uint64_t fileSize() const { return file_.size(); }
+
+    uint32_t docFreq(const std::string& term) const;
+    int findDoc(const std::string& id) const;  // -1 if not present; deletions are not checked
+    RAGDocument document(uint32_t doc) const;
+    const SegmentDocRecord& docRecord(uint32_t doc) const { return docTable_[doc]; }
+    const char* data() const { return file_.data(); }
+
+    uint32_t termCount() const { return header_->termCount; }
+    const SegmentTermRecord& termRecord(uint32_t term) const { return termTable_[term]; }
+    const Posting* postings(const SegmentTermRecord& term) const {
+        return reinterpret_cast<const Posting*>(file_.data() + term.postingsOffset);
+    }
+
+    // skipping docs flagged in optional deleted
+    void collect(const std::vector<QueryTerm>& terms, float avgLength, const BM25Params& params, int source,
+                 TopKCollector& top, const std::vector<bool>* deleted) const;
+    // fn(doc, tf) for each doc containing term
+    template<typename Fn>
+    void forEachPosting(const std::string& term, Fn&& fn) const {
+        const SegmentTermRecord* rec = findTerm(term);
+        const Posting* postingList = rec ? postings(*rec) : nullptr;
+        for (uint32_t i = 0; rec && i < rec->docFreq; ++i) {
+            if (postingList[i].doc < header_->docCount) fn(postingList[i].doc, postingList[i].tf);
+        }
+    }
+    // fn(text, len, docFreq, weight) for each term matching query's prefix (see TypeaheadQuery::prefixWeight);
+    //  terms starting with it are a range of the sorted term table, and the trigram index (built on first use)
+    //  finds terms containing it
+    template<typename Fn>
+    void forEachPrefixMatch(const TypeaheadQuery& query, Fn&& fn) const;
+
+    // deletions from the tombstone file
+    std::vector<bool> readTombstones() const;
+    void appendTombstone(uint32_t doc);
+
+    // segment files are deleted when the last reference goes away (after it is replaced by a merge)
+    void setObsolete() { obsolete_ = true; }
+
+private:
+    std::string path_;
+    MappedFile file_;
+    const SegmentHeader* header_ = nullptr;
+    const SegmentDocRecord* docTable_ = nullptr;
+    const SegmentTermRecord* termTable_ = nullptr;
+    const SegmentIdRecord* idTable_ = nullptr;
+    FILE* tombstones_ = nullptr;
+    bool obsolete_ = false;
+    mutable std::once_flag trigramsOnce_;
+    mutable TrigramIndex trigrams_;
+
+    const SegmentTermRecord* lowerBoundTerm(const std::string& term) const;
+    const SegmentTermRecord* findTerm(const std::string& term) const;
+    const TrigramIndex& trigrams() const;
+};
+
+template<typename Fn>
+void IndexSegment::forEachPrefixMatch(const TypeaheadQuery& query, Fn&& fn) const {
+    const std::string& prefix = query.prefix;
+    const char* base = file_.data();
+    auto startsWithPrefix = [&](const SegmentTermRecord& rec) {
+        return rec.textLength >= prefix.size() && memcmp(base + rec.textOffset, prefix.data(), prefix.size()) == 0;
+    };
+    const SegmentTermRecord* end = termTable_ + header_->termCount;
+    for (const SegmentTermRecord* rec = lowerBoundTerm(prefix); rec != end && startsWithPrefix(*rec); ++rec) {
+        fn(base + rec->textOffset, rec->textLength, rec->docFreq, query.prefixWeight(base + rec->textOffset, rec->textLength));
+    }
+    if (prefix.size() >= TypeaheadQuery::MIN_INFIX_LEN) {
+        for (uint32_t term : trigrams().candidates(prefix)) {
+            const SegmentTermRecord& rec = termTable_[term];
+            float weight = query.prefixWeight(base + rec.textOffset, rec.textLength);
+            if (weight > 0 && !startsWithPrefix(rec)) {
+                fn(base + rec.textOffset, rec.textLength, rec.docFreq, weight);
+            }
+        }
+    }
+}
+
+// One searchable part of a SegmentedIndex snapshot: an in-memory index or a segment, plus a deletion mask.
+//  Masks are copy-on-write: a mask shared with a published snapshot (or the background thread) is never
+//  modified, so holding a layer is a consistent view of it.
+struct IndexLayer {
+    std::shared_ptr<const InvertedIndex> run;  // at most one of run and segment is set
+    std::shared_ptr<IndexSegment> segment;
+    std::shared_ptr<std::vector<bool>> deleted;  // null until something is deleted
+    uint32_t deletedCount = 0;
+    uint64_t deletedLength = 0;
+
+    uint32_t docSlots() const { return run ? run->docSlots() : segment->docCount(); }
+    size_t liveCount() const { return (run ? run->size() : segment->docCount()) - deletedCount; }
+    uint64_t liveLength() const { return (run ? run->totalLength() : segment->totalLength()) - deletedLength; }
+    bool isDeleted(uint32_t doc) const { return deleted && (*deleted)[doc]; }
+    bool isLive(uint32_t doc) const { return !isDeleted(doc) && (!run || run->isAlive(doc)); }
+    uint32_t docLength(uint32_t doc) const { return run ? run->docLength(doc) : segment->docRecord(doc).length; }
+    uint32_t docFreq(const std::string& term) const { return run ? run->docFreq(term) : segment->docFreq(term); }
+    int findDoc(const std::string& id) const;  // -1 if not present or deleted
+    RAGDocument document(uint32_t doc) const { return run ? run->document(doc) : segment->document(doc); }
+    void collect(const std::vector<QueryTerm>& terms, float avgLength, const BM25Params& params, int source,
+                 TopKCollector& top) const;
+    // fn(doc, tf) for each live doc containing term
+    template<typename Fn>
+    void forEachPosting(const std::string& term, Fn&& fn) const {
+        auto visit = [&](uint32_t doc, uint32_t tf) { if (!isDeleted(doc)) fn(doc, tf); };
+        if (run) run->forEachPosting(term, visit); else segment->forEachPosting(term, visit);
+    }
+    // fn(text, len, docFreq, weight) for each term matching query's prefix
+    template<typename Fn>
+    void forEachPrefixMatch(const TypeaheadQuery& query, Fn&& fn) const {
+        if (segment) {
+            segment->forEachPrefixMatch(query, fn);
+            return;
+        }
+        run->forEachTerm([&](const std::string& term, uint32_t docFreq) {
+            float weight = query.prefixWeight(term.data(), term.size());
+            if (weight > 0) fn(term.data(), term.size(), docFreq, weight);
+        });
+    }
+    // for the writer only; false if already deleted
+    bool markDeleted(uint32_t doc);
+};
+
+// What a search sees; never modified once published
+struct IndexSnapshot {
+    std::vector<IndexLayer> segments;
+    IndexLayer frozen;  // memtable being written to a segment, if any
+    IndexLayer memtable;
+
+    template<typename Fn>
+    void forEachLayer(Fn&& fn) const {
+        for (const IndexLayer& layer : segments) fn(layer);
+        if (frozen.run) fn(frozen);
+        if (memtable.run) fn(memtable);
+    }
+    // fn(passage) for each live passage
+    template<typename Fn>
+    void forEachDocument(Fn&& fn) const {
+        forEachLayer([&fn](const IndexLayer& layer) {
+            for (uint32_t doc = 0; doc < layer.docSlots(); ++doc) {
+                if (layer.isLive(doc)) fn(layer.document(doc));
+            }
+        });
+    }
+    size_t size() const;
+};
+
+// Search the snapshots of one or more indexes (e.g. shards) as a single collection: BM25 statistics are
+//  summed over all of them, then each snapshot is scored separately, on pool if given, and the best hits
+//  merged.  Optionally returns the time spent scoring each snapshot, in microseconds.
+std::vector<RAGDocument> searchSnapshots(const std::vector<std::shared_ptr<const IndexSnapshot>>& snapshots,
+                                         const std::string& query, int maxResults, const BM25Params& params,
+                                         WorkerPool* pool = nullptr, std::vector<double>* shardMicros = nullptr);
+// search-as-you-type (see TypeaheadQuery): passages matching all words of query, with highlights set; the
+//  prefix expands to at most maxPrefixTerms terms.  Returns nothing if cancelToken is cancelled first.
+std::vector<RAGDocument> searchSnapshotsAsYouType(const std::vector<std::shared_ptr<const IndexSnapshot>>& snapshots,
+                                                  const std::string& query, int maxResults, const BM25Params& params,
+                                                  size_t maxPrefixTerms, const AICancelToken* cancelToken,
+                                                  WorkerPool* pool = nullptr, std::vector<double>* shardMicros = nullptr);
+
+struct SegmentedIndexOptions {
+    size_t memtableMaxDocs = 1000;  // also bounds the log replayed at startup
+    size_t memtableMaxBytes = 8 << 20;
+    size_t maxSegments = 6;  // merge when exceeded
+    size_t mergeFactor = 4;  // number of (smallest) segments merged at once
+    float maxDeletedRatio = 0.4f;  // rewrite a segment with more deleted docs than this
+    size_t maxPrefixTerms = 32;  // search-as-you-type: most common terms the word being typed expands to
+};
+
+// Persistent, crash safe BM25 index: recent changes go to in-memory runs (the memtable) and a write-ahead
+//  log; full memtables are written out as segments by a background thread, which also merges segments.  A
+//  manifest, replaced atomically, lists the live segments and logs.  Opening maps the segments and replays
+//  the log, so startup cost depends on the log size, not the corpus size.
+// Thread safe: writes are serialized and each one publishes a new IndexSnapshot with an atomic pointer swap,
+//  so searches never wait for indexing or the background thread.  The memtable is double buffered: a write
+//  modifies the copy no snapshot is using, publishes it, and replays its changes on the other copy at the
+//  start of the next write, so changes are applied twice instead of copying the memtable.
+class SegmentedIndex {
+public:
+    typedef SegmentedIndexOptions Options;
+
+    SegmentedIndex(const std::string& dir, const Options& options = Options());
+    ~SegmentedIndex();
+
+    bool add(const RAGDocument& document);
+    bool remove(const std::string& id);
+    // removes all passages (passageId(documentId, n) for n = 0, 1, ...) of documentIds and adds passages,
+    //  tokenizing them in parallel first; searches see all of a document's changes at once.  Later passages
+    //  replace earlier ones with the same id.  Optionally returns the number of passages removed.
+    bool replaceDocuments(const std::vector<std::string>& documentIds, std::vector<RAGDocument> passages,
+                          size_t* removed = nullptr);
+    void clear();
+    std::vector<RAGDocument> search(const std::string& query, int maxResults) const;
+    // search-as-you-type (see TypeaheadQuery): passages matching all words of query, with highlights set;
+    //  returns nothing if cancelToken is cancelled before it is done
+    std::vector<RAGDocument> searchAsYouType(const std::string& query, int maxResults,
+                                             const AICancelToken* cancelToken = nullptr) const;
+    bool contains(const std::string& id) const;
+    size_t size() const;
+    size_t segmentCount() const;
+    std::shared_ptr<const IndexSnapshot> snapshot() const { return std::atomic_load(&current_); }
+    // blocks until pending segment writes and merges are done
+    void flush();
+
+private:
+    std::string dir_;
+    Options options_;
+    BM25Params params_;
+    std::shared_ptr<const IndexSnapshot> current_;  // only accessed with std::atomic_load/store
+
+    // writer state, guarded by mutex_
+    mutable std::mutex mutex_;
+    IndexSnapshot next_;  // segments and frozen memtable for the next snapshot
+    struct MemtableOp {
+        char op;  // 'A' to add document, 'R' to remove document.document.id
+        InvertedIndex::AnalyzedDocument document;
+        std::vector<uint32_t> termNumbers;  // for InvertedIndex::replayAdd
+    };
+    std::shared_ptr<InvertedIndex> memtable_;  // the copy being written
+    std::shared_ptr<InvertedIndex> published_;  // the copy in the current snapshot
+    // set once no snapshot uses the copy; null if never published (or replaced by a fresh copy)
+    std::shared_ptr<std::atomic<bool>> memtableReleased_;
+    std::shared_ptr<std::atomic<bool>> publishedReleased_;
+    std::vector<MemtableOp> lag_;  // changes in published_ not yet applied to memtable_
+    size_t memtableBytes_ = 0;
+    FILE* wal_ = nullptr;
+    std::vector<std::string> memtableWals_;  // logs holding memtable contents; last one is open as wal_
+    std::vector<std::string> frozenWals_;
+    std::vector<std::string> legacySegments_;  // version 1 segments, until their migrated passages are sealed
+    uint64_t nextFileNum_ = 1;
+
+    std::thread worker_;
+    std::condition_variable workCv_;
+    std::atomic<bool> stopWorker_{false};
+    bool workerBusy_ = false;
+    bool workFailed_ = false;
+
+    void open();
+    bool readManifest(std::vector<std::string>& segments, std::vector<std::string>& wals);
+    bool writeManifestLocked();
+    void removeUnreferencedFiles(const std::vector<std::string>& referenced);
+    void removeSegmentFiles(const std::vector<std::string>& names);
+    bool openWalLocked();
+    bool appendWalLocked(char op, const RAGDocument& document, bool flush = true);
+    // returns number of records; adds the ids of version 1 records, which are whole documents, to legacyDocuments
+    size_t replayWal(const std::string& path, std::unordered_set<std::string>& legacyDocuments);
+    void applyAddLocked(InvertedIndex::AnalyzedDocument&& analyzed);
+    bool applyRemoveLocked(const std::string& id);
+    // add a whole document from a version 1 segment or log as passages, replacing any earlier ones
+    void applyLegacyAddLocked(const RAGDocument& document);
+    void applyLegacyRemoveLocked(const std::string& documentId);
+    bool containsLocked(const std::string& id) const;
+    void beginWriteLocked();
+    void maybeFreezeLocked(bool force = false);
+    void resetMemtableLocked();
+    // publishes next_ plus the memtable, if changed by a write (also swapping the copies)
+    void publishLocked(bool memtableChanged = true);
+    bool hasWorkLocked() const;
+    void workerLoop();
+    bool sealFrozen(const IndexLayer& frozen);
+    bool mergeSegments(const std::vector<IndexLayer>& inputs);
+    std::string newFileName(const char* ext);
+};
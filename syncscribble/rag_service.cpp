@@ -1,99 +1,89 @@
-#include "aiagent.h"
+#include "rag_shard.h"
 #include "ulib/stringutil.h"
+#include "ulib/fileutil.h"
 #include <algorithm>
+#include <iterator>
 #include <fstream>
 #include <sstream>
 #include <cmath>
 
-// Simple text similarity functions
-class TextAnalyzer {
-public:
-    static std::vector<std::string> tokenize(const std::string& text);
-    static float calculateSimilarity(const std::string& query, const std::string& document);
-    static std::vector<std::string> extractKeywords(const std::string& text);
-    static std::string normalizeText(const std::string& text);
-};
-
-// Local RAG Service Implementation
+// Local RAG Service Implementation - BM25 over passages in a sharded, segmented index persisted in the
+//  directory indexPath
 class LocalRAGService : public RAGService {
 public:
-    LocalRAGService(const std::string& indexPath) : indexPath_(indexPath) {
-        loadIndex();
-    }
-    
-    ~LocalRAGService() {
-        saveIndex();
+    LocalRAGService(const std::string& indexPath, int shards) : indexPath_(indexPath) {
+        // earlier versions saved the whole index as a single text file at indexPath on exit
+        FSPath legacyPath(indexPath_ + ".old");
+        FSPath path(indexPath_);
+        if (path.exists() && !path.isDir()) {
+            moveFile(path, legacyPath);
+        }
+        index_.reset(new ShardedIndex(indexPath_, size_t(std::max(0, shards))));
+        if (legacyPath.exists()) {
+            importLegacyIndex(legacyPath.path);
+            removeFile(legacyPath.path);
+        }
     }
 
     std::vector<RAGDocument> searchDocuments(const std::string& query, int maxResults = 5) override {
-        std::vector<std::pair<float, RAGDocument*>> scored;
-        
-        std::string normalizedQuery = TextAnalyzer::normalizeText(query);
-        
-        // Score all documents
-        for (auto& doc : documents_) {
-            float score = TextAnalyzer::calculateSimilarity(normalizedQuery, doc.content);
-            if (score > 0.1f) { // Minimum threshold
-                scored.push_back({score, &doc});
-            }
-        }
-        
-        // Sort by score (descending)
-        std::sort(scored.begin(), scored.end(), 
-                 [](const auto& a, const auto& b) { return a.first > b.first; });
-        
-        // Return top results
-        std::vector<RAGDocument> results;
-        int count = std::min(maxResults, static_cast<int>(scored.size()));
-        for (int i = 0; i < count; ++i) {
-            RAGDocument result = *scored[i].second;
-            result.relevanceScore = scored[i].first;
-            results.push_back(result);
-        }
-        
-        return results;
+        return index_->search(query, maxResults);  // passages
+    }
+
+    std::vector<RAGDocument> searchAsYouType(const std::string& query, int maxResults,
+                                             const std::shared_ptr<AICancelToken>& cancelToken) override {
+        return index_->searchAsYouType(query, maxResults, cancelToken.get());
+    }
+
+    std::vector<RAGShardStats> getShardStats() const override {
+        return index_->shardStats();
     }
     
     bool indexDocument(const RAGDocument& document) override {
-        // Check if document already exists
-        auto it = std::find_if(documents_.begin(), documents_.end(),
-                              [&](const RAGDocument& doc) { return doc.id == document.id; });
-        
-        if (it != documents_.end()) {
-            // Update existing document
-            *it = document;
-        } else {
-            // Add new document
-            documents_.push_back(document);
+        // replaces existing document with same id
+        return index_->replaceDocuments({document.id}, splitPassages(document));
+    }
+    
+    bool indexDocuments(const std::vector<RAGDocument>& documents) override {
+        // a document replaces earlier ones in the batch with the same id
+        std::unordered_map<std::string, size_t> last;
+        for (size_t i = 0; i < documents.size(); ++i) {
+            last[documents[i].id] = i;
         }
-        
-        return true;
+        std::vector<std::vector<RAGDocument>> split(documents.size());
+        parallelFor(documents.size(), [&](size_t i) {
+            if (last.at(documents[i].id) == i) {
+                split[i] = splitPassages(documents[i]);
+            }
+        });
+        std::vector<RAGDocument> passages;
+        for (std::vector<RAGDocument>& docPassages : split) {
+            std::move(docPassages.begin(), docPassages.end(), std::back_inserter(passages));
+        }
+        std::vector<std::string> ids;
+        for (const auto& entry : last) {
+            ids.push_back(entry.first);
+        }
+        return index_->replaceDocuments(ids, std::move(passages));
     }
     
     bool removeDocument(const std::string& documentId) override {
-        auto it = std::find_if(documents_.begin(), documents_.end(),
-                              [&](const RAGDocument& doc) { return doc.id == documentId; });
-        
-        if (it != documents_.end()) {
-            documents_.erase(it);
-            return true;
-        }
-        
-        return false;
+        size_t removed = 0;
+        index_->replaceDocuments({documentId}, {}, &removed);
+        return removed > 0;
     }
     
     void clearIndex() override {
-        documents_.clear();
+        index_->clear();
     }
 
 private:
     std::string indexPath_;
-    std::vector<RAGDocument> documents_;
+    std::unique_ptr<ShardedIndex> index_;  // thread safe; searches don't wait for indexing
     
-    void loadIndex() {
-        std::ifstream file(indexPath_);
+    void importLegacyIndex(const std::string& filename) {
+        std::ifstream file(filename);
         if (!file.is_open()) {
-            return; // No existing index
+            return;
         }
         
         std::string line;
@@ -106,7 +96,7 @@ private:
                 currentDoc = RAGDocument();
             } else if (line == "---DOC_END---") {
                 if (inDocument) {
-                    documents_.push_back(currentDoc);
+                    indexDocument(currentDoc);
                     inDocument = false;
                 }
             } else if (inDocument) {
@@ -123,53 +113,20 @@ private:
                     while (std::getline(file, contentLine) && contentLine != "---DOC_END---") {
                         currentDoc.content += "\n" + contentLine;
                     }
-                    // Put back the end marker
                     if (contentLine == "---DOC_END---") {
-                        if (inDocument) {
-                            documents_.push_back(currentDoc);
-                            inDocument = false;
-                        }
+                        indexDocument(currentDoc);
+                        inDocument = false;
                     }
                 }
             }
         }
-        
-        file.close();
-    }
-    
-    void saveIndex() {
-        std::ofstream file(indexPath_);
-        if (!file.is_open()) {
-            return;
-        }
-        
-        for (const auto& doc : documents_) {
-            file << "---DOC_START---\n";
-            file << "ID:" << doc.id << "\n";
-            file << "TITLE:" << doc.title << "\n";
-            file << "SOURCE:" << doc.source << "\n";
-            file << "CONTENT:" << doc.content << "\n";
-            file << "---DOC_END---\n";
-        }
-        
-        file.close();
     }
 };
 
 // TextAnalyzer implementation
 std::vector<std::string> TextAnalyzer::tokenize(const std::string& text) {
     std::vector<std::string> tokens;
-    std::string normalized = normalizeText(text);
-    
-    std::stringstream ss(normalized);
-    std::string token;
-    
-    while (ss >> token) {
-        if (token.length() > 2) { // Filter out very short words
-            tokens.push_back(token);
-        }
-    }
-    
+    forEachToken(text, [&tokens](const std::string& token) { tokens.push_back(token); });
     return tokens;
 }
 
@@ -196,20 +153,23 @@ float TextAnalyzer::calculateSimilarity(const std::string& query, const std::str
     return static_cast<float>(matches) / static_cast<float>(queryTokens.size());
 }
 
-std::vector<std::string> TextAnalyzer::extractKeywords(const std::string& text) {
-    auto tokens = tokenize(text);
-    
-    // Simple keyword extraction - remove common stop words
-    std::vector<std::string> stopWords = {
+bool TextAnalyzer::isStopWord(const std::string& token) {
+    static const std::vector<std::string> stopWords = {
         "the", "a", "an", "and", "or", "but", "in", "on", "at", "to", "for",
         "of", "with", "by", "is", "are", "was", "were", "be", "been", "being",
         "have", "has", "had", "do", "does", "did", "will", "would", "could",
         "should", "may", "might", "can", "this", "that", "these", "those"
     };
+    return std::find(stopWords.begin(), stopWords.end(), token) != stopWords.end();
+}
+
+std::vector<std::string> TextAnalyzer::extractKeywords(const std::string& text) {
+    auto tokens = tokenize(text);
     
+    // Simple keyword extraction - remove common stop words
     std::vector<std::string> keywords;
     for (const auto& token : tokens) {
-        if (std::find(stopWords.begin(), stopWords.end(), token) == stopWords.end()) {
+        if (!isStopWord(token)) {
             keywords.push_back(token);
         }
     }
@@ -235,11 +195,6 @@ std::string TextAnalyzer::normalizeText(const std::string& text) {
 }
 
 // Factory function implementations
-std::unique_ptr<RAGService> createLocalRAGService(const std::string& indexPath) {
-    return std::make_unique<LocalRAGService>(indexPath);
+std::unique_ptr<RAGService> createLocalRAGService(const std::string& indexPath, int shards) {
+    return std::make_unique<LocalRAGService>(indexPath, shards);
 }
-
-std::unique_ptr<RAGService> createVectorRAGService(const std::string& connectionString) {
-    // TODO: Implement vector database RAG service (e.g., using ChromaDB, Pinecone, etc.)
-    return nullptr;
-}
\ No newline at end of file
@@ -0,0 +1,257 @@
+#include "rag_shard.h"
+#include "ulib/stringutil.h"
+#include "ulib/fileutil.h"
+
+static const char* SHARDS_NAME = "SHARDS";  // number of shards; absent for a single shard
+static const size_t RESHARD_BATCH = 1024;  // passages moved to a shard at once
+
+// directory of shard n of count, relative to the index directory ("" for a single shard)
+static std::string shardDirName(size_t n, size_t count) {
+    return count > 1 ? fstring("%dof%d", int(n), int(count)) : std::string();
+}
+
+static bool isShardDirName(const std::string& name) {
+    int n, count;
+    char end;
+    return sscanf(name.c_str(), "%dof%d%c", &n, &count, &end) == 2;
+}
+
+// 1 if there is no SHARDS file (a single shard index, or none at all)
+static size_t readShardCount(const std::string& dir) {
+    FILE* fp = fopen(FSPath(dir, SHARDS_NAME).c_str(), "rb");
+    if (!fp) {
+        return 1;
+    }
+    int count = 0;
+    if (fscanf(fp, "%d", &count) != 1 || count < 1) {
+        count = 1;
+    }
+    fclose(fp);
+    return size_t(count);
+}
+
+static bool writeShardCount(const std::string& dir, size_t count) {
+    std::string path = FSPath(dir, SHARDS_NAME).path;
+    if (count <= 1) {
+        return !FSPath(path).exists() || removeFile(path);
+    }
+    std::string tmpPath = path + ".tmp";
+    FILE* fp = fopen(tmpPath.c_str(), "wb");
+    if (!fp) {
+        return false;
+    }
+    bool ok = fprintf(fp, "%d\n", int(count)) > 0 && syncFile(fp);
+    ok = fclose(fp) == 0 && ok;
+    return ok && replaceFile(tmpPath, path);
+}
+
+// files (not directories) in dir other than SHARDS, i.e., a single shard index
+static void removeRootFiles(const std::string& dir) {
+    for (const std::string& name : lsDirectory(FSPath(dir))) {
+        FSPath path(dir, name);
+        if (name != SHARDS_NAME && !path.isDir()) {
+            removeFile(path.path);
+        }
+    }
+}
+
+ShardedIndex::ShardedIndex(const std::string& dir, size_t shards, const SegmentedIndex::Options& options)
+    : dir_(dir), options_(options) {
+    createPath(dir_);
+    size_t existing = readShardCount(dir_);
+    bool isNew = existing == 1 && !FSPath(dir_, "MANIFEST").exists();
+    if (shards == 0) {
+        shards = isNew ? std::min(size_t(MAX_SHARDS), size_t(std::max(1u, std::thread::hardware_concurrency()))) : existing;
+    }
+    // shard directories not in the current layout are left from an interrupted reshard
+    for (const std::string& name : lsDirectory(FSPath(dir_))) {
+        FSPath path(dir_, name);
+        if (path.isDir() && isShardDirName(name)) {
+            bool current = false;
+            for (size_t n = 0; n < existing && existing > 1; ++n) {
+                current = current || name == shardDirName(n, existing);
+            }
+            if (!current) {
+                removeDir(path.path, true);
+            }
+        }
+    }
+    if (existing > 1) {
+        removeRootFiles(dir_);
+    }
+    if (isNew) {
+        writeShardCount(dir_, shards);
+    } else if (shards != existing) {
+        reshard(existing, shards);
+    }
+
+    for (size_t n = 0; n < shards; ++n) {
+        std::string shardDir = shards > 1 ? FSPath(dir_, shardDirName(n, shards)).path : dir_;
+        shards_.emplace_back(new SegmentedIndex(shardDir, options_));
+    }
+    if (shards > 1) {
+        pool_.reset(new WorkerPool(shards - 1));  // the caller scores a shard too
+    }
+    timing_.resize(shards);
+}
+
+// Opening with a different number of shards: passages are copied to the new shards, which are made current by
+//  writing (or removing) SHARDS once they are flushed, then the old shards are deleted.  If interrupted,
+//  whichever layout SHARDS doesn't name is deleted on the next open.
+void ShardedIndex::reshard(size_t from, size_t to) {
+    std::vector<std::unique_ptr<SegmentedIndex>> oldShards;
+    for (size_t n = 0; n < from; ++n) {
+        std::string shardDir = from > 1 ? FSPath(dir_, shardDirName(n, from)).path : dir_;
+        oldShards.emplace_back(new SegmentedIndex(shardDir, options_));
+    }
+    // shardOf() uses shards_.size()
+    for (size_t n = 0; n < to; ++n) {
+        std::string shardDir = to > 1 ? FSPath(dir_, shardDirName(n, to)).path : dir_;
+        shards_.emplace_back(new SegmentedIndex(shardDir, options_));
+    }
+
+    std::vector<std::vector<RAGDocument>> buckets(to);
+    for (const auto& oldShard : oldShards) {
+        oldShard->snapshot()->forEachDocument([&](const RAGDocument& passage) {
+            std::string documentId = passage.documentId.empty() ? passageDocumentId(passage.id) : passage.documentId;
+            size_t n = shardOf(documentId);
+            buckets[n].push_back(passage);
+            if (buckets[n].size() >= RESHARD_BATCH) {
+                shards_[n]->replaceDocuments({}, std::move(buckets[n]));
+                buckets[n].clear();
+            }
+        });
+    }
+    for (size_t n = 0; n < to; ++n) {
+        shards_[n]->replaceDocuments({}, std::move(buckets[n]));
+        shards_[n]->flush();
+    }
+    shards_.clear();
+    oldShards.clear();
+
+    if (!writeShardCount(dir_, to)) {
+        return;  // old shards are still current; new ones are deleted on the next open
+    }
+    if (from == 1) {
+        removeRootFiles(dir_);
+    } else {
+        for (size_t n = 0; n < from; ++n) {
+            removeDir(FSPath(dir_, shardDirName(n, from)).path, true);
+        }
+    }
+}
+
+size_t ShardedIndex::shardOf(const std::string& documentId) const {
+    // FNV-1a: must not change, since it determines where existing documents are found
+    uint32_t hash = 2166136261u;
+    for (unsigned char c : documentId) {
+        hash = (hash ^ c) * 16777619u;
+    }
+    return hash % shards_.size();
+}
+
+bool ShardedIndex::replaceDocuments(const std::vector<std::string>& documentIds, std::vector<RAGDocument> passages,
+                                    size_t* removed) {
+    if (shards_.size() == 1) {
+        return shards_[0]->replaceDocuments(documentIds, std::move(passages), removed);
+    }
+    // each document's changes are atomic, since all its passages are in one shard, but a batch isn't
+    std::vector<std::vector<std::string>> shardIds(shards_.size());
+    std::vector<std::vector<RAGDocument>> shardPassages(shards_.size());
+    for (const std::string& id : documentIds) {
+        shardIds[shardOf(id)].push_back(id);
+    }
+    for (RAGDocument& passage : passages) {
+        size_t n = shardOf(passage.documentId.empty() ? passageDocumentId(passage.id) : passage.documentId);
+        shardPassages[n].push_back(std::move(passage));
+    }
+    std::vector<size_t> shardRemoved(shards_.size(), 0);
+    std::vector<char> ok(shards_.size(), 1);
+    pool_->run(shards_.size(), [&](size_t n) {
+        if (!shardIds[n].empty() || !shardPassages[n].empty()) {
+            ok[n] = shards_[n]->replaceDocuments(shardIds[n], std::move(shardPassages[n]), &shardRemoved[n]);
+        }
+    });
+    if (removed) {
+        *removed = 0;
+        for (size_t count : shardRemoved) {
+            *removed += count;
+        }
+    }
+    return std::find(ok.begin(), ok.end(), 0) == ok.end();
+}
+
+void ShardedIndex::clear() {
+    for (auto& shard : shards_) {
+        shard->clear();
+    }
+}
+
+std::vector<std::shared_ptr<const IndexSnapshot>> ShardedIndex::snapshots() const {
+    std::vector<std::shared_ptr<const IndexSnapshot>> result;
+    for (const auto& shard : shards_) {
+        result.push_back(shard->snapshot());
+    }
+    return result;
+}
+
+std::vector<RAGDocument> ShardedIndex::search(const std::string& query, int maxResults) const {
+    std::vector<double> micros;
+    auto results = searchSnapshots(snapshots(), query, maxResults, BM25Params(), pool_.get(), &micros);
+    recordTiming(micros);
+    return results;
+}
+
+std::vector<RAGDocument> ShardedIndex::searchAsYouType(const std::string& query, int maxResults,
+                                                       const AICancelToken* cancelToken) const {
+    std::vector<double> micros;
+    auto results = searchSnapshotsAsYouType(snapshots(), query, maxResults, BM25Params(), options_.maxPrefixTerms,
+                                            cancelToken, pool_.get(), &micros);
+    recordTiming(micros);
+    return results;
+}
+
+void ShardedIndex::recordTiming(const std::vector<double>& shardMicros) const {
+    if (shardMicros.size() != timing_.size()) {
+        return;  // nothing scored (e.g. empty query)
+    }
+    std::lock_guard<std::mutex> lock(timingMutex_);
+    for (size_t n = 0; n < timing_.size(); ++n) {
+        Timing& timing = timing_[n];
+        ++timing.searches;
+        timing.totalUs += shardMicros[n];
+        timing.lastUs = shardMicros[n];
+        timing.maxUs = std::max(timing.maxUs, shardMicros[n]);
+    }
+}
+
+std::vector<RAGShardStats> ShardedIndex::shardStats() const {
+    std::vector<RAGShardStats> stats(shards_.size());
+    for (size_t n = 0; n < shards_.size(); ++n) {
+        stats[n].shard = int(n);
+        stats[n].passages = shards_[n]->size();
+    }
+    std::lock_guard<std::mutex> lock(timingMutex_);
+    for (size_t n = 0; n < timing_.size(); ++n) {
+        const Timing& timing = timing_[n];
+        stats[n].searches = timing.searches;
+        stats[n].lastSearchUs = float(timing.lastUs);
+        stats[n].avgSearchUs = timing.searches > 0 ? float(timing.totalUs / timing.searches) : 0.0f;
+        stats[n].maxSearchUs = float(timing.maxUs);
+    }
+    return stats;
+}
+
+size_t ShardedIndex::size() const {
+    size_t total = 0;
+    for (const auto& shard : shards_) {
+        total += shard->size();
+    }
+    return total;
+}
+
+void ShardedIndex::flush() {
+    for (auto& shard : shards_) {
+        shard->flush();
+    }
+}
@@ -0,0 +1,50 @@
+#pragma once
+
+#include "rag_segment.h"
+
+// A RAG index partitioned by document id into shards, each a SegmentedIndex with its own directory (the
+//  index directory itself if there is only one shard).  All passages of a document are in the same shard, so
+//  replacing a document is still atomic.  Shards are written in parallel, and each query is scored on all
+//  shards in parallel on a worker pool using collection wide BM25 statistics, so results don't depend on
+//  the number of shards.  Opening with a different shard count moves the passages to the new shards.
+class ShardedIndex {
+public:
+    // shards = 0 keeps the count of an existing index, or uses the number of cores (up to MAX_SHARDS)
+    ShardedIndex(const std::string& dir, size_t shards = 0,
+                 const SegmentedIndex::Options& options = SegmentedIndex::Options());
+
+    // as SegmentedIndex::replaceDocuments
+    bool replaceDocuments(const std::vector<std::string>& documentIds, std::vector<RAGDocument> passages,
+                          size_t* removed = nullptr);
+    void clear();
+    std::vector<RAGDocument> search(const std::string& query, int maxResults) const;
+    std::vector<RAGDocument> searchAsYouType(const std::string& query, int maxResults,
+                                             const AICancelToken* cancelToken = nullptr) const;
+    size_t size() const;
+    size_t shardCount() const { return shards_.size(); }
+    // passages and search timing of each shard
+    std::vector<RAGShardStats> shardStats() const;
+    void flush();
+
+    static constexpr size_t MAX_SHARDS = 8;
+
+private:
+    std::string dir_;
+    SegmentedIndex::Options options_;
+    std::vector<std::unique_ptr<SegmentedIndex>> shards_;
+    std::unique_ptr<WorkerPool> pool_;  // null for a single shard
+
+    struct Timing {
+        uint64_t searches = 0;
+        double totalUs = 0;
+        double lastUs = 0;
+        double maxUs = 0;
+    };
+    mutable std::mutex timingMutex_;
+    mutable std::vector<Timing> timing_;
+
+    size_t shardOf(const std::string& documentId) const;
+    std::vector<std::shared_ptr<const IndexSnapshot>> snapshots() const;
+    void recordTiming(const std::vector<double>& shardMicros) const;
+    void reshard(size_t from, size_t to);
+};
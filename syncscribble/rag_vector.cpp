@@ -0,0 +1,612 @@
+#include "rag_vector.h"
+#include "ulib/stringutil.h"
+#include "ulib/fileutil.h"
+#include <cstring>
+#include <queue>
+
+static const char VECTOR_MAGIC[4] = {'W', 'V', 'E', 'C'};
+
+// HashingEncoder implementation
+static uint32_t hashFeature(const std::string& feature) {
+    uint32_t hash = 2166136261u;
+    for (unsigned char c : feature) {
+        hash = (hash ^ c) * 16777619u;
+    }
+    return hash;
+}
+
+void HashingEncoder::encode(const std::string& text, float* out) {
+    std::fill(out, out + DIM, 0.0f);
+    auto addFeature = [out](const std::string& feature, float weight) {
+        uint32_t hash = hashFeature(feature);
+        out[hash % DIM] += (hash & 0x80000000u) ? -weight : weight;
+    };
+    std::string prev, gram;
+    TextAnalyzer::forEachToken(text, [&](const std::string& token) {
+        if (TextAnalyzer::isStopWord(token)) {
+            return;  // nearly every text has these, so they only compress the range of similarities
+        }
+        addFeature(token, 1.0f);
+        if (!prev.empty()) {
+            addFeature(prev + " " + token, 0.5f);
+        }
+        // character trigrams of "<token>", so inflections share most features
+        std::string padded = "<" + token + ">";
+        for (size_t i = 0; i + 3 <= padded.size(); ++i) {
+            gram.assign(padded, i, 3);
+            addFeature(gram, 0.25f);
+        }
+        prev = token;
+    });
+
+    // dampen repeated features, then normalize so dot product is cosine similarity
+    float norm = 0;
+    for (int i = 0; i < DIM; ++i) {
+        out[i] = std::copysign(std::sqrt(std::abs(out[i])), out[i]);
+        norm += out[i] * out[i];
+    }
+    if (norm > 0) {
+        norm = 1 / std::sqrt(norm);
+        for (int i = 0; i < DIM; ++i) {
+            out[i] *= norm;
+        }
+    }
+}
+
+// VectorIndex implementation
+VectorIndex::VectorIndex(const HNSWParams& _params) : params(_params), rng_(42) {}
+
+const uint32_t* VectorIndex::links(uint32_t node, int level) const {
+    if (level == 0) {
+        return links0_.data() + size_t(node) * linkStride(0);
+    }
+    return upperLinks_.data() + size_t(upperOffsets_[node] + level - 1) * linkStride(level);
+}
+
+uint32_t* VectorIndex::mutableLinks(uint32_t node, int level) {
+    if (level == 0) {
+        return links0_.mutableData() + size_t(node) * linkStride(0);
+    }
+    return upperLinks_.mutableData() + size_t(upperOffsets_[node] + level - 1) * linkStride(level);
+}
+
+float VectorIndex::quantize(const float* vector, int8_t* code) {
+    float maxAbs = 0;
+    for (int i = 0; i < HashingEncoder::DIM; ++i) {
+        maxAbs = std::max(maxAbs, std::abs(vector[i]));
+    }
+    float scale = maxAbs > 0 ? maxAbs / 127 : 1;
+    for (int i = 0; i < HashingEncoder::DIM; ++i) {
+        code[i] = static_cast<int8_t>(std::lround(vector[i] / scale));
+    }
+    return scale;
+}
+
+// integer dot product (vectorizes well), then scaled
+float VectorIndex::similarity(const int8_t* code, float scale, uint32_t node) const {
+    const int8_t* other = codes_.data() + size_t(node) * HashingEncoder::DIM;
+    int32_t sum = 0;
+    for (int i = 0; i < HashingEncoder::DIM; ++i) {
+        sum += int32_t(code[i]) * other[i];
+    }
+    return sum * scale * scales_[node];
+}
+
+float VectorIndex::similarity(uint32_t a, uint32_t b) const {
+    return similarity(codes_.data() + size_t(a) * HashingEncoder::DIM, scales_[a], b);
+}
+
+template<typename SimFn>
+uint32_t VectorIndex::greedyClosest(SimFn&& sim, uint32_t entry, int level) const {
+    uint32_t best = entry;
+    float bestSim = sim(entry);
+    for (bool improved = true; improved;) {
+        improved = false;
+        const uint32_t* nbrs = links(best, level);
+        for (uint32_t i = 1; i <= nbrs[0] && i < linkStride(level); ++i) {
+            uint32_t node = nbrs[i];
+            float s = node < nodeCount() ? sim(node) : -2;
+            if (s > bestSim) {
+                bestSim = s;
+                best = node;
+                improved = true;
+            }
+        }
+    }
+    return best;
+}
+
+template<typename SimFn>
+std::vector<VectorIndex::Hit> VectorIndex::searchLayer(SimFn&& sim, uint32_t entry, size_t ef, int level) const {
+    if (visited_.size() < nodeCount()) {
+        visited_.resize(nodeCount(), 0);
+    }
+    if (++visitEpoch_ == 0) {
+        std::fill(visited_.begin(), visited_.end(), 0);
+        visitEpoch_ = 1;
+    }
+    std::priority_queue<Hit> candidates;  // best first
+    std::priority_queue<Hit, std::vector<Hit>, std::greater<Hit>> results;  // worst first
+    Hit start(sim(entry), entry);
+    candidates.push(start);
+    results.push(start);
+    visited_[entry] = visitEpoch_;
+    while (!candidates.empty()) {
+        Hit current = candidates.top();
+        if (current.first < results.top().first && results.size() >= ef) {
+            break;
+        }
+        candidates.pop();
+        const uint32_t* nbrs = links(current.second, level);
+        for (uint32_t i = 1; i <= nbrs[0] && i < linkStride(level); ++i) {
+            uint32_t node = nbrs[i];
+            if (node >= nodeCount() || visited_[node] == visitEpoch_) {
+                continue;
+            }
+            visited_[node] = visitEpoch_;
+            float s = sim(node);
+            if (results.size() < ef || s > results.top().first) {
+                candidates.emplace(s, node);
+                results.emplace(s, node);
+                if (results.size() > ef) {
+                    results.pop();
+                }
+            }
+        }
+    }
+    std::vector<Hit> hits(results.size());
+    for (size_t i = hits.size(); i-- > 0; results.pop()) {
+        hits[i] = results.top();
+    }
+    return hits;
+}
+
+// keep candidates (best first) closer to the base than to any already selected neighbor, so links spread
+//  in different directions; then fill up with the closest of the rest
+std::vector<uint32_t> VectorIndex::selectNeighbors(const std::vector<Hit>& candidates, size_t maxLinks) const {
+    std::vector<uint32_t> selected, pruned;
+    for (const Hit& candidate : candidates) {
+        if (selected.size() >= maxLinks) {
+            break;
+        }
+        bool diverse = std::none_of(selected.begin(), selected.end(), [&](uint32_t other) {
+            return similarity(candidate.second, other) > candidate.first;
+        });
+        (diverse ? selected : pruned).push_back(candidate.second);
+    }
+    for (size_t i = 0; i < pruned.size() && selected.size() < maxLinks; ++i) {
+        selected.push_back(pruned[i]);
+    }
+    return selected;
+}
+
+void VectorIndex::connect(uint32_t node, int level, const std::vector<uint32_t>& neighbors) {
+    uint32_t maxLinks = linkStride(level) - 1;
+    uint32_t* nodeLinks = mutableLinks(node, level);
+    nodeLinks[0] = static_cast<uint32_t>(neighbors.size());
+    std::copy(neighbors.begin(), neighbors.end(), nodeLinks + 1);
+
+    for (uint32_t other : neighbors) {
+        uint32_t* otherLinks = mutableLinks(other, level);
+        if (otherLinks[0] < maxLinks) {
+            otherLinks[++otherLinks[0]] = node;
+            continue;
+        }
+        // full: re-select from existing links plus the new node
+        std::vector<Hit> candidates;
+        candidates.emplace_back(similarity(other, node), node);
+        for (uint32_t i = 1; i <= otherLinks[0]; ++i) {
+            candidates.emplace_back(similarity(other, otherLinks[i]), otherLinks[i]);
+        }
+        std::sort(candidates.begin(), candidates.end(), std::greater<Hit>());
+        std::vector<uint32_t> kept = selectNeighbors(candidates, maxLinks);
+        otherLinks[0] = static_cast<uint32_t>(kept.size());
+        std::copy(kept.begin(), kept.end(), otherLinks + 1);
+    }
+}
+
+uint32_t VectorIndex::add(const RAGDocument& document, const float* vector) {
+    ownAll();
+    if (!idMapValid_) {
+        buildIdMap();
+    }
+    remove(document.id);
+
+    uint32_t node = static_cast<uint32_t>(nodeCount());
+    int8_t code[HashingEncoder::DIM];
+    float scale = quantize(vector, code);
+    codes_.append(code, HashingEncoder::DIM);
+    scales_.append(&scale, 1);
+
+    // level drawn from exponential distribution with mean 1/ln(M)
+    double u = std::uniform_real_distribution<double>(0, 1)(rng_);
+    int level = std::min(16, static_cast<int>(-std::log(std::max(u, 1e-12)) / std::log(double(params.M))));
+    uint8_t level8 = static_cast<uint8_t>(level);
+    levels_.append(&level8, 1);
+    uint32_t upperOffset = static_cast<uint32_t>(upperLinks_.size() / linkStride(1));
+    upperOffsets_.append(&upperOffset, 1);
+    upperLinks_.resize(upperLinks_.size() + size_t(level) * linkStride(1), 0);
+    links0_.resize(links0_.size() + linkStride(0), 0);
+    uint8_t live = 0;
+    deleted_.append(&live, 1);
+
+    SegmentDocRecord rec = {};
+    auto addString = [this](const std::string& s, uint64_t& offset, uint32_t& length) {
+        offset = strings_.size();
+        length = static_cast<uint32_t>(s.size());
+        strings_.append(s.data(), s.size());
+    };
+    addString(document.id, rec.idOffset, rec.idLength);
+    addString(document.title, rec.titleOffset, rec.titleLength);
+    addString(document.source, rec.sourceOffset, rec.sourceLength);
+    addString(document.content, rec.contentOffset, rec.contentLength);
+    rec.page = document.page;
+    rec.offset = document.offset;
+    docs_.append(&rec, 1);
+    idToNode_[document.id] = node;
+
+    if (maxLevel_ < 0) {
+        entryPoint_ = node;
+        maxLevel_ = level;
+        return node;
+    }
+    auto sim = [this, &code, scale](uint32_t other) { return similarity(code, scale, other); };
+    uint32_t entry = entryPoint_;
+    for (int l = maxLevel_; l > level; --l) {
+        entry = greedyClosest(sim, entry, l);
+    }
+    for (int l = std::min(level, maxLevel_); l >= 0; --l) {
+        std::vector<Hit> candidates = searchLayer(sim, entry, params.efConstruction, l);
+        connect(node, l, selectNeighbors(candidates, linkStride(l) - 1));
+        entry = candidates.front().second;
+    }
+    if (level > maxLevel_) {
+        entryPoint_ = node;
+        maxLevel_ = level;
+    }
+    return node;
+}
+
+bool VectorIndex::remove(const std::string& id) {
+    if (!idMapValid_) {
+        buildIdMap();
+    }
+    auto it = idToNode_.find(id);
+    if (it == idToNode_.end()) {
+        return false;
+    }
+    deleted_.mutableData()[it->second] = 1;
+    ++deletedCount_;
+    idToNode_.erase(it);
+    return true;
+}
+
+void VectorIndex::clear() {
+    *this = VectorIndex(params);
+}
+
+void VectorIndex::buildIdMap() {
+    idToNode_.clear();
+    for (uint32_t node = 0; node < nodeCount(); ++node) {
+        if (!deleted_[node]) {
+            const SegmentDocRecord& rec = docs_[node];
+            idToNode_[std::string(strings_.data() + rec.idOffset, rec.idLength)] = node;
+        }
+    }
+    idMapValid_ = true;
+}
+
+std::vector<VectorIndex::Hit> VectorIndex::search(const float* query, int k, int ef) const {
+    std::vector<Hit> hits;
+    if (maxLevel_ < 0 || k <= 0) {
+        return hits;
+    }
+    int8_t code[HashingEncoder::DIM];
+    float scale = quantize(query, code);
+    auto sim = [this, &code, scale](uint32_t node) { return similarity(code, scale, node); };
+    uint32_t entry = entryPoint_;
+    for (int l = maxLevel_; l > 0; --l) {
+        entry = greedyClosest(sim, entry, l);
+    }
+    // widen search by number of deleted docs expected among results
+    size_t width = std::max<size_t>(ef > 0 ? ef : params.efSearch, k);
+    width += width * deletedCount_ / std::max<size_t>(1, nodeCount());
+    for (const Hit& hit : searchLayer(sim, entry, width, 0)) {
+        if (!deleted_[hit.second]) {
+            hits.push_back(hit);
+            if (static_cast<int>(hits.size()) >= k) break;
+        }
+    }
+    return hits;
+}
+
+std::vector<VectorIndex::Hit> VectorIndex::exactSearch(const float* query, int k) const {
+    int8_t code[HashingEncoder::DIM];
+    float scale = quantize(query, code);
+    TopKCollector top(k);
+    for (uint32_t node = 0; node < nodeCount(); ++node) {
+        if (!deleted_[node]) {
+            top.add(similarity(code, scale, node), 0, node);
+        }
+    }
+    std::vector<Hit> hits;
+    for (const TopKCollector::Hit& hit : top.takeResults()) {
+        hits.emplace_back(hit.score, hit.doc);
+    }
+    return hits;
+}
+
+RAGDocument VectorIndex::document(uint32_t node) const {
+    const SegmentDocRecord& rec = docs_[node];
+    const char* base = strings_.data();
+    RAGDocument doc;
+    doc.id.assign(base + rec.idOffset, rec.idLength);
+    doc.title.assign(base + rec.titleOffset, rec.titleLength);
+    doc.source.assign(base + rec.sourceOffset, rec.sourceLength);
+    doc.content.assign(base + rec.contentOffset, rec.contentLength);
+    doc.documentId = passageDocumentId(doc.id);
+    doc.page = rec.page;
+    doc.offset = rec.offset;
+    return doc;
+}
+
+void VectorIndex::rebuild() {
+    VectorIndex fresh(params);
+    float vector[HashingEncoder::DIM];
+    for (uint32_t node = 0; node < nodeCount(); ++node) {
+        if (deleted_[node]) {
+            continue;
+        }
+        const int8_t* code = codes_.data() + size_t(node) * HashingEncoder::DIM;
+        for (int i = 0; i < HashingEncoder::DIM; ++i) {
+            vector[i] = code[i] * scales_[node];
+        }
+        fresh.add(document(node), vector);
+    }
+    *this = std::move(fresh);
+}
+
+void VectorIndex::ownAll() {
+    if (!file_) {
+        return;
+    }
+    codes_.own();
+    scales_.own();
+    levels_.own();
+    upperOffsets_.own();
+    upperLinks_.own();
+    links0_.own();
+    deleted_.own();
+    docs_.own();
+    strings_.own();
+    file_.reset();
+}
+
+bool VectorIndex::save(const std::string& path) {
+    ownAll();  // can't replace a file that is mapped on Windows
+    std::string tmpPath = path + ".tmp";
+    FILE* fp = fopen(tmpPath.c_str(), "wb");
+    if (!fp) {
+        return false;
+    }
+    Header header = {};
+    memcpy(header.magic, VECTOR_MAGIC, sizeof(header.magic));
+    header.version = VERSION;
+    header.dim = HashingEncoder::DIM;
+    header.M = params.M;
+    header.nodeCount = static_cast<uint32_t>(nodeCount());
+    header.entryPoint = entryPoint_;
+    header.maxLevel = maxLevel_;
+    header.deletedCount = static_cast<uint32_t>(deletedCount_);
+    header.upperLinksCount = upperLinks_.size();
+    header.stringsSize = strings_.size();
+
+    bool ok = fwrite(&header, sizeof(header), 1, fp) == 1;
+    uint64_t offset = sizeof(header);
+    auto writeArray = [&](const void* data, size_t bytes, uint64_t& sectionOffset) {
+        static const char zeros[8] = {0};
+        size_t pad = (8 - offset % 8) % 8;
+        ok = ok && fwrite(zeros, 1, pad, fp) == pad;
+        offset += pad;
+        sectionOffset = offset;
+        ok = ok && (bytes == 0 || fwrite(data, 1, bytes, fp) == bytes);
+        offset += bytes;
+    };
+    writeArray(codes_.data(), codes_.size(), header.codesOffset);
+    writeArray(scales_.data(), scales_.size() * sizeof(float), header.scalesOffset);
+    writeArray(levels_.data(), levels_.size(), header.levelsOffset);
+    writeArray(upperOffsets_.data(), upperOffsets_.size() * sizeof(uint32_t), header.upperOffsetsOffset);
+    writeArray(upperLinks_.data(), upperLinks_.size() * sizeof(uint32_t), header.upperLinksOffset);
+    writeArray(links0_.data(), links0_.size() * sizeof(uint32_t), header.links0Offset);
+    writeArray(deleted_.data(), deleted_.size(), header.deletedOffset);
+    writeArray(docs_.data(), docs_.size() * sizeof(SegmentDocRecord), header.docsOffset);
+    writeArray(strings_.data(), strings_.size(), header.stringsOffset);
+
+    ok = ok && fseek(fp, 0, SEEK_SET) == 0 && fwrite(&header, sizeof(header), 1, fp) == 1;
+    ok = syncFile(fp) && ok;
+    ok = fclose(fp) == 0 && ok;
+    if (!ok || !replaceFile(tmpPath, path)) {
+        removeFile(tmpPath);
+        return false;
+    }
+    return true;
+}
+
+bool VectorIndex::load(const std::string& path) {
+    clear();
+    std::unique_ptr<MappedFile> file(new MappedFile);
+    if (!file->open(path) || file->size() < sizeof(Header)) {
+        return false;
+    }
+    Header header;
+    memcpy(&header, file->data(), sizeof(header));
+    uint64_t n = header.nodeCount;
+    auto fits = [&file](uint64_t offset, uint64_t count, size_t recordSize) {
+        return offset % 8 == 0 && offset <= file->size() && count <= (file->size() - offset) / recordSize;
+    };
+    if (memcmp(header.magic, VECTOR_MAGIC, sizeof(header.magic)) != 0 || header.version != VERSION
+            || header.dim != HashingEncoder::DIM || header.M == 0 || header.M > 256
+            || (n > 0 && (header.entryPoint >= n || header.maxLevel < 0)) || header.deletedCount > n
+            || !fits(header.codesOffset, n * HashingEncoder::DIM, 1) || !fits(header.scalesOffset, n, sizeof(float))
+            || !fits(header.levelsOffset, n, 1) || !fits(header.upperOffsetsOffset, n, sizeof(uint32_t))
+            || !fits(header.upperLinksOffset, header.upperLinksCount, sizeof(uint32_t))
+            || !fits(header.links0Offset, n * (2 * header.M + 1), sizeof(uint32_t)) || !fits(header.deletedOffset, n, 1)
+            || !fits(header.docsOffset, n, sizeof(SegmentDocRecord)) || !fits(header.stringsOffset, header.stringsSize, 1)) {
+        return false;
+    }
+
+    params.M = header.M;
+    const char* base = file->data();
+    codes_.view(base + header.codesOffset, n * HashingEncoder::DIM);
+    scales_.view(base + header.scalesOffset, n);
+    levels_.view(base + header.levelsOffset, n);
+    upperOffsets_.view(base + header.upperOffsetsOffset, n);
+    upperLinks_.view(base + header.upperLinksOffset, header.upperLinksCount);
+    links0_.view(base + header.links0Offset, n * (2 * header.M + 1));
+    deleted_.view(base + header.deletedOffset, n);
+    docs_.view(base + header.docsOffset, n);
+    strings_.view(base + header.stringsOffset, header.stringsSize);
+    file_ = std::move(file);
+    entryPoint_ = header.entryPoint;
+    maxLevel_ = header.maxLevel;
+    deletedCount_ = header.deletedCount;
+    idMapValid_ = false;
+
+    // cheap per-node checks so a damaged file can't send traversal outside the arrays; link targets are
+    //  checked as they are followed
+    for (uint32_t node = 0; node < n; ++node) {
+        const SegmentDocRecord& rec = docs_[node];
+        bool ok = uint64_t(upperOffsets_[node] + levels_[node]) * linkStride(1) <= upperLinks_.size()
+                && levels_[node] <= header.maxLevel
+                && rec.idOffset + rec.idLength <= header.stringsSize && rec.titleOffset + rec.titleLength <= header.stringsSize
+                && rec.sourceOffset + rec.sourceLength <= header.stringsSize
+                && rec.contentOffset + rec.contentLength <= header.stringsSize;
+        if (!ok) {
+            clear();
+            return false;
+        }
+    }
+    return true;
+}
+
+// Vector RAG Service - passages embedded with HashingEncoder in an HNSW index saved at indexPath
+class VectorRAGService : public RAGService {
+public:
+    static constexpr int SAVE_EVERY = 256;  // changes between saves; index is also saved on close
+    static constexpr float MIN_SIMILARITY = 0.1f;
+
+    VectorRAGService(const std::string& indexPath) : indexPath_(indexPath) {
+        index_.load(indexPath_);
+    }
+
+    ~VectorRAGService() {
+        if (changes_ > 0) {
+            save();
+        }
+    }
+
+    std::vector<RAGDocument> searchDocuments(const std::string& query, int maxResults = 5) override {
+        float vector[HashingEncoder::DIM];
+        HashingEncoder::encode(query, vector);
+        std::vector<RAGDocument> results;
+        std::lock_guard<std::mutex> lock(mutex_);
+        for (const VectorIndex::Hit& hit : index_.search(vector, maxResults)) {
+            if (hit.first >= MIN_SIMILARITY) {
+                results.push_back(index_.document(hit.second));
+                results.back().relevanceScore = hit.first;
+            }
+        }
+        return results;
+    }
+
+    bool indexDocument(const RAGDocument& document) override {
+        // embed outside the lock
+        std::vector<RAGDocument> passages = splitPassages(document);
+        std::vector<float> vectors(passages.size() * HashingEncoder::DIM);
+        for (size_t i = 0; i < passages.size(); ++i) {
+            HashingEncoder::encode(passages[i].title + "\n" + passages[i].content, &vectors[i * HashingEncoder::DIM]);
+        }
+        std::lock_guard<std::mutex> lock(mutex_);
+        removePassages(document.id);
+        for (size_t i = 0; i < passages.size(); ++i) {
+            index_.add(passages[i], &vectors[i * HashingEncoder::DIM]);
+        }
+        return changed();
+    }
+
+    bool indexDocuments(const std::vector<RAGDocument>& documents) override {
+        std::unordered_map<std::string, size_t> last;
+        for (size_t i = 0; i < documents.size(); ++i) {
+            last[documents[i].id] = i;
+        }
+        // graph insertion is sequential, but embedding can be spread across cores
+        std::vector<std::vector<RAGDocument>> passages(documents.size());
+        std::vector<std::vector<float>> vectors(documents.size());
+        parallelFor(documents.size(), [&](size_t i) {
+            if (last.at(documents[i].id) != i) {
+                return;
+            }
+            passages[i] = splitPassages(documents[i]);
+            vectors[i].resize(passages[i].size() * HashingEncoder::DIM);
+            for (size_t j = 0; j < passages[i].size(); ++j) {
+                const RAGDocument& passage = passages[i][j];
+                HashingEncoder::encode(passage.title + "\n" + passage.content, &vectors[i][j * HashingEncoder::DIM]);
+            }
+        });
+        std::lock_guard<std::mutex> lock(mutex_);
+        for (const auto& entry : last) {
+            removePassages(entry.first);
+        }
+        for (size_t i = 0; i < documents.size(); ++i) {
+            for (size_t j = 0; j < passages[i].size(); ++j) {
+                index_.add(passages[i][j], &vectors[i][j * HashingEncoder::DIM]);
+            }
+        }
+        changes_ += SAVE_EVERY;  // save now
+        return changed();
+    }
+
+    bool removeDocument(const std::string& documentId) override {
+        std::lock_guard<std::mutex> lock(mutex_);
+        return removePassages(documentId) && changed();
+    }
+
+    void clearIndex() override {
+        std::lock_guard<std::mutex> lock(mutex_);
+        index_.clear();
+        changes_ = 0;
+        removeFile(indexPath_);
+    }
+
+private:
+    std::string indexPath_;
+    std::mutex mutex_;
+    VectorIndex index_;
+    int changes_ = 0;
+
+    bool removePassages(const std::string& documentId) {
+        size_t n = 0;
+        while (index_.remove(passageId(documentId, n))) {
+            ++n;
+        }
+        return n > 0;
+    }
+
+    bool changed() {
+        return ++changes_ < SAVE_EVERY || save();
+    }
+
+    bool save() {
+        // deleted nodes slow down search and waste space, so drop them once they are a third of the graph
+        if (index_.deletedCount() * 3 > index_.nodeCount()) {
+            index_.rebuild();
+        }
+        changes_ = 0;
+        return index_.save(indexPath_);
+    }
+};
+
+std::unique_ptr<RAGService> createVectorRAGService(const std::string& connectionString) {
+    // connectionString is the path of the local index file
+    return std::make_unique<VectorRAGService>(connectionString);
+}
@@ -0,0 +1,145 @@
+#pragma once
+
+#include "rag_segment.h"
+#include <random>
+
+// Offline sentence encoder: signed feature hashing of words, word bigrams and character trigrams into a
+//  fixed size, L2 normalized vector.  No model download, and similar wordings (plurals, shared stems) land
+//  near each other, which a lexical index misses.
+class HashingEncoder {
+public:
+    static constexpr int DIM = 256;
+    // zero vector if text has no tokens
+    static void encode(const std::string& text, float* out);
+};
+
+// Contiguous array that is either a view of a read-only mapping or owned; copied on first modification
+template<typename T>
+class FlatArray {
+public:
+    size_t size() const { return size_; }
+    const T* data() const { return data_; }
+    const T& operator[](size_t i) const { return data_[i]; }
+    T* mutableData() { own(); return owned_.data(); }
+
+    void view(const char* p, size_t n) {
+        std::vector<T>().swap(owned_);
+        data_ = reinterpret_cast<const T*>(p);
+        size_ = n;
+    }
+    void own() {
+        if (data_ != owned_.data()) {
+            std::vector<T>(data_, data_ + size_).swap(owned_);
+            sync();
+        }
+    }
+    void resize(size_t n, const T& fill = T()) { own(); owned_.resize(n, fill); sync(); }
+    void append(const T* p, size_t n) { own(); owned_.insert(owned_.end(), p, p + n); sync(); }
+    void clear() { std::vector<T>().swap(owned_); sync(); }
+
+private:
+    const T* data_ = nullptr;
+    size_t size_ = 0;
+    std::vector<T> owned_;
+
+    void sync() { data_ = owned_.data(); size_ = owned_.size(); }
+};
+
+struct HNSWParams {
+    uint32_t M = 16;  // links per node on upper layers; 2*M on layer 0
+    uint32_t efConstruction = 100;
+    uint32_t efSearch = 64;
+};
+
+// Approximate k-NN over document embeddings with an HNSW graph (Malkov & Yashunin).  Vectors are stored
+//  as int8 with a per-vector scale (4x smaller than float; similarity error well below ranking noise of
+//  the encoder) and queries are quantized the same way so similarity is an integer dot product.
+// Everything lives in flat arrays, saved as one file that load() maps in place, so opening does not
+//  rebuild or re-embed anything; arrays are copied to memory on the first change.
+// Deleted documents stay in the graph for navigation and are skipped in results until rebuild().
+// Not thread safe, including const methods (search uses a shared visited list).
+class VectorIndex {
+public:
+    static constexpr uint32_t VERSION = 1;
+    typedef std::pair<float, uint32_t> Hit;  // similarity, node
+
+    VectorIndex(const HNSWParams& params = HNSWParams());
+
+    // vector must have HashingEncoder::DIM elements; returns node number
+    uint32_t add(const RAGDocument& document, const float* vector);
+    bool remove(const std::string& id);
+    void clear();
+    // best first, excluding deleted nodes; ef defaults to params.efSearch
+    std::vector<Hit> search(const float* query, int k, int ef = 0) const;
+    // brute force, for measuring recall
+    std::vector<Hit> exactSearch(const float* query, int k) const;
+    RAGDocument document(uint32_t node) const;
+    size_t size() const { return levels_.size() - deletedCount_; }
+    size_t nodeCount() const { return levels_.size(); }
+    size_t deletedCount() const { return deletedCount_; }
+    // rebuild graph from live nodes only
+    void rebuild();
+
+    bool save(const std::string& path);
+    // false if file is missing or invalid, leaving index empty
+    bool load(const std::string& path);
+
+    HNSWParams params;
+
+private:
+    struct Header {
+        char magic[4];
+        uint32_t version;
+        uint32_t dim;
+        uint32_t M;
+        uint32_t nodeCount;
+        uint32_t entryPoint;
+        int32_t maxLevel;
+        uint32_t deletedCount;
+        uint64_t upperLinksCount;
+        uint64_t stringsSize;
+        uint64_t codesOffset;
+        uint64_t scalesOffset;
+        uint64_t levelsOffset;
+        uint64_t upperOffsetsOffset;
+        uint64_t upperLinksOffset;
+        uint64_t links0Offset;
+        uint64_t deletedOffset;
+        uint64_t docsOffset;
+        uint64_t stringsOffset;
+    };
+
+    std::unique_ptr<MappedFile> file_;
+    FlatArray<int8_t> codes_;  // DIM per node
+    FlatArray<float> scales_;
+    FlatArray<uint8_t> levels_;
+    FlatArray<uint32_t> upperOffsets_;  // first block in upperLinks_ (layer 1) of each node
+    FlatArray<uint32_t> upperLinks_;  // blocks of count + M links
+    FlatArray<uint32_t> links0_;  // count + 2*M links per node
+    FlatArray<uint8_t> deleted_;
+    FlatArray<SegmentDocRecord> docs_;  // offsets into strings_
+    FlatArray<char> strings_;
+    uint32_t entryPoint_ = 0;
+    int maxLevel_ = -1;
+    size_t deletedCount_ = 0;
+    std::unordered_map<std::string, uint32_t> idToNode_;
+    bool idMapValid_ = false;  // built on demand after load()
+    std::mt19937 rng_;
+    mutable std::vector<uint32_t> visited_;
+    mutable uint32_t visitEpoch_ = 0;
+
+    uint32_t linkStride(int level) const { return level == 0 ? 2 * params.M + 1 : params.M + 1; }
+    const uint32_t* links(uint32_t node, int level) const;
+    uint32_t* mutableLinks(uint32_t node, int level);
+    static float quantize(const float* vector, int8_t* code);  // returns scale
+    float similarity(const int8_t* code, float scale, uint32_t node) const;
+    float similarity(uint32_t a, uint32_t b) const;
+    template<typename SimFn>
+    uint32_t greedyClosest(SimFn&& sim, uint32_t entry, int level) const;
+    template<typename SimFn>
+    std::vector<Hit> searchLayer(SimFn&& sim, uint32_t entry, size_t ef, int level) const;
+    std::vector<uint32_t> selectNeighbors(const std::vector<Hit>& candidates, size_t maxLinks) const;
+    void connect(uint32_t node, int level, const std::vector<uint32_t>& neighbors);
+    void ownAll();
+    void buildIdMap();
+};
@@ -169,7 +169,7 @@ ScribbleApp::ScribbleApp(int argc, char* argv[])
           finish();  // exit immediately
         else if(arg == "out" && ii+1 < argc)
           outDoc = argv[++ii];
-        else if(arg.endsWith("test"))
+        else if(arg.endsWith("test") || arg.endsWith("bench"))
           runType = arg.toString();
         else if(ii+1 < argc && argv[ii+1][0] != '-') {  // support space instead of '=' between arg and value
           disableConfigSave = true;
@@ -304,7 +304,7 @@ void ScribbleApp::init()
 
   // testing
 #ifdef SCRIBBLE_TEST
-  if(StringRef(runType).endsWith("test")) {
+  if(StringRef(runType).endsWith("test") || StringRef(runType).endsWith("bench")) {
     SCRIBBLE_LOG(runTest(runType).c_str());
     finish();
     return;
@@ -2806,6 +2806,26 @@ std::string ScribbleApp::runTest(std::string runtype)
     test.inputTest();
     return test.resultStr;
   }
+  else if(runtype == "aitest") {
+    ScribbleTest test(SCRIBBLE_TEST_PATH);
+    test.aiTest();
+    return test.resultStr;
+  }
+  else if(runtype == "aibench") {
+    ScribbleTest test(SCRIBBLE_TEST_PATH);
+    test.aiBenchmark();
+    return test.resultStr;
+  }
+  else if(runtype == "ragbench") {
+    ScribbleTest test(SCRIBBLE_TEST_PATH);
+    test.ragBenchmark();
+    return test.resultStr;
+  }
+  else if(runtype == "exporttest") {
+    ScribbleTest test(SCRIBBLE_TEST_PATH);
+    test.exportTest();
+    return test.resultStr;
+  }
   return runtype + " is not a valid test mode.";
 }
 
@@ -2201,6 +2201,8 @@ void ScribbleArea::doReleaseEvent(const InputEvent& event)
           if(cfg->Bool("popupToolbar"))
             app->showSelToolbar(screenToGlobal(Point(prevRawPos.x, y)));
         }
+        // rect, lasso, ruled and path selections are made here, without a SelChange
+        scribbleDoc->selectionChanged();
       }
 #ifdef ONE_TIME_TIPS
       // one-time help tips for selection - on mobile, there is no hover to allow for regular tooltips
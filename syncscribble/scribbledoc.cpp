@@ -5,6 +5,8 @@
 #include "strokebuilder.h"
 #include "scribbleapp.h"
 
+std::function<void(ScribbleDoc* doc, int pagenum)> ScribbleDoc::onContentChanged;
+std::function<void(ScribbleDoc* doc)> ScribbleDoc::onSelectionChanged;
 
 ScribbleDoc::ScribbleDoc(ScribbleApp* parent, ScribbleConfig* _cfg, ScribbleMode* _mode)
 {
@@ -219,6 +221,7 @@ Document::loadresult_t ScribbleDoc::openDocument(IOStream* strm, bool delayload)
   document->bookmarksDirty = false;
   app->repaintBookmarks(true);
   doRefresh();
+  contentChanged(-1);
 #if !PLATFORM_IOS
   fileLastMod = getFileMTime(fileName());
 #endif
@@ -314,6 +317,7 @@ void ScribbleDoc::doUndoRedo(bool redo)
 // this is split out as a separate fn because it is also used by SyncScribble (for which viewdirty = false)
 void ScribbleDoc::undoRedoUpdate(int pagenum, int prevpages, bool viewdirty)
 {
+  contentChanged(prevpages != document->numPages() ? (pagenum | UndoHistory::MULTIPAGE) : pagenum);
   bool multipage = pagenum & UndoHistory::MULTIPAGE;
   pagenum = pagenum & ~UndoHistory::MULTIPAGE;
   int npages = document->numPages();
@@ -827,6 +831,8 @@ void ScribbleDoc::uiChanged(int reason)
 {
   ASSERT((1 << reason) > 0 && "Too many UIChangeFlags values!");
   uiDirty |= (1 << reason);
+  if(reason == UIState::SelChange)
+    selectionChanged();
 }
 
 void ScribbleDoc::bookmarkHit(int pagenum, Element* bookmark)
@@ -898,6 +904,7 @@ void ScribbleDoc::startAction(int pagenum)
 void ScribbleDoc::endAction()
 {
   history->endAction();
+  contentChanged(history->actionPage());
   if(scribbleSync)
     scribbleSync->sendHist();
 }
@@ -58,6 +58,15 @@ public:
   Rect dirtyPage(int pagenum);
   void updateCurrStroke(Rect dirty);
 
+  // called after content is changed by editing, undo/redo, or whiteboard sync, with the page number (possibly
+  //  ORed with UndoHistory::MULTIPAGE), or -1 when a document is opened; used for background search indexing
+  static std::function<void(ScribbleDoc* doc, int pagenum)> onContentChanged;
+  void contentChanged(int pagenum) { if(onContentChanged && scribbleMode) onContentChanged(this, pagenum); }
+  // called when the selection changes, including at the end of a selection gesture; used to prepare for AI
+  //  requests on the selection
+  static std::function<void(ScribbleDoc* doc)> onSelectionChanged;
+  void selectionChanged() { if(onSelectionChanged) onSelectionChanged(this); }
+
   // some support fns for whiteboarding
   void strokesUpdated(const std::vector<Element*>& strokes);
   void invalidateStroke(Element* s) { for(ScribbleArea* view : views) view->invalidateStroke(s); }